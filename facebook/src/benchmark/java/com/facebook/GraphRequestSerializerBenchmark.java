@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares GraphRequest.Serializer with the String.format based serializer it replaced, writing
+ * the string parameters of a batch of 50 requests with 20 parameters each.
+ * <p/>
+ * Run with {@code ./gradlew :facebook:benchmark}; add {@code -Pjmh.args="-prof gc"} to see the
+ * allocation rate of each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+// The legacy serializer's getBytes() calls use the default charset, which is UTF-8 on Android
+@Fork(value = 1, jvmArgsAppend = "-Dfile.encoding=UTF-8")
+public class GraphRequestSerializerBenchmark {
+    private static final int REQUEST_COUNT = 50;
+    private static final int PARAMETER_COUNT = 20;
+
+    // true for the url-encoded body written when the request is gzipped
+    @Param({"false", "true"})
+    public boolean useUrlEncode;
+
+    private String[][] keys;
+    private String[][] values;
+    private CountingOutputStream outputStream;
+
+    @Setup
+    public void setup() throws IOException {
+        keys = new String[REQUEST_COUNT][PARAMETER_COUNT];
+        values = new String[REQUEST_COUNT][PARAMETER_COUNT];
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            for (int j = 0; j < PARAMETER_COUNT; j++) {
+                keys[i][j] = "param_" + j;
+                // A mix of plain ids, prose and non-ASCII text, as in real requests
+                switch (j % 3) {
+                    case 0:
+                        values[i][j] = String.format(Locale.ROOT, "%d_%d", 100000L + i, j);
+                        break;
+                    case 1:
+                        values[i][j] = "Checking in at the café with friends, request " + i;
+                        break;
+                    default:
+                        values[i][j] = "日本語のテキスト & emoji 😀 = " + j;
+                        break;
+                }
+            }
+        }
+        outputStream = new CountingOutputStream();
+
+        // Only compare the two if they write the same bytes
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        writeAll(new LegacyRequestSerializer(expected, useUrlEncode));
+        writeAll(new GraphRequest.Serializer(actual, null, useUrlEncode));
+        if (!Arrays.equals(expected.toByteArray(), actual.toByteArray())) {
+            throw new IllegalStateException("Serializers wrote different bodies");
+        }
+    }
+
+    @Benchmark
+    public long legacySerializer() throws IOException {
+        outputStream.reset();
+        writeAll(new LegacyRequestSerializer(outputStream, useUrlEncode));
+        return outputStream.count;
+    }
+
+    @Benchmark
+    public long serializer() throws IOException {
+        outputStream.reset();
+        writeAll(new GraphRequest.Serializer(outputStream, null, useUrlEncode));
+        return outputStream.count;
+    }
+
+    private void writeAll(GraphRequest.KeyValueSerializer serializer) throws IOException {
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            for (int j = 0; j < PARAMETER_COUNT; j++) {
+                serializer.writeString(keys[i][j], values[i][j]);
+            }
+        }
+    }
+
+    // Discards what is written, so that only the serializers are measured
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        void reset() {
+            count = 0;
+        }
+
+        @Override
+        public void write(int oneByte) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.util.Locale;
+
+// The string parameter path of GraphRequest.Serializer as it was before it was rewritten to
+// encode into a reusable buffer, kept as the baseline for GraphRequestSerializerBenchmark.
+final class LegacyRequestSerializer implements GraphRequest.KeyValueSerializer {
+    private static final String MIME_BOUNDARY = "3i2ndDfv2rTHiSisAbouNdArYfORhtTPEefj3q2f";
+
+    private final OutputStream outputStream;
+    private boolean firstWrite = true;
+    private boolean useUrlEncode = false;
+
+    LegacyRequestSerializer(OutputStream outputStream, boolean useUrlEncode) {
+        this.outputStream = outputStream;
+        this.useUrlEncode = useUrlEncode;
+    }
+
+    public void writeString(String key, String value) throws IOException {
+        writeContentDisposition(key, null, null);
+        writeLine("%s", value);
+        writeRecordBoundary();
+    }
+
+    public void writeRecordBoundary() throws IOException {
+        if (!useUrlEncode) {
+            writeLine("--%s", MIME_BOUNDARY);
+        } else {
+            this.outputStream.write("&".getBytes());
+        }
+    }
+
+    public void writeContentDisposition(
+            String name,
+            String filename,
+            String contentType
+    ) throws IOException {
+        if (!useUrlEncode) {
+            write("Content-Disposition: form-data; name=\"%s\"", name);
+            if (filename != null) {
+                write("; filename=\"%s\"", filename);
+            }
+            writeLine(""); // newline after Content-Disposition
+            if (contentType != null) {
+                writeLine("%s: %s", "Content-Type", contentType);
+            }
+            writeLine(""); // blank line before content
+        } else {
+            this.outputStream.write(String.format("%s=", name).getBytes());
+        }
+    }
+
+    public void write(String format, Object... args) throws IOException {
+        if (!useUrlEncode) {
+            if (firstWrite) {
+                // Prepend all of our output with a boundary string.
+                this.outputStream.write("--".getBytes());
+                this.outputStream.write(MIME_BOUNDARY.getBytes());
+                this.outputStream.write("\r\n".getBytes());
+                firstWrite = false;
+            }
+            this.outputStream.write(String.format(format, args).getBytes());
+        } else {
+            this.outputStream.write(
+                    URLEncoder.encode(
+                            String.format(Locale.US, format, args), "UTF-8").getBytes());
+        }
+    }
+
+    public void writeLine(String format, Object... args) throws IOException {
+        write(format, args);
+        if (!useUrlEncode) {
+            write("\r\n");
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.appevents;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares AppEvent.validateIdentifier with the regex based validation it replaced, validating
+ * the 10 parameter keys of one event per operation.
+ * <p/>
+ * With repeated keys every event has the same keys, so after the first event both only look them
+ * up in their set of validated identifiers. With unique keys no key is seen twice, as in apps
+ * that log high-cardinality keys, so every key is checked and added to the set.
+ * <p/>
+ * Run with {@code ./gradlew :facebook:benchmark -Pjmh.args=AppEventValidationBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AppEventValidationBenchmark {
+    private static final int PARAMETER_COUNT = 10;
+    private static final int UNIQUE_KEY_COUNT = 1 << 20;
+
+    @Param({"repeated", "unique"})
+    public String keys;
+
+    private boolean isUnique;
+    private String[] keyPool;
+    private int nextKey;
+    private LegacyIdentifierValidator legacyValidator;
+
+    @Setup
+    public void setup() {
+        isUnique = "unique".equals(keys);
+        int keyCount = isUnique ? UNIQUE_KEY_COUNT : PARAMETER_COUNT;
+        keyPool = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keyPool[i] = String.format(Locale.ROOT, "fb_content_param_%d", i);
+        }
+        legacyValidator = new LegacyIdentifierValidator();
+    }
+
+    @Benchmark
+    public void regex() {
+        for (int i = 0; i < PARAMETER_COUNT; i++) {
+            legacyValidator.validateIdentifier(nextKey());
+        }
+    }
+
+    @Benchmark
+    public void characterClass() {
+        for (int i = 0; i < PARAMETER_COUNT; i++) {
+            AppEvent.validateIdentifier(nextKey());
+        }
+    }
+
+    private String nextKey() {
+        String key = keyPool[nextKey];
+        nextKey = (nextKey + 1) % keyPool.length;
+        if (isUnique && nextKey == 0) {
+            // Going around the unique keys again would find them all in the legacy set, which
+            // never drops any, so start it over.  The new cache only keeps the last 1000.
+            legacyValidator = new LegacyIdentifierValidator();
+        }
+        return key;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.appevents;
+
+import com.facebook.FacebookException;
+
+import java.util.HashSet;
+import java.util.Locale;
+
+// AppEvent.validateIdentifier as it was before it stopped using a regex, kept as the baseline for
+// AppEventValidationBenchmark. The set of validated identifiers belongs to the instance rather
+// than the class, so that each benchmark iteration starts from an empty one.
+final class LegacyIdentifierValidator {
+    private final HashSet<String> validatedIdentifiers = new HashSet<String>();
+
+    void validateIdentifier(String identifier) throws FacebookException {
+
+        // Identifier should be 40 chars or less, and only have 0-9A-Za-z, underscore, hyphen,
+        // and space (but no hyphen or space in the first position).
+        final String regex = "^[0-9a-zA-Z_]+[0-9a-zA-Z _-]*$";
+
+        final int MAX_IDENTIFIER_LENGTH = 40;
+        if (identifier == null
+                || identifier.length() == 0
+                || identifier.length() > MAX_IDENTIFIER_LENGTH) {
+            if (identifier == null) {
+                identifier = "<None Provided>";
+            }
+            throw new FacebookException(
+                    String.format(
+                            Locale.ROOT,
+                            "Identifier '%s' must be less than %d characters",
+                            identifier,
+                            MAX_IDENTIFIER_LENGTH)
+            );
+        }
+
+        boolean alreadyValidated = false;
+        synchronized (validatedIdentifiers) {
+            alreadyValidated = validatedIdentifiers.contains(identifier);
+        }
+
+        if (!alreadyValidated) {
+            if (identifier.matches(regex)) {
+                synchronized (validatedIdentifiers) {
+                    validatedIdentifiers.add(identifier);
+                }
+            } else {
+                throw new FacebookException(
+                        String.format(
+                                "Skipping event named '%s' due to illegal name - must be " +
+                                        "under 40 chars and alphanumeric, _, - or space, and " +
+                                        "not start with a space or hyphen.",
+                                identifier
+                        )
+                );
+            }
+        }
+    }
+}
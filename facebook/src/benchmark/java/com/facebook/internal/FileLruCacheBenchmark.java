@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.internal;
+
+import com.facebook.FacebookSdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures FileLruCache put, get and trim latency on a full cache of 1k, 10k and 50k entries,
+ * with the flat layout and with 16 shards.
+ * <p/>
+ * Trims are held back rather than run on a background thread, so that put measures only the
+ * put itself and trim measures the eviction that one put causes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileLruCacheBenchmark {
+    private static final byte[] VALUE = new byte[100];
+
+    @Param({"1000", "10000", "50000"})
+    public int entryCount;
+
+    @Param({"1", "16"})
+    public int shardCount;
+
+    private final List<Runnable> pendingTrims = new ArrayList<Runnable>();
+    private File cacheDirectory;
+    private FileLruCache cache;
+    private int nextKey;
+    private int nextGet;
+
+    @Setup
+    public void setup() throws IOException {
+        FacebookSdk.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                pendingTrims.add(runnable);
+            }
+        });
+
+        cacheDirectory = File.createTempFile("FileLruCacheBenchmark", "");
+        cacheDirectory.delete();
+        FileLruCache.Limits limits = new FileLruCache.Limits();
+        limits.setFileCount(entryCount);
+        limits.setByteCount(Integer.MAX_VALUE);
+        limits.setShardCount(shardCount);
+        cache = new FileLruCache("benchmark", limits, cacheDirectory);
+
+        for (nextKey = 0; nextKey < entryCount; nextKey++) {
+            put(nextKey);
+        }
+        runPendingTrims();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Utility.deleteDirectory(cacheDirectory);
+    }
+
+    // Each put after setup evicts the least recently used entry
+    @Benchmark
+    public void put() throws IOException {
+        put(nextKey++);
+    }
+
+    @TearDown(Level.Invocation)
+    public void runPendingTrims() {
+        while (!pendingTrims.isEmpty()) {
+            pendingTrims.remove(0).run();
+        }
+    }
+
+    @Benchmark
+    public int get() throws IOException {
+        // Only the newer half of the entries is read, so that reads never miss
+        int key = nextKey - 1 - (nextGet++ % (entryCount / 2));
+        InputStream stream = cache.get(String.valueOf(key));
+        int total = 0;
+        byte[] buffer = new byte[VALUE.length];
+        int count;
+        while ((count = stream.read(buffer)) > 0) {
+            total += count;
+        }
+        stream.close();
+        return total;
+    }
+
+    @State(Scope.Thread)
+    public static class PendingTrim {
+        @Setup(Level.Invocation)
+        public void putWithoutTrimming(FileLruCacheBenchmark benchmark) throws IOException {
+            benchmark.put(benchmark.nextKey++);
+        }
+    }
+
+    @Benchmark
+    public void trim(PendingTrim pendingTrim) {
+        runPendingTrims();
+    }
+
+    private void put(int key) throws IOException {
+        OutputStream stream = cache.openPutStream(String.valueOf(key));
+        stream.write(VALUE);
+        stream.close();
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.internal;
+
+import com.facebook.FacebookSdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares FileLruCache get latency, including reading the payload, for entries with the version 0
+ * JSON header and with the version 1 binary header.
+ * <p/>
+ * The entries are the size of the url redirects UrlRedirectCache used to keep in a FileLruCache:
+ * a graph picture url key, a content tag and a CDN url payload. UrlRedirectCache now keeps its
+ * redirects in a pack file, so these are only redirect-sized; they are where header parsing is the
+ * largest share of a read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FileLruCacheHeaderBenchmark {
+    private static final int ENTRY_COUNT = 1000;
+    private static final String CONTENT_TAG = "UrlRedirectCache_Redirect";
+
+    @Param({"0", "1"})
+    public int headerVersion;
+
+    private ExecutorService executor;
+    private File cacheDirectory;
+    private FileLruCache cache;
+    private String[] keys;
+    private int nextGet;
+
+    @Setup
+    public void setup() throws IOException, JSONException {
+        // Journal writes happen in the background, as they do in the app
+        executor = Executors.newSingleThreadExecutor();
+        FacebookSdk.setExecutor(executor);
+
+        cacheDirectory = File.createTempFile("FileLruCacheHeaderBenchmark", "");
+        cacheDirectory.delete();
+        FileLruCache.Limits limits = new FileLruCache.Limits();
+        limits.setFileCount(2 * ENTRY_COUNT);
+        cache = new FileLruCache("benchmark", limits, cacheDirectory);
+
+        keys = new String[ENTRY_COUNT];
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            keys[i] = String.format(
+                    Locale.ROOT,
+                    "https://graph.facebook.com/v2.8/%d/picture?type=normal&width=200&height=200",
+                    100000000000000L + i);
+            byte[] payload = String.format(
+                    Locale.ROOT,
+                    "https://scontent.xx.fbcdn.net/v/t1.0-1/p200x200/%d_%d_n.jpg"
+                            + "?oh=0f6b1c2d3e4f5a6b7c8d9e0f1a2b3c4d&oe=5A1B2C3D",
+                    13000000 + i,
+                    10150000000000000L + i).getBytes("UTF-8");
+            if (headerVersion == 0) {
+                writeVersionZeroEntry(keys[i], payload);
+            } else {
+                OutputStream stream = cache.openPutStream(keys[i], CONTENT_TAG);
+                stream.write(payload);
+                stream.close();
+            }
+        }
+
+        // A new instance indexes the version 0 files it finds; then read everything once, so that
+        // both versions are measured with every entry indexed
+        cache = new FileLruCache("benchmark", limits, cacheDirectory);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            if (get() == 0) {
+                throw new IllegalStateException("Entry " + i + " could not be read");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        Utility.deleteDirectory(cacheDirectory);
+    }
+
+    @Benchmark
+    public int get() throws IOException {
+        InputStream stream = cache.get(keys[nextGet++ % ENTRY_COUNT], CONTENT_TAG);
+        if (stream == null) {
+            return 0;
+        }
+        int total = 0;
+        byte[] buffer = new byte[256];
+        int count;
+        while ((count = stream.read(buffer)) > 0) {
+            total += count;
+        }
+        stream.close();
+        return total;
+    }
+
+    // Writes a cache file the way FileLruCache did before the binary header: a version byte, the
+    // 3 byte size of the JSON header and the JSON header, then the payload
+    private void writeVersionZeroEntry(String key, byte[] payload)
+            throws IOException, JSONException {
+        JSONObject header = new JSONObject();
+        header.put("key", key);
+        header.put("tag", CONTENT_TAG);
+        byte[] headerBytes = header.toString().getBytes("UTF-8");
+
+        File directory = new File(cache.getLocation());
+        directory.mkdirs();
+        OutputStream output = new FileOutputStream(new File(directory, Utility.md5hash(key)));
+        try {
+            output.write(0);
+            output.write((headerBytes.length >> 16) & 0xff);
+            output.write((headerBytes.length >> 8) & 0xff);
+            output.write(headerBytes.length & 0xff);
+            output.write(headerBytes);
+            output.write(payload);
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -131,6 +131,19 @@ final class AccessTokenManager {
         if (!Utility.areObjectsEqual(oldAccessToken, currentAccessToken)) {
             sendCurrentAccessTokenChangedBroadcast(oldAccessToken, currentAccessToken);
         }
+
+        // A refreshed token for the same user can keep using the cached responses.  Loading the
+        // token at startup isn't a change of user, and keeps responses cached on disk.
+        if (saveToCache
+                && !Utility.areObjectsEqual(
+                        getUserId(oldAccessToken),
+                        getUserId(currentAccessToken))) {
+            GraphResponseCache.getInstance().clear();
+        }
+    }
+
+    private static String getUserId(AccessToken accessToken) {
+        return (accessToken != null) ? accessToken.getUserId() : null;
     }
 
     private void sendCurrentAccessTokenChangedBroadcast(AccessToken oldAccessToken,
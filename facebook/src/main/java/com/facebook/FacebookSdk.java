@@ -71,6 +71,8 @@ public final class FacebookSdk {
     private static volatile String facebookDomain = FACEBOOK_COM;
     private static AtomicLong onProgressThreshold = new AtomicLong(65536);
     private static volatile boolean isDebugEnabled = BuildConfig.DEBUG;
+    private static volatile boolean isGraphResponseStreamingEnabled = false;
+    private static volatile boolean isGraphResponseDiskCacheEnabled = false;
     private static boolean isLegacyTokenUpgradeSupported = false;
     private static LockOnGetVariable<File> cacheDir;
     private static Context applicationContext;
@@ -581,6 +583,50 @@ public final class FacebookSdk {
         onProgressThreshold.set(threshold);
     }
 
+    /**
+     * Indicates whether Graph API responses are parsed straight from the connection stream.
+     *
+     * @return true if streaming parsing is enabled
+     */
+    public static boolean isGraphResponseStreamingEnabled() {
+        return isGraphResponseStreamingEnabled;
+    }
+
+    /**
+     * Sets whether Graph API responses are parsed straight from the connection stream instead of
+     * being read into a String first. This lowers peak memory use for large responses and
+     * batches, and defers parsing the body of batch entries that have no callback until it is
+     * accessed. Raw responses are still rendered on demand by
+     * {@link GraphResponse#getRawResponse()}. Streaming is skipped while
+     * {@link LoggingBehavior#INCLUDE_RAW_RESPONSES} is enabled.
+     *
+     * @param enabled true to enable streaming parsing
+     */
+    public static void setGraphResponseStreamingEnabled(boolean enabled) {
+        isGraphResponseStreamingEnabled = enabled;
+    }
+
+    /**
+     * Indicates whether cached Graph API responses are also kept on disk.
+     *
+     * @return true if the disk cache is enabled
+     */
+    public static boolean isGraphResponseDiskCacheEnabled() {
+        return isGraphResponseDiskCacheEnabled;
+    }
+
+    /**
+     * Sets whether the responses of requests that use a cache policy (see
+     * {@link GraphRequest#setCachePolicy(GraphRequest.CachePolicy, long)}) are also kept on disk,
+     * so that they outlive the process. They are always kept in a bounded memory cache. The disk
+     * cache is cleared along with the memory cache when the current user changes.
+     *
+     * @param enabled true to enable the disk cache
+     */
+    public static void setGraphResponseDiskCacheEnabled(boolean enabled) {
+        isGraphResponseDiskCacheEnabled = enabled;
+    }
+
     // Package private for testing only
     static void loadDefaultsFromMetadata(Context context) {
         if (context == null) {
@@ -0,0 +1,345 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import com.facebook.internal.Validate;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Iterates over the items in the "data" arrays of a paged Graph API result, following the
+ * paging links from {@link GraphResponse#getRequestForPagedResults(GraphResponse.PagingDirection)}
+ * in either direction.
+ * <p/>
+ * Pages are fetched on the SDK's executor ahead of the caller, so that the next page is usually
+ * ready by the time the current one has been consumed. The number of pages fetched ahead is
+ * bounded, and fetching stops once there are no more pages, a page is empty, or the maximum
+ * number of items has been reached.
+ * <p/>
+ * {@link #hasNext()} and {@link #next()} block while waiting for a page that is still being
+ * fetched, so this should only be used if you have transitioned off the UI thread. If a page
+ * fails to load, they throw a {@link FacebookGraphResponseException} for it, after the items of
+ * the earlier pages have been returned.
+ */
+public final class GraphPagingIterator implements Iterator<JSONObject> {
+    private static final int DEFAULT_LOOK_AHEAD_PAGES = 1;
+
+    // Fetches a single page; tests substitute their own
+    interface PageFetcher {
+        GraphResponse fetch(GraphRequest request);
+    }
+
+    private static final PageFetcher DEFAULT_PAGE_FETCHER = new PageFetcher() {
+        @Override
+        public GraphResponse fetch(GraphRequest request) {
+            return request.executeAndWait();
+        }
+    };
+
+    private final Object lock = new Object();
+    private final GraphResponse.PagingDirection direction;
+    private final int lookAheadPages;
+    private final int maxItemCount;
+    private final PageFetcher pageFetcher;
+    private final Executor executor;
+
+    private final ArrayDeque<List<JSONObject>> bufferedPages = new ArrayDeque<List<JSONObject>>();
+    private List<JSONObject> currentPage;
+    private int currentIndex;
+    private GraphRequest nextRequest;
+    private boolean isFetching;
+    private boolean isClosed;
+    private int fetchedItemCount;
+    private FacebookException fetchError;
+
+    private GraphPagingIterator(Builder builder) {
+        this.direction = builder.direction;
+        this.lookAheadPages = builder.lookAheadPages;
+        this.maxItemCount = builder.maxItemCount;
+        this.pageFetcher = builder.pageFetcher;
+        this.executor = FacebookSdk.getExecutor();
+
+        synchronized (lock) {
+            nextRequest = builder.request;
+            fetchIfNeeded();
+        }
+    }
+
+    /**
+     * Returns whether there are more items, waiting for the next page to be fetched if needed.
+     *
+     * @return true if {@link #next()} will return an item
+     * @throws FacebookException if the next page could not be fetched
+     */
+    @Override
+    public boolean hasNext() {
+        synchronized (lock) {
+            while (currentPage == null || currentIndex >= currentPage.size()) {
+                if (isClosed) {
+                    return false;
+                } else if (!bufferedPages.isEmpty()) {
+                    currentPage = bufferedPages.removeFirst();
+                    currentIndex = 0;
+                    // That made room for another page
+                    fetchIfNeeded();
+                } else if (fetchError != null) {
+                    throw fetchError;
+                } else if (!isFetching) {
+                    return false;
+                } else {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new FacebookException(e);
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the next item, waiting for the next page to be fetched if needed.
+     *
+     * @return the next item
+     * @throws NoSuchElementException if there are no more items
+     * @throws FacebookException if the next page could not be fetched
+     */
+    @Override
+    public JSONObject next() {
+        synchronized (lock) {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return currentPage.get(currentIndex++);
+        }
+    }
+
+    /**
+     * Not supported.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops fetching pages and drops the ones that have been fetched ahead. A page that is
+     * already being fetched still completes, but is discarded. There are no more items after
+     * this.
+     */
+    public void close() {
+        synchronized (lock) {
+            isClosed = true;
+            nextRequest = null;
+            bufferedPages.clear();
+            currentPage = null;
+            lock.notifyAll();
+        }
+    }
+
+    // Must be called with the lock held
+    private void fetchIfNeeded() {
+        if (isClosed
+                || isFetching
+                || nextRequest == null
+                || bufferedPages.size() >= lookAheadPages) {
+            return;
+        }
+
+        final GraphRequest request = nextRequest;
+        nextRequest = null;
+        isFetching = true;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    GraphResponse response = null;
+                    RuntimeException failure = null;
+                    try {
+                        response = pageFetcher.fetch(request);
+                    } catch (RuntimeException e) {
+                        failure = e;
+                    } finally {
+                        // However the fetch ended, hasNext() must not keep waiting for it
+                        if (response == null) {
+                            onFetchFailed(failure);
+                        }
+                    }
+                    if (response != null) {
+                        onPageFetched(response);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            isFetching = false;
+            fetchError = new FacebookException(e);
+        }
+    }
+
+    private void onFetchFailed(RuntimeException failure) {
+        synchronized (lock) {
+            isFetching = false;
+            lock.notifyAll();
+            if (failure instanceof FacebookException) {
+                fetchError = (FacebookException) failure;
+            } else {
+                fetchError = new FacebookException(
+                        "GraphPagingIterator could not fetch a page.",
+                        failure);
+            }
+        }
+    }
+
+    private void onPageFetched(GraphResponse response) {
+        synchronized (lock) {
+            isFetching = false;
+            lock.notifyAll();
+            if (isClosed) {
+                return;
+            }
+
+            FacebookRequestError error = response.getError();
+            JSONObject graphObject = response.getJSONObject();
+            JSONArray data = (graphObject != null) ? graphObject.optJSONArray("data") : null;
+            if (error != null) {
+                fetchError = new FacebookGraphResponseException(
+                        response,
+                        "GraphPagingIterator could not fetch a page.");
+                return;
+            } else if (data == null) {
+                fetchError = new FacebookGraphResponseException(
+                        response,
+                        "GraphPagingIterator received a page without data.");
+                return;
+            }
+
+            List<JSONObject> page = new ArrayList<JSONObject>();
+            for (int i = 0; i < data.length() && fetchedItemCount < maxItemCount; i++) {
+                JSONObject item = data.optJSONObject(i);
+                if (item != null) {
+                    page.add(item);
+                    fetchedItemCount++;
+                }
+            }
+
+            // An empty page means there is nothing more, whatever the paging links say
+            if (!page.isEmpty()) {
+                bufferedPages.addLast(page);
+                if (fetchedItemCount < maxItemCount) {
+                    nextRequest = response.getRequestForPagedResults(direction);
+                }
+            }
+            fetchIfNeeded();
+        }
+    }
+
+    /**
+     * Builder class used to configure a GraphPagingIterator.
+     */
+    public static final class Builder {
+        private final GraphRequest request;
+        private GraphResponse.PagingDirection direction = GraphResponse.PagingDirection.NEXT;
+        private int lookAheadPages = DEFAULT_LOOK_AHEAD_PAGES;
+        private int maxItemCount = Integer.MAX_VALUE;
+        private PageFetcher pageFetcher = DEFAULT_PAGE_FETCHER;
+
+        /**
+         * Constructs a builder for iterating over the results of a request.
+         *
+         * @param request the request for the first page
+         */
+        public Builder(GraphRequest request) {
+            Validate.notNull(request, "request");
+            this.request = request;
+        }
+
+        /**
+         * Sets which paging link to follow. The default is
+         * {@link GraphResponse.PagingDirection#NEXT}. Items within a page are returned in the
+         * order the server sent them.
+         *
+         * @param direction the direction to page in
+         * @return The builder instance
+         */
+        public Builder setDirection(GraphResponse.PagingDirection direction) {
+            Validate.notNull(direction, "direction");
+            this.direction = direction;
+            return this;
+        }
+
+        /**
+         * Sets how many pages can be fetched ahead of the page being consumed. The default is
+         * 1, which fetches the next page while the current one is consumed.
+         *
+         * @param lookAheadPages the number of pages to fetch ahead; must be at least 1
+         * @return The builder instance
+         */
+        public Builder setLookAheadPages(int lookAheadPages) {
+            if (lookAheadPages < 1) {
+                throw new IllegalArgumentException("Argument lookAheadPages must be >= 1.");
+            }
+            this.lookAheadPages = lookAheadPages;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of items to return. No more pages are fetched once that
+         * many items have been. By default there is no maximum.
+         *
+         * @param maxItemCount the maximum number of items; must be at least 1
+         * @return The builder instance
+         */
+        public Builder setMaxItemCount(int maxItemCount) {
+            if (maxItemCount < 1) {
+                throw new IllegalArgumentException("Argument maxItemCount must be >= 1.");
+            }
+            this.maxItemCount = maxItemCount;
+            return this;
+        }
+
+        Builder setPageFetcher(PageFetcher pageFetcher) {
+            this.pageFetcher = pageFetcher;
+            return this;
+        }
+
+        /**
+         * Builds a new GraphPagingIterator, which starts fetching the first page right away.
+         *
+         * @return the iterator
+         */
+        public GraphPagingIterator build() {
+            return new GraphPagingIterator(this);
+        }
+    }
+}
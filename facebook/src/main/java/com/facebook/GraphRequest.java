@@ -145,6 +145,9 @@ public class GraphRequest {
     private Object tag;
     private String version;
     private boolean skipClientToken = false;
+    private CachePolicy cachePolicy = CachePolicy.NONE;
+    private long cacheTimeToLiveInMilliseconds = 0;
+    private GraphRequestRetryPolicy retryPolicy;
 
     /**
      * Constructs a request without an access token, graph path, or any other parameters.
@@ -754,6 +757,61 @@ public class GraphRequest {
         this.skipClientToken = skipClientToken;
     }
 
+    /**
+     * Returns how this request uses the response cache.
+     *
+     * @return the cache policy; the default is {@link CachePolicy#NONE}
+     */
+    public final CachePolicy getCachePolicy() {
+        return this.cachePolicy;
+    }
+
+    /**
+     * Returns how long a cached response can be used for this request.
+     *
+     * @return the time to live, in milliseconds
+     */
+    public final long getCacheTimeToLive() {
+        return this.cacheTimeToLiveInMilliseconds;
+    }
+
+    /**
+     * Sets how this request uses the response cache. Only GET requests are cached. Responses
+     * are cached per graph path, version, parameters and user, with the requested fields in
+     * any order sharing an entry.
+     *
+     * @param cachePolicy              the cache policy, or null for {@link CachePolicy#NONE}
+     * @param timeToLiveInMilliseconds how long after it was received a cached response can be
+     *                                 used for this request
+     */
+    public final void setCachePolicy(CachePolicy cachePolicy, long timeToLiveInMilliseconds) {
+        if (timeToLiveInMilliseconds < 0) {
+            throw new IllegalArgumentException(
+                    "Argument timeToLiveInMilliseconds must be >= 0.");
+        }
+        this.cachePolicy = (cachePolicy != null) ? cachePolicy : CachePolicy.NONE;
+        this.cacheTimeToLiveInMilliseconds = timeToLiveInMilliseconds;
+    }
+
+    /**
+     * Returns the retry policy of this request.
+     *
+     * @return the retry policy, or null if the request is not retried
+     */
+    public final GraphRequestRetryPolicy getRetryPolicy() {
+        return this.retryPolicy;
+    }
+
+    /**
+     * Sets the retry policy of this request, which decides whether it is sent again when it
+     * fails. This overrides the retry policy of any batch the request is executed in.
+     *
+     * @param retryPolicy the retry policy, or null to use the batch's
+     */
+    public final void setRetryPolicy(GraphRequestRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
     /**
      * Returns the parameters for this request.
      *
@@ -885,6 +943,31 @@ public class GraphRequest {
         defaultBatchApplicationId = applicationId;
     }
 
+    /**
+     * Gets the window within which requests executed with {@link #executeAsync()} are collected
+     * into one batch.
+     *
+     * @return the window, in milliseconds; 0 (the default) means requests are not batched
+     */
+    public static final long getAutoBatchingWindow() {
+        return GraphRequestCoalescer.getWindow();
+    }
+
+    /**
+     * Sets the window within which requests executed with {@link #executeAsync()} are collected
+     * into one batch, to save round-trips when several requests are made at once. Requests are
+     * collected per thread, from the first one for up to the window, or until there are
+     * {@link #MAXIMUM_BATCH_SIZE} of them. Only GET requests that don't use batch entry names or
+     * dependencies are batched, and only when executed on a thread with a Looper; others are
+     * executed right away. Each request's callback and GraphRequestAsyncTask complete as if the
+     * request had been executed on its own.
+     *
+     * @param windowInMilliseconds the window, in milliseconds; 0 means do not batch
+     */
+    public static final void setAutoBatchingWindow(long windowInMilliseconds) {
+        GraphRequestCoalescer.setWindow(windowInMilliseconds);
+    }
+
     /**
      * Returns the callback which will be called when the request finishes.
      *
@@ -987,7 +1070,9 @@ public class GraphRequest {
      * Executes the request asynchronously. This function will return immediately,
      * and the request will be processed on a separate thread. In order to process result of a
      * request, or determine whether a request succeeded or failed, a callback must be specified
-     * (see the {@link #setCallback(Callback) setCallback} method).
+     * (see the {@link #setCallback(Callback) setCallback} method). If an auto batching window is
+     * set (see {@link #setAutoBatchingWindow(long)}), the request may be sent in a batch with
+     * others, and the task starts once that batch completes.
      * <p/>
      * This should only be called from the UI thread.
      *
@@ -995,6 +1080,10 @@ public class GraphRequest {
      * @throws IllegalArgumentException
      */
     public final GraphRequestAsyncTask executeAsync() {
+        GraphRequestAsyncTask coalescedTask = GraphRequestCoalescer.coalesce(this);
+        if (coalescedTask != null) {
+            return coalescedTask;
+        }
         return GraphRequest.executeBatchAsync(this);
     }
 
@@ -1148,6 +1237,28 @@ public class GraphRequest {
     public static List<GraphResponse> executeBatchAndWait(GraphRequestBatch requests) {
         Validate.notEmptyAndContainsNoNulls(requests, "requests");
 
+        List<GraphResponse> cachedResponses =
+                GraphResponseCache.getInstance().getCachedResponses(requests);
+        if (cachedResponses != null) {
+            runCallbacks(requests, cachedResponses);
+            return cachedResponses;
+        }
+
+        if (GraphRequestRetrier.hasRetryPolicy(requests)) {
+            List<GraphResponse> responses = GraphRequestRetrier.sendWithRetries(
+                    requests,
+                    new GraphRequestRetrier.Sender() {
+                        @Override
+                        public List<GraphResponse> send(GraphRequestBatch retryRequests) {
+                            return sendAndWait(retryRequests);
+                        }
+                    });
+            responses = GraphResponseCache.getInstance().processResponses(requests, responses);
+            runCallbacks(requests, responses);
+            AccessTokenManager.getInstance().extendAccessTokenIfNeeded();
+            return responses;
+        }
+
         HttpURLConnection connection = null;
         try {
             try {
@@ -1263,6 +1374,39 @@ public class GraphRequest {
     public static List<GraphResponse> executeConnectionAndWait(
             HttpURLConnection connection,
             GraphRequestBatch requests) {
+        List<GraphResponse> responses = readResponses(connection, requests);
+
+        responses = GraphResponseCache.getInstance().processResponses(requests, responses);
+        runCallbacks(requests, responses);
+
+        // Try extending the current access token in case it's needed.
+        AccessTokenManager.getInstance().extendAccessTokenIfNeeded();
+
+        return responses;
+    }
+
+    // Sends the requests and reads their responses, without calling any callbacks
+    static List<GraphResponse> sendAndWait(GraphRequestBatch requests) {
+        HttpURLConnection connection = null;
+        try {
+            try {
+                connection = toHttpConnection(requests);
+            } catch (Exception ex) {
+                return GraphResponse.constructErrorResponses(
+                        requests.getRequests(),
+                        null,
+                        new FacebookException(ex));
+            }
+
+            return readResponses(connection, requests);
+        } finally {
+            Utility.disconnectQuietly(connection);
+        }
+    }
+
+    private static List<GraphResponse> readResponses(
+            HttpURLConnection connection,
+            GraphRequestBatch requests) {
         List<GraphResponse> responses = GraphResponse.fromHttpConnection(connection, requests);
 
         Utility.disconnectQuietly(connection);
@@ -1275,12 +1419,6 @@ public class GraphRequest {
                             responses.size(),
                             numRequests));
         }
-
-        runCallbacks(requests, responses);
-
-        // Try extending the current access token in case it's needed.
-        AccessTokenManager.getInstance().extendAccessTokenIfNeeded();
-
         return responses;
     }
 
@@ -1712,17 +1850,21 @@ public class GraphRequest {
             }
 
             if (hasOnProgressCallbacks(requests)) {
-                ProgressNoopOutputStream countingStream = null;
-                countingStream = new ProgressNoopOutputStream(requests.getCallbackHandler());
-                processRequest(requests, null, numRequests, url, countingStream, shouldUseGzip);
+                // Progress needs the total size up front. Serialize the batch once into memory,
+                // sizing attachments from their metadata rather than reading them, and then
+                // write it to the wire while reporting progress.
+                ProgressBufferingOutputStream bufferingStream =
+                        new ProgressBufferingOutputStream(requests.getCallbackHandler());
+                processRequest(requests, logger, numRequests, url, bufferingStream, shouldUseGzip);
 
-                int max = countingStream.getMaxProgress();
-                Map<GraphRequest, RequestProgress> progressMap = countingStream.getProgressMap();
+                int max = bufferingStream.getMaxProgress();
+                Map<GraphRequest, RequestProgress> progressMap = bufferingStream.getProgressMap();
 
                 outputStream = new ProgressOutputStream(outputStream, requests, progressMap, max);
+                bufferingStream.writeTo(outputStream);
+            } else {
+                processRequest(requests, logger, numRequests, url, outputStream, shouldUseGzip);
             }
-
-            processRequest(requests, logger, numRequests, url, outputStream, shouldUseGzip);
         } finally {
             if (outputStream != null) {
                 outputStream.close();
@@ -2061,13 +2203,32 @@ public class GraphRequest {
         throw new IllegalArgumentException("Unsupported parameter type.");
     }
 
-    private interface KeyValueSerializer {
+    interface KeyValueSerializer {
         void writeString(String key, String value) throws IOException;
     }
 
-    private static class Serializer implements KeyValueSerializer {
+    // Writes the multipart (or, when gzipping, url-encoded) request body. Text is encoded straight
+    // into a reusable buffer rather than going through String.format and String.getBytes, and the
+    // fixed parts of the format are encoded once, since this runs for every parameter of every
+    // request. Package-private for GraphRequestSerializerBenchmark.
+    static class Serializer implements KeyValueSerializer {
+        private static final byte[] CRLF = toUtf8Bytes("\r\n");
+        private static final byte[] BOUNDARY_LINE = toUtf8Bytes("--" + MIME_BOUNDARY + "\r\n");
+        private static final byte[] CONTENT_DISPOSITION_START =
+                toUtf8Bytes("Content-Disposition: form-data; name=\"");
+        private static final byte[] FILENAME_START = toUtf8Bytes("; filename=\"");
+        private static final byte[] QUOTE = toUtf8Bytes("\"");
+        private static final byte[] CONTENT_TYPE_START = toUtf8Bytes(CONTENT_TYPE_HEADER + ": ");
+        private static final byte[] URL_ENCODED_SEPARATOR = toUtf8Bytes("&");
+        private static final byte[] URL_ENCODED_ASSIGNMENT = toUtf8Bytes("=");
+        private static final byte[] HEX_DIGITS = toUtf8Bytes("0123456789ABCDEF");
+        private static final int BUFFER_SIZE = 1024;
+        // The most bytes a single char can expand to: a url-encoded 4 byte UTF-8 sequence
+        private static final int MAX_BYTES_PER_CHAR = 12;
+
         private final OutputStream outputStream;
         private final Logger logger;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
         private boolean firstWrite = true;
         private boolean useUrlEncode = false;
 
@@ -2131,10 +2292,9 @@ public class GraphRequest {
                 JSONObject requestJson = requestJsonArray.getJSONObject(i);
                 requestOutputStream.setCurrentRequest(request);
                 if (i > 0) {
-                    write(",%s", requestJson.toString());
-                } else {
-                    write("%s", requestJson.toString());
+                    write(",");
                 }
+                write(requestJson.toString());
                 i++;
             }
             write("]");
@@ -2145,7 +2305,7 @@ public class GraphRequest {
 
         public void writeString(String key, String value) throws IOException {
             writeContentDisposition(key, null, null);
-            writeLine("%s", value);
+            writeLine(value);
             writeRecordBoundary();
             if (logger != null) {
                 logger.appendKeyValue("    " + key, value);
@@ -2156,7 +2316,7 @@ public class GraphRequest {
             writeContentDisposition(key, key, "image/png");
             // Note: quality parameter is ignored for PNG
             bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
-            writeLine("");
+            writeLine();
             writeRecordBoundary();
             if (logger != null) {
                 logger.appendKeyValue("    " + key, "<Image>");
@@ -2165,8 +2325,13 @@ public class GraphRequest {
 
         public void writeBytes(String key, byte[] bytes) throws IOException {
             writeContentDisposition(key, key, "content/unknown");
-            this.outputStream.write(bytes);
-            writeLine("");
+            if (outputStream instanceof ProgressBufferingOutputStream) {
+                // No need to copy the bytes, they will still be around when the batch is written
+                ((ProgressBufferingOutputStream) outputStream).writeDeferred(bytes);
+            } else {
+                this.outputStream.write(bytes);
+            }
+            writeLine();
             writeRecordBoundary();
             if (logger != null) {
                 logger.appendKeyValue(
@@ -2183,7 +2348,10 @@ public class GraphRequest {
             writeContentDisposition(key, key, mimeType);
 
             int totalBytes = 0;
-            if (outputStream instanceof ProgressNoopOutputStream) {
+            if (outputStream instanceof ProgressBufferingOutputStream) {
+                // The content is read when the buffered batch is written out
+                ((ProgressBufferingOutputStream) outputStream).writeDeferred(contentUri);
+            } else if (outputStream instanceof ProgressNoopOutputStream) {
                 // If we are only counting bytes then skip reading the file
                 long contentSize = Utility.getContentSize(contentUri);
 
@@ -2196,7 +2364,7 @@ public class GraphRequest {
                 totalBytes += Utility.copyAndCloseInputStream(inputStream, outputStream);
             }
 
-            writeLine("");
+            writeLine();
             writeRecordBoundary();
             if (logger != null) {
                 logger.appendKeyValue(
@@ -2217,7 +2385,10 @@ public class GraphRequest {
 
             int totalBytes = 0;
 
-            if (outputStream instanceof ProgressNoopOutputStream) {
+            if (outputStream instanceof ProgressBufferingOutputStream) {
+                // The file is read when the buffered batch is written out
+                ((ProgressBufferingOutputStream) outputStream).writeDeferred(descriptor);
+            } else if (outputStream instanceof ProgressNoopOutputStream) {
                 // If we are only counting bytes then skip reading the file
                 ((ProgressNoopOutputStream) outputStream).addProgress(descriptor.getStatSize());
             } else {
@@ -2225,7 +2396,7 @@ public class GraphRequest {
                         new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
                 totalBytes += Utility.copyAndCloseInputStream(inputStream, outputStream);
             }
-            writeLine("");
+            writeLine();
             writeRecordBoundary();
             if (logger != null) {
                 logger.appendKeyValue(
@@ -2236,9 +2407,9 @@ public class GraphRequest {
 
         public void writeRecordBoundary() throws IOException {
             if (!useUrlEncode) {
-                writeLine("--%s", MIME_BOUNDARY);
+                writeRaw(BOUNDARY_LINE);
             } else {
-                this.outputStream.write("&".getBytes());
+                this.outputStream.write(URL_ENCODED_SEPARATOR);
             }
         }
 
@@ -2248,44 +2419,155 @@ public class GraphRequest {
                 String contentType
         ) throws IOException {
             if (!useUrlEncode) {
-                write("Content-Disposition: form-data; name=\"%s\"", name);
+                writeRaw(CONTENT_DISPOSITION_START);
+                write(name);
+                writeRaw(QUOTE);
                 if (filename != null) {
-                    write("; filename=\"%s\"", filename);
+                    writeRaw(FILENAME_START);
+                    write(filename);
+                    writeRaw(QUOTE);
                 }
-                writeLine(""); // newline after Content-Disposition
+                writeRaw(CRLF); // newline after Content-Disposition
                 if (contentType != null) {
-                    writeLine("%s: %s", CONTENT_TYPE_HEADER, contentType);
+                    writeRaw(CONTENT_TYPE_START);
+                    write(contentType);
+                    writeRaw(CRLF);
                 }
-                writeLine(""); // blank line before content
+                writeRaw(CRLF); // blank line before content
             } else {
-                this.outputStream.write(String.format("%s=", name).getBytes());
+                writeUtf8(name, false);
+                this.outputStream.write(URL_ENCODED_ASSIGNMENT);
             }
         }
 
-        public void write(String format, Object... args) throws IOException {
+        public void write(String text) throws IOException {
             if (!useUrlEncode) {
-                if (firstWrite) {
-                    // Prepend all of our output with a boundary string.
-                    this.outputStream.write("--".getBytes());
-                    this.outputStream.write(MIME_BOUNDARY.getBytes());
-                    this.outputStream.write("\r\n".getBytes());
-                    firstWrite = false;
-                }
-                this.outputStream.write(String.format(format, args).getBytes());
+                writeFirstBoundaryIfNeeded();
+                writeUtf8(text, false);
             } else {
-                this.outputStream.write(
-                        URLEncoder.encode(
-                                String.format(Locale.US, format, args), "UTF-8").getBytes());
+                writeUtf8(text, true);
             }
         }
 
-        public void writeLine(String format, Object... args) throws IOException {
-            write(format, args);
+        public void writeLine(String text) throws IOException {
+            write(text);
+            writeLine();
+        }
+
+        public void writeLine() throws IOException {
             if (!useUrlEncode) {
-                write("\r\n");
+                writeRaw(CRLF);
+            }
+        }
+
+        // Only used for multipart output
+        private void writeRaw(byte[] bytes) throws IOException {
+            writeFirstBoundaryIfNeeded();
+            this.outputStream.write(bytes);
+        }
+
+        private void writeFirstBoundaryIfNeeded() throws IOException {
+            if (firstWrite) {
+                // Prepend all of our output with a boundary string.
+                this.outputStream.write(BOUNDARY_LINE);
+                firstWrite = false;
             }
         }
 
+        // Produces the same bytes as text.getBytes() (or URLEncoder.encode(text, "UTF-8") when
+        // urlEncode is set) without allocating. Unpaired surrogates become '?', like getBytes.
+        private void writeUtf8(String text, boolean urlEncode) throws IOException {
+            int position = 0;
+            int length = text.length();
+            for (int i = 0; i < length; i++) {
+                if (position > buffer.length - MAX_BYTES_PER_CHAR) {
+                    this.outputStream.write(buffer, 0, position);
+                    position = 0;
+                }
+
+                char c = text.charAt(i);
+                if (urlEncode) {
+                    if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                            || c == '.' || c == '-' || c == '*' || c == '_') {
+                        buffer[position++] = (byte) c;
+                        continue;
+                    } else if (c == ' ') {
+                        buffer[position++] = '+';
+                        continue;
+                    }
+                }
+
+                int codePoint = c;
+                if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    if (Character.isHighSurrogate(c)
+                            && i + 1 < length
+                            && Character.isLowSurrogate(text.charAt(i + 1))) {
+                        codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    } else {
+                        codePoint = '?';
+                    }
+                }
+
+                if (codePoint < 0x80) {
+                    position = putByte(position, codePoint, urlEncode);
+                } else if (codePoint < 0x800) {
+                    position = putByte(position, 0xc0 | (codePoint >> 6), urlEncode);
+                    position = putByte(position, 0x80 | (codePoint & 0x3f), urlEncode);
+                } else if (codePoint < 0x10000) {
+                    position = putByte(position, 0xe0 | (codePoint >> 12), urlEncode);
+                    position = putByte(position, 0x80 | ((codePoint >> 6) & 0x3f), urlEncode);
+                    position = putByte(position, 0x80 | (codePoint & 0x3f), urlEncode);
+                } else {
+                    position = putByte(position, 0xf0 | (codePoint >> 18), urlEncode);
+                    position = putByte(position, 0x80 | ((codePoint >> 12) & 0x3f), urlEncode);
+                    position = putByte(position, 0x80 | ((codePoint >> 6) & 0x3f), urlEncode);
+                    position = putByte(position, 0x80 | (codePoint & 0x3f), urlEncode);
+                }
+            }
+            if (position > 0) {
+                this.outputStream.write(buffer, 0, position);
+            }
+        }
+
+        private int putByte(int position, int b, boolean urlEncode) {
+            if (urlEncode) {
+                buffer[position++] = '%';
+                buffer[position++] = HEX_DIGITS[(b >> 4) & 0xf];
+                buffer[position++] = HEX_DIGITS[b & 0xf];
+            } else {
+                buffer[position++] = (byte) b;
+            }
+            return position;
+        }
+
+        private static byte[] toUtf8Bytes(String string) {
+            try {
+                return string.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                // UTF-8 is always supported
+                throw new FacebookException(e);
+            }
+        }
+    }
+
+    /**
+     * Describes how a GET request uses the response cache.
+     */
+    public enum CachePolicy {
+        /**
+         * The request always goes to the server, and its response is not cached.
+         */
+        NONE,
+        /**
+         * A cached response is used if there is one within the time to live; otherwise the
+         * request goes to the server, and its response is cached.
+         */
+        CACHE_FIRST,
+        /**
+         * The request always goes to the server, and its response is cached. If the server
+         * can't be reached or fails, a cached response within the time to live is used instead.
+         */
+        NETWORK_FIRST,
     }
 
     /**
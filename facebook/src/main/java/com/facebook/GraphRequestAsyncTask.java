@@ -42,6 +42,11 @@ public class GraphRequestAsyncTask extends AsyncTask<Void, Void, List<GraphRespo
 
     private Exception exception;
 
+    // Set when the requests were sent as part of a coalesced batch, in which case this task only
+    // reports their result
+    private boolean isCoalesced;
+    private List<GraphResponse> coalescedResponses;
+
     /**
      * Constructor. Serialization of the requests will be done in the background, so any
      * serialization- related errors will be returned via the Response.getException() method.
@@ -120,6 +125,12 @@ public class GraphRequestAsyncTask extends AsyncTask<Void, Void, List<GraphRespo
         return requests;
     }
 
+    final void setCoalescedResult(List<GraphResponse> responses, Exception exception) {
+        this.isCoalesced = true;
+        this.coalescedResponses = responses;
+        this.exception = exception;
+    }
+
     @Override
     public String toString() {
         return new StringBuilder()
@@ -164,6 +175,9 @@ public class GraphRequestAsyncTask extends AsyncTask<Void, Void, List<GraphRespo
 
     @Override
     protected List<GraphResponse> doInBackground(Void... params) {
+        if (isCoalesced) {
+            return coalescedResponses;
+        }
         try {
             if (connection == null) {
                 return requests.executeAndWait();
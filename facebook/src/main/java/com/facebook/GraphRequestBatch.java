@@ -38,6 +38,7 @@ public class GraphRequestBatch extends AbstractList<GraphRequest> {
     private final String id = Integer.valueOf(idGenerator.incrementAndGet()).toString();
     private List<Callback> callbacks = new ArrayList<Callback>();
     private String batchApplicationId;
+    private GraphRequestRetryPolicy retryPolicy;
 
     /**
      * Constructor. Creates an empty batch.
@@ -71,6 +72,7 @@ public class GraphRequestBatch extends AbstractList<GraphRequest> {
         this.callbackHandler = requests.callbackHandler;
         this.timeoutInMilliseconds = requests.timeoutInMilliseconds;
         this.callbacks = new ArrayList<Callback>(requests.callbacks);
+        this.retryPolicy = requests.retryPolicy;
     }
 
     /**
@@ -92,6 +94,23 @@ public class GraphRequestBatch extends AbstractList<GraphRequest> {
         this.timeoutInMilliseconds = timeoutInMilliseconds;
     }
 
+    /**
+     * Gets the retry policy for the requests in this batch that don't have their own.
+     * @return the retry policy, or null if failed requests are not retried
+     */
+    public GraphRequestRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the retry policy for the requests in this batch that don't have their own. Only the
+     * requests that failed are sent again.
+     * @param retryPolicy the retry policy, or null to not retry failed requests
+     */
+    public void setRetryPolicy(GraphRequestRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
     /**
      * Adds a batch-level callback which will be called when the entire batch has finished
      * executing.
@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the requests that are executed asynchronously on a thread within a short window, and
+ * sends them to the server as one batch.
+ *
+ * Each request still gets its own GraphRequestAsyncTask.  The task is held back until the batch
+ * completes, and then only reports the request's part of the result, so that get(), getStatus()
+ * and onPostExecute behave as they would for a request sent on its own.  The request's callback
+ * is called by the batch, on the thread that executed the request, as usual.
+ *
+ * Requests are only collected on threads with a Looper, which is where the window is timed and
+ * the batch is sent from, so all the work for one batch happens on one thread.
+ */
+final class GraphRequestCoalescer {
+    // Guarded by itself
+    private static final Map<Looper, PendingBatch> pendingBatches =
+            new HashMap<Looper, PendingBatch>();
+
+    // 0 means requests are not coalesced
+    private static volatile long windowInMilliseconds = 0;
+
+    private GraphRequestCoalescer() {
+    }
+
+    static long getWindow() {
+        return windowInMilliseconds;
+    }
+
+    static void setWindow(long windowInMilliseconds) {
+        if (windowInMilliseconds < 0) {
+            throw new IllegalArgumentException("Argument windowInMilliseconds must be >= 0.");
+        }
+        GraphRequestCoalescer.windowInMilliseconds = windowInMilliseconds;
+    }
+
+    /**
+     * Adds the request to the batch being collected on this thread.
+     * @return the request's task, or null if the request should be executed on its own
+     */
+    static GraphRequestAsyncTask coalesce(GraphRequest request) {
+        long window = windowInMilliseconds;
+        Looper looper = Looper.myLooper();
+        if (window <= 0 || looper == null || !canCoalesce(request)) {
+            return null;
+        }
+
+        GraphRequestAsyncTask task = new GraphRequestAsyncTask(request);
+        PendingBatch fullBatch = null;
+        synchronized (pendingBatches) {
+            PendingBatch batch = pendingBatches.get(looper);
+            if (batch == null) {
+                batch = new PendingBatch(looper);
+                pendingBatches.put(looper, batch);
+                batch.handler.postDelayed(batch, window);
+            }
+            batch.add(request, task);
+            if (batch.requests.size() >= GraphRequest.MAXIMUM_BATCH_SIZE) {
+                pendingBatches.remove(looper);
+                fullBatch = batch;
+            }
+        }
+
+        if (fullBatch != null) {
+            fullBatch.handler.removeCallbacks(fullBatch);
+            fullBatch.send();
+        }
+        return task;
+    }
+
+    // Returns the number of requests waiting to be sent from the looper's thread
+    static int getPendingCount(Looper looper) {
+        synchronized (pendingBatches) {
+            PendingBatch batch = pendingBatches.get(looper);
+            return (batch != null) ? batch.requests.size() : 0;
+        }
+    }
+
+    // Only plain reads are coalesced.  Anything that could have side effects, or that already
+    // relies on batch features, is left to run as the caller wrote it.  Cache first requests run
+    // on their own too, since a batch only skips the server if all of its requests are cached.
+    // So do requests with a retry policy, whose backoff would hold back the callbacks of the
+    // unrelated requests batched with them.
+    private static boolean canCoalesce(GraphRequest request) {
+        return request.getHttpMethod() == HttpMethod.GET
+                && request.getCachePolicy() != GraphRequest.CachePolicy.CACHE_FIRST
+                && request.getRetryPolicy() == null
+                && request.getGraphObject() == null
+                && request.getBatchEntryName() == null
+                && request.getBatchEntryDependsOn() == null;
+    }
+
+    private static final class PendingBatch implements Runnable {
+        private final Looper looper;
+        private final Handler handler;
+        private final List<GraphRequest> requests = new ArrayList<GraphRequest>();
+        private final List<GraphRequestAsyncTask> tasks = new ArrayList<GraphRequestAsyncTask>();
+
+        PendingBatch(Looper looper) {
+            this.looper = looper;
+            this.handler = new Handler(looper);
+        }
+
+        void add(GraphRequest request, GraphRequestAsyncTask task) {
+            requests.add(request);
+            tasks.add(task);
+        }
+
+        // Called on the looper's thread when the window closes
+        @Override
+        public void run() {
+            synchronized (pendingBatches) {
+                if (pendingBatches.get(looper) != this) {
+                    // Already sent because it filled up
+                    return;
+                }
+                pendingBatches.remove(looper);
+            }
+            send();
+        }
+
+        void send() {
+            // Requests whose task was cancelled while waiting are not sent at all
+            GraphRequestBatch batch = new GraphRequestBatch();
+            List<GraphRequestAsyncTask> sentTasks = new ArrayList<GraphRequestAsyncTask>();
+            for (int i = 0; i < requests.size(); i++) {
+                if (!tasks.get(i).isCancelled()) {
+                    batch.add(requests.get(i));
+                    sentTasks.add(tasks.get(i));
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            batch.setCallbackHandler(handler);
+            new CoalescedBatchAsyncTask(batch, sentTasks).executeOnExecutor(
+                    FacebookSdk.getExecutor());
+        }
+    }
+
+    private static final class CoalescedBatchAsyncTask extends GraphRequestAsyncTask {
+        private final List<GraphRequestAsyncTask> requestTasks;
+
+        CoalescedBatchAsyncTask(
+                GraphRequestBatch requests,
+                List<GraphRequestAsyncTask> requestTasks) {
+            super(requests);
+            this.requestTasks = requestTasks;
+        }
+
+        @Override
+        protected void onPostExecute(List<GraphResponse> result) {
+            super.onPostExecute(result);
+
+            for (int i = 0; i < requestTasks.size(); i++) {
+                GraphRequestAsyncTask task = requestTasks.get(i);
+                if (task.isCancelled() || task.getStatus() != AsyncTask.Status.PENDING) {
+                    continue;
+                }
+                task.setCoalescedResult(
+                        (result != null)
+                                ? new ArrayList<GraphResponse>(result.subList(i, i + 1))
+                                : null,
+                        getException());
+                task.executeOnExecutor(FacebookSdk.getExecutor());
+            }
+        }
+    }
+}
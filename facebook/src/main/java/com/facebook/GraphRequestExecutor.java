@@ -0,0 +1,306 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import android.os.Handler;
+import android.os.Process;
+
+import com.facebook.internal.Validate;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * Executes requests on a thread pool of its own, as an alternative to
+ * {@link GraphRequest#executeAsync()}, whose AsyncTasks share the app's AsyncTask threads and
+ * always report back through the main thread.
+ * <p/>
+ * The number of requests that can be in flight at once, running or waiting for a thread, is
+ * bounded. Requests executed past the bound are not queued: their Task fails or their Future
+ * throws right away with a {@link RejectedExecutionException}, so that callers can back off.
+ * <p/>
+ * By default, request callbacks are called directly on the thread that executed the request,
+ * without going through a Handler. Use {@link Builder#setCallbackHandler(Handler)} to have them
+ * posted elsewhere, such as to the main thread. Results are also available from the returned
+ * Task or Future.
+ */
+public final class GraphRequestExecutor {
+    private static final int DEFAULT_THREAD_COUNT = 4;
+    private static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 64;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final AtomicInteger executorCounter = new AtomicInteger(0);
+
+    private final ThreadPoolExecutor threadPool;
+    private final Handler callbackHandler;
+    private final int maxInFlightRequests;
+
+    private GraphRequestExecutor(Builder builder) {
+        this.callbackHandler = builder.callbackHandler;
+        this.maxInFlightRequests = builder.maxInFlightRequests;
+
+        final int executorNumber = executorCounter.incrementAndGet();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger(0);
+
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "GraphRequestExecutor " + executorNumber + " #" + counter.incrementAndGet());
+            }
+        };
+
+        // The queue only holds what the threads can't take yet, so that the pool as a whole
+        // never has more than maxInFlightRequests.  Idle threads go away.
+        int queueCapacity = builder.maxInFlightRequests - builder.threadCount;
+        this.threadPool = new ThreadPoolExecutor(
+                builder.threadCount,
+                builder.threadCount,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                (queueCapacity > 0)
+                        ? new LinkedBlockingQueue<Runnable>(queueCapacity)
+                        : new SynchronousQueue<Runnable>(),
+                threadFactory);
+        this.threadPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Executes a request in the background.
+     *
+     * @param request the request to execute
+     * @return a Task for the request's response, which fails with a
+     * RejectedExecutionException if too many requests are in flight
+     */
+    public Task<GraphResponse> executeAsync(GraphRequest request) {
+        Validate.notNull(request, "request");
+
+        final Task<GraphResponse>.TaskCompletionSource taskCompletionSource = Task.create();
+        executeAsync(new GraphRequestBatch(request)).continueWith(
+                new Continuation<List<GraphResponse>, Void>() {
+                    @Override
+                    public Void then(Task<List<GraphResponse>> task) throws Exception {
+                        if (task.isCancelled()) {
+                            taskCompletionSource.setCancelled();
+                        } else if (task.isFaulted()) {
+                            taskCompletionSource.setError(task.getError());
+                        } else {
+                            taskCompletionSource.setResult(task.getResult().get(0));
+                        }
+                        return null;
+                    }
+                });
+        return taskCompletionSource.getTask();
+    }
+
+    /**
+     * Executes a batch of requests in the background, as a single round-trip.
+     *
+     * @param requests the requests to execute
+     * @return a Task for the responses, in the same order as the requests, which fails with a
+     * RejectedExecutionException if too many requests are in flight
+     */
+    public Task<List<GraphResponse>> executeAsync(GraphRequestBatch requests) {
+        final Task<List<GraphResponse>>.TaskCompletionSource taskCompletionSource = Task.create();
+        execute(requests, taskCompletionSource);
+        return taskCompletionSource.getTask();
+    }
+
+    /**
+     * Executes a batch of requests in the background, as a single round-trip.
+     *
+     * @param requests the requests to execute
+     * @return a Future for the responses, in the same order as the requests; if too many
+     * requests are in flight, its get() throws an ExecutionException caused by a
+     * RejectedExecutionException
+     */
+    public Future<List<GraphResponse>> submit(GraphRequestBatch requests) {
+        return execute(requests, null);
+    }
+
+    /**
+     * Returns the number of requests that are running or waiting for a thread.
+     *
+     * @return the number of batches in flight
+     */
+    public int getInFlightCount() {
+        return threadPool.getActiveCount() + threadPool.getQueue().size();
+    }
+
+    /**
+     * Returns the bound on the number of requests in flight.
+     *
+     * @return the maximum number of batches in flight
+     */
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * Stops taking requests. Requests that are already in flight still complete.
+     */
+    public void shutdown() {
+        threadPool.shutdown();
+    }
+
+    private Future<List<GraphResponse>> execute(
+            final GraphRequestBatch requests,
+            final Task<List<GraphResponse>>.TaskCompletionSource taskCompletionSource) {
+        Validate.notEmptyAndContainsNoNulls(requests, "requests");
+        if (callbackHandler != null) {
+            requests.setCallbackHandler(callbackHandler);
+        }
+
+        RequestFuture future = new RequestFuture(
+                new Callable<List<GraphResponse>>() {
+                    @Override
+                    public List<GraphResponse> call() throws Exception {
+                        return GraphRequest.executeBatchAndWait(requests);
+                    }
+                },
+                taskCompletionSource);
+        try {
+            threadPool.execute(future);
+        } catch (RejectedExecutionException e) {
+            future.reject(e);
+        }
+        return future;
+    }
+
+    // Completes the Task, if any, along with the Future
+    private static final class RequestFuture extends FutureTask<List<GraphResponse>> {
+        private final Task<List<GraphResponse>>.TaskCompletionSource taskCompletionSource;
+
+        RequestFuture(
+                Callable<List<GraphResponse>> callable,
+                Task<List<GraphResponse>>.TaskCompletionSource taskCompletionSource) {
+            super(callable);
+            this.taskCompletionSource = taskCompletionSource;
+        }
+
+        void reject(RejectedExecutionException e) {
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            if (taskCompletionSource == null) {
+                return;
+            }
+            if (isCancelled()) {
+                taskCompletionSource.trySetCancelled();
+                return;
+            }
+            try {
+                taskCompletionSource.trySetResult(get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                taskCompletionSource.trySetError((cause instanceof Exception)
+                        ? (Exception) cause
+                        : new FacebookException(cause));
+            } catch (InterruptedException e) {
+                // get() doesn't block once done
+                taskCompletionSource.trySetError(e);
+            }
+        }
+    }
+
+    /**
+     * Builder class used to configure a GraphRequestExecutor.
+     */
+    public static final class Builder {
+        private int threadCount = DEFAULT_THREAD_COUNT;
+        private int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+        private Handler callbackHandler;
+
+        /**
+         * Sets the number of threads, which is how many requests can run at once. The default
+         * is 4.
+         *
+         * @param threadCount the number of threads; must be at least 1
+         * @return The builder instance
+         */
+        public Builder setThreadCount(int threadCount) {
+            if (threadCount < 1) {
+                throw new IllegalArgumentException("Argument threadCount must be >= 1.");
+            }
+            this.threadCount = threadCount;
+            return this;
+        }
+
+        /**
+         * Sets how many requests can be in flight at once, running or waiting for a thread.
+         * Each batch counts as one. The default is 64.
+         *
+         * @param maxInFlightRequests the bound; must be at least the thread count
+         * @return The builder instance
+         */
+        public Builder setMaxInFlightRequests(int maxInFlightRequests) {
+            if (maxInFlightRequests < 1) {
+                throw new IllegalArgumentException("Argument maxInFlightRequests must be >= 1.");
+            }
+            this.maxInFlightRequests = maxInFlightRequests;
+            return this;
+        }
+
+        /**
+         * Sets the Handler that request callbacks are posted to. By default they are called on
+         * the thread that executed the request.
+         *
+         * @param callbackHandler the Handler, or null to call callbacks directly
+         * @return The builder instance
+         */
+        public Builder setCallbackHandler(Handler callbackHandler) {
+            this.callbackHandler = callbackHandler;
+            return this;
+        }
+
+        /**
+         * Builds a new GraphRequestExecutor.
+         *
+         * @return the executor
+         */
+        public GraphRequestExecutor build() {
+            if (maxInFlightRequests < threadCount) {
+                throw new IllegalArgumentException(
+                        "maxInFlightRequests must be >= threadCount.");
+            }
+            return new GraphRequestExecutor(this);
+        }
+    }
+}
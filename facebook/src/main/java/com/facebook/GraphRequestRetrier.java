@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends the failed entries of a batch again, as their retry policies allow.
+ */
+final class GraphRequestRetrier {
+    interface Sender {
+        // Sends the requests and returns their responses, without calling any callbacks
+        List<GraphResponse> send(GraphRequestBatch requests);
+    }
+
+    private GraphRequestRetrier() {
+    }
+
+    static boolean hasRetryPolicy(GraphRequestBatch requests) {
+        if (requests.getRetryPolicy() != null) {
+            return true;
+        }
+        for (GraphRequest request : requests) {
+            if (request.getRetryPolicy() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends the requests, and then sends the ones that failed again until they succeed, or
+     * their policy gives up.  The failed requests of each round are sent together, after the
+     * longest of their backoffs.
+     * @return the last response of each request
+     */
+    static List<GraphResponse> sendWithRetries(GraphRequestBatch requests, Sender sender) {
+        int requestCount = requests.size();
+        int[] attempts = new int[requestCount];
+        for (int i = 0; i < requestCount; i++) {
+            attempts[i] = 1;
+            GraphRequestRetryPolicy policy = getRetryPolicy(requests, i);
+            if (policy != null) {
+                policy.onRequestExecuted();
+            }
+        }
+
+        List<GraphResponse> responses = new ArrayList<GraphResponse>(sender.send(requests));
+        while (true) {
+            List<Integer> retryIndexes = new ArrayList<Integer>();
+            long backoffMillis = 0;
+            for (int i = 0; i < requestCount; i++) {
+                GraphRequest request = requests.get(i);
+                GraphRequestRetryPolicy policy = getRetryPolicy(requests, i);
+                FacebookRequestError error = responses.get(i).getError();
+                if (policy == null
+                        || error == null
+                        || attempts[i] >= policy.getMaxAttempts()
+                        // Sent on its own, it would lose the entry it depends on
+                        || request.getBatchEntryDependsOn() != null
+                        || !policy.shouldRetry(request, error)
+                        || !policy.tryAcquireRetry()) {
+                    continue;
+                }
+                retryIndexes.add(i);
+                backoffMillis = Math.max(backoffMillis, policy.getBackoffMillis(attempts[i]));
+            }
+            if (retryIndexes.isEmpty()) {
+                return responses;
+            }
+
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return responses;
+            }
+
+            GraphRequestBatch retryBatch = new GraphRequestBatch();
+            retryBatch.setTimeout(requests.getTimeout());
+            retryBatch.setBatchApplicationId(requests.getBatchApplicationId());
+            for (int index : retryIndexes) {
+                retryBatch.add(requests.get(index));
+            }
+            List<GraphResponse> retryResponses = sender.send(retryBatch);
+            for (int i = 0; i < retryIndexes.size(); i++) {
+                int index = retryIndexes.get(i);
+                responses.set(index, retryResponses.get(i));
+                attempts[index]++;
+            }
+        }
+    }
+
+    private static GraphRequestRetryPolicy getRetryPolicy(GraphRequestBatch requests, int index) {
+        GraphRequestRetryPolicy policy = requests.get(index).getRetryPolicy();
+        return (policy != null) ? policy : requests.getRetryPolicy();
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Describes when and how often a request that failed is sent again. Set it on a request with
+ * {@link GraphRequest#setRetryPolicy(GraphRequestRetryPolicy)}, or on all the requests of a batch
+ * with {@link GraphRequestBatch#setRetryPolicy(GraphRequestRetryPolicy)}. Retries happen before
+ * the request's callback is called, so the callback only sees the final response.
+ * <p/>
+ * A request is retried when its error is classified as
+ * {@link FacebookRequestError.Category#TRANSIENT}, such as the service being unavailable or a
+ * rate limit being hit. GET requests are also retried when no response could be read at all,
+ * since sending them twice is harmless. Errors that need the user to log in again are never
+ * retried.
+ * <p/>
+ * POST and DELETE requests are only retried after a transient error, which the server returns
+ * when it couldn't handle the request. Requests with a {@link android.os.ParcelFileDescriptor}
+ * attachment, on its own or in a {@link GraphRequest.ParcelableResourceWithMimeType}, are never
+ * retried, since the descriptor is read to its end and closed the first time the request is sent.
+ * Attachments given as a {@link android.graphics.Bitmap}, a byte array or a content
+ * {@link android.net.Uri} are sent again in full.
+ * <p/>
+ * Retries wait with exponential backoff and jitter. They are also limited by a retry budget
+ * shared by all the requests using the same policy: a bucket of retries that each request
+ * executed with the policy refills a little, so that an outage doesn't turn every request into
+ * several.
+ * <p/>
+ * Only the entries of a batch that failed are sent again, in a smaller batch. Entries that
+ * depend on other entries are not retried.
+ */
+public final class GraphRequestRetryPolicy {
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double backoffMultiplier;
+    private final double jitter;
+    private final double retryBudget;
+    private final double retryBudgetRefill;
+    private final Random random = new Random();
+
+    // Guarded by this
+    private double retryBalance;
+
+    private GraphRequestRetryPolicy(Builder builder) {
+        this.maxAttempts = builder.maxAttempts;
+        this.initialBackoffMillis = builder.initialBackoffMillis;
+        this.maxBackoffMillis = builder.maxBackoffMillis;
+        this.backoffMultiplier = builder.backoffMultiplier;
+        this.jitter = builder.jitter;
+        this.retryBudget = builder.retryBudget;
+        this.retryBudgetRefill = builder.retryBudgetRefill;
+        this.retryBalance = builder.retryBudget;
+    }
+
+    /**
+     * Returns the number of times a request is sent at most, including the first time.
+     *
+     * @return the maximum number of attempts
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    boolean shouldRetry(GraphRequest request, FacebookRequestError error) {
+        if (!hasReplayableBody(request)) {
+            return false;
+        }
+        if (error.getCategory() == FacebookRequestError.Category.TRANSIENT) {
+            return true;
+        }
+        // No response was read, so a GET can safely go again
+        return request.getHttpMethod() == HttpMethod.GET
+                && error.getRequestStatusCode() == FacebookRequestError.INVALID_HTTP_STATUS_CODE
+                && error.getException() != null
+                && error.getException().getCause() instanceof IOException;
+    }
+
+    // A file descriptor attachment is read to its end, and closed, as the request is sent, so
+    // there is nothing left to send again.  Bitmaps, byte arrays and content Uris are read anew
+    // each time.
+    private static boolean hasReplayableBody(GraphRequest request) {
+        Bundle parameters = request.getParameters();
+        for (String key : parameters.keySet()) {
+            Object value = parameters.get(key);
+            if (value instanceof GraphRequest.ParcelableResourceWithMimeType) {
+                value = ((GraphRequest.ParcelableResourceWithMimeType) value).getResource();
+            }
+            if (value instanceof ParcelFileDescriptor) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The wait before the given retry, counting from 1
+    long getBackoffMillis(int retry) {
+        double backoff = initialBackoffMillis * Math.pow(backoffMultiplier, retry - 1);
+        backoff = Math.min(backoff, maxBackoffMillis);
+        // Spread retries of requests that failed together, so they don't come back together
+        double jitterFactor;
+        synchronized (random) {
+            jitterFactor = 1 - jitter * random.nextDouble();
+        }
+        return (long) (backoff * jitterFactor);
+    }
+
+    synchronized void onRequestExecuted() {
+        retryBalance = Math.min(retryBudget, retryBalance + retryBudgetRefill);
+    }
+
+    synchronized boolean tryAcquireRetry() {
+        if (retryBalance < 1) {
+            return false;
+        }
+        retryBalance -= 1;
+        return true;
+    }
+
+    /**
+     * Builder class used to configure a GraphRequestRetryPolicy.
+     */
+    public static final class Builder {
+        private int maxAttempts = 3;
+        private long initialBackoffMillis = 1000;
+        private long maxBackoffMillis = 30 * 1000;
+        private double backoffMultiplier = 2;
+        private double jitter = 0.5;
+        private double retryBudget = 10;
+        private double retryBudgetRefill = 0.1;
+
+        /**
+         * Sets the number of times a request is sent at most, including the first time. The
+         * default is 3.
+         *
+         * @param maxAttempts the maximum number of attempts; must be at least 1
+         * @return The builder instance
+         */
+        public Builder setMaxAttempts(int maxAttempts) {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("Argument maxAttempts must be >= 1.");
+            }
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Sets the backoff. The wait before the first retry is the initial backoff, and each
+         * following wait is multiplied by the multiplier, up to the maximum backoff. The
+         * defaults are 1 second, doubling up to 30 seconds.
+         *
+         * @param initialBackoffMillis the wait before the first retry, in milliseconds
+         * @param maxBackoffMillis     the longest wait, in milliseconds
+         * @param multiplier           the factor between waits; must be at least 1
+         * @return The builder instance
+         */
+        public Builder setBackoff(
+                long initialBackoffMillis,
+                long maxBackoffMillis,
+                double multiplier) {
+            if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+                throw new IllegalArgumentException(
+                        "Backoff must be >= 0, and the maximum must be >= the initial backoff.");
+            }
+            if (multiplier < 1) {
+                throw new IllegalArgumentException("Argument multiplier must be >= 1.");
+            }
+            this.initialBackoffMillis = initialBackoffMillis;
+            this.maxBackoffMillis = maxBackoffMillis;
+            this.backoffMultiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * Sets how much of each wait is randomized. With a jitter of 0.5, the default, each
+         * wait is between half and all of its backoff.
+         *
+         * @param jitter the randomized share of each wait, from 0 to 1
+         * @return The builder instance
+         */
+        public Builder setJitter(double jitter) {
+            if (jitter < 0 || jitter > 1) {
+                throw new IllegalArgumentException("Argument jitter must be between 0 and 1.");
+            }
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * Sets the retry budget: how many retries the policy can make in a burst, and how much
+         * each request executed with the policy adds back. The defaults are 10 retries, with
+         * one retry added back for every 10 requests.
+         *
+         * @param maxRetries the most retries that can be made before the budget is refilled
+         * @param refillPerRequest the retries added back by each request, from 0 to 1
+         * @return The builder instance
+         */
+        public Builder setRetryBudget(int maxRetries, double refillPerRequest) {
+            if (maxRetries < 0) {
+                throw new IllegalArgumentException("Argument maxRetries must be >= 0.");
+            }
+            if (refillPerRequest < 0 || refillPerRequest > 1) {
+                throw new IllegalArgumentException(
+                        "Argument refillPerRequest must be between 0 and 1.");
+            }
+            this.retryBudget = maxRetries;
+            this.retryBudgetRefill = refillPerRequest;
+            return this;
+        }
+
+        /**
+         * Builds a new GraphRequestRetryPolicy.
+         *
+         * @return the policy
+         */
+        public GraphRequestRetryPolicy build() {
+            return new GraphRequestRetryPolicy(this);
+        }
+    }
+}
@@ -20,8 +20,12 @@
 
 package com.facebook;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 import com.facebook.internal.FacebookRequestErrorClassification;
 import com.facebook.internal.Logger;
+import com.facebook.internal.StreamingJsonParser;
 import com.facebook.internal.Utility;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -30,6 +34,7 @@ import org.json.JSONTokener;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -42,11 +47,14 @@ import java.util.Locale;
  */
 public class GraphResponse {
     private final HttpURLConnection connection;
-    private final JSONObject graphObject;
-    private final JSONArray graphObjectArray;
+    private JSONObject graphObject;
+    private JSONArray graphObjectArray;
     private final FacebookRequestError error;
-    private final String rawResponse;
+    private String rawResponse;
     private final GraphRequest request;
+    // When false, rawResponse holds a body that has not been parsed into graphObject or
+    // graphObjectArray yet. See createResponsesFromStreamingReader.
+    private boolean isBodyParsed = true;
 
     /**
      * Property name of non-JSON results in the GraphObject. Certain calls to Facebook result in a
@@ -62,6 +70,7 @@ public class GraphResponse {
 
     private static final String CODE_KEY = "code";
     private static final String BODY_KEY = "body";
+    private static final String ERROR_KEY_PREFIX = "\"error";
 
     private static final String RESPONSE_LOG_TAG = "Response";
 
@@ -103,6 +112,16 @@ public class GraphResponse {
         this.error = error;
     }
 
+    // Creates a successful response whose body will only be parsed once it is asked for
+    static GraphResponse createUnparsedResponse(
+            GraphRequest request,
+            HttpURLConnection connection,
+            String rawBody) {
+        GraphResponse response = new GraphResponse(request, connection, rawBody, null, null, null);
+        response.isBodyParsed = false;
+        return response;
+    }
+
     /**
      * Returns information about any errors that may have occurred during the request.
      *
@@ -119,6 +138,7 @@ public class GraphResponse {
      * array)
      */
     public final JSONObject getJSONObject() {
+        parseBodyIfNeeded();
         return graphObject;
     }
 
@@ -130,6 +150,7 @@ public class GraphResponse {
      * object)
      */
     public final JSONArray getJSONArray() {
+        parseBodyIfNeeded();
         return graphObjectArray;
     }
 
@@ -158,7 +179,44 @@ public class GraphResponse {
      * @return A String representation of the actual response from the server
      */
     public String getRawResponse() {
-        return rawResponse;
+        synchronized (this) {
+            if (rawResponse == null && isBodyParsed) {
+                // Responses read in streaming mode render this on demand
+                if (graphObject != null) {
+                    rawResponse = graphObject.toString();
+                } else if (graphObjectArray != null) {
+                    rawResponse = graphObjectArray.toString();
+                } else if (error == null) {
+                    rawResponse = JSONObject.NULL.toString();
+                }
+            }
+            return rawResponse;
+        }
+    }
+
+    private synchronized void parseBodyIfNeeded() {
+        if (isBodyParsed) {
+            return;
+        }
+        isBodyParsed = true;
+
+        try {
+            Object body = new JSONTokener(rawResponse).nextValue();
+            if (body instanceof JSONObject) {
+                graphObject = (JSONObject) body;
+            } else if (body instanceof JSONArray) {
+                graphObjectArray = (JSONArray) body;
+            } else if (body != null && body != JSONObject.NULL) {
+                graphObject = new JSONObject();
+                graphObject.put(NON_JSON_RESPONSE_PROPERTY, body);
+            }
+        } catch (JSONException e) {
+            Logger.log(
+                    LoggingBehavior.REQUESTS,
+                    RESPONSE_LOG_TAG,
+                    "Response <Error>: could not parse deferred body: %s",
+                    e);
+        }
     }
 
     /**
@@ -186,6 +244,7 @@ public class GraphResponse {
      */
     public GraphRequest getRequestForPagedResults(PagingDirection direction) {
         String link = null;
+        JSONObject graphObject = getJSONObject();
         if (graphObject != null) {
             JSONObject pagingInfo = graphObject.optJSONObject("paging");
             if (pagingInfo != null) {
@@ -236,7 +295,7 @@ public class GraphResponse {
                 .append(" responseCode: ")
                 .append(responseCode)
                 .append(", graphObject: ")
-                .append(graphObject)
+                .append(getJSONObject())
                 .append(", error: ")
                 .append(error)
                 .append("}")
@@ -285,6 +344,17 @@ public class GraphResponse {
             HttpURLConnection connection,
             GraphRequestBatch requests
     ) throws FacebookException, JSONException, IOException {
+        // The raw response can only be logged if we hold on to it
+        if (FacebookSdk.isGraphResponseStreamingEnabled()
+                && !FacebookSdk.isLoggingBehaviorEnabled(LoggingBehavior.INCLUDE_RAW_RESPONSES)) {
+            JsonReader reader = new JsonReader(new InputStreamReader(stream, "UTF-8"));
+            reader.setLenient(true);
+            try {
+                return createResponsesFromStreamingReader(reader, connection, requests);
+            } finally {
+                Utility.closeQuietly(reader);
+            }
+        }
 
         String responseString = Utility.readStreamToString(stream);
         Logger.log(LoggingBehavior.INCLUDE_RAW_RESPONSES, RESPONSE_LOG_TAG,
@@ -317,6 +387,100 @@ public class GraphResponse {
         return responses;
     }
 
+    // Tokenizes the response as it comes off the connection. A batch is split into one response
+    // per entry as the entries are read, so the whole result is never held as a String or as a
+    // single JSONArray. Entries whose requests have no callback keep their body unparsed until
+    // somebody asks for it. Since the full result is never materialized,
+    // FacebookRequestError.getBatchRequestResult() is null for batch errors read this way.
+    static List<GraphResponse> createResponsesFromStreamingReader(
+            JsonReader reader,
+            HttpURLConnection connection,
+            GraphRequestBatch requests
+    ) throws FacebookException, JSONException, IOException {
+        int numRequests = requests.size();
+        List<GraphResponse> responses;
+
+        if (numRequests == 1) {
+            // Single request case -- the entire response is the result, so it must be read in
+            // full. The wrapping mirrors createResponsesFromObject.
+            Object object = StreamingJsonParser.readValue(reader);
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put(BODY_KEY, object);
+            int responseCode = (connection != null) ? connection.getResponseCode() : 200;
+            jsonObject.put(CODE_KEY, responseCode);
+
+            responses = new ArrayList<GraphResponse>(1);
+            responses.add(createResponseFromEntry(requests.get(0), connection, jsonObject, object));
+        } else {
+            if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                throw new FacebookException("Unexpected number of results");
+            }
+
+            responses = new ArrayList<GraphResponse>(numRequests);
+            reader.beginArray();
+            while (reader.hasNext()) {
+                int index = responses.size();
+                if (index >= numRequests) {
+                    throw new FacebookException("Unexpected number of results");
+                }
+
+                GraphRequest request = requests.get(index);
+                Object entry = StreamingJsonParser.readValue(reader);
+                if (entry instanceof JSONObject && request.getCallback() == null) {
+                    JSONObject jsonObject = (JSONObject) entry;
+                    Object body = jsonObject.opt(BODY_KEY);
+                    int responseCode = jsonObject.optInt(CODE_KEY, -1);
+                    // Only bodies that can't carry an error are deferred; errors must be known
+                    // now since they may reset the current access token.
+                    if (body instanceof String
+                            && responseCode >= 200 && responseCode < 300
+                            && !((String) body).contains(ERROR_KEY_PREFIX)) {
+                        responses.add(createUnparsedResponse(request, connection, (String) body));
+                        continue;
+                    }
+                }
+
+                responses.add(createResponseFromEntry(request, connection, entry, null));
+            }
+            reader.endArray();
+
+            if (responses.size() != numRequests) {
+                throw new FacebookException("Unexpected number of results");
+            }
+        }
+
+        Logger.log(
+                LoggingBehavior.REQUESTS,
+                RESPONSE_LOG_TAG,
+                "Response (streamed)\n  Id: %s\n  Responses:\n%s\n",
+                requests.getId(),
+                responses);
+
+        return responses;
+    }
+
+    private static GraphResponse createResponseFromEntry(
+            GraphRequest request,
+            HttpURLConnection connection,
+            Object entry,
+            Object originalResult) {
+        try {
+            // The raw response is rendered lazily in getRawResponse, since the body was never
+            // held as a String.
+            return createResponseFromObject(request, connection, entry, originalResult, false);
+        } catch (JSONException e) {
+            return new GraphResponse(
+                    request,
+                    connection,
+                    new FacebookRequestError(connection, e));
+        } catch (FacebookException e) {
+            return new GraphResponse(
+                    request,
+                    connection,
+                    new FacebookRequestError(connection, e));
+        }
+    }
+
     private static List<GraphResponse> createResponsesFromObject(
             HttpURLConnection connection,
             List<GraphRequest> requests,
@@ -374,7 +538,8 @@ public class GraphResponse {
                                 request,
                                 connection,
                                 obj,
-                                originalResult));
+                                originalResult,
+                                true));
             } catch (JSONException e) {
                 responses.add(
                         new GraphResponse(
@@ -397,7 +562,8 @@ public class GraphResponse {
             GraphRequest request,
             HttpURLConnection connection,
             Object object,
-            Object originalResult
+            Object originalResult,
+            boolean renderRawResponse
     ) throws JSONException {
         if (object instanceof JSONObject) {
             JSONObject jsonObject = (JSONObject) object;
@@ -421,9 +587,17 @@ public class GraphResponse {
                     NON_JSON_RESPONSE_PROPERTY);
 
             if (body instanceof JSONObject) {
-                return new GraphResponse(request, connection, body.toString(), (JSONObject)body);
+                return new GraphResponse(
+                        request,
+                        connection,
+                        renderRawResponse ? body.toString() : null,
+                        (JSONObject)body);
             } else if (body instanceof JSONArray) {
-                return new GraphResponse(request, connection, body.toString(), (JSONArray)body);
+                return new GraphResponse(
+                        request,
+                        connection,
+                        renderRawResponse ? body.toString() : null,
+                        (JSONArray)body);
             }
             // We didn't get a body we understand how to handle, so pretend we got nothing.
             object = JSONObject.NULL;
@@ -0,0 +1,431 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import com.facebook.internal.FileLruCache;
+import com.facebook.internal.Utility;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// This class is intended to be thread-safe.
+//
+// Successful responses to GET requests that opt in with GraphRequest.setCachePolicy are kept in
+// an access-ordered map, trimmed from its least recently used end to a bounded number of entries
+// and characters, and also written to a FileLruCache when the disk tier is enabled with
+// FacebookSdk.setGraphResponseDiskCacheEnabled.  Only response bodies are kept; cached responses
+// are rebuilt unparsed, and have no connection.
+//
+// Keys are built from the version, the graph path, the parameters (with the fields sorted) and the
+// identity the request is made as: the user and app of its AccessToken, a hash of an explicit
+// access_token parameter, or the app for client token requests.  A refreshed token for the same
+// user keeps hitting the same entries, while AccessTokenManager clears the cache when the current
+// user changes.
+
+/**
+ * Caches the responses of idempotent Graph API requests.
+ */
+final class GraphResponseCache {
+    static final String TAG = GraphResponseCache.class.getSimpleName();
+
+    private static final int DEFAULT_MAX_ENTRY_COUNT = 100;
+    private static final int DEFAULT_MAX_CHAR_COUNT = 512 * 1024;
+    private static final String DISK_CACHE_TAG = TAG;
+    private static final String STORED_TIME_KEY = "stored";
+    private static final String BODY_KEY = "body";
+    private static final String FIELDS_PARAM = "fields";
+    private static final Pattern VERSION_PATTERN = Pattern.compile("^/?(v\\d+\\.\\d+)/(.*)");
+    // Added to every request on its way out, and no part of what is asked for
+    private static final Set<String> IGNORED_PARAMETERS = new HashSet<String>(Arrays.asList(
+            GraphRequest.ACCESS_TOKEN_PARAM, "sdk", "format", "debug"));
+
+    private static GraphResponseCache instance;
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final int maxEntryCount;
+    private final int maxCharCount;
+    private long charCount;
+    private FileLruCache diskCache;
+
+    GraphResponseCache(int maxEntryCount, int maxCharCount) {
+        this.maxEntryCount = maxEntryCount;
+        this.maxCharCount = maxCharCount;
+    }
+
+    static synchronized GraphResponseCache getInstance() {
+        if (instance == null) {
+            instance = new GraphResponseCache(DEFAULT_MAX_ENTRY_COUNT, DEFAULT_MAX_CHAR_COUNT);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the cached responses for a batch whose requests are all cache first and fresh in
+     * the cache, or null if the batch has to go to the server.  A batch costs one round-trip
+     * however many of its requests miss, so it is never split.
+     */
+    List<GraphResponse> getCachedResponses(GraphRequestBatch requests) {
+        List<GraphResponse> responses = new ArrayList<GraphResponse>(requests.size());
+        for (GraphRequest request : requests) {
+            if (request.getCachePolicy() != GraphRequest.CachePolicy.CACHE_FIRST) {
+                return null;
+            }
+            GraphResponse response = get(request);
+            if (response == null) {
+                return null;
+            }
+            responses.add(response);
+        }
+        return responses;
+    }
+
+    /**
+     * Caches the successful responses of cacheable requests, and replaces the failed responses
+     * of network first requests with their cached response if there is one.
+     */
+    List<GraphResponse> processResponses(
+            GraphRequestBatch requests,
+            List<GraphResponse> responses) {
+        List<GraphResponse> processedResponses = new ArrayList<GraphResponse>(responses);
+        for (int i = 0; i < requests.size(); i++) {
+            GraphRequest request = requests.get(i);
+            if (request.getCachePolicy() == GraphRequest.CachePolicy.NONE) {
+                continue;
+            }
+
+            GraphResponse response = responses.get(i);
+            FacebookRequestError error = response.getError();
+            if (error == null) {
+                String body = response.getRawResponse();
+                if (body != null && !body.equals(JSONObject.NULL.toString())) {
+                    put(request, body);
+                }
+            } else if (request.getCachePolicy() == GraphRequest.CachePolicy.NETWORK_FIRST
+                    && isUnavailable(error)) {
+                GraphResponse cachedResponse = get(request);
+                if (cachedResponse != null) {
+                    processedResponses.set(i, cachedResponse);
+                }
+            }
+        }
+        return processedResponses;
+    }
+
+    /**
+     * Returns the response cached for the request within its time to live, or null.
+     */
+    GraphResponse get(GraphRequest request) {
+        String key = getCacheKey(request);
+        if (key == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (lock) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            entry = readFromDisk(key);
+            if (entry != null) {
+                putInMemory(key, entry);
+            }
+        }
+        if (entry == null || !entry.isFresh(now, request.getCacheTimeToLive())) {
+            return null;
+        }
+        return GraphResponse.createUnparsedResponse(request, null, entry.body);
+    }
+
+    void put(GraphRequest request, String body) {
+        String key = getCacheKey(request);
+        if (key == null) {
+            return;
+        }
+        Entry entry = new Entry(body, System.currentTimeMillis());
+        putInMemory(key, entry);
+        writeToDisk(key, entry);
+    }
+
+    void clear() {
+        synchronized (lock) {
+            entries.clear();
+            charCount = 0;
+            if (diskCache == null && !FacebookSdk.isGraphResponseDiskCacheEnabled()) {
+                // There is no disk tier to clear
+                return;
+            }
+        }
+
+        // Opening and clearing the disk cache reads and rewrites its directory, which shouldn't
+        // happen on the thread that changed the access token, usually the main thread.  Entries
+        // are keyed by the user, so until then the old user's aren't served to the new one.
+        FacebookSdk.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                FileLruCache diskCache;
+                synchronized (lock) {
+                    diskCache = getDiskCache();
+                }
+                if (diskCache != null) {
+                    diskCache.clearCache();
+                }
+            }
+        });
+    }
+
+    int getEntryCount() {
+        synchronized (lock) {
+            return entries.size();
+        }
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        if (entry.body.length() > maxCharCount) {
+            return;
+        }
+        synchronized (lock) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                charCount -= previous.body.length();
+            }
+            charCount += entry.body.length();
+
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while ((entries.size() > maxEntryCount || charCount > maxCharCount)
+                    && iterator.hasNext()) {
+                charCount -= iterator.next().getValue().body.length();
+                iterator.remove();
+            }
+        }
+    }
+
+    // Must be called with lock held
+    private FileLruCache getDiskCache() {
+        if (diskCache == null && FacebookSdk.isGraphResponseDiskCacheEnabled()) {
+            diskCache = new FileLruCache(DISK_CACHE_TAG, new FileLruCache.Limits());
+        }
+        return diskCache;
+    }
+
+    private Entry readFromDisk(String key) {
+        FileLruCache diskCache;
+        synchronized (lock) {
+            diskCache = getDiskCache();
+        }
+        if (diskCache == null) {
+            return null;
+        }
+
+        InputStream stream = null;
+        try {
+            stream = diskCache.get(key);
+            if (stream == null) {
+                return null;
+            }
+            JSONObject json = new JSONObject(Utility.readStreamToString(stream));
+            return new Entry(json.getString(BODY_KEY), json.getLong(STORED_TIME_KEY));
+        } catch (IOException e) {
+            return null;
+        } catch (JSONException e) {
+            return null;
+        } finally {
+            Utility.closeQuietly(stream);
+        }
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        FileLruCache diskCache;
+        synchronized (lock) {
+            diskCache = getDiskCache();
+        }
+        if (diskCache == null) {
+            return;
+        }
+
+        OutputStream stream = null;
+        try {
+            JSONObject json = new JSONObject();
+            json.put(BODY_KEY, entry.body);
+            json.put(STORED_TIME_KEY, entry.storedTime);
+            stream = diskCache.openPutStream(key);
+            stream.write(json.toString().getBytes("UTF-8"));
+        } catch (IOException e) {
+            Log.d(TAG, "Could not write response to disk cache: " + e.getMessage());
+        } catch (JSONException e) {
+            // Can't happen with these values
+        } finally {
+            Utility.closeQuietly(stream);
+        }
+    }
+
+    // No response came back from the server, or the server could not handle the request
+    private static boolean isUnavailable(FacebookRequestError error) {
+        int statusCode = error.getRequestStatusCode();
+        return statusCode == FacebookRequestError.INVALID_HTTP_STATUS_CODE
+                || statusCode >= 500;
+    }
+
+    /**
+     * Returns the key the request's response is cached under, or null if it can't be cached.
+     */
+    static String getCacheKey(GraphRequest request) {
+        if (request.getCachePolicy() == GraphRequest.CachePolicy.NONE
+                || request.getHttpMethod() != HttpMethod.GET
+                || request.getGraphPath() == null) {
+            return null;
+        }
+
+        String identity = getIdentity(request);
+        if (identity == null) {
+            return null;
+        }
+
+        String version = request.getVersion();
+        String graphPath = request.getGraphPath();
+        Matcher matcher = VERSION_PATTERN.matcher(graphPath);
+        if (matcher.matches()) {
+            version = matcher.group(1);
+            graphPath = matcher.group(2);
+        } else if (graphPath.startsWith("/")) {
+            graphPath = graphPath.substring(1);
+        }
+
+        Bundle parameters = request.getParameters();
+        TreeMap<String, String> keyParameters = new TreeMap<String, String>();
+        for (String name : parameters.keySet()) {
+            if (IGNORED_PARAMETERS.contains(name)) {
+                continue;
+            }
+            Object value = parameters.get(name);
+            if (!(value instanceof String
+                    || value instanceof Number
+                    || value instanceof Boolean)) {
+                return null;
+            }
+            String valueString = value.toString();
+            keyParameters.put(
+                    name,
+                    name.equals(FIELDS_PARAM) ? normalizeFields(valueString) : valueString);
+        }
+
+        StringBuilder key = new StringBuilder()
+                .append(identity)
+                .append(' ')
+                .append(version)
+                .append('/')
+                .append(graphPath);
+        char separator = '?';
+        for (Map.Entry<String, String> parameter : keyParameters.entrySet()) {
+            key.append(separator)
+                    .append(parameter.getKey())
+                    .append('=')
+                    .append(parameter.getValue());
+            separator = '&';
+        }
+        return key.toString();
+    }
+
+    private static String getIdentity(GraphRequest request) {
+        AccessToken accessToken = request.getAccessToken();
+        Object tokenParameter = request.getParameters().get(GraphRequest.ACCESS_TOKEN_PARAM);
+        String applicationId = FacebookSdk.getApplicationId();
+        // Once a request has been sent it carries the client token it was sent with
+        String clientToken = applicationId + "|" + FacebookSdk.getClientToken();
+        if (accessToken != null) {
+            return "user:" + accessToken.getUserId() + "@" + accessToken.getApplicationId();
+        } else if (tokenParameter == null || tokenParameter.equals(clientToken)) {
+            return (applicationId != null) ? "app:" + applicationId : null;
+        } else if (tokenParameter instanceof String) {
+            // A token whose user isn't known; the hash keeps the token itself out of the key
+            return "token:" + Utility.md5hash((String) tokenParameter);
+        }
+        return null;
+    }
+
+    /**
+     * Sorts the top level fields and drops duplicates, so that the same fields asked for in a
+     * different order share an entry.  Nested field lists are left as they are.
+     */
+    static String normalizeFields(String fields) {
+        TreeSet<String> sortedFields = new TreeSet<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= fields.length(); i++) {
+            char c = (i < fields.length()) ? fields.charAt(i) : ',';
+            if (c == '{' || c == '(') {
+                depth++;
+            } else if (c == '}' || c == ')') {
+                depth--;
+            } else if (c == ',' && depth <= 0) {
+                String field = fields.substring(start, i).trim();
+                if (field.length() > 0) {
+                    sortedFields.add(field);
+                }
+                start = i + 1;
+            }
+        }
+
+        StringBuilder normalized = new StringBuilder();
+        for (String field : sortedFields) {
+            if (normalized.length() > 0) {
+                normalized.append(',');
+            }
+            normalized.append(field);
+        }
+        return normalized.toString();
+    }
+
+    private static final class Entry {
+        final String body;
+        final long storedTime;
+
+        Entry(String body, long storedTime) {
+            this.body = body;
+            this.storedTime = storedTime;
+        }
+
+        boolean isFresh(long now, long timeToLiveInMilliseconds) {
+            return now >= storedTime && now - storedTime < timeToLiveInMilliseconds;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+
+import com.facebook.internal.Utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Captures a serialized batch so that it can be measured and then written to the wire without
+// serializing it a second time. Everything but attachments is buffered; attachments are only
+// recorded, with their size taken from metadata, and are streamed from their source when the
+// batch is written out.
+class ProgressBufferingOutputStream extends ProgressNoopOutputStream {
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private GraphRequest currentRequest;
+    private ByteArrayOutputStream currentBuffer;
+
+    ProgressBufferingOutputStream(Handler callbackHandler) {
+        super(callbackHandler);
+    }
+
+    @Override
+    public void setCurrentRequest(GraphRequest currentRequest) {
+        super.setCurrentRequest(currentRequest);
+        this.currentRequest = currentRequest;
+        this.currentBuffer = null;
+    }
+
+    void writeDeferred(byte[] bytes) {
+        addProgress(bytes.length);
+        addSegment(new Segment(currentRequest, bytes, null, null));
+    }
+
+    void writeDeferred(Uri contentUri) {
+        addProgress(Utility.getContentSize(contentUri));
+        addSegment(new Segment(currentRequest, null, contentUri, null));
+    }
+
+    void writeDeferred(ParcelFileDescriptor descriptor) {
+        addProgress(descriptor.getStatSize());
+        addSegment(new Segment(currentRequest, null, null, descriptor));
+    }
+
+    // Writes everything captured so far to the stream, switching the current request on the way
+    // so that a ProgressOutputStream attributes the bytes to the right request.
+    void writeTo(OutputStream outputStream) throws IOException {
+        for (Segment segment : segments) {
+            if (outputStream instanceof RequestOutputStream) {
+                ((RequestOutputStream) outputStream).setCurrentRequest(segment.request);
+            }
+            segment.writeTo(outputStream);
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer) {
+        write(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        super.write(buffer, offset, length);
+        getCurrentBuffer().write(buffer, offset, length);
+    }
+
+    @Override
+    public void write(int oneByte) {
+        super.write(oneByte);
+        getCurrentBuffer().write(oneByte);
+    }
+
+    private ByteArrayOutputStream getCurrentBuffer() {
+        if (currentBuffer == null) {
+            currentBuffer = new ByteArrayOutputStream();
+            segments.add(new Segment(currentRequest, currentBuffer));
+        }
+        return currentBuffer;
+    }
+
+    private void addSegment(Segment segment) {
+        segments.add(segment);
+        // Anything written after an attachment has to go after it on the wire as well
+        currentBuffer = null;
+    }
+
+    private static class Segment {
+        private final GraphRequest request;
+        private final ByteArrayOutputStream buffer;
+        private final byte[] bytes;
+        private final Uri contentUri;
+        private final ParcelFileDescriptor descriptor;
+
+        Segment(GraphRequest request, ByteArrayOutputStream buffer) {
+            this.request = request;
+            this.buffer = buffer;
+            this.bytes = null;
+            this.contentUri = null;
+            this.descriptor = null;
+        }
+
+        Segment(
+                GraphRequest request,
+                byte[] bytes,
+                Uri contentUri,
+                ParcelFileDescriptor descriptor) {
+            this.request = request;
+            this.buffer = null;
+            this.bytes = bytes;
+            this.contentUri = contentUri;
+            this.descriptor = descriptor;
+        }
+
+        void writeTo(OutputStream outputStream) throws IOException {
+            if (buffer != null) {
+                buffer.writeTo(outputStream);
+            } else if (bytes != null) {
+                outputStream.write(bytes);
+            } else if (contentUri != null) {
+                InputStream inputStream = FacebookSdk
+                        .getApplicationContext()
+                        .getContentResolver()
+                        .openInputStream(contentUri);
+                Utility.copyAndCloseInputStream(inputStream, outputStream);
+            } else if (descriptor != null) {
+                ParcelFileDescriptor.AutoCloseInputStream inputStream =
+                        new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+                Utility.copyAndCloseInputStream(inputStream, outputStream);
+            }
+        }
+    }
+}
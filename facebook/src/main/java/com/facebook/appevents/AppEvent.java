@@ -24,6 +24,7 @@ import android.os.Bundle;
 import android.support.annotation.Nullable;
 
 import com.facebook.FacebookException;
+import com.facebook.FacebookSdk;
 import com.facebook.LoggingBehavior;
 import com.facebook.appevents.internal.Constants;
 import com.facebook.internal.Logger;
@@ -32,17 +33,43 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.Serializable;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+// Events are kept as typed fields rather than as a JSONObject, and only written out as JSON when
+// they are flushed or persisted. Names and parameter keys are interned, since apps log the same
+// few of them over and over.
 class AppEvent implements Serializable {
     private static final long serialVersionUID = 1L;
 
-    private JSONObject jsonObject;
-    private boolean isImplicit;
-    private static final HashSet<String> validatedIdentifiers = new HashSet<String>();
+    private static final String EVENT_NAME_KEY = "_eventName";
+    private static final String CONTEXT_NAME_KEY = "_ui";
+    private static final String SESSION_ID_KEY = "_session_id";
+    private static final String VALUE_TO_SUM_KEY = "_valueToSum";
+    private static final String IMPLICITLY_LOGGED_KEY = "_implicitlyLogged";
+    private static final long NO_LOG_TIME = -1;
+    private static final String[] NO_PARAMETERS = new String[0];
+
+    private static final int MAX_IDENTIFIER_LENGTH = 40;
+    // Identifiers known to be valid. Bounded, since apps may log high-cardinality parameter keys;
+    // it is simply emptied when full, as checking an identifier again is cheap.
+    private static final int MAX_VALIDATED_IDENTIFIERS = 1000;
+    private static final ConcurrentHashMap<String, Boolean> validatedIdentifiers =
+            new ConcurrentHashMap<>();
+
     private String name;
+    private String contextName;
+    private long logTime = NO_LOG_TIME;
+    // Kept as logged; only turned into a string when the event is written out
+    private Object sessionId;
+    private boolean hasValueToSum;
+    private double valueToSum;
+    private boolean isImplicit;
+    // Alternating keys and values, in the order they were added
+    private String[] parameters = NO_PARAMETERS;
+    private boolean isValid;
 
     public AppEvent(
             String contextName,
@@ -55,26 +82,24 @@ class AppEvent implements Serializable {
         try {
             validateIdentifier(eventName);
 
-            this.name = eventName;
+            this.name = eventName.intern();
             isImplicit = isImplicitlyLogged;
-            jsonObject = new JSONObject();
-
-            jsonObject.put("_eventName", eventName);
-            jsonObject.put(Constants.LOG_TIME_APP_EVENT_KEY, System.currentTimeMillis() / 1000);
-            jsonObject.put("_ui", contextName);
-            if (currentSessionId != null) {
-                jsonObject.put("_session_id", currentSessionId);
-            }
+            logTime = System.currentTimeMillis() / 1000;
+            this.contextName = contextName == null ? null : contextName.intern();
+            sessionId = currentSessionId;
 
             if (valueToSum != null) {
-                jsonObject.put("_valueToSum", valueToSum.doubleValue());
-            }
-
-            if (isImplicit) {
-                jsonObject.put("_implicitlyLogged", "1");
+                double value = valueToSum.doubleValue();
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    throw new JSONException("Forbidden numeric value: " + value);
+                }
+                this.hasValueToSum = true;
+                this.valueToSum = value;
             }
 
             if (parameters != null) {
+                String[] parameterArray = new String[parameters.size() * 2];
+                int i = 0;
                 for (String key : parameters.keySet()) {
 
                     validateIdentifier(key);
@@ -90,26 +115,28 @@ class AppEvent implements Serializable {
                         );
                     }
 
-                    jsonObject.put(key, value.toString());
+                    parameterArray[i++] = key.intern();
+                    parameterArray[i++] = value.toString();
                 }
+                this.parameters = parameterArray;
             }
 
-            if (!isImplicit) {
+            isValid = true;
+            if (!isImplicit
+                    && FacebookSdk.isLoggingBehaviorEnabled(LoggingBehavior.APP_EVENTS)) {
                 Logger.log(LoggingBehavior.APP_EVENTS, "AppEvents",
-                        "Created app event '%s'", jsonObject.toString());
+                        "Created app event '%s'", toJSONString());
             }
         } catch (JSONException jsonException) {
 
             // If any of the above failed, just consider this an illegal event.
             Logger.log(LoggingBehavior.APP_EVENTS, "AppEvents",
                     "JSON encoding for app event failed: '%s'", jsonException.toString());
-            jsonObject = null;
 
         } catch (FacebookException e) {
             // If any of the above failed, just consider this an illegal event.
             Logger.log(LoggingBehavior.APP_EVENTS, "AppEvents",
                     "Invalid app event name or parameter:", e.toString());
-            jsonObject = null;
         }
     }
 
@@ -118,26 +145,164 @@ class AppEvent implements Serializable {
     }
 
     private AppEvent(String jsonString, boolean isImplicit) throws JSONException {
-        jsonObject = new JSONObject(jsonString);
+        JSONObject jsonObject = new JSONObject(jsonString);
         this.isImplicit = isImplicit;
+
+        String[] parameterArray = new String[jsonObject.length() * 2];
+        int i = 0;
+        Iterator<String> keys = jsonObject.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = jsonObject.get(key);
+            if (key.equals(EVENT_NAME_KEY)) {
+                name = value.toString().intern();
+            } else if (key.equals(Constants.LOG_TIME_APP_EVENT_KEY)
+                    && value instanceof Number) {
+                logTime = ((Number) value).longValue();
+            } else if (key.equals(CONTEXT_NAME_KEY)) {
+                contextName = value.toString().intern();
+            } else if (key.equals(SESSION_ID_KEY)) {
+                sessionId = value.toString();
+            } else if (key.equals(VALUE_TO_SUM_KEY) && value instanceof Number) {
+                hasValueToSum = true;
+                valueToSum = ((Number) value).doubleValue();
+            } else if (!key.equals(IMPLICITLY_LOGGED_KEY)) {
+                parameterArray[i++] = key.intern();
+                parameterArray[i++] = value.toString();
+            }
+        }
+
+        parameters = new String[i];
+        System.arraycopy(parameterArray, 0, parameters, 0, i);
+        isValid = name != null;
+    }
+
+    static AppEvent fromPersistedJSONString(
+            String jsonString,
+            boolean isImplicit) throws JSONException {
+        return new AppEvent(jsonString, isImplicit);
     }
 
     public boolean getIsImplicit() {
         return isImplicit;
     }
 
-    public JSONObject getJSONObject() {
-        return jsonObject;
+    // Invalid events are logged when they are created, and never sent
+    public boolean isValid() {
+        return isValid;
     }
 
-    // throw exception if not valid.
-    private void validateIdentifier(String identifier) throws FacebookException {
+    public String toJSONString() {
+        StringBuilder builder = new StringBuilder();
+        writeJSON(builder);
+        return builder.toString();
+    }
 
-        // Identifier should be 40 chars or less, and only have 0-9A-Za-z, underscore, hyphen,
-        // and space (but no hyphen or space in the first position).
-        final String regex = "^[0-9a-zA-Z_]+[0-9a-zA-Z _-]*$";
+    // Writes the same JSON the SDK has always sent for an event. Parameters may override the
+    // built in keys, as they did when both were put into one JSONObject.
+    public void writeJSON(StringBuilder builder) {
+        builder.append('{');
+        boolean isFirst = true;
+        if (name != null && !hasParameter(EVENT_NAME_KEY)) {
+            isFirst = writeKey(builder, EVENT_NAME_KEY, isFirst);
+            writeString(builder, name);
+        }
+        if (logTime != NO_LOG_TIME && !hasParameter(Constants.LOG_TIME_APP_EVENT_KEY)) {
+            isFirst = writeKey(builder, Constants.LOG_TIME_APP_EVENT_KEY, isFirst);
+            builder.append(logTime);
+        }
+        if (contextName != null && !hasParameter(CONTEXT_NAME_KEY)) {
+            isFirst = writeKey(builder, CONTEXT_NAME_KEY, isFirst);
+            writeString(builder, contextName);
+        }
+        if (sessionId != null && !hasParameter(SESSION_ID_KEY)) {
+            isFirst = writeKey(builder, SESSION_ID_KEY, isFirst);
+            writeString(builder, sessionId.toString());
+        }
+        if (hasValueToSum && !hasParameter(VALUE_TO_SUM_KEY)) {
+            isFirst = writeKey(builder, VALUE_TO_SUM_KEY, isFirst);
+            writeNumber(builder, valueToSum);
+        }
+        if (isImplicit && !hasParameter(IMPLICITLY_LOGGED_KEY)) {
+            isFirst = writeKey(builder, IMPLICITLY_LOGGED_KEY, isFirst);
+            writeString(builder, "1");
+        }
+        for (int i = 0; i < parameters.length; i += 2) {
+            isFirst = writeKey(builder, parameters[i], isFirst);
+            writeString(builder, parameters[i + 1]);
+        }
+        builder.append('}');
+    }
 
-        final int MAX_IDENTIFIER_LENGTH = 40;
+    private boolean hasParameter(String key) {
+        for (int i = 0; i < parameters.length; i += 2) {
+            if (parameters[i].equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean writeKey(StringBuilder builder, String key, boolean isFirst) {
+        if (!isFirst) {
+            builder.append(',');
+        }
+        writeString(builder, key);
+        builder.append(':');
+        return false;
+    }
+
+    // Same formatting as JSONObject.numberToString
+    private static void writeNumber(StringBuilder builder, double value) {
+        long longValue = (long) value;
+        if (value == longValue && !(value == 0 && 1 / value < 0)) {
+            builder.append(longValue);
+        } else if (value == 0) {
+            builder.append("-0");
+        } else {
+            builder.append(Double.toString(value));
+        }
+    }
+
+    // Same escaping as JSONObject.quote
+    private static void writeString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    builder.append('\\').append(c);
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\b':
+                    builder.append("\\b");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\f':
+                    builder.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        builder.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+            }
+        }
+        builder.append('"');
+    }
+    // throw exception if not valid. Package-private for AppEventValidationBenchmark.
+    static void validateIdentifier(String identifier) throws FacebookException {
         if (identifier == null
                 || identifier.length() == 0
                 || identifier.length() > MAX_IDENTIFIER_LENGTH) {
@@ -153,16 +318,12 @@ class AppEvent implements Serializable {
             );
         }
 
-        boolean alreadyValidated = false;
-        synchronized (validatedIdentifiers) {
-            alreadyValidated = validatedIdentifiers.contains(identifier);
-        }
-
-        if (!alreadyValidated) {
-            if (identifier.matches(regex)) {
-                synchronized (validatedIdentifiers) {
-                    validatedIdentifiers.add(identifier);
+        if (!validatedIdentifiers.containsKey(identifier)) {
+            if (isValidIdentifier(identifier)) {
+                if (validatedIdentifiers.size() >= MAX_VALIDATED_IDENTIFIERS) {
+                    validatedIdentifiers.clear();
                 }
+                validatedIdentifiers.put(identifier, Boolean.TRUE);
             } else {
                 throw new FacebookException(
                         String.format(
@@ -176,6 +337,29 @@ class AppEvent implements Serializable {
         }
     }
 
+    // Identifier should be 40 chars or less, and only have 0-9A-Za-z, underscore, hyphen,
+    // and space (but no hyphen or space in the first position). Equivalent to matching
+    // "^[0-9a-zA-Z_]+[0-9a-zA-Z _-]*$", without a regex.
+    static boolean isValidIdentifier(String identifier) {
+        int length = identifier.length();
+        if (length == 0 || length > MAX_IDENTIFIER_LENGTH) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            char c = identifier.charAt(i);
+            boolean isAllowed = (c >= 'a' && c <= 'z')
+                    || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9')
+                    || c == '_'
+                    || (i > 0 && (c == ' ' || c == '-'));
+            if (!isAllowed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     static class SerializationProxyV1 implements Serializable {
         private static final long serialVersionUID = -2488473066578201069L;
         private final String jsonString;
@@ -192,15 +376,15 @@ class AppEvent implements Serializable {
     }
 
     private Object writeReplace() {
-        return new SerializationProxyV1(jsonObject.toString(), isImplicit);
+        return new SerializationProxyV1(toJSONString(), isImplicit);
     }
 
     @Override
     public String toString() {
         return String.format(
                 "\"%s\", implicit: %b, json: %s",
-                jsonObject.optString("_eventName"),
+                name,
                 isImplicit,
-                jsonObject.toString());
+                toJSONString());
     }
 }
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.appevents;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded multi-producer, single-consumer ring buffer that logging threads hand events to without
+// taking any locks. Each slot carries a sequence number: a slot is free for the producer that
+// claims position p when its sequence is p, and readable by the consumer at position p once its
+// sequence is p + 1. The consumer sets it to p + capacity when done, freeing it for the next lap.
+class AppEventBuffer {
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    // Plain arrays; writes are published by the volatile sequence update that follows them
+    private final AccessTokenAppIdPair[] accessTokenAppIds;
+    private final AppEvent[] events;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong numDroppedEvents = new AtomicLong();
+    // Only touched by the consumer
+    private long head;
+
+    // capacity must be a power of two
+    public AppEventBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.accessTokenAppIds = new AccessTokenAppIdPair[capacity];
+        this.events = new AppEvent[capacity];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // Safe to call from any thread. Returns false if the buffer is full.
+    public boolean offer(AccessTokenAppIdPair accessTokenAppId, AppEvent event) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    accessTokenAppIds[index] = accessTokenAppId;
+                    events[index] = event;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The consumer hasn't freed this slot from the previous lap yet
+                return false;
+            } else {
+                // Another producer claimed this position first
+                position = tail.get();
+            }
+        }
+    }
+
+    // Safe to call from any thread.
+    public void recordDroppedEvent() {
+        numDroppedEvents.incrementAndGet();
+    }
+
+    // Returns the number of events dropped since the last call. Safe to call from any thread.
+    public int takeDroppedEventCount() {
+        return (int) Math.min(numDroppedEvents.getAndSet(0), Integer.MAX_VALUE);
+    }
+
+    // Moves every published event into the collection, in the order they were claimed, and
+    // returns how many were moved. Only call from the single consumer thread.
+    public int drainTo(AppEventCollection appEventCollection) {
+        int count = 0;
+        while (true) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                // Empty, or the producer that claimed this slot hasn't published it yet
+                return count;
+            }
+
+            AccessTokenAppIdPair accessTokenAppId = accessTokenAppIds[index];
+            AppEvent event = events[index];
+            accessTokenAppIds[index] = null;
+            events[index] = null;
+            sequences.set(index, head + capacity);
+            head++;
+
+            appEventCollection.addEvent(accessTokenAppId, event);
+            count++;
+        }
+    }
+}
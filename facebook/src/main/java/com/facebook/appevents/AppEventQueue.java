@@ -29,6 +29,7 @@ import android.util.Log;
 import com.facebook.FacebookRequestError;
 import com.facebook.FacebookSdk;
 import com.facebook.GraphRequest;
+import com.facebook.GraphRequestBatch;
 import com.facebook.GraphResponse;
 import com.facebook.LoggingBehavior;
 import com.facebook.internal.Logger;
@@ -38,25 +39,49 @@ import org.json.JSONArray;
 import org.json.JSONException;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 class AppEventQueue {
     private static final String TAG = AppEventQueue.class.getName();
 
     private static final int NUM_LOG_EVENTS_TO_TRY_TO_FLUSH_AFTER = 100;
     private static final int FLUSH_PERIOD_IN_SECONDS = 15;
+    private static final int INGESTION_BUFFER_CAPACITY = 1024;
+    // Upper bound on the events JSON sent in one request; larger backlogs are split into chunks.
+    private static final int MAX_CHUNK_LENGTH = 64 * 1024;
 
     private static volatile AppEventCollection appEventCollection = new AppEventCollection();
     private static final ScheduledExecutorService singleThreadExecutor =
             Executors.newSingleThreadScheduledExecutor();
     private static ScheduledFuture scheduledFuture;
 
+    // Logging threads hand events over through this buffer, and only hop onto the
+    // singleThreadExecutor when no drain is already pending.
+    private static final AppEventBuffer ingestionBuffer =
+            new AppEventBuffer(INGESTION_BUFFER_CAPACITY);
+    private static final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+
+    // Only call for the singleThreadExecutor
+    private static final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared before draining, so that events published from here on schedule another
+            // drain rather than being missed.
+            isDrainScheduled.set(false);
+            if (ingestionBuffer.drainTo(appEventCollection) > 0) {
+                onEventsAdded();
+            }
+        }
+    };
+
     // Only call for the singleThreadExecutor
     private static final Runnable flushRunnable = new Runnable() {
         @Override
@@ -74,6 +99,7 @@ class AppEventQueue {
         singleThreadExecutor.execute(new Runnable() {
             @Override
             public void run() {
+                ingestionBuffer.drainTo(appEventCollection);
                 AppEventStore.persistEvents(appEventCollection);
                 appEventCollection = new AppEventCollection();
             }
@@ -93,27 +119,45 @@ class AppEventQueue {
     public static void add(
             final AccessTokenAppIdPair accessTokenAppId,
             final AppEvent appEvent) {
+        if (ingestionBuffer.offer(accessTokenAppId, appEvent)) {
+            if (isDrainScheduled.compareAndSet(false, true)) {
+                singleThreadExecutor.execute(drainRunnable);
+            }
+            return;
+        }
+
+        // The buffer is full, the singleThreadExecutor is falling behind.
+        if (AppEventsLogger.getOverflowPolicy() == AppEventsLogger.OverflowPolicy.DROP_NEWEST) {
+            ingestionBuffer.recordDroppedEvent();
+            return;
+        }
         singleThreadExecutor.execute(new Runnable() {
             @Override
             public void run() {
+                // Keep the buffered events ahead of this one
+                ingestionBuffer.drainTo(appEventCollection);
                 appEventCollection.addEvent(accessTokenAppId, appEvent);
-
-                if (AppEventsLogger.getFlushBehavior() !=
-                        AppEventsLogger.FlushBehavior.EXPLICIT_ONLY
-                        && appEventCollection.getEventCount() >
-                        NUM_LOG_EVENTS_TO_TRY_TO_FLUSH_AFTER) {
-                    flushAndWait(FlushReason.EVENT_THRESHOLD);
-                } else if (scheduledFuture == null) {
-                    scheduledFuture = singleThreadExecutor.schedule(
-                            flushRunnable,
-                            FLUSH_PERIOD_IN_SECONDS,
-                            TimeUnit.SECONDS
-                    );
-                }
+                onEventsAdded();
             }
         });
     }
 
+    // Only call from singleThreadExecutor
+    private static void onEventsAdded() {
+        if (AppEventsLogger.getFlushBehavior() !=
+                AppEventsLogger.FlushBehavior.EXPLICIT_ONLY
+                && appEventCollection.getEventCount() >
+                NUM_LOG_EVENTS_TO_TRY_TO_FLUSH_AFTER) {
+            flushAndWait(FlushReason.EVENT_THRESHOLD);
+        } else if (scheduledFuture == null) {
+            scheduledFuture = singleThreadExecutor.schedule(
+                    flushRunnable,
+                    FLUSH_PERIOD_IN_SECONDS,
+                    TimeUnit.SECONDS
+            );
+        }
+    }
+
     public static Set<AccessTokenAppIdPair> getKeySet() {
         // This is safe to call outside of the singleThreadExecutor since
         // the appEventCollection is volatile and the modifying methods within the
@@ -122,8 +166,14 @@ class AppEventQueue {
     }
 
     static void flushAndWait(FlushReason reason) {
+        // Include everything logged up to now
+        ingestionBuffer.drainTo(appEventCollection);
+
         // Read and send any persisted events
-        PersistedEvents result = AppEventStore.readAndClearStore();
+        boolean isWriteAheadEnabled = AppEventsLogger.isWriteAheadPersistenceEnabled();
+        PersistedEvents result = isWriteAheadEnabled
+                ? AppEventStore.readAndClaimStore()
+                : AppEventStore.readAndClearStore();
         // Add any of the persisted app events to our list of events to send
         appEventCollection.addPersistedEvents(result);
 
@@ -132,7 +182,8 @@ class AppEventQueue {
         try {
             flushResults = sendEventsToServer(
                     reason,
-                    appEventCollection);
+                    appEventCollection,
+                    isWriteAheadEnabled);
         } catch (Exception e) {
             Log.w(TAG, "Caught unexpected exception while flushing app events: ", e);
             return;
@@ -153,33 +204,59 @@ class AppEventQueue {
 
     private static FlushStatistics sendEventsToServer(
             FlushReason reason,
-            AppEventCollection appEventCollection) {
+            AppEventCollection appEventCollection,
+            boolean isWriteAheadEnabled) {
         FlushStatistics flushResults = new FlushStatistics();
 
         Context context = FacebookSdk.getApplicationContext();
         boolean limitEventUsage = FacebookSdk.getLimitEventAndDataUsage(context);
 
-        List<GraphRequest> requestsToExecute = new ArrayList<>();
+        // Requests are batched per application, which the batch is sent on behalf of.
+        Map<String, List<GraphRequest>> requestsToExecute = new LinkedHashMap<>();
         for (AccessTokenAppIdPair accessTokenAppId : appEventCollection.keySet()) {
-            GraphRequest request = buildRequestForSession(
+            List<GraphRequest> requests = buildRequestsForSession(
                     accessTokenAppId,
                     appEventCollection.get(accessTokenAppId),
                     limitEventUsage,
+                    isWriteAheadEnabled,
                     flushResults);
-            if (request != null) {
-                requestsToExecute.add(request);
+            if (requests.isEmpty()) {
+                continue;
+            }
+            String applicationId = accessTokenAppId.getApplicationId();
+            List<GraphRequest> applicationRequests = requestsToExecute.get(applicationId);
+            if (applicationRequests == null) {
+                applicationRequests = new ArrayList<>();
+                requestsToExecute.put(applicationId, applicationRequests);
             }
+            applicationRequests.addAll(requests);
         }
 
         if (requestsToExecute.size() > 0) {
-            Logger.log(LoggingBehavior.APP_EVENTS, TAG, "Flushing %d events due to %s.",
+            flushResults.numDroppedEvents = ingestionBuffer.takeDroppedEventCount();
+            Logger.log(LoggingBehavior.APP_EVENTS, TAG,
+                    "Flushing %d events in %d chunks due to %s.",
                     flushResults.numEvents,
+                    flushResults.chunks.size(),
                     reason.toString());
+            if (flushResults.numDroppedEvents > 0) {
+                Logger.log(LoggingBehavior.APP_EVENTS, TAG,
+                        "%d events were dropped because they were logged faster than they " +
+                                "could be queued.",
+                        flushResults.numDroppedEvents);
+            }
 
-            for (GraphRequest request : requestsToExecute) {
-                // Execute the request synchronously. Callbacks will take care of handling errors
-                // and updating our final overall result.
-                request.executeAndWait();
+            for (Map.Entry<String, List<GraphRequest>> entry : requestsToExecute.entrySet()) {
+                List<GraphRequest> requests = entry.getValue();
+                for (int i = 0; i < requests.size(); i += GraphRequest.MAXIMUM_BATCH_SIZE) {
+                    GraphRequestBatch batch = new GraphRequestBatch(requests.subList(
+                            i,
+                            Math.min(requests.size(), i + GraphRequest.MAXIMUM_BATCH_SIZE)));
+                    batch.setBatchApplicationId(entry.getKey());
+                    // Execute the batch synchronously. Callbacks will take care of handling
+                    // errors and updating our final overall result, chunk by chunk.
+                    batch.executeAndWait();
+                }
             }
             return flushResults;
         }
@@ -187,64 +264,93 @@ class AppEventQueue {
         return null;
     }
 
-    private static GraphRequest buildRequestForSession(
+    private static List<GraphRequest> buildRequestsForSession(
             final AccessTokenAppIdPair accessTokenAppId,
             final SessionEventsState appEvents,
             final boolean limitEventUsage,
+            final boolean isWriteAheadEnabled,
             final FlushStatistics flushState) {
+        List<GraphRequest> requests = new ArrayList<>();
         String applicationId = accessTokenAppId.getApplicationId();
 
         Utility.FetchedAppSettings fetchedAppSettings =
                 Utility.queryAppSettings(applicationId, false);
+        if (fetchedAppSettings == null) {
+            return requests;
+        }
 
-        final GraphRequest postRequest = GraphRequest.newPostRequest(
-                null,
-                String.format("%s/activities", applicationId),
-                null,
-                null);
+        List<SessionEventsState.Chunk> chunks = appEvents.moveAccumulatedEventsInFlight(
+                fetchedAppSettings.supportsImplicitLogging(),
+                MAX_CHUNK_LENGTH);
 
-        Bundle requestParameters = postRequest.getParameters();
-        if (requestParameters == null) {
-            requestParameters = new Bundle();
-        }
-        requestParameters.putString("access_token", accessTokenAppId.getAccessTokenString());
-        String pushNotificationsRegistrationId =
-                AppEventsLogger.getPushNotificationsRegistrationId();
-        if (pushNotificationsRegistrationId != null) {
-            requestParameters.putString("device_token", pushNotificationsRegistrationId);
+        long[] inFlightRecordIds = null;
+        if (isWriteAheadEnabled) {
+            List<List<AppEvent>> chunkEvents = new ArrayList<>(chunks.size());
+            for (SessionEventsState.Chunk chunk : chunks) {
+                chunkEvents.add(chunk.getEvents());
+            }
+            // Also acknowledges the records of any events that were dropped rather than sent
+            inFlightRecordIds = AppEventStore.persistInFlightEvents(accessTokenAppId, chunkEvents);
         }
 
-        postRequest.setParameters(requestParameters);
+        for (int i = 0; i < chunks.size(); i++) {
+            final SessionEventsState.Chunk chunk = chunks.get(i);
+            final long inFlightRecordId = inFlightRecordIds != null
+                    ? inFlightRecordIds[i]
+                    : AppEventStore.NO_RECORD;
+            final FlushStatistics.ChunkStatistics chunkStatistics =
+                    new FlushStatistics.ChunkStatistics(
+                            accessTokenAppId,
+                            chunk.getNumEvents(),
+                            chunk.getJsonString().length());
+
+            final GraphRequest postRequest = GraphRequest.newPostRequest(
+                    null,
+                    String.format("%s/activities", applicationId),
+                    null,
+                    null);
+
+            Bundle requestParameters = postRequest.getParameters();
+            if (requestParameters == null) {
+                requestParameters = new Bundle();
+            }
+            requestParameters.putString("access_token", accessTokenAppId.getAccessTokenString());
+            String pushNotificationsRegistrationId =
+                    AppEventsLogger.getPushNotificationsRegistrationId();
+            if (pushNotificationsRegistrationId != null) {
+                requestParameters.putString("device_token", pushNotificationsRegistrationId);
+            }
 
-        if (fetchedAppSettings == null) {
-            return null;
-        }
+            postRequest.setParameters(requestParameters);
 
-        int numEvents = appEvents.populateRequest(
-                postRequest,
-                FacebookSdk.getApplicationContext(),
-                fetchedAppSettings.supportsImplicitLogging(),
-                limitEventUsage);
+            appEvents.populateRequest(
+                    postRequest,
+                    FacebookSdk.getApplicationContext(),
+                    chunk,
+                    limitEventUsage);
 
-        if (numEvents == 0) {
-            return null;
-        }
+            flushState.numEvents += chunk.getNumEvents();
+            flushState.chunks.add(chunkStatistics);
 
-        flushState.numEvents += numEvents;
+            postRequest.setCallback(new GraphRequest.Callback() {
+                @Override
+                public void onCompleted(GraphResponse response) {
+                    handleResponse(
+                            accessTokenAppId,
+                            postRequest,
+                            response,
+                            appEvents,
+                            chunk,
+                            inFlightRecordId,
+                            chunkStatistics,
+                            flushState);
+                }
+            });
 
-        postRequest.setCallback(new GraphRequest.Callback() {
-            @Override
-            public void onCompleted(GraphResponse response) {
-                handleResponse(
-                        accessTokenAppId,
-                        postRequest,
-                        response,
-                        appEvents,
-                        flushState);
-            }
-        });
+            requests.add(postRequest);
+        }
 
-        return postRequest;
+        return requests;
     }
 
     private static void handleResponse(
@@ -252,6 +358,9 @@ class AppEventQueue {
             GraphRequest request,
             GraphResponse response,
             final SessionEventsState appEvents,
+            SessionEventsState.Chunk chunk,
+            long inFlightRecordId,
+            FlushStatistics.ChunkStatistics chunkStatistics,
             FlushStatistics flushState) {
         FacebookRequestError error = response.getError();
         String resultDescription = "Success";
@@ -289,7 +398,16 @@ class AppEventQueue {
                     prettyPrintedEvents);
         }
 
-        appEvents.clearInFlightAndStats(error != null);
+        chunkStatistics.result = flushResult;
+
+        // Only the events of this chunk are retried, on a later flush
+        appEvents.clearInFlight(chunk, error != null);
+        if (error != null) {
+            // The events are accumulated again, and will be written out with them
+            AppEventStore.releaseInFlightEvents(accessTokenAppId, inFlightRecordId);
+        } else {
+            AppEventStore.acknowledgeInFlightEvents(inFlightRecordId);
+        }
 
         if (flushResult == FlushResult.NO_CONNECTIVITY) {
             // We may call this for multiple requests in a batch, which is slightly inefficient
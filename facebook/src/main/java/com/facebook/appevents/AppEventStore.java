@@ -30,106 +30,580 @@ import com.facebook.internal.Utility;
 
 import junit.framework.Assert;
 
+import org.json.JSONException;
+
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
 
+// Events are persisted to an append-only journal split into segment files. Each segment starts
+// with a small header, followed by records of the form:
+//
+//     int length | int crc32(payload) | payload
+//
+// Persisting only appends the new events, and a torn or corrupt record only loses that record
+// and the ones after it in its segment, rather than the whole store.
+//
+// A record is identified by its segment and offset. Acknowledgement records retire earlier
+// records, which lets write-ahead mode keep events on disk until the server has accepted them:
+// readAndClaimStore leaves the journal in place, and the events read (or put in flight) are
+// "claimed" by this process until they are acknowledged or rewritten into a newer record.
 class AppEventStore {
     private static final String TAG = AppEventStore.class.getName();
+    // Events used to be written here with java serialization; read once and migrated.
     private static final String PERSISTED_EVENTS_FILENAME = "AppEventsLogger.persistedevents";
+    private static final String JOURNAL_SEGMENT_PREFIX = "AppEventsLogger.journal.";
+
+    private static final int JOURNAL_MAGIC = 0x46424145; // "FBAE"
+    private static final int JOURNAL_VERSION = 1;
+    private static final int JOURNAL_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final byte RECORD_TYPE_EVENTS = 1;
+    private static final byte RECORD_TYPE_ACKNOWLEDGEMENT = 2;
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    static final long NO_RECORD = -1;
+
+    // Index and size of the segment currently being appended to, or -1 if we haven't picked
+    // one yet. A process never appends to a segment written by an earlier one, since its tail
+    // may be torn.
+    private static int currentSegment = -1;
+    private static long currentSegmentSize;
+    // Segment indexes are never reused within a process, so stale record ids can't alias
+    // newer records.
+    private static int highestSegment = -1;
+
+    // Unacknowledged records, known only once the whole journal has been read.
+    private static final HashSet<Long> liveRecords = new HashSet<>();
+    private static boolean isJournalIndexed = false;
+    // Records whose events are held in memory by this process, so must not be read again.
+    private static final HashSet<Long> claimedRecords = new HashSet<>();
+    // Claimed records whose events are accumulated (rather than in flight), by session.
+    private static final HashMap<AccessTokenAppIdPair, List<Long>> accumulatedClaims =
+            new HashMap<>();
 
     public static synchronized void persistEvents(
             final AccessTokenAppIdPair accessTokenAppIdPair,
             final SessionEventsState appEvents) {
         assertIsNotMainThread();
-        PersistedEvents persistedEvents = readAndClearStore();
-
-        if (persistedEvents.containsKey(accessTokenAppIdPair)) {
-            persistedEvents
-                    .get(accessTokenAppIdPair)
-                    .addAll(appEvents.getEventsToPersist());
-        } else {
-            persistedEvents.addEvents(accessTokenAppIdPair, appEvents.getEventsToPersist());
-        }
-
-        saveEventsToDisk(persistedEvents);
+        appendEvents(accessTokenAppIdPair, appEvents.getEventsToPersist());
     }
 
     public static synchronized void persistEvents(
             final AppEventCollection eventsToPersist) {
         assertIsNotMainThread();
-        PersistedEvents persistedEvents = readAndClearStore();
         for (AccessTokenAppIdPair accessTokenAppIdPair : eventsToPersist.keySet()) {
             SessionEventsState sessionEventsState = eventsToPersist.get(
                     accessTokenAppIdPair);
-            persistedEvents.addEvents(
-                    accessTokenAppIdPair,
-                    sessionEventsState.getEventsToPersist());
+            appendEvents(accessTokenAppIdPair, sessionEventsState.getEventsToPersist());
         }
-
-        saveEventsToDisk(persistedEvents);
     }
 
     // Only call from singleThreadExecutor
     public static synchronized PersistedEvents readAndClearStore() {
         assertIsNotMainThread();
 
-        MovedClassObjectInputStream ois = null;
-        PersistedEvents persistedEvents = null;
         Context context = FacebookSdk.getApplicationContext();
+        PersistedEvents persistedEvents = new PersistedEvents();
+        readLegacyStore(context, persistedEvents);
+
+        int[] segments = getSegmentIndexes(context);
+        addRecords(persistedEvents, readJournal(context, segments));
+
+        // Note: We delete the store before we send the events; this means we'd prefer to lose
+        // some events in the case of exception rather than potentially log them twice.
+        for (int segment : segments) {
+            deleteFile(context, getSegmentName(segment));
+        }
+        currentSegment = -1;
+        liveRecords.clear();
+        claimedRecords.clear();
+        accumulatedClaims.clear();
+        isJournalIndexed = true;
+
+        return persistedEvents;
+    }
+
+    // Write-ahead counterpart of readAndClearStore: returns the events that aren't already held
+    // by this process, leaving them in the journal until they are acknowledged.
+    // Only call from singleThreadExecutor
+    public static synchronized PersistedEvents readAndClaimStore() {
+        assertIsNotMainThread();
+
+        Context context = FacebookSdk.getApplicationContext();
+        PersistedEvents legacyEvents = new PersistedEvents();
+        readLegacyStore(context, legacyEvents);
+        for (AccessTokenAppIdPair accessTokenAppIdPair : legacyEvents.keySet()) {
+            appendEvents(accessTokenAppIdPair, legacyEvents.get(accessTokenAppIdPair));
+        }
+
+        LinkedHashMap<Long, JournalRecord> records =
+                readJournal(context, getSegmentIndexes(context));
+        liveRecords.clear();
+        liveRecords.addAll(records.keySet());
+        claimedRecords.retainAll(liveRecords);
+        isJournalIndexed = true;
+
+        PersistedEvents persistedEvents = new PersistedEvents();
+        for (Map.Entry<Long, JournalRecord> entry : records.entrySet()) {
+            Long recordId = entry.getKey();
+            if (claimedRecords.contains(recordId)) {
+                continue;
+            }
+            JournalRecord record = entry.getValue();
+            persistedEvents.addEvents(record.accessTokenAppIdPair, record.appEvents);
+            claimedRecords.add(recordId);
+            getAccumulatedClaims(record.accessTokenAppIdPair).add(recordId);
+        }
+
+        return persistedEvents;
+    }
+
+    // Makes the events about to be sent for a session durable before they go in flight, one
+    // record per chunk so that each can be acknowledged on its own. The accumulated events of the
+    // session now live in the new records, so the records they were read from are acknowledged
+    // in the same write. Returns the record id of each chunk, NO_RECORD where nothing was written.
+    public static synchronized long[] persistInFlightEvents(
+            final AccessTokenAppIdPair accessTokenAppIdPair,
+            final List<List<AppEvent>> chunks) {
+        assertIsNotMainThread();
+        long[] recordIds = appendEventRecords(accessTokenAppIdPair, chunks);
+        if (recordIds == null) {
+            recordIds = new long[chunks.size()];
+            Arrays.fill(recordIds, NO_RECORD);
+            return recordIds;
+        }
+
+        for (long recordId : recordIds) {
+            if (recordId != NO_RECORD) {
+                claimedRecords.add(recordId);
+            }
+        }
+        return recordIds;
+    }
+
+    // The server accepted (or permanently rejected) the events of an in-flight record.
+    public static synchronized void acknowledgeInFlightEvents(final long recordId) {
+        assertIsNotMainThread();
+        if (recordId == NO_RECORD) {
+            return;
+        }
+
+        claimedRecords.remove(recordId);
+        if (isJournalIndexed && !liveRecords.contains(recordId)) {
+            return;
+        }
+        appendRecords(
+                Arrays.asList(encodeAcknowledgement(Arrays.asList(recordId))),
+                new long[1]);
+        liveRecords.remove(recordId);
+        compactJournal(FacebookSdk.getApplicationContext());
+    }
+
+    // The events of an in-flight record went back to being accumulated by their session.
+    public static synchronized void releaseInFlightEvents(
+            final AccessTokenAppIdPair accessTokenAppIdPair,
+            final long recordId) {
+        if (recordId == NO_RECORD || !claimedRecords.contains(recordId)) {
+            return;
+        }
+        getAccumulatedClaims(accessTokenAppIdPair).add(recordId);
+    }
+
+    private static void appendEvents(
+            AccessTokenAppIdPair accessTokenAppIdPair,
+            List<AppEvent> appEvents) {
+        appendEventRecords(accessTokenAppIdPair, Collections.singletonList(appEvents));
+    }
+
+    // Writes each non-empty list of events as a record, along with the acknowledgement of the
+    // session's accumulated claims. Returns the id of the record written for each list (NO_RECORD
+    // for an empty one), or null if nothing was written.
+    private static long[] appendEventRecords(
+            AccessTokenAppIdPair accessTokenAppIdPair,
+            List<List<AppEvent>> eventRecords) {
+        List<Long> claims = accumulatedClaims.remove(accessTokenAppIdPair);
+
+        List<byte[]> payloads = new ArrayList<>(eventRecords.size() + 1);
+        try {
+            for (List<AppEvent> appEvents : eventRecords) {
+                if (!appEvents.isEmpty()) {
+                    payloads.add(encodeEvents(accessTokenAppIdPair, appEvents));
+                }
+            }
+            if (claims != null) {
+                payloads.add(encodeAcknowledgement(claims));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Got unexpected exception while persisting events: ", e);
+            payloads.clear();
+        }
+
+        long[] payloadIds = new long[payloads.size()];
+        if (payloads.isEmpty() || !appendRecords(payloads, payloadIds)) {
+            // Keep the claims, so that the events can still be written out later
+            if (claims != null) {
+                accumulatedClaims.put(accessTokenAppIdPair, claims);
+            }
+            return null;
+        }
+
+        long[] recordIds = new long[eventRecords.size()];
+        int payloadIndex = 0;
+        for (int i = 0; i < recordIds.length; i++) {
+            if (eventRecords.get(i).isEmpty()) {
+                recordIds[i] = NO_RECORD;
+            } else {
+                recordIds[i] = payloadIds[payloadIndex++];
+                liveRecords.add(recordIds[i]);
+            }
+        }
+        if (claims != null) {
+            claimedRecords.removeAll(claims);
+            liveRecords.removeAll(claims);
+        }
+        return recordIds;
+    }
+
+    private static boolean appendRecords(List<byte[]> payloads, long[] recordIds) {
+        FileOutputStream outputStream = null;
+        try {
+            Context context = FacebookSdk.getApplicationContext();
+            prepareCurrentSegment(context);
+
+            // A single write, so that a crash leaves at most one partial record at the end
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream dataOutputStream = new DataOutputStream(buffer);
+            if (currentSegmentSize == 0) {
+                dataOutputStream.writeInt(JOURNAL_MAGIC);
+                dataOutputStream.writeInt(JOURNAL_VERSION);
+            }
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < payloads.size(); i++) {
+                byte[] payload = payloads.get(i);
+                recordIds[i] = getRecordId(currentSegment, currentSegmentSize + buffer.size());
+                crc.reset();
+                crc.update(payload);
+                dataOutputStream.writeInt(payload.length);
+                dataOutputStream.writeInt((int) crc.getValue());
+                dataOutputStream.write(payload);
+            }
+
+            outputStream = context.openFileOutput(
+                    getSegmentName(currentSegment),
+                    Context.MODE_APPEND);
+            buffer.writeTo(outputStream);
+            currentSegmentSize += buffer.size();
+            return true;
+        } catch (Exception e) {
+            Log.w(TAG, "Got unexpected exception while persisting events: ", e);
+            // Move on to a new segment, in case only some of the records made it out
+            currentSegment = -1;
+            return false;
+        } finally {
+            Utility.closeQuietly(outputStream);
+        }
+    }
+
+    private static void prepareCurrentSegment(Context context) {
+        if (currentSegment < 0 || currentSegmentSize >= MAX_SEGMENT_SIZE) {
+            int[] segments = getSegmentIndexes(context);
+            if (segments.length > 0) {
+                highestSegment = Math.max(highestSegment, segments[segments.length - 1]);
+            }
+            currentSegment = ++highestSegment;
+            currentSegmentSize = 0;
+        }
+    }
+
+    // Deletes the segments that precede every unacknowledged record.
+    private static void compactJournal(Context context) {
+        if (!isJournalIndexed) {
+            return;
+        }
+
+        int oldestLiveSegment = Integer.MAX_VALUE;
+        for (long recordId : liveRecords) {
+            oldestLiveSegment = Math.min(oldestLiveSegment, getSegment(recordId));
+        }
+        for (int segment : getSegmentIndexes(context)) {
+            if (segment < oldestLiveSegment) {
+                deleteFile(context, getSegmentName(segment));
+                if (segment == currentSegment) {
+                    currentSegment = -1;
+                }
+            }
+        }
+    }
+
+    private static byte[] encodeEvents(
+            AccessTokenAppIdPair accessTokenAppIdPair,
+            List<AppEvent> appEvents) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadOutputStream = new DataOutputStream(payload);
+        payloadOutputStream.writeByte(RECORD_TYPE_EVENTS);
+        writeString(payloadOutputStream, accessTokenAppIdPair.getAccessTokenString());
+        writeString(payloadOutputStream, accessTokenAppIdPair.getApplicationId());
+        payloadOutputStream.writeInt(appEvents.size());
+        for (AppEvent appEvent : appEvents) {
+            payloadOutputStream.writeBoolean(appEvent.getIsImplicit());
+            writeString(payloadOutputStream, appEvent.toJSONString());
+        }
+        return payload.toByteArray();
+    }
+
+    private static byte[] encodeAcknowledgement(List<Long> recordIds) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadOutputStream = new DataOutputStream(payload);
+        try {
+            payloadOutputStream.writeByte(RECORD_TYPE_ACKNOWLEDGEMENT);
+            payloadOutputStream.writeInt(recordIds.size());
+            for (long recordId : recordIds) {
+                payloadOutputStream.writeLong(recordId);
+            }
+        } catch (IOException e) {
+            // Can't happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return payload.toByteArray();
+    }
+
+    // Returns the unacknowledged events records, in the order they were written.
+    private static LinkedHashMap<Long, JournalRecord> readJournal(
+            Context context,
+            int[] segments) {
+        LinkedHashMap<Long, JournalRecord> records = new LinkedHashMap<>();
+        for (int segment : segments) {
+            readSegment(context, segment, records);
+        }
+        return records;
+    }
+
+    private static void readSegment(
+            Context context,
+            int segment,
+            LinkedHashMap<Long, JournalRecord> records) {
+        String segmentName = getSegmentName(segment);
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(
+                    new BufferedInputStream(context.openFileInput(segmentName)));
+            if (inputStream.readInt() != JOURNAL_MAGIC
+                    || inputStream.readInt() != JOURNAL_VERSION) {
+                Log.w(TAG, "Skipping app events journal segment with unknown format: "
+                        + segmentName);
+                return;
+            }
+
+            CRC32 crc = new CRC32();
+            long offset = JOURNAL_HEADER_SIZE;
+            while (true) {
+                int length;
+                try {
+                    length = inputStream.readInt();
+                } catch (EOFException e) {
+                    // Clean end of the segment
+                    return;
+                }
+                int expectedCrc = inputStream.readInt();
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    throw new IOException("Invalid record length " + length);
+                }
+
+                byte[] payload = new byte[length];
+                inputStream.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != expectedCrc) {
+                    throw new IOException("Record checksum mismatch");
+                }
+
+                decodeRecord(getRecordId(segment, offset), payload, records);
+                offset += RECORD_HEADER_SIZE + length;
+            }
+        } catch (Exception e) {
+            // Keep the records read so far; everything after a bad record is unreliable.
+            Log.w(TAG, "Got unexpected exception while reading events from " + segmentName
+                    + ": ", e);
+        } finally {
+            Utility.closeQuietly(inputStream);
+        }
+    }
+
+    private static void decodeRecord(
+            long recordId,
+            byte[] payload,
+            LinkedHashMap<Long, JournalRecord> records) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = inputStream.readByte();
+        if (type == RECORD_TYPE_ACKNOWLEDGEMENT) {
+            int count = inputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                records.remove(inputStream.readLong());
+            }
+            return;
+        } else if (type != RECORD_TYPE_EVENTS) {
+            // Written by a newer version of the SDK; skip it.
+            return;
+        }
+
+        AccessTokenAppIdPair accessTokenAppIdPair = new AccessTokenAppIdPair(
+                readString(inputStream),
+                readString(inputStream));
+        int count = inputStream.readInt();
+        List<AppEvent> appEvents = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            boolean isImplicit = inputStream.readBoolean();
+            String jsonString = readString(inputStream);
+            try {
+                appEvents.add(AppEvent.fromPersistedJSONString(jsonString, isImplicit));
+            } catch (JSONException e) {
+                Log.w(TAG, "Skipping persisted app event that could not be parsed: ", e);
+            }
+        }
+        records.put(recordId, new JournalRecord(accessTokenAppIdPair, appEvents));
+    }
+
+    private static void addRecords(
+            PersistedEvents persistedEvents,
+            LinkedHashMap<Long, JournalRecord> records) {
+        for (Map.Entry<Long, JournalRecord> entry : records.entrySet()) {
+            // Claimed events are already held in memory
+            if (!claimedRecords.contains(entry.getKey())) {
+                JournalRecord record = entry.getValue();
+                persistedEvents.addEvents(record.accessTokenAppIdPair, record.appEvents);
+            }
+        }
+    }
+
+    private static void readLegacyStore(Context context, PersistedEvents persistedEvents) {
+        File legacyFile = context.getFileStreamPath(PERSISTED_EVENTS_FILENAME);
+        if (!legacyFile.exists()) {
+            return;
+        }
+
+        MovedClassObjectInputStream ois = null;
         try {
             InputStream is = context.openFileInput(PERSISTED_EVENTS_FILENAME);
             ois = new MovedClassObjectInputStream(new BufferedInputStream(is));
 
-            persistedEvents = (PersistedEvents) ois.readObject();
-        } catch (FileNotFoundException e) {
-            // Expected if we never persisted any events.
+            PersistedEvents legacyEvents = (PersistedEvents) ois.readObject();
+            for (AccessTokenAppIdPair accessTokenAppIdPair : legacyEvents.keySet()) {
+                persistedEvents.addEvents(
+                        accessTokenAppIdPair,
+                        legacyEvents.get(accessTokenAppIdPair));
+            }
         } catch (Exception e) {
             Log.w(TAG, "Got unexpected exception while reading events: ", e);
         } finally {
             Utility.closeQuietly(ois);
+            // Always delete this file to recover from read errors; it is never written again.
+            deleteFile(context, PERSISTED_EVENTS_FILENAME);
+        }
+    }
 
+    private static List<Long> getAccumulatedClaims(AccessTokenAppIdPair accessTokenAppIdPair) {
+        List<Long> claims = accumulatedClaims.get(accessTokenAppIdPair);
+        if (claims == null) {
+            claims = new ArrayList<>();
+            accumulatedClaims.put(accessTokenAppIdPair, claims);
+        }
+        return claims;
+    }
 
-            try {
-                // Note: We delete the store before we store the events; this means we'd
-                // prefer to lose some events in the case of exception rather than
-                // potentially log them twice.
-                // Always delete this file after the above try catch to recover from read
-                // errors.
-                context.getFileStreamPath(PERSISTED_EVENTS_FILENAME).delete();
-            } catch (Exception ex) {
-                Log.w(TAG, "Got unexpected exception when removing events file: ", ex);
+    private static int[] getSegmentIndexes(Context context) {
+        String[] fileNames = context.fileList();
+        int[] segments = new int[fileNames == null ? 0 : fileNames.length];
+        int count = 0;
+        for (int i = 0; i < segments.length; i++) {
+            String fileName = fileNames[i];
+            if (fileName.startsWith(JOURNAL_SEGMENT_PREFIX)) {
+                try {
+                    segments[count] = Integer.parseInt(
+                            fileName.substring(JOURNAL_SEGMENT_PREFIX.length()));
+                    count++;
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
             }
         }
 
-        if (persistedEvents == null) {
-            persistedEvents = new PersistedEvents();
-        }
+        segments = Arrays.copyOf(segments, count);
+        Arrays.sort(segments);
+        return segments;
+    }
 
-        return persistedEvents;
+    private static String getSegmentName(int segment) {
+        return JOURNAL_SEGMENT_PREFIX + segment;
     }
 
-    // Only call from singleThreadExecutor
-    private static void saveEventsToDisk(
-            PersistedEvents eventsToPersist) {
-        ObjectOutputStream oos = null;
+    private static long getRecordId(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int getSegment(long recordId) {
+        return (int) (recordId >>> 32);
+    }
+
+    private static void deleteFile(Context context, String fileName) {
         try {
-            Context context = FacebookSdk.getApplicationContext();
-            oos = new ObjectOutputStream(
-                    new BufferedOutputStream(
-                            context.openFileOutput(PERSISTED_EVENTS_FILENAME, 0)));
-            oos.writeObject(eventsToPersist);
+            context.getFileStreamPath(fileName).delete();
         } catch (Exception e) {
-            Log.w(TAG, "Got unexpected exception while persisting events: ", e);
-        } finally {
-            Utility.closeQuietly(oos);
+            Log.w(TAG, "Got unexpected exception when removing events file: ", e);
+        }
+    }
+
+    private static void writeString(
+            DataOutputStream outputStream,
+            String value) throws IOException {
+        if (value == null) {
+            outputStream.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    private static String readString(DataInputStream inputStream) throws IOException {
+        int length = inputStream.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_RECORD_SIZE) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        inputStream.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static class JournalRecord {
+        private final AccessTokenAppIdPair accessTokenAppIdPair;
+        private final List<AppEvent> appEvents;
+
+        JournalRecord(AccessTokenAppIdPair accessTokenAppIdPair, List<AppEvent> appEvents) {
+            this.accessTokenAppIdPair = accessTokenAppIdPair;
+            this.appEvents = appEvents;
         }
     }
 
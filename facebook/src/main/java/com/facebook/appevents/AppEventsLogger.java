@@ -171,6 +171,24 @@ public class AppEventsLogger {
         EXPLICIT_ONLY,
     }
 
+    /**
+     * Controls what happens to events that are logged faster than they can be queued for the
+     * next flush
+     */
+    public enum OverflowPolicy {
+        /**
+         * Queue the event anyway, through a slower path that takes a lock. No events are lost.
+         * This is the default value.
+         */
+        QUEUE,
+
+        /**
+         * Drop the event being logged. The number of dropped events is reported in the logs
+         * of the next flush.
+         */
+        DROP_NEWEST,
+    }
+
     // Constants
     private static final String TAG = AppEventsLogger.class.getCanonicalName();
 
@@ -195,6 +213,9 @@ public class AppEventsLogger {
 
     private static ScheduledThreadPoolExecutor backgroundExecutor;
     private static FlushBehavior flushBehavior = FlushBehavior.AUTO;
+    private static boolean isWriteAheadPersistenceEnabled = false;
+    // Read on every logged event, so not guarded by staticLock
+    private static volatile OverflowPolicy overflowPolicy = OverflowPolicy.QUEUE;
     private static Object staticLock = new Object();
     private static String anonymousAppDeviceGUID;
     private static String sourceApplication;
@@ -484,6 +505,54 @@ public class AppEventsLogger {
         }
     }
 
+    /**
+     * Access the policy that AppEventsLogger applies to events logged while its queue is full.
+     * This setting applies to all instances of AppEventsLogger.
+     *
+     * @return Specified overflow policy.
+     */
+    public static OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Set the policy that AppEventsLogger applies to events logged while its queue is full, for
+     * instance when many events are logged from several threads at once. This setting applies to
+     * all instances of AppEventsLogger.
+     *
+     * @param overflowPolicy the desired policy.
+     */
+    public static void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        Validate.notNull(overflowPolicy, "overflowPolicy");
+        AppEventsLogger.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Returns whether events are persisted before being sent to the server. See
+     * {@link #setWriteAheadPersistenceEnabled(boolean)}.
+     *
+     * @return true if write-ahead persistence is enabled.
+     */
+    public static boolean isWriteAheadPersistenceEnabled() {
+        synchronized (staticLock) {
+            return isWriteAheadPersistenceEnabled;
+        }
+    }
+
+    /**
+     * Sets whether events are written to disk before they are sent to the server, and only
+     * removed once the server has responded. This keeps events that are being flushed when the
+     * process is killed, at the cost of possibly sending some of them twice. This setting
+     * applies to all instances of AppEventsLogger.
+     *
+     * @param enabled true to persist events until the server acknowledges them.
+     */
+    public static void setWriteAheadPersistenceEnabled(boolean enabled) {
+        synchronized (staticLock) {
+            isWriteAheadPersistenceEnabled = enabled;
+        }
+    }
+
     /**
      * Log an app event with the specified name.
      *
@@ -815,6 +884,10 @@ public class AppEventsLogger {
     private static void logEvent(final Context context,
                                  final AppEvent event,
                                  final AccessTokenAppIdPair accessTokenAppId) {
+        if (!event.isValid()) {
+            // Already reported when the event was created
+            return;
+        }
         AppEventQueue.add(accessTokenAppId, event);
 
         // Make sure Activated_App is always before other app events
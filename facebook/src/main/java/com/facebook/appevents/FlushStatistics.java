@@ -20,7 +20,28 @@
 
 package com.facebook.appevents;
 
+import java.util.ArrayList;
+import java.util.List;
+
 class FlushStatistics {
     public int numEvents = 0;
+    // Events dropped by the ingestion buffer since the previous flush
+    public int numDroppedEvents = 0;
     public FlushResult result = FlushResult.SUCCESS;
+    // One entry per request sent, in the order they were batched
+    public final List<ChunkStatistics> chunks = new ArrayList<>();
+
+    static class ChunkStatistics {
+        public final AccessTokenAppIdPair accessTokenAppId;
+        public final int numEvents;
+        // Length of the events JSON, before the request body is compressed
+        public final int numChars;
+        public FlushResult result = FlushResult.SUCCESS;
+
+        ChunkStatistics(AccessTokenAppIdPair accessTokenAppId, int numEvents, int numChars) {
+            this.accessTokenAppId = accessTokenAppId;
+            this.numEvents = numEvents;
+            this.numChars = numChars;
+        }
+    }
 }
@@ -21,30 +21,46 @@
 package com.facebook.appevents;
 
 import android.content.Context;
-import android.os.Bundle;
 
 import com.facebook.GraphRequest;
 import com.facebook.internal.AppEventsLoggerUtility;
 import com.facebook.internal.AttributionIdentifiers;
 import com.facebook.internal.Utility;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
 
 class SessionEventsState {
     private List<AppEvent> accumulatedEvents = new ArrayList<AppEvent>();
-    private List<AppEvent> inFlightEvents = new ArrayList<AppEvent>();
+    private int numInFlightEvents;
     private int numSkippedEventsDueToFullBuffer;
     private AttributionIdentifiers attributionIdentifiers;
     private String anonymousAppDeviceGUID;
 
     private final int MAX_ACCUMULATED_LOG_EVENTS = 1000;
 
+    // Events that are sent, and succeed or fail, together as one request.
+    static class Chunk {
+        private final List<AppEvent> events = new ArrayList<AppEvent>();
+        private String jsonString;
+        private int numSkipped;
+
+        public List<AppEvent> getEvents() {
+            return events;
+        }
+
+        public int getNumEvents() {
+            return events.size();
+        }
+
+        public String getJsonString() {
+            return jsonString;
+        }
+    }
+
     public SessionEventsState(
             AttributionIdentifiers identifiers,
             String anonymousGUID) {
@@ -55,7 +71,7 @@ class SessionEventsState {
     // Synchronize here and in other methods on this class, because could be coming in from
     // different AppEventsLoggers on different threads pointing at the same session.
     public synchronized void addEvent(AppEvent event) {
-        if (accumulatedEvents.size() + inFlightEvents.size() >= MAX_ACCUMULATED_LOG_EVENTS) {
+        if (accumulatedEvents.size() + numInFlightEvents >= MAX_ACCUMULATED_LOG_EVENTS) {
             numSkippedEventsDueToFullBuffer++;
         } else {
             accumulatedEvents.add(event);
@@ -66,71 +82,67 @@ class SessionEventsState {
         return accumulatedEvents.size();
     }
 
-    public synchronized void clearInFlightAndStats(boolean moveToAccumulated) {
-        if (moveToAccumulated) {
-            accumulatedEvents.addAll(inFlightEvents);
-        }
-        inFlightEvents.clear();
-        numSkippedEventsDueToFullBuffer = 0;
-    }
-
-    public int populateRequest(
-            GraphRequest request,
-            Context applicationContext,
+    // Moves all accumulated events in flight, split into chunks whose events JSON is at most
+    // maxChunkLength characters (or a single event, if that alone is longer). Implicit events
+    // are dropped rather than sent when includeImplicitEvents is false.
+    public synchronized List<Chunk> moveAccumulatedEventsInFlight(
             boolean includeImplicitEvents,
-            boolean limitEventUsage) {
-
-        int numSkipped;
-        JSONArray jsonArray;
-        synchronized (this) {
-            numSkipped = numSkippedEventsDueToFullBuffer;
-
-            // move all accumulated events to inFlight.
-            inFlightEvents.addAll(accumulatedEvents);
-            accumulatedEvents.clear();
-
-            jsonArray = new JSONArray();
-            for (AppEvent event : inFlightEvents) {
-                if (includeImplicitEvents || !event.getIsImplicit()) {
-                    jsonArray.put(event.getJSONObject());
-                }
+            int maxChunkLength) {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        Chunk chunk = null;
+        // The events are written straight into the JSON array that is sent, rather than being
+        // collected into a JSONArray first.
+        StringBuilder jsonArray = new StringBuilder();
+        for (AppEvent event : accumulatedEvents) {
+            if (!includeImplicitEvents && event.getIsImplicit()) {
+                continue;
             }
 
-            if (jsonArray.length() == 0) {
-                return 0;
+            int length = jsonArray.length();
+            jsonArray.append(',');
+            event.writeJSON(jsonArray);
+            if (chunk != null && jsonArray.length() + 1 > maxChunkLength) {
+                jsonArray.setLength(length);
+                chunk.jsonString = jsonArray.append(']').toString();
+                chunk = null;
+                jsonArray.setLength(0);
+                jsonArray.append(',');
+                event.writeJSON(jsonArray);
             }
+            if (chunk == null) {
+                chunk = new Chunk();
+                chunks.add(chunk);
+                jsonArray.setCharAt(0, '[');
+            }
+            chunk.events.add(event);
+        }
+        if (chunk != null) {
+            chunk.jsonString = jsonArray.append(']').toString();
         }
 
-        populateRequest(
-                request,
-                applicationContext,
-                numSkipped,
-                jsonArray,
-                limitEventUsage);
-        return jsonArray.length();
-    }
-
-    public synchronized List<AppEvent> getEventsToPersist() {
-        // We will only persist accumulated events, not ones currently in-flight. This means if
-        // an in-flight request fails, those requests will not be persisted and thus might be
-        // lost if the process terminates while the flush is in progress.
-        List<AppEvent> result = accumulatedEvents;
-        accumulatedEvents = new ArrayList<AppEvent>();
-        return result;
+        if (!chunks.isEmpty()) {
+            chunks.get(0).numSkipped = numSkippedEventsDueToFullBuffer;
+            numSkippedEventsDueToFullBuffer = 0;
+        }
+        for (Chunk inFlightChunk : chunks) {
+            numInFlightEvents += inFlightChunk.getNumEvents();
+        }
+        accumulatedEvents.clear();
+        return chunks;
     }
 
-    public synchronized void accumulatePersistedEvents(List<AppEvent> events) {
-        // We won't skip events due to a full buffer, since we already accumulated them once and
-        // persisted them. But they will count against the buffer size when further events are
-        // accumulated.
-        accumulatedEvents.addAll(events);
+    public synchronized void clearInFlight(Chunk chunk, boolean moveToAccumulated) {
+        numInFlightEvents -= chunk.getNumEvents();
+        if (moveToAccumulated) {
+            accumulatedEvents.addAll(chunk.events);
+            numSkippedEventsDueToFullBuffer += chunk.numSkipped;
+        }
     }
 
-    private void populateRequest(
+    public void populateRequest(
             GraphRequest request,
             Context applicationContext,
-            int numSkipped,
-            JSONArray events,
+            Chunk chunk,
             boolean limitEventUsage) {
         JSONObject publishParams = null;
         try {
@@ -141,38 +153,41 @@ class SessionEventsState {
                     limitEventUsage,
                     applicationContext);
 
-            if (numSkippedEventsDueToFullBuffer > 0) {
-                publishParams.put("num_skipped_events", numSkipped);
+            if (chunk.numSkipped > 0) {
+                publishParams.put("num_skipped_events", chunk.numSkipped);
             }
         } catch (JSONException e) {
             // Swallow
             publishParams = new JSONObject();
         }
-        request.setGraphObject(publishParams);
 
-        Bundle requestParameters = request.getParameters();
-        if (requestParameters == null) {
-            requestParameters = new Bundle();
+        try {
+            // Sent as a form field in the body rather than as a custom_events_file attachment: a
+            // batch without attachments has its whole body gzipped, which shrinks a chunk of
+            // events several times.  Request parameters would go in the batch entry's url.
+            publishParams.put("custom_events", chunk.jsonString);
+        } catch (JSONException e) {
+            // shouldn't happen, but just in case:
+            Utility.logd("JSON exception: ", e);
         }
+        request.setGraphObject(publishParams);
+        request.setTag(chunk.jsonString);
+    }
 
-        String jsonString = events.toString();
-        if (jsonString != null) {
-            requestParameters.putByteArray(
-                    "custom_events_file",
-                    getStringAsByteArray(jsonString));
-            request.setTag(jsonString);
-        }
-        request.setParameters(requestParameters);
+    public synchronized List<AppEvent> getEventsToPersist() {
+        // We will only persist accumulated events, not ones currently in-flight. Unless
+        // write-ahead persistence is enabled, this means if an in-flight request fails, those
+        // requests will not be persisted and thus might be lost if the process terminates while
+        // the flush is in progress.
+        List<AppEvent> result = accumulatedEvents;
+        accumulatedEvents = new ArrayList<AppEvent>();
+        return result;
     }
 
-    private byte[] getStringAsByteArray(String jsonString) {
-        byte[] jsonUtf8 = null;
-        try {
-            jsonUtf8 = jsonString.getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            // shouldn't happen, but just in case:
-            Utility.logd("Encoding exception: ", e);
-        }
-        return jsonUtf8;
+    public synchronized void accumulatePersistedEvents(List<AppEvent> events) {
+        // We won't skip events due to a full buffer, since we already accumulated them once and
+        // persisted them. But they will count against the buffer size when further events are
+        // accumulated.
+        accumulatedEvents.addAll(events);
     }
 }
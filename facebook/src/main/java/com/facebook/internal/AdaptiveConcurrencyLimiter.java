@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.internal;
+
+// Adjusts a concurrency limit from the outcome of the work it limits, additive-increase /
+// multiplicative-decrease style.  Each success while the limit is fully used raises the limit by
+// 1/limit, so that it grows by about one per limit's worth of work.  A failure, or a latency well
+// above the lowest recently seen, is taken as a sign of congestion and cuts the limit by a
+// quarter.  Only work started after the last cut can cause another one, since work that was
+// already in flight says nothing about the new limit.
+//
+// The lowest latency is kept over the last one to two windows of samples, so that it can rise
+// again after moving to a slower network.
+//
+// This class is intended to be thread-safe.
+final class AdaptiveConcurrencyLimiter {
+    static final int LATENCY_TOLERANCE = 2;
+    static final long LATENCY_SLACK_MILLIS = 50;
+    static final int LATENCY_WINDOW_SIZE = 50;
+    private static final double DECREASE_FACTOR = 0.75;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private int limit;
+    private double increaseCredit;
+    private long lastDecreaseTime = Long.MIN_VALUE;
+
+    private long windowMinLatency = Long.MAX_VALUE;
+    private long previousWindowMinLatency = Long.MAX_VALUE;
+    private int windowSampleCount;
+
+    AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Records work that succeeded.
+     * @param startTime when the work started
+     * @param latencyMillis how long the work took to get its first response
+     * @param inFlightCount how much work was running, including this one
+     * @return whether the limit changed
+     */
+    synchronized boolean onSuccess(long startTime, long latencyMillis, int inFlightCount) {
+        long baseline = Math.min(windowMinLatency, previousWindowMinLatency);
+        addLatencySample(latencyMillis);
+
+        if (baseline != Long.MAX_VALUE
+                && latencyMillis > baseline * LATENCY_TOLERANCE + LATENCY_SLACK_MILLIS) {
+            return decrease(startTime, startTime + latencyMillis);
+        }
+
+        // Don't raise a limit that isn't being used up.
+        if (inFlightCount < limit || limit >= maxLimit) {
+            return false;
+        }
+
+        increaseCredit += 1.0 / limit;
+        if (increaseCredit >= 1.0) {
+            increaseCredit = 0;
+            limit++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records work that failed in a way that suggests congestion, such as an I/O error or an
+     * overloaded server.
+     * @param startTime when the work started
+     * @param endTime when the work failed
+     * @return whether the limit changed
+     */
+    synchronized boolean onFailure(long startTime, long endTime) {
+        return decrease(startTime, endTime);
+    }
+
+    private boolean decrease(long startTime, long endTime) {
+        if (startTime < lastDecreaseTime) {
+            return false;
+        }
+
+        lastDecreaseTime = endTime;
+        increaseCredit = 0;
+        int newLimit = Math.max(minLimit, (int) (limit * DECREASE_FACTOR));
+        if (newLimit == limit) {
+            return false;
+        }
+        limit = newLimit;
+        return true;
+    }
+
+    private void addLatencySample(long latencyMillis) {
+        windowMinLatency = Math.min(windowMinLatency, latencyMillis);
+        if (++windowSampleCount >= LATENCY_WINDOW_SIZE) {
+            previousWindowMinLatency = windowMinLatency;
+            windowMinLatency = Long.MAX_VALUE;
+            windowSampleCount = 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{AdaptiveConcurrencyLimiter limit:" + limit
+                + " min:" + minLimit
+                + " max:" + maxLimit + "}";
+    }
+}
@@ -31,9 +31,17 @@ import org.json.JSONTokener;
 
 import java.io.*;
 import java.security.InvalidParameterException;
-import java.util.Date;
-import java.util.PriorityQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 // This class is intended to be thread-safe.
 //
@@ -44,10 +52,23 @@ import java.util.concurrent.atomic.AtomicLong;
 //   cache file or attempt to delete if this fails.  We do not otherwise ever attempt to delete
 //   these files.
 // - A cache file is a non-changing file that is named by the md5 hash of the cache key.  We monitor
-//   the size of these files in aggregate and remove the oldest one(s) to stay under quota.  This
-//   process does not block threads calling into this class, so theoretically we could go
-//   arbitrarily over quota but in practice this should not happen because deleting files should be
-//   much cheaper than downloading new file content.
+//   the size of these files in aggregate and remove the least recently used one(s) to stay under
+//   quota.  This process does not block threads calling into this class, so theoretically we could
+//   go arbitrarily over quota but in practice this should not happen because deleting files should
+//   be much cheaper than downloading new file content.
+//
+// The size and access order of the cache files are kept in an in-memory index, so that neither a
+// cache hit nor a trim has to touch the metadata of every file.  The index is built once, when the
+// cache is first used rather than when it is created, which may be on the main thread.  It is
+// persisted through an append-only journal file ("journal") of PUT, READ and REMOVE lines, in the
+// style of DiskLruCache.  The journal is rewritten from the index when it grows too long, and files
+// the journal doesn't know about (such as ones written before it existed) are indexed by their
+// lastModified time.
+//
+// Cache files normally live directly in the cache directory.  Limits can instead spread them
+// across a number of shard subdirectories by the hash of their name, each with its own lock,
+// index, journal and share of the limits, and trimmed on its own.  Opening a cache moves files
+// left by a different layout into place, and re-indexes them by lastModified.
 //
 // Since there can only ever be one thread accessing a particular buffer file, we do not synchronize
 // access to these. We do assume that file rename is atomic when converting a buffer file to a cache
@@ -57,7 +78,9 @@ import java.util.concurrent.atomic.AtomicLong;
 // Standard POSIX file semantics guarantee being able to continue to use a file handle even after
 // the corresponding file has been deleted.  Given this and that cache files never change other than
 // deleting in trim() or clear(),  we only have to ensure that there is at most one trim() or
-// clear() process deleting files at any given time.
+// clear() process deleting files at any given time.  The index and journal of a shard are
+// guarded by its lock, which is also held while a buffer file is renamed into the shard and while
+// trim() deletes files, so the index can't miss a file being replaced under it.
 
 /**
  * com.facebook.internal is solely for the use of other packages within the Facebook SDK for
@@ -69,27 +92,72 @@ public final class FileLruCache {
     private static final String HEADER_CACHEKEY_KEY = "key";
     private static final String HEADER_CACHE_CONTENT_TAG_KEY = "tag";
 
+    private static final String JOURNAL_FILE_NAME = "journal";
+    private static final String JOURNAL_TEMP_FILE_NAME = "journal.tmp";
+    private static final String JOURNAL_MAGIC = "FileLruCache.journal";
+    private static final String JOURNAL_VERSION = "1";
+    private static final String JOURNAL_PUT = "PUT";
+    private static final String JOURNAL_READ = "READ";
+    private static final String JOURNAL_REMOVE = "REMOVE";
+    // The journal is rewritten once it has this many more lines than there are entries.
+    private static final int JOURNAL_COMPACTION_THRESHOLD = 2048;
+
+    private static final String SHARD_DIRECTORY_PREFIX = "shard";
+
     private static final AtomicLong bufferIndex = new AtomicLong();
 
     private final String tag;
     private final Limits limits;
     private final File directory;
-    private boolean isTrimPending;
-    private boolean isTrimInProgress;
-    private final Object lock;
+    private final Shard[] shards;
     private AtomicLong lastClearCacheTime = new AtomicLong(0);
+    private final Object openLock = new Object();
+    private volatile boolean isOpen;
 
     // The value of tag should be a final String that works as a directory name.
     public FileLruCache(String tag, Limits limits) {
+        this(tag, limits, FacebookSdk.getCacheDir());
+    }
+
+    FileLruCache(String tag, Limits limits, File cacheDirectory) {
         this.tag = tag;
         this.limits = limits;
-        this.directory = new File(FacebookSdk.getCacheDir(), tag);
-        this.lock = new Object();
+        this.directory = new File(cacheDirectory, tag);
+
+        int shardCount = limits.getShardCount();
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            File shardDirectory = (shardCount == 1)
+                    ? this.directory
+                    : new File(this.directory, getShardDirectoryName(shardCount, i));
+            this.shards[i] = new Shard(
+                    shardDirectory,
+                    divideRoundingUp(limits.getByteCount(), shardCount),
+                    divideRoundingUp(limits.getFileCount(), shardCount));
+        }
+    }
 
-        // Ensure the cache dir exists
-        if (this.directory.mkdirs() || this.directory.isDirectory()) {
-            // Remove any stale partially-written files from a previous run
-            BufferFile.deleteAll(this.directory);
+    // Lists, moves and indexes the cache files the first time the cache is used.  Creating a
+    // cache doesn't touch the file system, so that it can be done on any thread.
+    private void ensureOpen() {
+        if (isOpen) {
+            return;
+        }
+        synchronized (openLock) {
+            if (isOpen) {
+                return;
+            }
+            // Ensure the cache dir exists
+            if (this.directory.mkdirs() || this.directory.isDirectory()) {
+                // Remove any stale partially-written files from a previous run
+                BufferFile.deleteAll(this.directory);
+
+                migrateLayout();
+                for (Shard shard : shards) {
+                    shard.open();
+                }
+            }
+            isOpen = true;
         }
     }
 
@@ -100,21 +168,28 @@ public final class FileLruCache {
     //
     // Also, since trim() runs asynchronously now, this blocks until any pending trim has completed.
     long sizeInBytesForTest() {
-        synchronized (lock) {
-            while (isTrimPending || isTrimInProgress) {
-                try {
-                    lock.wait();
-                } catch (InterruptedException e) {
-                    // intentional no-op
-                }
+        ensureOpen();
+        for (Shard shard : shards) {
+            shard.waitForTrim();
+        }
+
+        long total = sizeInBytes(this.directory);
+        if (shards.length > 1) {
+            for (Shard shard : shards) {
+                total += sizeInBytes(shard.directory);
             }
         }
+        return total;
+    }
 
-        File[] files = this.directory.listFiles();
+    private static long sizeInBytes(File directory) {
+        File[] files = directory.listFiles(excludeJournalFiles);
         long total = 0;
         if (files != null) {
             for (File file : files) {
-                total += file.length();
+                if (file.isFile()) {
+                    total += file.length();
+                }
             }
         }
         return total;
@@ -125,44 +200,71 @@ public final class FileLruCache {
     }
 
     public InputStream get(String key, String contentTag) throws IOException {
-        File file = new File(this.directory, Utility.md5hash(key));
+        return get(key, contentTag, false);
+    }
+
+    /**
+     * Returns the stream for the key whatever its content tag, which the stream can be asked
+     * for, or null if there is none.
+     */
+    public ContentTaggedInputStream getWithAnyContentTag(String key) throws IOException {
+        return get(key, null, true);
+    }
+
+    private ContentTaggedInputStream get(
+            String key,
+            String contentTag,
+            boolean anyContentTag) throws IOException {
+        ensureOpen();
+        String fileName = Utility.md5hash(key);
+        Shard shard = getShard(fileName);
+        File file = new File(shard.directory, fileName);
 
         FileInputStream input = null;
         try {
             input = new FileInputStream(file);
         } catch (IOException e) {
+            synchronized (shard.lock) {
+                // The file is gone, so the index shouldn't count it any more
+                shard.removeFromIndex(file.getName());
+            }
             return null;
         }
 
-        BufferedInputStream buffered =
-                new BufferedInputStream(input, Utility.DEFAULT_STREAM_BUFFER_SIZE);
+        ContentTaggedInputStream buffered = new ContentTaggedInputStream(input);
         boolean success = false;
 
         try {
-            JSONObject header = StreamHeader.readHeader(buffered);
+            StreamHeader header = StreamHeader.readHeader(buffered);
             if (header == null) {
                 return null;
             }
 
-            String foundKey = header.optString(HEADER_CACHEKEY_KEY);
+            String foundKey = header.key;
             if ((foundKey == null) || !foundKey.equals(key)) {
                 return null;
             }
 
-            String headerContentTag = header.optString(HEADER_CACHE_CONTENT_TAG_KEY, null);
+            // A file whose payload is cut short is of no use to the caller
+            if (header.payloadLength != StreamHeader.UNKNOWN_PAYLOAD_LENGTH
+                    && header.headerLength + header.payloadLength != input.getChannel().size()) {
+                Logger.log(LoggingBehavior.CACHE, TAG,
+                        "get: payload of " + file.getName() + " doesn't match its header");
+                return null;
+            }
 
-            if ((contentTag == null && headerContentTag != null) ||
-                    (contentTag != null && !contentTag.equals(headerContentTag))) {
+            String headerContentTag = header.tag;
+
+            if (!anyContentTag &&
+                    ((contentTag == null && headerContentTag != null) ||
+                    (contentTag != null && !contentTag.equals(headerContentTag)))) {
                 return null;
             }
+            buffered.contentTag = headerContentTag;
 
-            long accessTime = new Date().getTime();
-            Logger.log(
-                    LoggingBehavior.CACHE,
-                    TAG,
-                    "Setting lastModified to " + Long.valueOf(accessTime) + " for " +
-                            file.getName());
-            file.setLastModified(accessTime);
+            synchronized (shard.lock) {
+                shard.recordRead(file);
+            }
 
             success = true;
             return buffered;
@@ -178,6 +280,7 @@ public final class FileLruCache {
     }
 
     public OutputStream openPutStream(final String key, String contentTag) throws IOException {
+        ensureOpen();
         final File buffer = BufferFile.newFile(this.directory);
         buffer.delete();
         if (!buffer.createNewFile()) {
@@ -196,16 +299,21 @@ public final class FileLruCache {
             throw new IOException(e.getMessage());
         }
 
+        // Prefix the stream with the actual key, since there could be collisions
+        final byte[] header = StreamHeader.createHeader(key, contentTag);
+
         final long bufferFileCreateTime = System.currentTimeMillis();
         StreamCloseCallback renameToTargetCallback = new StreamCloseCallback() {
             @Override
-            public void onClose() {
+            public void onClose(long byteCount) {
                 // if the buffer file was created before the cache was cleared, then the buffer file
                 // should be deleted rather than renamed and saved.
                 if (bufferFileCreateTime < lastClearCacheTime.get()) {
                     buffer.delete();
-                } else {
+                } else if (StreamHeader.completeHeader(buffer, header, byteCount)) {
                     renameToTargetAndTrim(key, buffer);
+                } else {
+                    buffer.delete();
                 }
             }
         };
@@ -217,25 +325,10 @@ public final class FileLruCache {
         boolean success = false;
 
         try {
-            // Prefix the stream with the actual key, since there could be collisions
-            JSONObject header = new JSONObject();
-            header.put(HEADER_CACHEKEY_KEY, key);
-            if (!Utility.isNullOrEmpty(contentTag)) {
-                header.put(HEADER_CACHE_CONTENT_TAG_KEY, contentTag);
-            }
-
-            StreamHeader.writeHeader(buffered, header);
+            buffered.write(header);
 
             success = true;
             return buffered;
-        } catch (JSONException e) {
-            // JSON is an implementation detail of the cache, so don't let JSON exceptions out.
-            Logger.log(
-                    LoggingBehavior.CACHE,
-                    Log.WARN,
-                    TAG,
-                    "Error creating JSON header for cache file: " + e);
-            throw new IOException(e.getMessage());
         } finally {
             if (!success) {
                 buffered.close();
@@ -244,19 +337,31 @@ public final class FileLruCache {
     }
 
     public void clearCache() {
+        ensureOpen();
         // get the current directory listing of files to delete
-        final File[] filesToDelete = directory.listFiles(BufferFile.excludeBufferFiles());
+        final List<File> filesToDelete = new ArrayList<File>();
+        for (Shard shard : shards) {
+            File[] shardFiles = shard.directory.listFiles(excludeNonCacheFiles);
+            if (shardFiles != null) {
+                filesToDelete.addAll(Arrays.asList(shardFiles));
+            }
+        }
         lastClearCacheTime.set(System.currentTimeMillis());
-        if (filesToDelete != null) {
-            FacebookSdk.getExecutor().execute(new Runnable() {
-                @Override
-                public void run() {
-                    for (File file : filesToDelete) {
-                        file.delete();
-                    }
-                }
-            });
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                shard.index.clear();
+                shard.indexedByteCount = 0;
+                shard.rewriteJournal();
+            }
         }
+        FacebookSdk.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (File file : filesToDelete) {
+                    file.delete();
+                }
+            }
+        });
     }
 
     /**
@@ -268,26 +373,39 @@ public final class FileLruCache {
     }
 
     private void renameToTargetAndTrim(String key, File buffer) {
-        final File target = new File(directory, Utility.md5hash(key));
+        String fileName = Utility.md5hash(key);
+        Shard shard = getShard(fileName);
+        final File target = new File(shard.directory, fileName);
 
         // This is triggered by close().  By the time close() returns, the file should be cached, so
         // this needs to happen synchronously on this thread.
         //
-        // However, it does not need to be synchronized, since in the race we will just start an
-        // unnecessary trim operation.  Avoiding the cost of holding the lock across the file
-        // operation seems worth this cost.
-        if (!buffer.renameTo(target)) {
-            buffer.delete();
+        // The rename happens under the lock so that the index is updated along with it, and a
+        // concurrent trim can't delete the new file while evicting the one it replaces.
+        long size = buffer.length();
+        synchronized (shard.lock) {
+            if (buffer.renameTo(target)) {
+                shard.recordPut(target.getName(), size);
+            } else {
+                buffer.delete();
+            }
         }
 
-        postTrim();
+        shard.postTrim();
     }
 
     // Opens an output stream for the key, and creates an input stream wrapper to copy
     // the contents of input into the new output stream.  The effect is to store a
     // copy of input, and associate that data with key.
     public InputStream interceptAndPut(String key, InputStream input) throws IOException {
-        OutputStream output = openPutStream(key);
+        return interceptAndPut(key, null, input);
+    }
+
+    public InputStream interceptAndPut(
+            String key,
+            String contentTag,
+            InputStream input) throws IOException {
+        OutputStream output = openPutStream(key, contentTag);
         return new CopyingInputStream(input, output);
     }
 
@@ -295,61 +413,389 @@ public final class FileLruCache {
         return "{FileLruCache:" + " tag:" + this.tag + " file:" + this.directory.getName() + "}";
     }
 
-    private void postTrim() {
-        synchronized (lock) {
-            if (!isTrimPending) {
-                isTrimPending = true;
-                FacebookSdk.getExecutor().execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        trim();
+    private Shard getShard(String fileName) {
+        if (shards.length == 1) {
+            return shards[0];
+        }
+        return shards[getShardIndex(fileName, shards.length)];
+    }
+
+    private static int getShardIndex(String fileName, int shardCount) {
+        // File names are md5 hex digests, so their leading digits are evenly distributed
+        int hash = 0;
+        for (int i = 0; i < 4 && i < fileName.length(); i++) {
+            hash = (hash << 4) + Character.digit(fileName.charAt(i), 16);
+        }
+        return (hash & 0x7fffffff) % shardCount;
+    }
+
+    private static String getShardDirectoryName(int shardCount, int index) {
+        // The shard count is part of the name, so that a change of shard count is noticed
+        return SHARD_DIRECTORY_PREFIX + shardCount + "-" + index;
+    }
+
+    private static long divideRoundingUp(long dividend, long divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    // Moves the cache files of a different layout, be it the flat one or another shard count,
+    // to where they belong now.  Only the cache directory itself is listed unless there is
+    // something to move.
+    private void migrateLayout() {
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return;
+        }
+
+        boolean isSharded = shards.length > 1;
+        for (File entry : entries) {
+            String name = entry.getName();
+            if (name.startsWith(SHARD_DIRECTORY_PREFIX)) {
+                if (isSharded && isCurrentShardDirectory(name)) {
+                    continue;
+                }
+                Logger.log(LoggingBehavior.CACHE, TAG, "migrating " + name);
+                File[] files = entry.listFiles(excludeNonCacheFiles);
+                if (files != null) {
+                    for (File file : files) {
+                        moveToShard(file);
                     }
-                });
+                }
+                Utility.deleteDirectory(entry);
+            } else if (isSharded && excludeNonCacheFiles.accept(directory, name)) {
+                moveToShard(entry);
             }
         }
+
+        if (isSharded) {
+            // The flat layout's journal, if any; the moved files are indexed by lastModified
+            new File(directory, JOURNAL_FILE_NAME).delete();
+        }
     }
 
-    private void trim() {
-        synchronized (lock) {
-            isTrimPending = false;
-            isTrimInProgress = true;
+    private boolean isCurrentShardDirectory(String name) {
+        for (int i = 0; i < shards.length; i++) {
+            if (name.equals(getShardDirectoryName(shards.length, i))) {
+                return true;
+            }
         }
-        try {
-            Logger.log(LoggingBehavior.CACHE, TAG, "trim started");
-            PriorityQueue<ModifiedFile> heap = new PriorityQueue<ModifiedFile>();
-            long size = 0;
-            long count = 0;
-            File[] filesToTrim =this.directory.listFiles(BufferFile.excludeBufferFiles());
-            if (filesToTrim != null) {
-                for (File file : filesToTrim) {
-                    ModifiedFile modified = new ModifiedFile(file);
-                    heap.add(modified);
-                    Logger.log(
-                            LoggingBehavior.CACHE,
-                            TAG,
-                            "  trim considering time=" + Long.valueOf(modified.getModified()) +
-                                    " name=" + modified.getFile().getName());
+        return false;
+    }
 
-                    size += file.length();
-                    count++;
+    private void moveToShard(File file) {
+        File shardDirectory = getShard(file.getName()).directory;
+        shardDirectory.mkdirs();
+        if (!file.renameTo(new File(shardDirectory, file.getName()))) {
+            file.delete();
+        }
+    }
+
+    // A directory of cache files with its own lock, index, journal and trim.  The flat layout is a
+    // single shard in the cache directory itself.
+    private final class Shard {
+        final File directory;
+        final File journalFile;
+        final Object lock = new Object();
+        private final long byteLimit;
+        private final long fileLimit;
+        private boolean isTrimPending;
+        private boolean isTrimInProgress;
+
+        // Cache file name to size, least recently used first.  Guarded by lock, as is the journal.
+        final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(
+                16, 0.75f, true);
+        long indexedByteCount;
+        private final StringBuilder pendingJournal = new StringBuilder();
+        private boolean hasPendingJournalReads;
+        private int journalLineCount;
+
+        Shard(File directory, long byteLimit, long fileLimit) {
+            this.directory = directory;
+            this.journalFile = new File(directory, JOURNAL_FILE_NAME);
+            this.byteLimit = byteLimit;
+            this.fileLimit = fileLimit;
+        }
+
+        void open() {
+            if (this.directory.mkdirs() || this.directory.isDirectory()) {
+                synchronized (lock) {
+                    buildIndex();
                 }
             }
+        }
 
-            while ((size > limits.getByteCount()) || (count > limits.getFileCount())) {
-                File file = heap.remove().getFile();
-                Logger.log(LoggingBehavior.CACHE, TAG, "  trim removing " + file.getName());
-                size -= file.length();
-                count--;
-                file.delete();
+        void waitForTrim() {
+            synchronized (lock) {
+                while (isTrimPending || isTrimInProgress) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // intentional no-op
+                    }
+                }
             }
-        } finally {
+        }
+
+        private void postTrim() {
+            synchronized (lock) {
+                if (!isTrimPending) {
+                    isTrimPending = true;
+                    FacebookSdk.getExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            trim();
+                        }
+                    });
+                }
+            }
+        }
+
+        private void trim() {
             synchronized (lock) {
-                isTrimInProgress = false;
-                lock.notifyAll();
+                isTrimPending = false;
+                isTrimInProgress = true;
+            }
+            try {
+                Logger.log(LoggingBehavior.CACHE, TAG, "trim started");
+                synchronized (lock) {
+                    // Only the files being evicted are touched, least recently used first.
+                    Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+                    while (iterator.hasNext() && ((indexedByteCount > byteLimit)
+                            || (index.size() > fileLimit))) {
+                        Map.Entry<String, Long> entry = iterator.next();
+                        Logger.log(LoggingBehavior.CACHE, TAG, "  trim removing " + entry.getKey());
+                        iterator.remove();
+                        indexedByteCount -= entry.getValue();
+                        appendToJournal(JOURNAL_REMOVE, entry.getKey(), null);
+                        new File(directory, entry.getKey()).delete();
+                    }
+
+                    if (journalLineCount > index.size() + JOURNAL_COMPACTION_THRESHOLD) {
+                        rewriteJournal();
+                    } else {
+                        flushJournal();
+                    }
+                }
+            } finally {
+                synchronized (lock) {
+                    isTrimInProgress = false;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        // Only call with lock held
+        private void buildIndex() {
+            Set<String> cacheFileNames = new HashSet<String>();
+            File[] cacheFiles = directory.listFiles(excludeNonCacheFiles);
+            if (cacheFiles != null) {
+                for (File file : cacheFiles) {
+                    cacheFileNames.add(file.getName());
+                }
+            }
+
+            LinkedHashMap<String, Long> journaled = readJournal();
+            if (journaled == null) {
+                journaled = new LinkedHashMap<String, Long>();
+            }
+
+            // Files the journal doesn't know about are the least recently used, in lastModified
+            // order; they can only have been written before the journal was.
+            List<ModifiedFile> unjournaled = new ArrayList<ModifiedFile>();
+            if (cacheFiles != null) {
+                for (File file : cacheFiles) {
+                    if (!journaled.containsKey(file.getName())) {
+                        unjournaled.add(new ModifiedFile(file));
+                    }
+                }
+            }
+            ModifiedFile[] sorted = unjournaled.toArray(new ModifiedFile[unjournaled.size()]);
+            Arrays.sort(sorted);
+
+            index.clear();
+            indexedByteCount = 0;
+            for (ModifiedFile modified : sorted) {
+                addToIndex(modified.getFile().getName(), modified.getFile().length());
+            }
+            for (Map.Entry<String, Long> entry : journaled.entrySet()) {
+                if (cacheFileNames.contains(entry.getKey())) {
+                    addToIndex(entry.getKey(), entry.getValue());
+                }
+            }
+
+            rewriteJournal();
+        }
+
+        // Replays the journal, returning cache file name to size in access order, or null if there
+        // is no readable journal.  A torn or malformed line ends the replay.
+        private LinkedHashMap<String, Long> readJournal() {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(journalFile), "UTF-8"));
+                if (!JOURNAL_MAGIC.equals(reader.readLine())
+                        || !JOURNAL_VERSION.equals(reader.readLine())) {
+                    return null;
+                }
+
+                LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(
+                        16, 0.75f, true);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    if (parts.length == 3 && JOURNAL_PUT.equals(parts[0])) {
+                        entries.remove(parts[1]);
+                        entries.put(parts[1], Long.parseLong(parts[2]));
+                    } else if (parts.length == 2 && JOURNAL_READ.equals(parts[0])) {
+                        entries.get(parts[1]);
+                    } else if (parts.length == 2 && JOURNAL_REMOVE.equals(parts[0])) {
+                        entries.remove(parts[1]);
+                    } else {
+                        break;
+                    }
+                }
+                return entries;
+            } catch (NumberFormatException e) {
+                return null;
+            } catch (IOException e) {
+                return null;
+            } finally {
+                Utility.closeQuietly(reader);
+            }
+        }
+
+        // Only call with lock held
+        private void recordPut(String name, long size) {
+            removeFromIndex(name, false);
+            addToIndex(name, size);
+            appendToJournal(JOURNAL_PUT, name, size);
+            flushJournal();
+        }
+
+        // Only call with lock held
+        private void recordRead(File file) {
+            if (index.get(file.getName()) == null) {
+                recordPut(file.getName(), file.length());
+                return;
+            }
+
+            appendToJournal(JOURNAL_READ, file.getName(), null);
+            if (!hasPendingJournalReads) {
+                hasPendingJournalReads = true;
+                // Written out in the background by the trim, along with any reads until then
+                postTrim();
+            }
+        }
+
+        // Only call with lock held
+        private void removeFromIndex(String name) {
+            removeFromIndex(name, true);
+        }
+
+        // Only call with lock held
+        private void removeFromIndex(String name, boolean journal) {
+            Long size = index.remove(name);
+            if (size != null) {
+                indexedByteCount -= size;
+                if (journal) {
+                    appendToJournal(JOURNAL_REMOVE, name, null);
+                    flushJournal();
+                }
+            }
+        }
+
+        // Only call with lock held
+        private void addToIndex(String name, long size) {
+            index.put(name, size);
+            indexedByteCount += size;
+        }
+
+        // Only call with lock held
+        private void appendToJournal(String operation, String name, Long size) {
+            pendingJournal.append(operation).append(' ').append(name);
+            if (size != null) {
+                pendingJournal.append(' ').append(size.longValue());
+            }
+            pendingJournal.append('\n');
+            journalLineCount++;
+        }
+
+        // Only call with lock held
+        private void flushJournal() {
+            if (pendingJournal.length() == 0) {
+                return;
+            }
+
+            FileOutputStream output = null;
+            try {
+                output = new FileOutputStream(journalFile, true);
+                output.write(pendingJournal.toString().getBytes("UTF-8"));
+            } catch (IOException e) {
+                Logger.log(
+                        LoggingBehavior.CACHE,
+                        Log.WARN,
+                        TAG,
+                        "Error appending to cache journal: " + e);
+            } finally {
+                Utility.closeQuietly(output);
+                pendingJournal.setLength(0);
+                hasPendingJournalReads = false;
+            }
+        }
+
+        // Replaces the journal with one PUT line per entry, in access order.
+        // Only call with lock held
+        private void rewriteJournal() {
+            pendingJournal.setLength(0);
+            hasPendingJournalReads = false;
+
+            StringBuilder journal = new StringBuilder();
+            journal.append(JOURNAL_MAGIC).append('\n').append(JOURNAL_VERSION).append('\n');
+            for (Map.Entry<String, Long> entry : index.entrySet()) {
+                journal.append(JOURNAL_PUT).append(' ').append(entry.getKey()).append(' ')
+                        .append(entry.getValue().longValue()).append('\n');
+            }
+
+            File tempFile = new File(directory, JOURNAL_TEMP_FILE_NAME);
+            FileOutputStream output = null;
+            try {
+                output = new FileOutputStream(tempFile);
+                output.write(journal.toString().getBytes("UTF-8"));
+                output.close();
+                output = null;
+                if (!tempFile.renameTo(journalFile)) {
+                    throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+                }
+                journalLineCount = index.size();
+            } catch (IOException e) {
+                Logger.log(
+                        LoggingBehavior.CACHE,
+                        Log.WARN,
+                        TAG,
+                        "Error writing cache journal: " + e);
+                tempFile.delete();
+            } finally {
+                Utility.closeQuietly(output);
             }
         }
     }
 
+    private static final FilenameFilter excludeJournalFiles = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String filename) {
+            return !filename.startsWith(JOURNAL_FILE_NAME);
+        }
+    };
+
+    private static final FilenameFilter excludeNonCacheFiles = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String filename) {
+            return BufferFile.excludeBufferFiles().accept(dir, filename)
+                    && excludeJournalFiles.accept(dir, filename)
+                    && !filename.startsWith(SHARD_DIRECTORY_PREFIX);
+        }
+    };
+
     private static class BufferFile {
         private static final String FILE_NAME_PREFIX = "buffer";
         private static final FilenameFilter filterExcludeBufferFiles = new FilenameFilter() {
@@ -388,38 +834,159 @@ public final class FileLruCache {
         }
     }
 
-    // Treats the first part of a stream as a header, reads/writes it as a JSON blob, and
-    // leaves the stream positioned exactly after the header.
+    // Treats the first part of a stream as a header that records the key and content tag of the
+    // cache file, and leaves the stream positioned exactly after the header.
     //
-    // The format is as follows:
+    // Version 1 is binary, so that reading it is only a few comparisons:
     //     byte: meaning
     // ---------------------------------
+    //      0-3: magic number; its first byte can't be a version 0 version number
+    //        4: version number
+    //      5-8: big-endian UTF-8 key size, followed by the key
+    //        4: big-endian UTF-8 content tag size (-1 if there is no tag), followed by the tag
+    //        8: big-endian size of the stream data, filled in once the stream is closed
+    //        4: big-endian CRC32 of the header bytes before it
+    //      ...: stream data
+    //
+    // Version 0 files, which are still read until they are evicted, are a JSON blob instead:
     //        0: version number
     //      1-3: big-endian JSON header blob size
     // 4-size+4: UTF-8 JSON header blob
     //      ...: stream data
     private static final class StreamHeader {
-        private static final int HEADER_VERSION = 0;
+        private static final int JSON_HEADER_VERSION = 0;
+        private static final int HEADER_VERSION = 1;
+        private static final byte[] HEADER_MAGIC = {(byte) 0xFB, 'L', 'R', 'U'};
+        private static final int MAX_STRING_SIZE = 1024 * 1024;
+        private static final int NO_TAG = -1;
+        // Size of everything after the key and content tag
+        private static final int TRAILER_SIZE = 8 + 4;
+
+        static final long UNKNOWN_PAYLOAD_LENGTH = -1;
+
+        final String key;
+        final String tag;
+        final long headerLength;
+        final long payloadLength;
+
+        private StreamHeader(String key, String tag, long headerLength, long payloadLength) {
+            this.key = key;
+            this.tag = tag;
+            this.headerLength = headerLength;
+            this.payloadLength = payloadLength;
+        }
 
-        static void writeHeader(OutputStream stream, JSONObject header) throws IOException {
-            String headerString = header.toString();
-            byte[] headerBytes = headerString.getBytes();
+        // Returns the header to write ahead of the stream data, which completeHeader fills in.
+        static byte[] createHeader(String key, String contentTag) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.write(HEADER_MAGIC);
+            header.writeByte(HEADER_VERSION);
+            byte[] keyBytes = key.getBytes("UTF-8");
+            header.writeInt(keyBytes.length);
+            header.write(keyBytes);
+            if (Utility.isNullOrEmpty(contentTag)) {
+                header.writeInt(NO_TAG);
+            } else {
+                byte[] tagBytes = contentTag.getBytes("UTF-8");
+                header.writeInt(tagBytes.length);
+                header.write(tagBytes);
+            }
+            header.writeLong(UNKNOWN_PAYLOAD_LENGTH);
+            header.writeInt(0);
+            return bytes.toByteArray();
+        }
 
-            // Write version number and big-endian header size
-            stream.write(HEADER_VERSION);
-            stream.write((headerBytes.length >> 16) & 0xff);
-            stream.write((headerBytes.length >> 8) & 0xff);
-            stream.write((headerBytes.length >> 0) & 0xff);
+        // Writes the size of the stream data, and the checksum, into the header of a closed buffer
+        // file that byteCount bytes were written to.
+        static boolean completeHeader(File buffer, byte[] header, long byteCount) {
+            if (byteCount < header.length) {
+                return false;
+            }
 
-            stream.write(headerBytes);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(TRAILER_SIZE);
+            DataOutputStream trailer = new DataOutputStream(bytes);
+            RandomAccessFile file = null;
+            try {
+                trailer.writeLong(byteCount - header.length);
+                CRC32 crc = new CRC32();
+                crc.update(header, 0, header.length - TRAILER_SIZE);
+                crc.update(bytes.toByteArray());
+                trailer.writeInt((int) crc.getValue());
+
+                file = new RandomAccessFile(buffer, "rw");
+                file.seek(header.length - TRAILER_SIZE);
+                file.write(bytes.toByteArray());
+                return true;
+            } catch (IOException e) {
+                Logger.log(
+                        LoggingBehavior.CACHE,
+                        Log.WARN,
+                        TAG,
+                        "Error completing header for cache file: " + e);
+                return false;
+            } finally {
+                Utility.closeQuietly(file);
+            }
         }
 
-        static JSONObject readHeader(InputStream stream) throws IOException {
+        static StreamHeader readHeader(InputStream stream) throws IOException {
             int version = stream.read();
-            if (version != HEADER_VERSION) {
+            if (version == JSON_HEADER_VERSION) {
+                return readJSONHeader(stream);
+            } else if (version != (HEADER_MAGIC[0] & 0xff)) {
+                return null;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(version);
+            DataInputStream header = new DataInputStream(new CheckedInputStream(stream, crc));
+            try {
+                for (int i = 1; i < HEADER_MAGIC.length; i++) {
+                    if (header.readByte() != HEADER_MAGIC[i]) {
+                        return null;
+                    }
+                }
+                if (header.readByte() != HEADER_VERSION) {
+                    return null;
+                }
+
+                byte[] keyBytes = readBytes(header);
+                byte[] tagBytes = readBytes(header);
+                long payloadLength = header.readLong();
+                int expectedCrc = (int) crc.getValue();
+                // Read past the checksum without adding it to the checksum
+                int checksum = new DataInputStream(stream).readInt();
+                if (keyBytes == null || checksum != expectedCrc) {
+                    Logger.log(LoggingBehavior.CACHE, TAG, "readHeader: header is corrupt");
+                    return null;
+                }
+
+                long headerLength = HEADER_MAGIC.length + 1 + 4 + keyBytes.length + 4
+                        + (tagBytes == null ? 0 : tagBytes.length) + TRAILER_SIZE;
+                return new StreamHeader(
+                        new String(keyBytes, "UTF-8"),
+                        tagBytes == null ? null : new String(tagBytes, "UTF-8"),
+                        headerLength,
+                        payloadLength);
+            } catch (EOFException e) {
+                Logger.log(LoggingBehavior.CACHE, TAG, "readHeader: header is truncated");
+                return null;
+            }
+        }
+
+        // Returns null for a missing tag, or a size that can only come from a corrupt header
+        private static byte[] readBytes(DataInputStream stream) throws IOException {
+            int size = stream.readInt();
+            if (size < 0 || size > MAX_STRING_SIZE) {
                 return null;
             }
+            byte[] bytes = new byte[size];
+            stream.readFully(bytes);
+            return bytes;
+        }
 
+        private static StreamHeader readJSONHeader(InputStream stream) throws IOException {
             int headerSize = 0;
             for (int i = 0; i < 3; i++) {
                 int b = stream.read();
@@ -465,13 +1032,33 @@ public final class FileLruCache {
                 throw new IOException(e.getMessage());
             }
 
-            return header;
+            return new StreamHeader(
+                    header.optString(HEADER_CACHEKEY_KEY),
+                    header.optString(HEADER_CACHE_CONTENT_TAG_KEY, null),
+                    4 + headerSize,
+                    UNKNOWN_PAYLOAD_LENGTH);
+        }
+    }
+
+    /**
+     * A cached stream, which knows the content tag it was stored with.
+     */
+    public static final class ContentTaggedInputStream extends BufferedInputStream {
+        private String contentTag;
+
+        ContentTaggedInputStream(InputStream input) {
+            super(input, Utility.DEFAULT_STREAM_BUFFER_SIZE);
+        }
+
+        public String getContentTag() {
+            return contentTag;
         }
     }
 
     private static class CloseCallbackOutputStream extends OutputStream {
         final OutputStream innerStream;
         final StreamCloseCallback callback;
+        private long byteCount;
 
         CloseCallbackOutputStream(OutputStream innerStream, StreamCloseCallback callback) {
             this.innerStream = innerStream;
@@ -483,7 +1070,7 @@ public final class FileLruCache {
             try {
                 this.innerStream.close();
             } finally {
-                this.callback.onClose();
+                this.callback.onClose(byteCount);
             }
         }
 
@@ -495,16 +1082,19 @@ public final class FileLruCache {
         @Override
         public void write(byte[] buffer, int offset, int count) throws IOException {
             this.innerStream.write(buffer, offset, count);
+            byteCount += count;
         }
 
         @Override
         public void write(byte[] buffer) throws IOException {
             this.innerStream.write(buffer);
+            byteCount += buffer.length;
         }
 
         @Override
         public void write(int oneByte) throws IOException {
             this.innerStream.write(oneByte);
+            byteCount++;
         }
     }
 
@@ -598,6 +1188,7 @@ public final class FileLruCache {
     public static final class Limits {
         private int byteCount;
         private int fileCount;
+        private int shardCount;
 
         public Limits() {
             // A Samsung Galaxy Nexus can create 1k files in half a second.  By the time
@@ -609,32 +1200,83 @@ public final class FileLruCache {
             // the first 2 characters is slower across the board.
             this.fileCount = 1024;
             this.byteCount = 1024 * 1024;
+            // With more than one shard, the files are spread across that many subdirectories,
+            // each trimmed to its share of the limits on its own.  That keeps each directory
+            // small enough for fileCount to go well past 1k.
+            this.shardCount = 1;
         }
 
-        int getByteCount() {
+        /**
+         * Returns the limit on the total size of the cached files.
+         *
+         * @return the byte count limit
+         */
+        public int getByteCount() {
             return byteCount;
         }
 
-        int getFileCount() {
+        /**
+         * Returns the limit on the number of cached files.
+         *
+         * @return the file count limit
+         */
+        public int getFileCount() {
             return fileCount;
         }
 
-        void setByteCount(int n) {
+        /**
+         * Sets the limit on the total size of the cached files. The default is 1MB.
+         *
+         * @param n the byte count limit; must be >= 0
+         */
+        public void setByteCount(int n) {
             if (n < 0) {
                 throw new InvalidParameterException("Cache byte-count limit must be >= 0");
             }
             byteCount = n;
         }
 
-        void setFileCount(int n) {
+        /**
+         * Sets the limit on the number of cached files. The default is 1024; going much past
+         * that calls for more than one shard.
+         *
+         * @param n the file count limit; must be >= 0
+         */
+        public void setFileCount(int n) {
             if (n < 0) {
                 throw new InvalidParameterException("Cache file count limit must be >= 0");
             }
             fileCount = n;
         }
+
+        /**
+         * Returns the number of shard directories the files are spread across.
+         *
+         * @return the shard count
+         */
+        public int getShardCount() {
+            return shardCount;
+        }
+
+        /**
+         * Sets the number of shard directories the files are spread across, by the hash of
+         * their key. Each shard has its own lock and is trimmed to its share of the limits on
+         * its own. The default of 1 keeps every file in the cache directory itself.
+         * <p/>
+         * The shard count can be changed between runs: opening the cache moves the files of the
+         * previous layout into place.
+         *
+         * @param n the shard count; must be >= 1
+         */
+        public void setShardCount(int n) {
+            if (n < 1) {
+                throw new InvalidParameterException("Cache shard count must be >= 1");
+            }
+            shardCount = n;
+        }
     }
 
-    // Caches the result of lastModified during sort/heap operations
+    // Caches the result of lastModified while sorting files the journal doesn't know about
     private final static class ModifiedFile implements Comparable<ModifiedFile> {
         private static final int HASH_SEED = 29; // Some random prime number
         private static final int HASH_MULTIPLIER = 37; // Some random prime number
@@ -685,6 +1327,6 @@ public final class FileLruCache {
     }
 
     private interface StreamCloseCallback {
-        void onClose();
+        void onClose(long byteCount);
     }
 }
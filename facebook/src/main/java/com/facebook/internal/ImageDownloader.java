@@ -24,11 +24,23 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.facebook.AccessToken;
 import com.facebook.FacebookException;
+import com.facebook.GraphRequest;
+import com.facebook.GraphResponse;
+import com.facebook.HttpMethod;
 import com.facebook.R;
 
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -36,8 +48,13 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * com.facebook.internal is solely for the use of other packages within the
@@ -45,17 +62,56 @@ import java.util.Map;
  * unsupported, and they may be modified or removed without warning at any time.
  */
 public class ImageDownloader {
-    private static final int DOWNLOAD_QUEUE_MAX_CONCURRENT = WorkQueue.DEFAULT_MAX_CONCURRENT;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final String DECODE_OPTIONS_FRAGMENT_PREFIX = "fb_decode=";
+    private static final String DECODE_OPTIONS_FRAGMENT_SEPARATOR = ";";
+    private static final String GRAPH_HOST = "graph.facebook.com";
+    private static final int PREFETCH_LOOKUP_BATCH_SIZE = 50;
+    // The download concurrency starts here and adapts to how downloads go, between one and the
+    // most the executor can run at once.  Downloads take turns between hosts, and no host gets
+    // more connections than HttpURLConnection keeps alive.
+    private static final int DOWNLOAD_QUEUE_INITIAL_CONCURRENT = WorkQueue.DEFAULT_MAX_CONCURRENT;
+    private static final int DOWNLOAD_QUEUE_MIN_CONCURRENT = 1;
+    private static final int DOWNLOAD_QUEUE_MAX_CONCURRENT = Math.max(
+            WorkQueue.DEFAULT_MAX_CONCURRENT,
+            2 * Runtime.getRuntime().availableProcessors() + 1);
+    private static final int DOWNLOAD_QUEUE_MAX_CONCURRENT_PER_HOST = 5;
     private static final int CACHE_READ_QUEUE_MAX_CONCURRENT = 2;
     private static Handler handler;
-    private static WorkQueue downloadQueue = new WorkQueue(DOWNLOAD_QUEUE_MAX_CONCURRENT);
+    private static final AdaptiveConcurrencyLimiter downloadLimiter =
+            new AdaptiveConcurrencyLimiter(
+                    DOWNLOAD_QUEUE_INITIAL_CONCURRENT,
+                    DOWNLOAD_QUEUE_MIN_CONCURRENT,
+                    DOWNLOAD_QUEUE_MAX_CONCURRENT);
+    private static WorkQueue downloadQueue = new WorkQueue(DOWNLOAD_QUEUE_INITIAL_CONCURRENT);
     private static WorkQueue cacheReadQueue = new WorkQueue(CACHE_READ_QUEUE_MAX_CONCURRENT);
+    private static final ImageMemoryCache memoryCache =
+            new ImageMemoryCache(new ImageMemoryCache.Limits());
+    private static boolean isMemoryCacheRegistered;
 
+    static {
+        downloadQueue.setMaxConcurrentPerTag(Math.min(
+                DOWNLOAD_QUEUE_INITIAL_CONCURRENT,
+                DOWNLOAD_QUEUE_MAX_CONCURRENT_PER_HOST));
+    }
+
+    // Requests are tracked per caller, by uri and caller tag, so that each caller can cancel or
+    // prioritize its own.  Callers asking for the same image with the same decode options share
+    // one load, which reads the cache, downloads and decodes once and hands the bitmap to all of
+    // them, unless they gave different bitmaps to decode into.  A load is cancelled when its
+    // last caller is.  Both maps are guarded by pendingRequests.
     private static final Map<RequestKey, DownloaderContext> pendingRequests = new HashMap<RequestKey, DownloaderContext>();
+    private static final Map<LoadKey, LoadContext> pendingLoads =
+            new HashMap<LoadKey, LoadContext>();
+    // Stale cached images being revalidated, so that each is only revalidated once at a time.
+    // Guarded by pendingRequests.
+    private static final Set<Uri> pendingRevalidations = new HashSet<Uri>();
 
     /**
      * Downloads the image specified in the passed in request.
-     * If a callback is specified, it is guaranteed to be invoked on the calling thread.
+     * If a callback is specified, it is guaranteed to be invoked on the UI thread. When the image
+     * is already decoded in memory and this is called on the UI thread, the callback is invoked
+     * before this method returns.
      * @param request Request to process
      */
     public static void downloadAsync(ImageRequest request) {
@@ -70,16 +126,36 @@ public class ImageDownloader {
         // requests object reference. So we keep the old references and just map them to new urls in
         // the downloader.
         RequestKey key = new RequestKey(request.getImageUri(), request.getCallerTag());
+        ImageMemoryCache.CacheHit memoryHit = null;
         synchronized (pendingRequests) {
             DownloaderContext downloaderContext = pendingRequests.get(key);
             if (downloaderContext != null) {
-                downloaderContext.request = request;
-                downloaderContext.isCancelled = false;
-                downloaderContext.workItem.moveToFront();
-            } else {
-                enqueueCacheRead(request, key, request.isCachedRedirectAllowed());
+                if (downloaderContext.load.key.equals(new LoadKey(request))) {
+                    downloaderContext.request = request;
+                    downloaderContext.load.workItem.moveToFront();
+                } else {
+                    // Asked again with other decode options, so it needs a different load
+                    detachFromLoad(downloaderContext);
+                    downloaderContext = null;
+                }
+            }
+
+            if (downloaderContext == null) {
+                memoryHit = memoryCache.getCacheHit(
+                        getMemoryCacheUri(request.getImageUri(), request),
+                        request.isCachedRedirectAllowed());
+                if (memoryHit == null) {
+                    attachToLoad(key, request);
+                }
             }
         }
+
+        if (memoryHit != null) {
+            // Already decoded, so there is no need to go through the cacheReadQueue at all.
+            issueResponse(request, null, memoryHit.bitmap, memoryHit.isRedirect);
+        } else {
+            registerMemoryCacheCallbacks(request.getContext());
+        }
     }
 
     public static boolean cancelRequest(ImageRequest request) {
@@ -89,18 +165,10 @@ public class ImageDownloader {
             DownloaderContext downloaderContext = pendingRequests.get(key);
             if (downloaderContext != null) {
                 // If we were able to find the request in our list of pending requests, then we will
-                // definitely be able to prevent an ImageResponse from being issued. This is
-                // regardless of whether a cache-read or network-download is underway for this
-                // request.
+                // definitely be able to prevent an ImageResponse from being issued to it. This is
+                // regardless of whether a cache-read or network-download is underway for its load.
                 cancelled = true;
-
-                if (downloaderContext.workItem.cancel()) {
-                    pendingRequests.remove(key);
-                } else {
-                    // May be attempting a cache-read right now. So keep track of the cancellation
-                    // to prevent network calls etc
-                    downloaderContext.isCancelled = true;
-                }
+                detachFromLoad(downloaderContext);
             }
         }
 
@@ -112,92 +180,219 @@ public class ImageDownloader {
         synchronized (pendingRequests) {
             DownloaderContext downloaderContext = pendingRequests.get(key);
             if (downloaderContext != null) {
-                downloaderContext.workItem.moveToFront();
+                // Raising the priority keeps the request ahead of requests added later, which
+                // otherwise go to the front of the queue.
+                downloaderContext.load.priority = WorkQueue.PRIORITY_HIGH;
+                downloaderContext.load.workItem.setPriority(WorkQueue.PRIORITY_HIGH);
             }
         }
     }
 
+    /**
+     * Fetches the profile pictures of the given profiles, at the given size, into the disk
+     * cache without decoding them, so that requests for them later load without the network.
+     * Prefetching runs at low priority, behind regular requests. The picture urls are looked up
+     * through the Graph API in batches, falling back to following each picture's redirect.
+     * @param context the Context to use
+     * @param profileIds the profiles to prefetch pictures of
+     * @param width the width of the pictures, as for ImageRequest.getProfilePictureUri
+     * @param height the height of the pictures, as for ImageRequest.getProfilePictureUri
+     * @return a Prefetch that can be cancelled, such as when the profiles scroll away
+     */
+    public static Prefetch prefetchProfilePictures(
+            Context context,
+            List<String> profileIds,
+            int width,
+            int height) {
+        Validate.notNull(profileIds, "profileIds");
+        Prefetch prefetch = new Prefetch(context, width, height);
+        List<String> batch = new ArrayList<String>();
+        for (String profileId : profileIds) {
+            if (Utility.isNullOrEmpty(profileId)) {
+                continue;
+            }
+            batch.add(profileId);
+            if (batch.size() == PREFETCH_LOOKUP_BATCH_SIZE) {
+                prefetch.enqueue(new PrefetchLookupWorkItem(prefetch, batch), GRAPH_HOST);
+                batch = new ArrayList<String>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            prefetch.enqueue(new PrefetchLookupWorkItem(prefetch, batch), GRAPH_HOST);
+        }
+
+        registerMemoryCacheCallbacks(context);
+        return prefetch;
+    }
+
     public static void clearCache(Context context) {
+        memoryCache.clearCache();
         ImageResponseCache.clearCache(context);
         UrlRedirectCache.clearCache();
     }
 
-    private static void enqueueCacheRead(
-            ImageRequest request,
-            RequestKey key,
-            boolean allowCachedRedirects) {
-        enqueueRequest(
-                request,
-                key,
-                cacheReadQueue,
-                new CacheReadWorkItem(request.getContext(), key, allowCachedRedirects));
+    /**
+     * Returns the in-memory cache of decoded bitmaps that sits in front of the disk cache. Its
+     * limits may be changed and its stats read at any time.
+     * @return the in-memory bitmap cache
+     */
+    public static ImageMemoryCache getMemoryCache() {
+        return memoryCache;
     }
 
-    private static void enqueueDownload(ImageRequest request, RequestKey key) {
-        enqueueRequest(
-                request,
-                key,
-                downloadQueue,
-                new DownloadImageWorkItem(request.getContext(), key));
+    private static void registerMemoryCacheCallbacks(Context context) {
+        if (context == null) {
+            return;
+        }
+
+        synchronized (memoryCache) {
+            if (!isMemoryCacheRegistered) {
+                context.getApplicationContext().registerComponentCallbacks(memoryCache);
+                isMemoryCacheRegistered = true;
+            }
+        }
     }
 
-    private static void enqueueRequest(
-            ImageRequest request,
-            RequestKey key,
-            WorkQueue workQueue,
-            Runnable workItem) {
+    // Must be called with pendingRequests held
+    private static void attachToLoad(RequestKey key, ImageRequest request) {
+        LoadKey loadKey = new LoadKey(request);
+        LoadContext load = pendingLoads.get(loadKey);
+        if (load == null) {
+            load = new LoadContext(loadKey, request);
+            pendingLoads.put(loadKey, load);
+            enqueueCacheRead(load);
+        } else {
+            // The load may be running with all of its earlier callers gone
+            load.isCancelled = false;
+            load.workItem.moveToFront();
+        }
+
+        DownloaderContext downloaderContext = new DownloaderContext(key, request, load);
+        load.callers.add(downloaderContext);
+        pendingRequests.put(key, downloaderContext);
+    }
+
+    // Must be called with pendingRequests held
+    private static void detachFromLoad(DownloaderContext downloaderContext) {
+        pendingRequests.remove(downloaderContext.key);
+        LoadContext load = downloaderContext.load;
+        load.callers.remove(downloaderContext);
+        if (load.callers.isEmpty()) {
+            if (load.workItem.cancel()) {
+                removePendingLoad(load);
+            } else {
+                // May be attempting a cache-read right now. So keep track of the cancellation
+                // to prevent network calls etc
+                load.isCancelled = true;
+            }
+        }
+    }
+
+    // Must be called with pendingRequests held
+    private static void removePendingLoad(LoadContext load) {
+        if (pendingLoads.get(load.key) == load) {
+            pendingLoads.remove(load.key);
+        }
+    }
+
+    // Must be called with pendingRequests held.  The WorkItem is created with the lock held, so
+    // that the work can't look at the load before it is ready, and so that calls to
+    // cancelRequest or prioritizeRequest find a workItem on it.
+    private static void enqueueCacheRead(LoadContext load) {
+        load.workItem = cacheReadQueue.addActiveWorkItem(
+                new CacheReadWorkItem(load),
+                true,
+                load.priority,
+                null,
+                WorkQueue.NO_TIMEOUT,
+                null);
+    }
+
+    // Must be called with pendingRequests held
+    private static void enqueueDownload(LoadContext load) {
+        load.workItem = downloadQueue.addActiveWorkItem(
+                new DownloadImageWorkItem(load),
+                true,
+                load.priority,
+                load.uri.getHost(),
+                WorkQueue.NO_TIMEOUT,
+                null);
+    }
+
+    // Continues a load that found no image with the given work, unless it was cancelled
+    private static void continueLoad(LoadContext load, boolean download) {
+        synchronized (pendingRequests) {
+            if (load.isCancelled) {
+                removePendingLoad(load);
+            } else if (download) {
+                enqueueDownload(load);
+            } else {
+                enqueueCacheRead(load);
+            }
+        }
+    }
+
+    private static void completeLoad(
+            LoadContext load,
+            Uri bitmapUri,
+            Exception error,
+            Bitmap bitmap,
+            boolean isCachedRedirect) {
+        // Once the load is removed, we are thread-safe since this is the only reference to it
         synchronized (pendingRequests) {
-            DownloaderContext downloaderContext = new DownloaderContext();
-            downloaderContext.request = request;
-            pendingRequests.put(key, downloaderContext);
+            removePendingLoad(load);
+            for (DownloaderContext downloaderContext : load.callers) {
+                pendingRequests.remove(downloaderContext.key);
+            }
+        }
+
+        // A bitmap decoded into the caller's reusable bitmap is still the caller's, to decode
+        // other images into, so it must not be shared through the memory cache.
+        if (bitmap != null && bitmap != load.decodeRequest.getReusableBitmap()) {
+            Uri bitmapMemoryCacheUri = getMemoryCacheUri(bitmapUri, load.decodeRequest);
+            memoryCache.put(bitmapMemoryCacheUri, bitmap);
+            memoryCache.putRedirect(load.key.memoryCacheUri, bitmapMemoryCacheUri);
+        }
 
-            // The creation of the WorkItem should be done after the pending request has been
-            // registered. This is necessary since the WorkItem might kick off right away and
-            // attempt to retrieve the request's DownloaderContext prior to it being ready for
-            // access.
-            //
-            // It is also necessary to hold on to the lock until after the workItem is created,
-            // since calls to cancelRequest or prioritizeRequest might come in and expect a
-            // registered request to have a workItem available as well.
-            downloaderContext.workItem = workQueue.addActiveWorkItem(workItem);
+        for (DownloaderContext downloaderContext : load.callers) {
+            issueResponse(downloaderContext.request, error, bitmap, isCachedRedirect);
         }
     }
 
     private static void issueResponse(
-            RequestKey key,
+            final ImageRequest request,
             final Exception error,
             final Bitmap bitmap,
             final boolean isCachedRedirect) {
-        // Once the old downloader context is removed, we are thread-safe since this is the
-        // only reference to it
-        DownloaderContext completedRequestContext = removePendingRequest(key);
-        if (completedRequestContext != null && !completedRequestContext.isCancelled) {
-            final ImageRequest request = completedRequestContext.request;
-            final ImageRequest.Callback callback = request.getCallback();
-            if (callback != null) {
-                getHandler().post(new Runnable() {
-                    @Override
-                    public void run() {
-                        ImageResponse response = new ImageResponse(
-                                request,
-                                error,
-                                isCachedRedirect,
-                                bitmap);
-                        callback.onCompleted(response);
-                    }
-                });
+        final ImageRequest.Callback callback = request.getCallback();
+        if (callback != null) {
+            Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                    ImageResponse response = new ImageResponse(
+                            request,
+                            error,
+                            isCachedRedirect,
+                            bitmap);
+                    callback.onCompleted(response);
+                }
+            };
+
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                runnable.run();
+            } else {
+                getHandler().post(runnable);
             }
         }
     }
 
-    private static void readFromCache(
-            RequestKey key,
-            Context context,
-            boolean allowCachedRedirects) {
+    private static void readFromCache(LoadContext load) {
+        Context context = load.decodeRequest.getContext();
         InputStream cachedStream = null;
         boolean isCachedRedirect = false;
-        if (allowCachedRedirects) {
-            Uri redirectUri = UrlRedirectCache.getRedirectedUri(key.uri);
+        Uri redirectUri = null;
+        if (load.allowCachedRedirects) {
+            redirectUri = UrlRedirectCache.getRedirectedUri(load.uri);
             if (redirectUri != null) {
                 cachedStream = ImageResponseCache.getCachedImageStream(redirectUri, context);
                 isCachedRedirect = cachedStream != null;
@@ -205,37 +400,51 @@ public class ImageDownloader {
         }
 
         if (!isCachedRedirect) {
-            cachedStream = ImageResponseCache.getCachedImageStream(key.uri, context);
+            cachedStream = ImageResponseCache.getCachedImageStream(load.uri, context);
         }
 
         if (cachedStream != null) {
-            // We were able to find a cached image.
-            Bitmap bitmap = BitmapFactory.decodeStream(cachedStream);
-            Utility.closeQuietly(cachedStream);
-            issueResponse(key, null, bitmap, isCachedRedirect);
-        } else {
-            // Once the old downloader context is removed, we are thread-safe since this is the
-            // only reference to it
-            DownloaderContext downloaderContext = removePendingRequest(key);
-            if (downloaderContext != null && !downloaderContext.isCancelled) {
-                enqueueDownload(downloaderContext.request, key);
+            // We were able to find a cached image.  A stale one is still shown, and refreshed
+            // for next time.
+            if (ImageResponseCache.isStale(cachedStream)) {
+                enqueueRevalidation(isCachedRedirect ? redirectUri : load.uri, context);
             }
+            Bitmap bitmap = null;
+            try {
+                bitmap = decodeBitmap(cachedStream, load.decodeRequest);
+            } catch (IOException e) {
+                // Treat it like an undecodable image
+            } finally {
+                Utility.closeQuietly(cachedStream);
+            }
+            completeLoad(
+                    load,
+                    isCachedRedirect ? redirectUri : load.uri,
+                    null,
+                    bitmap,
+                    isCachedRedirect);
+        } else {
+            continueLoad(load, true);
         }
     }
 
-    private static void download(RequestKey key, Context context) {
+    private static void download(LoadContext load) {
+        Context context = load.decodeRequest.getContext();
         HttpURLConnection connection = null;
         InputStream stream = null;
         Exception error = null;
         Bitmap bitmap = null;
         boolean issueResponse = true;
+        long startTime = SystemClock.uptimeMillis();
 
         try {
-            URL url = new URL(key.uri.toString());
+            URL url = new URL(load.uri.toString());
             connection = (HttpURLConnection) url.openConnection();
             connection.setInstanceFollowRedirects(false);
 
-            switch (connection.getResponseCode()) {
+            int responseCode = connection.getResponseCode();
+            onDownloadResponse(startTime, responseCode);
+            switch (responseCode) {
                 case HttpURLConnection.HTTP_MOVED_PERM:
                 case HttpURLConnection.HTTP_MOVED_TEMP:
                     // redirect. So we need to perform further requests
@@ -244,24 +453,24 @@ public class ImageDownloader {
                     String redirectLocation = connection.getHeaderField("location");
                     if (!Utility.isNullOrEmpty(redirectLocation)) {
                         Uri redirectUri = Uri.parse(redirectLocation);
-                        UrlRedirectCache.cacheUriRedirect(key.uri, redirectUri);
-
-                        // Once the old downloader context is removed, we are thread-safe since this
-                        // is the only reference to it
-                        DownloaderContext downloaderContext = removePendingRequest(key);
-                        if (downloaderContext != null && !downloaderContext.isCancelled) {
-                            enqueueCacheRead(
-                                    downloaderContext.request,
-                                    new RequestKey(redirectUri, key.tag),
-                                    false);
-                        }
+                        UrlRedirectCache.cacheUriRedirect(load.uri, redirectUri);
+
+                        // Only this load's current work item touches these
+                        load.uri = redirectUri;
+                        load.allowCachedRedirects = false;
+                        continueLoad(load, false);
+                    } else {
+                        // Nowhere to go, so finish the load rather than leave it pending
+                        issueResponse = true;
+                        error = new FacebookException(
+                            context.getString(R.string.com_facebook_image_download_unknown_error));
                     }
                     break;
 
                 case HttpURLConnection.HTTP_OK:
                     // image should be available
                     stream = ImageResponseCache.interceptAndCacheImageStream(context, connection);
-                    bitmap = BitmapFactory.decodeStream(stream);
+                    bitmap = decodeBitmap(stream, load.decodeRequest);
                     break;
 
                 default:
@@ -284,13 +493,258 @@ public class ImageDownloader {
             }
         } catch (IOException e) {
             error = e;
+            if (downloadLimiter.onFailure(startTime, SystemClock.uptimeMillis())) {
+                updateDownloadConcurrency();
+            }
         } finally {
             Utility.closeQuietly(stream);
             Utility.disconnectQuietly(connection);
         }
 
         if (issueResponse) {
-            issueResponse(key, error, bitmap, false);
+            completeLoad(load, load.uri, error, bitmap, false);
+        }
+    }
+
+    private static void prefetchLookup(Prefetch prefetch, List<String> profileIds) {
+        if (prefetch.isCancelled()) {
+            return;
+        }
+
+        // Pictures whose redirect is known only need fetching, if they aren't cached yet.
+        List<String> unknownProfileIds = new ArrayList<String>();
+        for (String profileId : profileIds) {
+            Uri pictureUri = ImageRequest.getProfilePictureUri(
+                    profileId,
+                    prefetch.width,
+                    prefetch.height);
+            Uri redirectUri = UrlRedirectCache.getRedirectedUri(pictureUri);
+            if (redirectUri == null) {
+                unknownProfileIds.add(profileId);
+            } else {
+                prefetch.enqueueFetch(redirectUri);
+            }
+        }
+        if (unknownProfileIds.isEmpty()) {
+            return;
+        }
+
+        Map<String, Uri> pictureUris = lookUpProfilePictureUris(
+                unknownProfileIds,
+                prefetch.width,
+                prefetch.height);
+        for (String profileId : unknownProfileIds) {
+            Uri pictureUri = ImageRequest.getProfilePictureUri(
+                    profileId,
+                    prefetch.width,
+                    prefetch.height);
+            Uri lookedUpUri = pictureUris.get(profileId);
+            if (lookedUpUri != null) {
+                UrlRedirectCache.cacheUriRedirect(pictureUri, lookedUpUri);
+                prefetch.enqueueFetch(lookedUpUri);
+            } else {
+                prefetch.enqueueFetch(pictureUri);
+            }
+        }
+    }
+
+    // Returns the picture urls that could be looked up, which may be none
+    private static Map<String, Uri> lookUpProfilePictureUris(
+            List<String> profileIds,
+            int width,
+            int height) {
+        Map<String, Uri> pictureUris = new HashMap<String, Uri>();
+
+        Bundle parameters = new Bundle();
+        parameters.putString("ids", TextUtils.join(",", profileIds));
+        parameters.putString(
+                "fields",
+                String.format(Locale.US, "picture.width(%d).height(%d)", width, height));
+        GraphResponse response = new GraphRequest(
+                // We will use the current access token if we have one else we will use the client
+                // token
+                AccessToken.getCurrentAccessToken(),
+                "",
+                parameters,
+                HttpMethod.GET).executeAndWait();
+
+        JSONObject responseJson = response.getJSONObject();
+        if (response.getError() != null || responseJson == null) {
+            return pictureUris;
+        }
+
+        for (String profileId : profileIds) {
+            JSONObject profileJson = responseJson.optJSONObject(profileId);
+            JSONObject pictureJson = (profileJson != null)
+                    ? profileJson.optJSONObject("picture")
+                    : null;
+            JSONObject dataJson = (pictureJson != null)
+                    ? pictureJson.optJSONObject("data")
+                    : null;
+            String url = (dataJson != null) ? dataJson.optString("url", null) : null;
+            if (!Utility.isNullOrEmpty(url)) {
+                pictureUris.put(profileId, Uri.parse(url));
+            }
+        }
+        return pictureUris;
+    }
+
+    // Reads the image at the uri through the disk cache without decoding it, and follows a
+    // redirect with another fetch.
+    private static void prefetchFetch(Prefetch prefetch, Uri uri) {
+        if (prefetch.isCancelled()) {
+            return;
+        }
+
+        InputStream cachedStream = ImageResponseCache.getCachedImageStream(uri, prefetch.context);
+        if (cachedStream != null) {
+            Utility.closeQuietly(cachedStream);
+            return;
+        }
+
+        HttpURLConnection connection = null;
+        InputStream stream = null;
+        long startTime = SystemClock.uptimeMillis();
+        try {
+            URL url = new URL(uri.toString());
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setInstanceFollowRedirects(false);
+
+            int responseCode = connection.getResponseCode();
+            onDownloadResponse(startTime, responseCode);
+            switch (responseCode) {
+                case HttpURLConnection.HTTP_MOVED_PERM:
+                case HttpURLConnection.HTTP_MOVED_TEMP:
+                    String redirectLocation = connection.getHeaderField("location");
+                    if (!Utility.isNullOrEmpty(redirectLocation)) {
+                        Uri redirectUri = Uri.parse(redirectLocation);
+                        UrlRedirectCache.cacheUriRedirect(uri, redirectUri);
+                        prefetch.enqueueFetch(redirectUri);
+                    }
+                    break;
+
+                case HttpURLConnection.HTTP_OK:
+                    stream = ImageResponseCache.interceptAndCacheImageStream(
+                            prefetch.context,
+                            connection);
+                    byte[] buffer = new byte[8192];
+                    while (stream.read(buffer) != -1) {
+                    }
+                    break;
+
+                default:
+                    // Prefetching is best effort
+                    break;
+            }
+        } catch (IOException e) {
+            if (downloadLimiter.onFailure(startTime, SystemClock.uptimeMillis())) {
+                updateDownloadConcurrency();
+            }
+        } finally {
+            Utility.closeQuietly(stream);
+            Utility.disconnectQuietly(connection);
+        }
+    }
+
+    private static void enqueueRevalidation(Uri uri, Context context) {
+        synchronized (pendingRequests) {
+            if (!pendingRevalidations.add(uri)) {
+                return;
+            }
+        }
+        downloadQueue.addActiveWorkItem(
+                new RevalidateWorkItem(uri, context.getApplicationContext()),
+                false,
+                WorkQueue.PRIORITY_LOW,
+                uri.getHost(),
+                WorkQueue.NO_TIMEOUT,
+                null);
+    }
+
+    private static void revalidate(Uri uri, Context context) {
+        long startTime = SystemClock.uptimeMillis();
+        try {
+            int responseCode = ImageResponseCache.revalidate(uri, context);
+            if (responseCode != 0) {
+                onRevalidated(uri, responseCode);
+                onDownloadResponse(startTime, responseCode);
+            }
+        } catch (IOException e) {
+            // Revalidation is best effort, and the cached image stays as it is
+            if (downloadLimiter.onFailure(startTime, SystemClock.uptimeMillis())) {
+                updateDownloadConcurrency();
+            }
+        } finally {
+            synchronized (pendingRequests) {
+                pendingRevalidations.remove(uri);
+            }
+        }
+    }
+
+    // A revalidation that got a new image has replaced the old one on disk.  The bitmaps decoded
+    // from the old one, with any decode options, go too, as do the redirects to them, so that
+    // the next request reads the new one.
+    static void onRevalidated(Uri uri, int responseCode) {
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            return;
+        }
+
+        final String plainUri = uri.toString();
+        // What getMemoryCacheUri builds, up to the decode options
+        final String decodedUriPrefix = uri.buildUpon()
+                .encodedFragment(DECODE_OPTIONS_FRAGMENT_PREFIX)
+                .build()
+                .toString();
+        final String fragment = uri.getEncodedFragment();
+        memoryCache.remove(new ImageMemoryCache.UriMatcher() {
+            @Override
+            public boolean matches(String memoryCacheUri) {
+                if (memoryCacheUri.equals(plainUri)) {
+                    return true;
+                } else if (!memoryCacheUri.startsWith(decodedUriPrefix)) {
+                    return false;
+                }
+                int separator = memoryCacheUri.indexOf(
+                        DECODE_OPTIONS_FRAGMENT_SEPARATOR,
+                        decodedUriPrefix.length());
+                if (fragment == null) {
+                    return separator < 0;
+                }
+                return separator >= 0 && memoryCacheUri.substring(separator + 1).equals(fragment);
+            }
+        });
+    }
+
+    private static void onDownloadResponse(long startTime, int responseCode) {
+        long now = SystemClock.uptimeMillis();
+        boolean changed;
+        if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                || responseCode == HTTP_TOO_MANY_REQUESTS) {
+            // The server is struggling, so back off.
+            changed = downloadLimiter.onFailure(startTime, now);
+        } else if (responseCode < HttpURLConnection.HTTP_BAD_REQUEST) {
+            changed = downloadLimiter.onSuccess(
+                    startTime,
+                    now - startTime,
+                    downloadQueue.getStats().getRunningCount());
+        } else {
+            // Other client errors say nothing about congestion.
+            changed = false;
+        }
+
+        if (changed) {
+            updateDownloadConcurrency();
+        }
+    }
+
+    private static void updateDownloadConcurrency() {
+        // The limit is read and applied under the limiter's own lock, so that completions racing
+        // each other can't apply an older limit after a newer one.
+        synchronized (downloadLimiter) {
+            int limit = downloadLimiter.getLimit();
+            downloadQueue.setMaxConcurrent(limit);
+            downloadQueue.setMaxConcurrentPerTag(
+                    Math.min(limit, DOWNLOAD_QUEUE_MAX_CONCURRENT_PER_HOST));
         }
     }
 
@@ -301,10 +755,130 @@ public class ImageDownloader {
         return handler;
     }
 
-    private static DownloaderContext removePendingRequest(RequestKey key) {
-        synchronized (pendingRequests) {
-            return pendingRequests.remove(key);
+    // Decodes with the request's decode options, reading the bounds first when the image is to be
+    // scaled down.  The stream is then read into memory, since it can't be rewound.
+    private static Bitmap decodeBitmap(
+            InputStream stream,
+            ImageRequest request) throws IOException {
+        if (request == null || !request.hasDecodeOptions()) {
+            return BitmapFactory.decodeStream(stream);
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = request.getDecodeConfig() != null
+                ? request.getDecodeConfig()
+                : Bitmap.Config.ARGB_8888;
+        if (request.getTargetWidth() == ImageRequest.UNSPECIFIED_DIMENSION
+                && request.getTargetHeight() == ImageRequest.UNSPECIFIED_DIMENSION) {
+            return BitmapFactory.decodeStream(stream, null, options);
+        }
+
+        ByteArrayOutputStream bytesStream = new ByteArrayOutputStream();
+        Utility.copyAndCloseInputStream(stream, bytesStream);
+        byte[] bytes = bytesStream.toByteArray();
+
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        options.inJustDecodeBounds = false;
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inSampleSize = calculateInSampleSize(
+                options.outWidth,
+                options.outHeight,
+                request.getTargetWidth(),
+                request.getTargetHeight());
+
+        Bitmap reusableBitmap = request.getReusableBitmap();
+        if (canReuseBitmap(reusableBitmap, options)) {
+            options.inBitmap = reusableBitmap;
+            options.inMutable = true;
+            try {
+                return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            } catch (IllegalArgumentException e) {
+                // The decoder can't reuse it after all, e.g. for an unsupported format.
+                options.inBitmap = null;
+            }
         }
+
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
+
+    /**
+     * Returns the largest power of two by which the image can be scaled down, and still be at
+     * least as large as the target in each specified dimension.
+     */
+    static int calculateInSampleSize(
+            int width,
+            int height,
+            int targetWidth,
+            int targetHeight) {
+        if (targetWidth == ImageRequest.UNSPECIFIED_DIMENSION
+                && targetHeight == ImageRequest.UNSPECIFIED_DIMENSION) {
+            return 1;
+        }
+
+        int inSampleSize = 1;
+        while (isAtLeastTarget(width / (inSampleSize * 2), targetWidth)
+                && isAtLeastTarget(height / (inSampleSize * 2), targetHeight)) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private static boolean isAtLeastTarget(int size, int target) {
+        return size >= Math.max(target, 1);
+    }
+
+    private static boolean canReuseBitmap(Bitmap bitmap, BitmapFactory.Options options) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() != options.inPreferredConfig
+                || memoryCache.contains(bitmap)) {
+            return false;
+        }
+
+        // Round up, like the decoder does
+        int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount()
+                    >= (long) width * height * getBytesPerPixel(bitmap.getConfig());
+        }
+
+        // Before KitKat, only same-size decodes can reuse a bitmap.
+        return options.inSampleSize == 1
+                && bitmap.getWidth() == options.outWidth
+                && bitmap.getHeight() == options.outHeight;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 1;
+    }
+
+    // Bitmaps decoded with different options are cached apart, under a fragment that names the
+    // options, followed by the uri's own fragment if it has one.  The options never contain the
+    // separator, so uris that differ only by fragment keep apart too.  Requests without decode
+    // options use the uri as is.
+    static Uri getMemoryCacheUri(Uri uri, ImageRequest request) {
+        if (!request.hasDecodeOptions()) {
+            return uri;
+        }
+
+        String fragment = DECODE_OPTIONS_FRAGMENT_PREFIX
+                + request.getTargetWidth() + "x" + request.getTargetHeight();
+        if (request.getDecodeConfig() != null) {
+            fragment += "," + request.getDecodeConfig().name();
+        }
+        String originalFragment = uri.getEncodedFragment();
+        if (originalFragment != null) {
+            fragment += DECODE_OPTIONS_FRAGMENT_SEPARATOR + originalFragment;
+        }
+        return uri.buildUpon().encodedFragment(fragment).build();
     }
 
     private static class RequestKey {
@@ -342,41 +916,212 @@ public class ImageDownloader {
         }
     }
 
-    private static class DownloaderContext {
+    /**
+     * A prefetch started by prefetchProfilePictures.
+     */
+    public static final class Prefetch {
+        private final Context context;
+        private final int width;
+        private final int height;
+        // The work that is queued or running, so that it can be cancelled.  Work is removed when
+        // it finishes, so that a long-lived Prefetch doesn't keep all of it.
+        private final Map<Runnable, WorkQueue.WorkItem> workItems =
+                new HashMap<Runnable, WorkQueue.WorkItem>();
+        private boolean isCancelled;
+
+        private Prefetch(Context context, int width, int height) {
+            // The prefetch may outlive an Activity that started it
+            this.context = (context != null) ? context.getApplicationContext() : null;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Stops the prefetch. Pictures already being fetched are still cached.
+         */
+        public void cancel() {
+            synchronized (this) {
+                isCancelled = true;
+                for (WorkQueue.WorkItem workItem : workItems.values()) {
+                    workItem.cancel();
+                }
+                workItems.clear();
+            }
+        }
+
+        public synchronized boolean isCancelled() {
+            return isCancelled;
+        }
+
+        private void enqueueFetch(Uri uri) {
+            enqueue(new PrefetchFetchWorkItem(this, uri), uri.getHost());
+        }
+
+        // Prefetch work goes to the back of the download queue, at low priority, in the order
+        // that the profiles were given.
+        private synchronized void enqueue(Runnable workItem, Object fairnessTag) {
+            if (isCancelled) {
+                return;
+            }
+
+            // The work runs on the queue's executor, and removes itself in onWorkFinished, which
+            // waits for this monitor.  So it can't be removed before it is put here.
+            workItems.put(workItem, downloadQueue.addActiveWorkItem(
+                    workItem,
+                    false,
+                    WorkQueue.PRIORITY_LOW,
+                    fairnessTag,
+                    WorkQueue.NO_TIMEOUT,
+                    null));
+        }
+
+        private synchronized void onWorkFinished(Runnable workItem) {
+            workItems.remove(workItem);
+        }
+
+        synchronized int getPendingWorkCount() {
+            return workItems.size();
+        }
+    }
+
+    private static class LoadKey {
+        final Uri memoryCacheUri;
+        final boolean allowCachedRedirects;
+        // The image may be decoded into this, so only callers that gave the same bitmap can
+        // share the load.  Compared by identity.
+        final Bitmap reusableBitmap;
+
+        LoadKey(ImageRequest request) {
+            this.memoryCacheUri = getMemoryCacheUri(request.getImageUri(), request);
+            this.allowCachedRedirects = request.isCachedRedirectAllowed();
+            this.reusableBitmap = request.getReusableBitmap();
+        }
+
+        @Override
+        public int hashCode() {
+            return (memoryCacheUri.hashCode() * 2 + (allowCachedRedirects ? 1 : 0)) * 31
+                    + System.identityHashCode(reusableBitmap);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LoadKey)) {
+                return false;
+            }
+            LoadKey compareTo = (LoadKey) o;
+            return compareTo.memoryCacheUri.equals(memoryCacheUri)
+                    && compareTo.allowCachedRedirects == allowCachedRedirects
+                    && compareTo.reusableBitmap == reusableBitmap;
+        }
+    }
+
+    private static class LoadContext {
+        final LoadKey key;
+        // The request of the first caller, whose context and decode options are used
+        final ImageRequest decodeRequest;
+        final List<DownloaderContext> callers = new ArrayList<DownloaderContext>();
         WorkQueue.WorkItem workItem;
-        ImageRequest request;
+        Uri uri;
+        boolean allowCachedRedirects;
+        int priority = WorkQueue.PRIORITY_DEFAULT;
         boolean isCancelled;
+
+        LoadContext(LoadKey key, ImageRequest decodeRequest) {
+            this.key = key;
+            this.decodeRequest = decodeRequest;
+            this.uri = decodeRequest.getImageUri();
+            this.allowCachedRedirects = decodeRequest.isCachedRedirectAllowed();
+        }
+    }
+
+    private static class DownloaderContext {
+        final RequestKey key;
+        final LoadContext load;
+        ImageRequest request;
+
+        DownloaderContext(RequestKey key, ImageRequest request, LoadContext load) {
+            this.key = key;
+            this.request = request;
+            this.load = load;
+        }
     }
 
     private static class CacheReadWorkItem implements Runnable {
+        private LoadContext load;
+
+        CacheReadWorkItem(LoadContext load) {
+            this.load = load;
+        }
+
+        @Override
+        public void run() {
+            readFromCache(load);
+        }
+    }
+
+    private static class PrefetchLookupWorkItem implements Runnable {
+        private Prefetch prefetch;
+        private List<String> profileIds;
+
+        PrefetchLookupWorkItem(Prefetch prefetch, List<String> profileIds) {
+            this.prefetch = prefetch;
+            this.profileIds = profileIds;
+        }
+
+        @Override
+        public void run() {
+            try {
+                prefetchLookup(prefetch, profileIds);
+            } finally {
+                prefetch.onWorkFinished(this);
+            }
+        }
+    }
+
+    private static class PrefetchFetchWorkItem implements Runnable {
+        private Prefetch prefetch;
+        private Uri uri;
+
+        PrefetchFetchWorkItem(Prefetch prefetch, Uri uri) {
+            this.prefetch = prefetch;
+            this.uri = uri;
+        }
+
+        @Override
+        public void run() {
+            try {
+                prefetchFetch(prefetch, uri);
+            } finally {
+                prefetch.onWorkFinished(this);
+            }
+        }
+    }
+
+    private static class RevalidateWorkItem implements Runnable {
+        private Uri uri;
         private Context context;
-        private RequestKey key;
-        private boolean allowCachedRedirects;
 
-        CacheReadWorkItem(Context context, RequestKey key, boolean allowCachedRedirects) {
+        RevalidateWorkItem(Uri uri, Context context) {
+            this.uri = uri;
             this.context = context;
-            this.key = key;
-            this.allowCachedRedirects = allowCachedRedirects;
         }
 
         @Override
         public void run() {
-            readFromCache(key, context, allowCachedRedirects);
+            revalidate(uri, context);
         }
     }
 
     private static class DownloadImageWorkItem implements Runnable {
-        private Context context;
-        private RequestKey key;
+        private LoadContext load;
 
-        DownloadImageWorkItem(Context context, RequestKey key) {
-            this.context = context;
-            this.key = key;
+        DownloadImageWorkItem(LoadContext load) {
+            this.load = load;
         }
 
         @Override
         public void run() {
-            download(key, context);
+            download(load);
         }
 
     }
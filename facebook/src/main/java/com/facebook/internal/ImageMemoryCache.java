@@ -0,0 +1,391 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.internal;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import com.facebook.LoggingBehavior;
+
+import java.security.InvalidParameterException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// This class is intended to be thread-safe.
+//
+// Decoded bitmaps are kept in an access-ordered map keyed by the Uri they were fetched from, and
+// the map is trimmed from its least recently used end whenever the sum of the bitmap sizes goes
+// over the byte limit. Redirects (e.g. from a graph.facebook.com picture Uri to its CDN Uri) are
+// tracked separately as aliases so that a single decoded bitmap is not counted twice, and so that
+// requests which do not allow cached redirects can skip them, just like the disk cache does.
+
+/**
+ * com.facebook.internal is solely for the use of other packages within the Facebook SDK for
+ * Android. Use of any of the classes in this package is unsupported, and they may be modified or
+ * removed without warning at any time.
+ */
+public final class ImageMemoryCache implements ComponentCallbacks2 {
+    static final String TAG = ImageMemoryCache.class.getSimpleName();
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, Bitmap> bitmaps =
+            new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+    private final LinkedHashMap<String, String> redirects =
+            new LinkedHashMap<String, String>(16, 0.75f, true);
+
+    private Limits limits;
+    private long byteCount;
+    private long hitCount;
+    private long missCount;
+    private long putCount;
+    private long evictionCount;
+
+    public ImageMemoryCache(Limits limits) {
+        Validate.notNull(limits, "limits");
+        this.limits = limits;
+    }
+
+    /**
+     * Returns the cached bitmap for the uri, or null if there is none.
+     * @param uri The uri that the image was requested with.
+     * @param allowRedirects Whether a bitmap cached for a redirect of the uri may be returned.
+     * @return The cached bitmap, or null.
+     */
+    public Bitmap get(Uri uri, boolean allowRedirects) {
+        CacheHit hit = getCacheHit(uri, allowRedirects);
+        return hit != null ? hit.bitmap : null;
+    }
+
+    CacheHit getCacheHit(Uri uri, boolean allowRedirects) {
+        if (uri == null) {
+            return null;
+        }
+
+        String key = uri.toString();
+        synchronized (lock) {
+            if (allowRedirects) {
+                // Redirects may be chained, so follow them until we stop finding one. Bound the
+                // walk by the number of redirects so that a cycle can not spin forever.
+                String redirectKey = null;
+                String next = redirects.get(key);
+                for (int hops = redirects.size(); next != null && hops > 0; hops--) {
+                    redirectKey = next;
+                    next = redirects.get(redirectKey);
+                }
+
+                if (redirectKey != null) {
+                    Bitmap bitmap = getLocked(redirectKey);
+                    if (bitmap != null) {
+                        hitCount++;
+                        return new CacheHit(bitmap, true);
+                    }
+                }
+            }
+
+            Bitmap bitmap = getLocked(key);
+            if (bitmap != null) {
+                hitCount++;
+                return new CacheHit(bitmap, false);
+            }
+
+            missCount++;
+            return null;
+        }
+    }
+
+    boolean contains(Bitmap bitmap) {
+        synchronized (lock) {
+            return bitmaps.containsValue(bitmap);
+        }
+    }
+
+    public void put(Uri uri, Bitmap bitmap) {
+        if (uri == null || bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        long size = sizeOf(bitmap);
+        synchronized (lock) {
+            if (size > limits.getByteCount()) {
+                // Never worth evicting everything else for a single oversized image
+                removeLocked(uri.toString());
+                return;
+            }
+
+            Bitmap previous = bitmaps.put(uri.toString(), bitmap);
+            if (previous != null) {
+                byteCount -= sizeOf(previous);
+            }
+            byteCount += size;
+            putCount++;
+
+            trimToSizeLocked(limits.getByteCount());
+        }
+    }
+
+    public void putRedirect(Uri fromUri, Uri toUri) {
+        if (fromUri == null || toUri == null || fromUri.equals(toUri)) {
+            return;
+        }
+
+        synchronized (lock) {
+            redirects.put(fromUri.toString(), toUri.toString());
+            Iterator<String> iterator = redirects.keySet().iterator();
+            while (redirects.size() > limits.getRedirectCount() && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    // Removes the bitmaps cached under the uris the matcher accepts, and the redirects from or to
+    // any of them.
+    void remove(UriMatcher matcher) {
+        synchronized (lock) {
+            Iterator<Map.Entry<String, Bitmap>> bitmapIterator = bitmaps.entrySet().iterator();
+            while (bitmapIterator.hasNext()) {
+                Map.Entry<String, Bitmap> entry = bitmapIterator.next();
+                if (matcher.matches(entry.getKey())) {
+                    byteCount -= sizeOf(entry.getValue());
+                    bitmapIterator.remove();
+                }
+            }
+
+            Iterator<Map.Entry<String, String>> redirectIterator = redirects.entrySet().iterator();
+            while (redirectIterator.hasNext()) {
+                Map.Entry<String, String> entry = redirectIterator.next();
+                if (matcher.matches(entry.getKey()) || matcher.matches(entry.getValue())) {
+                    redirectIterator.remove();
+                }
+            }
+        }
+    }
+
+    public void clearCache() {
+        synchronized (lock) {
+            bitmaps.clear();
+            redirects.clear();
+            byteCount = 0;
+        }
+    }
+
+    public void setLimits(Limits limits) {
+        Validate.notNull(limits, "limits");
+        synchronized (lock) {
+            this.limits = limits;
+            trimToSizeLocked(limits.getByteCount());
+        }
+    }
+
+    public void trimToSize(long maxByteCount) {
+        synchronized (lock) {
+            trimToSizeLocked(maxByteCount);
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (lock) {
+            return new Stats(
+                    byteCount,
+                    limits.getByteCount(),
+                    bitmaps.size(),
+                    hitCount,
+                    missCount,
+                    putCount,
+                    evictionCount);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            // The process is likely to be killed soon, or the foreground app is starving.
+            Logger.log(LoggingBehavior.CACHE, TAG, "onTrimMemory(" + level + "): clearing");
+            clearCache();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            Logger.log(LoggingBehavior.CACHE, TAG, "onTrimMemory(" + level + "): halving");
+            synchronized (lock) {
+                trimToSizeLocked(byteCount / 2);
+            }
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clearCache();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    @Override
+    public String toString() {
+        return "{ImageMemoryCache: " + getStats() + "}";
+    }
+
+    private Bitmap getLocked(String key) {
+        Bitmap bitmap = bitmaps.get(key);
+        if (bitmap != null && bitmap.isRecycled()) {
+            // Somebody recycled a bitmap we handed out; it can not be used any more.
+            removeLocked(key);
+            bitmap = null;
+        }
+        return bitmap;
+    }
+
+    private void removeLocked(String key) {
+        Bitmap removed = bitmaps.remove(key);
+        if (removed != null) {
+            byteCount -= sizeOf(removed);
+        }
+    }
+
+    private void trimToSizeLocked(long maxByteCount) {
+        Iterator<Map.Entry<String, Bitmap>> iterator = bitmaps.entrySet().iterator();
+        while (byteCount > maxByteCount && iterator.hasNext()) {
+            Map.Entry<String, Bitmap> eldest = iterator.next();
+            byteCount -= sizeOf(eldest.getValue());
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    private static long sizeOf(Bitmap bitmap) {
+        return bitmap.getByteCount();
+    }
+
+    interface UriMatcher {
+        boolean matches(String uri);
+    }
+
+    static final class CacheHit {
+        final Bitmap bitmap;
+        final boolean isRedirect;
+
+        CacheHit(Bitmap bitmap, boolean isRedirect) {
+            this.bitmap = bitmap;
+            this.isRedirect = isRedirect;
+        }
+    }
+
+    public static final class Limits {
+        private long byteCount;
+        private int redirectCount;
+
+        public Limits() {
+            // The SDK shares the heap with the app, so only take a small slice of it. Profile
+            // pictures are small, so this still holds plenty of them.
+            this.byteCount = Runtime.getRuntime().maxMemory() / 16;
+            this.redirectCount = 256;
+        }
+
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        public int getRedirectCount() {
+            return redirectCount;
+        }
+
+        public void setByteCount(long n) {
+            if (n < 0) {
+                throw new InvalidParameterException("Cache byte-count limit must be >= 0");
+            }
+            byteCount = n;
+        }
+
+        public void setRedirectCount(int n) {
+            if (n < 0) {
+                throw new InvalidParameterException("Cache redirect count limit must be >= 0");
+            }
+            redirectCount = n;
+        }
+    }
+
+    public static final class Stats {
+        private final long byteCount;
+        private final long byteCountLimit;
+        private final int entryCount;
+        private final long hitCount;
+        private final long missCount;
+        private final long putCount;
+        private final long evictionCount;
+
+        Stats(
+                long byteCount,
+                long byteCountLimit,
+                int entryCount,
+                long hitCount,
+                long missCount,
+                long putCount,
+                long evictionCount) {
+            this.byteCount = byteCount;
+            this.byteCountLimit = byteCountLimit;
+            this.entryCount = entryCount;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.putCount = putCount;
+            this.evictionCount = evictionCount;
+        }
+
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        public long getByteCountLimit() {
+            return byteCountLimit;
+        }
+
+        public int getEntryCount() {
+            return entryCount;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public long getPutCount() {
+            return putCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        @Override
+        public String toString() {
+            return "{bytes:" + byteCount + "/" + byteCountLimit
+                    + " entries:" + entryCount
+                    + " hits:" + hitCount
+                    + " misses:" + missCount
+                    + " puts:" + putCount
+                    + " evictions:" + evictionCount + "}";
+        }
+    }
+}
@@ -21,6 +21,7 @@
 package com.facebook.internal;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.net.Uri;
 
 import java.net.URI;
@@ -58,6 +59,10 @@ public class ImageRequest {
     private Callback callback;
     private boolean allowCachedRedirects;
     private Object callerTag;
+    private int targetWidth;
+    private int targetHeight;
+    private Bitmap.Config decodeConfig;
+    private Bitmap reusableBitmap;
 
     public static Uri getProfilePictureUri(
             String userId,
@@ -98,6 +103,10 @@ public class ImageRequest {
         this.callback = builder.callback;
         this.allowCachedRedirects = builder.allowCachedRedirects;
         this.callerTag = builder.callerTag == null ? new Object() : builder.callerTag;
+        this.targetWidth = builder.targetWidth;
+        this.targetHeight = builder.targetHeight;
+        this.decodeConfig = builder.decodeConfig;
+        this.reusableBitmap = builder.reusableBitmap;
     }
 
     public Context getContext() {
@@ -120,6 +129,32 @@ public class ImageRequest {
         return callerTag;
     }
 
+    public int getTargetWidth() {
+        return targetWidth;
+    }
+
+    public int getTargetHeight() {
+        return targetHeight;
+    }
+
+    public Bitmap.Config getDecodeConfig() {
+        return decodeConfig;
+    }
+
+    public Bitmap getReusableBitmap() {
+        return reusableBitmap;
+    }
+
+    /**
+     * Returns whether the image will be decoded with anything other than the full size and
+     * default config.
+     */
+    public boolean hasDecodeOptions() {
+        return targetWidth != UNSPECIFIED_DIMENSION
+                || targetHeight != UNSPECIFIED_DIMENSION
+                || decodeConfig != null;
+    }
+
     public static class Builder {
         // Required
         private Context context;
@@ -129,6 +164,10 @@ public class ImageRequest {
         private Callback callback;
         private boolean allowCachedRedirects;
         private Object callerTag;
+        private int targetWidth = UNSPECIFIED_DIMENSION;
+        private int targetHeight = UNSPECIFIED_DIMENSION;
+        private Bitmap.Config decodeConfig;
+        private Bitmap reusableBitmap;
 
         public Builder(Context context, Uri imageUri) {
             Validate.notNull(imageUri, "imageUri");
@@ -151,6 +190,37 @@ public class ImageRequest {
             return this;
         }
 
+        /**
+         * Sets the size the image will be displayed at. The image is then decoded at the
+         * smallest power of two fraction of its size that is still at least this large.
+         * Either dimension may be UNSPECIFIED_DIMENSION.
+         */
+        public Builder setTargetSize(int targetWidth, int targetHeight) {
+            this.targetWidth = Math.max(targetWidth, UNSPECIFIED_DIMENSION);
+            this.targetHeight = Math.max(targetHeight, UNSPECIFIED_DIMENSION);
+            return this;
+        }
+
+        /**
+         * Sets the preferred config to decode the image with, such as RGB_565 for opaque
+         * images that can do with half the memory. Null means the decoder default.
+         */
+        public Builder setDecodeConfig(Bitmap.Config decodeConfig) {
+            this.decodeConfig = decodeConfig;
+            return this;
+        }
+
+        /**
+         * Sets a mutable bitmap whose memory the decoded image may reuse, when a target size is
+         * also set. The caller must not use or display the bitmap after this, since its
+         * contents may be overwritten. A bitmap that is still in ImageDownloader's memory cache
+         * is not reused, and an image decoded into the bitmap is not put in the memory cache.
+         */
+        public Builder setReusableBitmap(Bitmap reusableBitmap) {
+            this.reusableBitmap = reusableBitmap;
+            return this;
+        }
+
         public ImageRequest build() {
             return new ImageRequest(this);
         }
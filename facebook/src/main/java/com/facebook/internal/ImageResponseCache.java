@@ -25,13 +25,24 @@ import android.net.Uri;
 import android.util.Log;
 import com.facebook.LoggingBehavior;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Locale;
+
+// Each cached image is tagged with the validators (ETag, Last-Modified) and freshness lifetime
+// from its response.  A stale image is still served from the cache right away, and the caller
+// can then revalidate it in the background with a conditional GET: a 304 response only refreshes
+// the tag, while a 200 response replaces the image.  Images cached before tags were recorded are
+// served as they always were, and never go stale.
 
 /**
  * com.facebook.internal is solely for the use of other packages within the
@@ -41,6 +52,11 @@ import java.net.URL;
 class ImageResponseCache {
     static final String TAG = ImageResponseCache.class.getSimpleName();
 
+    // How long a response that says nothing about its lifetime stays fresh
+    static final long DEFAULT_FRESHNESS_MILLIS = 24 * 60 * 60 * 1000;
+    // The share of its age when fetched that a response with only a Last-Modified stays fresh
+    private static final int LAST_MODIFIED_FRESHNESS_DIVISOR = 10;
+
     private volatile static FileLruCache imageCache;
 
     synchronized static FileLruCache getCache(Context context) throws IOException{
@@ -58,7 +74,7 @@ class ImageResponseCache {
             if (isCDNURL(uri)) {
                 try {
                     FileLruCache cache = getCache(context);
-                    imageStream = cache.get(uri.toString());
+                    imageStream = cache.getWithAnyContentTag(uri.toString());
                 } catch (IOException e) {
                     Logger.log(LoggingBehavior.CACHE, Log.WARN, TAG, e.toString());
                 }
@@ -83,6 +99,7 @@ class ImageResponseCache {
                     // Wrap stream with a caching stream
                     stream = cache.interceptAndPut(
                             uri.toString(),
+                            CacheValidators.fromResponse(connection, null).toContentTag(),
                             new BufferedHttpInputStream(stream, connection));
                 }
             } catch (IOException e) {
@@ -92,6 +109,75 @@ class ImageResponseCache {
         return stream;
     }
 
+    /**
+     * Returns whether a stream from getCachedImageStream is past its freshness lifetime, and
+     * can be revalidated.
+     */
+    static boolean isStale(InputStream cachedStream) {
+        if (!(cachedStream instanceof FileLruCache.ContentTaggedInputStream)) {
+            return false;
+        }
+        CacheValidators validators = CacheValidators.fromContentTag(
+                ((FileLruCache.ContentTaggedInputStream) cachedStream).getContentTag());
+        return validators != null
+                && validators.canRevalidate()
+                && validators.isStale(System.currentTimeMillis());
+    }
+
+    /**
+     * Revalidates the cached image for the uri with a conditional GET, and updates the cache
+     * with the response.
+     * @return the response code, or 0 if there is nothing to revalidate
+     */
+    static int revalidate(Uri uri, Context context) throws IOException {
+        FileLruCache cache = getCache(context);
+        String key = uri.toString();
+        FileLruCache.ContentTaggedInputStream cachedStream = cache.getWithAnyContentTag(key);
+        if (cachedStream == null) {
+            return 0;
+        }
+        CacheValidators validators = CacheValidators.fromContentTag(cachedStream.getContentTag());
+        if (validators == null || !validators.canRevalidate()) {
+            Utility.closeQuietly(cachedStream);
+            return 0;
+        }
+
+        HttpURLConnection connection = null;
+        InputStream stream = null;
+        try {
+            connection = (HttpURLConnection) new URL(key).openConnection();
+            connection.setInstanceFollowRedirects(false);
+            if (validators.etag != null) {
+                connection.setRequestProperty("If-None-Match", validators.etag);
+            }
+            if (validators.lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", validators.lastModified);
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // Same image, so only the tag needs refreshing.  The tag is part of the header,
+                // so the image is copied into a new entry with it.
+                OutputStream output = cache.openPutStream(
+                        key,
+                        CacheValidators.fromResponse(connection, validators).toContentTag());
+                Utility.copyAndCloseInputStream(cachedStream, output);
+                output.close();
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                Utility.closeQuietly(cachedStream);
+                stream = interceptAndCacheImageStream(context, connection);
+                byte[] buffer = new byte[Utility.DEFAULT_STREAM_BUFFER_SIZE];
+                while (stream.read(buffer) != -1) {
+                }
+            }
+            return responseCode;
+        } finally {
+            Utility.closeQuietly(cachedStream);
+            Utility.closeQuietly(stream);
+            Utility.disconnectQuietly(connection);
+        }
+    }
+
    private static boolean isCDNURL(Uri uri) {
         if (uri != null) {
             String uriHost = uri.getHost();
@@ -116,6 +202,124 @@ class ImageResponseCache {
         }
     }
 
+    static final class CacheValidators {
+        private static final String ETAG_KEY = "etag";
+        private static final String LAST_MODIFIED_KEY = "last_modified";
+        private static final String FETCHED_TIME_KEY = "fetched";
+        private static final String FRESHNESS_KEY = "freshness";
+        private static final String MAX_AGE_DIRECTIVE = "max-age=";
+        private static final String NO_CACHE_DIRECTIVE = "no-cache";
+
+        final String etag;
+        final String lastModified;
+        final long fetchedTime;
+        final long freshnessMillis;
+
+        CacheValidators(String etag, String lastModified, long fetchedTime, long freshnessMillis) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchedTime = fetchedTime;
+            this.freshnessMillis = freshnessMillis;
+        }
+
+        boolean canRevalidate() {
+            return etag != null || lastModified != null;
+        }
+
+        boolean isStale(long now) {
+            return now >= fetchedTime + freshnessMillis || now < fetchedTime;
+        }
+
+        String toContentTag() {
+            JSONObject json = new JSONObject();
+            try {
+                json.putOpt(ETAG_KEY, etag);
+                json.putOpt(LAST_MODIFIED_KEY, lastModified);
+                json.put(FETCHED_TIME_KEY, fetchedTime);
+                json.put(FRESHNESS_KEY, freshnessMillis);
+            } catch (JSONException e) {
+                // Can't happen with these values
+            }
+            return json.toString();
+        }
+
+        // Returns null for a missing or unrecognized tag
+        static CacheValidators fromContentTag(String contentTag) {
+            if (contentTag == null) {
+                return null;
+            }
+            try {
+                JSONObject json = new JSONObject(contentTag);
+                return new CacheValidators(
+                        json.optString(ETAG_KEY, null),
+                        json.optString(LAST_MODIFIED_KEY, null),
+                        json.getLong(FETCHED_TIME_KEY),
+                        json.getLong(FRESHNESS_KEY));
+            } catch (JSONException e) {
+                return null;
+            }
+        }
+
+        // Reads the validators and freshness lifetime of a response.  A 304 response may leave
+        // out validators, in which case the previous ones carry over.
+        static CacheValidators fromResponse(
+                HttpURLConnection connection,
+                CacheValidators previous) {
+            String etag = connection.getHeaderField("ETag");
+            String lastModified = connection.getHeaderField("Last-Modified");
+            if (previous != null) {
+                etag = (etag != null) ? etag : previous.etag;
+                lastModified = (lastModified != null) ? lastModified : previous.lastModified;
+            }
+
+            long now = System.currentTimeMillis();
+            return new CacheValidators(
+                    etag,
+                    lastModified,
+                    now,
+                    getFreshnessMillis(
+                            connection.getHeaderField("Cache-Control"),
+                            connection.getDate(),
+                            connection.getExpiration(),
+                            connection.getLastModified(),
+                            now));
+        }
+
+        // In order of preference: Cache-Control max-age, Expires, a share of the time since
+        // Last-Modified, or the default.  Dates that are missing are 0.
+        static long getFreshnessMillis(
+                String cacheControl,
+                long date,
+                long expires,
+                long lastModified,
+                long now) {
+            if (cacheControl != null) {
+                for (String directive : cacheControl.split(",")) {
+                    directive = directive.trim().toLowerCase(Locale.US);
+                    if (directive.equals(NO_CACHE_DIRECTIVE)) {
+                        return 0;
+                    } else if (directive.startsWith(MAX_AGE_DIRECTIVE)) {
+                        try {
+                            return Math.max(0, 1000 * Long.parseLong(
+                                    directive.substring(MAX_AGE_DIRECTIVE.length())));
+                        } catch (NumberFormatException e) {
+                            // Fall back to the other headers
+                        }
+                    }
+                }
+            }
+
+            long responseDate = (date > 0) ? date : now;
+            if (expires > 0) {
+                return Math.max(0, expires - responseDate);
+            }
+            if (lastModified > 0 && lastModified < responseDate) {
+                return (responseDate - lastModified) / LAST_MODIFIED_FRESHNESS_DIVISOR;
+            }
+            return DEFAULT_FRESHNESS_MILLIS;
+        }
+    }
+
     private static class BufferedHttpInputStream extends BufferedInputStream {
         HttpURLConnection connection;
         BufferedHttpInputStream(InputStream stream, HttpURLConnection connection) {
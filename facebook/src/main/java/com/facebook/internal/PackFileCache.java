@@ -0,0 +1,444 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.internal;
+
+import android.util.Log;
+
+import com.facebook.LoggingBehavior;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// This class is intended to be thread-safe.
+//
+// Stores many small string to string entries in a single file, rather than one file per entry the
+// way FileLruCache does. The file is a fixed-size open-addressing hash table of fixed-size slots,
+// memory-mapped so that a lookup is a hash probe over the mapping, with no file I/O on the calling
+// thread.
+//
+// The format is as follows:
+//     byte: meaning
+// ---------------------------------
+//      0-3: magic number
+//      4-7: version number
+//     8-11: slot count
+//    12-15: slot size
+//    16-23: access clock
+//    24-31: reserved
+//      ...: slots
+//
+// Each slot is laid out as:
+//        0: state (empty, occupied or deleted)
+//      4-7: key hash
+//     8-15: access clock value of the last get or put
+//    16-17: key size
+//    18-19: value size
+//    20-23: CRC32 of the hash, key and value
+//      ...: UTF-8 key, then UTF-8 value
+//
+// Slots are probed linearly from the key hash. Deleting leaves a tombstone, so that probes for
+// other keys carry on past it; tombstones are reused by puts, and the file is rebuilt when live
+// entries and tombstones together fill too much of the table.
+//
+// Updates are crash-safe in the sense that a torn slot is never returned: the state byte of a slot
+// being filled is written last, and a slot whose CRC doesn't match is treated as deleted. A
+// rebuild writes a new file and renames it into place.
+//
+// Eviction is approximately LRU: when the table holds the maximum number of entries, a put samples
+// a run of occupied slots and evicts the one with the oldest access clock value. The sample
+// covers every entry of a small table, which makes eviction exactly LRU there.
+
+/**
+ * com.facebook.internal is solely for the use of other packages within the Facebook SDK for
+ * Android. Use of any of the classes in this package is unsupported, and they may be modified or
+ * removed without warning at any time.
+ */
+final class PackFileCache {
+    static final String TAG = PackFileCache.class.getSimpleName();
+
+    private static final int MAGIC = 0x46425043; // "FBPC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int HEADER_CLOCK_OFFSET = 16;
+
+    private static final int SLOT_HEADER_SIZE = 24;
+    private static final int SLOT_HASH_OFFSET = 4;
+    private static final int SLOT_CLOCK_OFFSET = 8;
+    private static final int SLOT_KEY_SIZE_OFFSET = 16;
+    private static final int SLOT_VALUE_SIZE_OFFSET = 18;
+    private static final int SLOT_CRC_OFFSET = 20;
+
+    private static final byte STATE_EMPTY = 0;
+    private static final byte STATE_OCCUPIED = 1;
+    private static final byte STATE_DELETED = 2;
+
+    private static final int EVICTION_SAMPLE_SIZE = 16;
+
+    private final File file;
+    private final int slotCount;
+    private final int slotSize;
+    private final int maxEntryCount;
+
+    private MappedByteBuffer buffer;
+    private long clock;
+    private int entryCount;
+    private int deletedCount;
+    private int evictionHand;
+
+    // Holds up to slotCount / 2 entries, each of which must fit in slotSize bytes.
+    PackFileCache(File file, int slotCount, int slotSize) throws IOException {
+        if (slotCount < 2 || slotSize <= SLOT_HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid pack file dimensions");
+        }
+        this.file = file;
+        this.slotCount = slotCount;
+        this.slotSize = slotSize;
+        this.maxEntryCount = slotCount / 2;
+
+        open();
+    }
+
+    synchronized String get(String key) {
+        int hash = key.hashCode();
+        int slot = findSlot(key, hash);
+        if (slot < 0) {
+            return null;
+        }
+
+        int offset = getSlotOffset(slot);
+        int keySize = buffer.getShort(offset + SLOT_KEY_SIZE_OFFSET) & 0xffff;
+        int valueSize = buffer.getShort(offset + SLOT_VALUE_SIZE_OFFSET) & 0xffff;
+        byte[] value = readBytes(buffer, offset + SLOT_HEADER_SIZE + keySize, valueSize);
+        buffer.putLong(offset + SLOT_CLOCK_OFFSET, tick());
+        return decode(value);
+    }
+
+    // Returns false if the entry is too large to be stored.
+    synchronized boolean put(String key, String value) {
+        byte[] keyBytes = encode(key);
+        byte[] valueBytes = encode(value);
+        if (SLOT_HEADER_SIZE + keyBytes.length + valueBytes.length > slotSize) {
+            return false;
+        }
+
+        int hash = key.hashCode();
+        if (findSlot(key, hash) < 0 && entryCount >= maxEntryCount) {
+            evict();
+        }
+        if (entryCount + deletedCount >= slotCount * 3 / 4) {
+            rebuild();
+        }
+
+        // An existing entry is only deleted once its replacement is written, so that a crash
+        // in between can't lose both
+        int existing = findSlot(key, hash);
+        int slot = findFreeSlot(hash);
+        writeSlot(buffer, getSlotOffset(slot), hash, tick(), keyBytes, valueBytes);
+        entryCount++;
+        if (existing >= 0) {
+            delete(existing);
+        }
+        return true;
+    }
+
+    synchronized void remove(String key) {
+        int slot = findSlot(key, key.hashCode());
+        if (slot >= 0) {
+            delete(slot);
+        }
+    }
+
+    synchronized void clear() {
+        for (int slot = 0; slot < slotCount; slot++) {
+            buffer.put(getSlotOffset(slot), STATE_EMPTY);
+        }
+        entryCount = 0;
+        deletedCount = 0;
+    }
+
+    synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    private void open() throws IOException {
+        long length = HEADER_SIZE + (long) slotCount * slotSize;
+        boolean isNew = !file.exists() || file.length() != length;
+        buffer = map(file, length);
+
+        if (isNew
+                || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION
+                || buffer.getInt(8) != slotCount
+                || buffer.getInt(12) != slotSize) {
+            Logger.log(LoggingBehavior.CACHE, TAG, "Creating pack file " + file.getName());
+            for (int slot = 0; slot < slotCount; slot++) {
+                buffer.put(getSlotOffset(slot), STATE_EMPTY);
+            }
+            writeHeader(buffer, 0);
+        }
+
+        clock = buffer.getLong(HEADER_CLOCK_OFFSET);
+        entryCount = 0;
+        deletedCount = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            byte state = buffer.get(getSlotOffset(slot));
+            if (state == STATE_OCCUPIED && !isSlotValid(getSlotOffset(slot))) {
+                Logger.log(LoggingBehavior.CACHE, TAG, "Dropping torn slot " + slot);
+                buffer.put(getSlotOffset(slot), STATE_DELETED);
+                state = STATE_DELETED;
+            }
+            if (state == STATE_OCCUPIED) {
+                entryCount++;
+            } else if (state == STATE_DELETED) {
+                deletedCount++;
+            }
+        }
+    }
+
+    // Returns the slot holding the key, or -1.
+    private int findSlot(String key, int hash) {
+        byte[] keyBytes = null;
+        int slot = getHomeSlot(hash);
+        for (int probes = 0; probes < slotCount; probes++) {
+            int offset = getSlotOffset(slot);
+            byte state = buffer.get(offset);
+            if (state == STATE_EMPTY) {
+                return -1;
+            }
+            if (state == STATE_OCCUPIED && buffer.getInt(offset + SLOT_HASH_OFFSET) == hash) {
+                if (keyBytes == null) {
+                    keyBytes = encode(key);
+                }
+                if (isKeyInSlot(offset, keyBytes)) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) % slotCount;
+        }
+        return -1;
+    }
+
+    private int findFreeSlot(int hash) {
+        int slot = getHomeSlot(hash);
+        while (buffer.get(getSlotOffset(slot)) == STATE_OCCUPIED) {
+            slot = (slot + 1) % slotCount;
+        }
+        if (buffer.get(getSlotOffset(slot)) == STATE_DELETED) {
+            deletedCount--;
+        }
+        return slot;
+    }
+
+    private boolean isKeyInSlot(int offset, byte[] keyBytes) {
+        int keySize = buffer.getShort(offset + SLOT_KEY_SIZE_OFFSET) & 0xffff;
+        if (keySize != keyBytes.length) {
+            return false;
+        }
+        if (!Arrays.equals(keyBytes, readBytes(buffer, offset + SLOT_HEADER_SIZE, keySize))) {
+            return false;
+        }
+        return isSlotValid(offset);
+    }
+
+    private boolean isSlotValid(int offset) {
+        int keySize = buffer.getShort(offset + SLOT_KEY_SIZE_OFFSET) & 0xffff;
+        int valueSize = buffer.getShort(offset + SLOT_VALUE_SIZE_OFFSET) & 0xffff;
+        if (SLOT_HEADER_SIZE + keySize + valueSize > slotSize) {
+            return false;
+        }
+        return buffer.getInt(offset + SLOT_CRC_OFFSET)
+                == computeCrc(buffer, offset, keySize + valueSize);
+    }
+
+    private void delete(int slot) {
+        buffer.put(getSlotOffset(slot), STATE_DELETED);
+        entryCount--;
+        deletedCount++;
+    }
+
+    private void evict() {
+        int oldestSlot = -1;
+        long oldestClock = Long.MAX_VALUE;
+        int sampled = 0;
+        for (int probes = 0; probes < slotCount && sampled < EVICTION_SAMPLE_SIZE; probes++) {
+            int offset = getSlotOffset(evictionHand);
+            if (buffer.get(offset) == STATE_OCCUPIED) {
+                sampled++;
+                long slotClock = buffer.getLong(offset + SLOT_CLOCK_OFFSET);
+                if (slotClock < oldestClock) {
+                    oldestClock = slotClock;
+                    oldestSlot = evictionHand;
+                }
+            }
+            evictionHand = (evictionHand + 1) % slotCount;
+        }
+        if (oldestSlot >= 0) {
+            Logger.log(LoggingBehavior.CACHE, TAG, "Evicting slot " + oldestSlot);
+            delete(oldestSlot);
+        }
+    }
+
+    // Rehashes the live entries into a new file without tombstones, and swaps it in.
+    private void rebuild() {
+        File rebuiltFile = new File(file.getPath() + ".tmp");
+        try {
+            long length = HEADER_SIZE + (long) slotCount * slotSize;
+            rebuiltFile.delete();
+            MappedByteBuffer rebuilt = map(rebuiltFile, length);
+            writeHeader(rebuilt, clock);
+
+            for (int slot = 0; slot < slotCount; slot++) {
+                int offset = getSlotOffset(slot);
+                if (buffer.get(offset) != STATE_OCCUPIED) {
+                    continue;
+                }
+                int hash = buffer.getInt(offset + SLOT_HASH_OFFSET);
+                int target = getHomeSlot(hash);
+                while (rebuilt.get(getSlotOffset(target)) == STATE_OCCUPIED) {
+                    target = (target + 1) % slotCount;
+                }
+                int targetOffset = getSlotOffset(target);
+                writeBytes(rebuilt, targetOffset + 1, readBytes(buffer, offset + 1, slotSize - 1));
+                rebuilt.put(targetOffset, STATE_OCCUPIED);
+            }
+            rebuilt.force();
+
+            if (!rebuiltFile.renameTo(file)) {
+                throw new IOException("Could not rename " + rebuiltFile.getAbsolutePath());
+            }
+            buffer = rebuilt;
+            deletedCount = 0;
+        } catch (IOException e) {
+            // Keep going with the tombstones; probes just get longer
+            Logger.log(LoggingBehavior.CACHE, Log.WARN, TAG, "Rebuild failed " + e);
+            rebuiltFile.delete();
+        }
+    }
+
+    private void writeSlot(
+            MappedByteBuffer target,
+            int offset,
+            int hash,
+            long slotClock,
+            byte[] keyBytes,
+            byte[] valueBytes) {
+        target.putInt(offset + SLOT_HASH_OFFSET, hash);
+        target.putLong(offset + SLOT_CLOCK_OFFSET, slotClock);
+        target.putShort(offset + SLOT_KEY_SIZE_OFFSET, (short) keyBytes.length);
+        target.putShort(offset + SLOT_VALUE_SIZE_OFFSET, (short) valueBytes.length);
+        writeBytes(target, offset + SLOT_HEADER_SIZE, keyBytes);
+        writeBytes(target, offset + SLOT_HEADER_SIZE + keyBytes.length, valueBytes);
+        target.putInt(
+                offset + SLOT_CRC_OFFSET,
+                computeCrc(target, offset, keyBytes.length + valueBytes.length));
+        // Last, so that the slot only becomes visible once it is complete
+        target.put(offset, STATE_OCCUPIED);
+    }
+
+    private void writeHeader(MappedByteBuffer target, long headerClock) {
+        target.putInt(0, MAGIC);
+        target.putInt(4, VERSION);
+        target.putInt(8, slotCount);
+        target.putInt(12, slotSize);
+        target.putLong(HEADER_CLOCK_OFFSET, headerClock);
+    }
+
+    private long tick() {
+        clock++;
+        buffer.putLong(HEADER_CLOCK_OFFSET, clock);
+        return clock;
+    }
+
+    private int getHomeSlot(int hash) {
+        // Spread the bits, since String hashes of similar urls differ mostly in the low bits
+        int spread = hash ^ (hash >>> 16);
+        return (spread & 0x7fffffff) % slotCount;
+    }
+
+    private int getSlotOffset(int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    private static int computeCrc(MappedByteBuffer source, int offset, int dataSize) {
+        CRC32 crc = new CRC32();
+        int hash = source.getInt(offset + SLOT_HASH_OFFSET);
+        crc.update(hash >>> 24);
+        crc.update(hash >>> 16);
+        crc.update(hash >>> 8);
+        crc.update(hash);
+        crc.update(readBytes(source, offset + SLOT_HEADER_SIZE, dataSize));
+        return (int) crc.getValue();
+    }
+
+    // Absolute bulk reads and writes, which the buffer itself only offers relative to its position
+    private static byte[] readBytes(MappedByteBuffer source, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = source.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(MappedByteBuffer target, int offset, byte[] bytes) {
+        ByteBuffer view = target.duplicate();
+        view.position(offset);
+        view.put(bytes);
+    }
+
+    private static MappedByteBuffer map(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = null;
+        File directory = file.getParentFile();
+        if (directory != null) {
+            directory.mkdirs();
+        }
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(length);
+            // The mapping stays valid after the file is closed
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            Utility.closeQuietly(randomAccessFile);
+        }
+    }
+
+    private static byte[] encode(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
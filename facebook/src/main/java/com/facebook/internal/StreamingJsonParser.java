@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.internal;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * com.facebook.internal is solely for the use of other packages within the
+ * Facebook SDK for Android. Use of any of the classes in this package is
+ * unsupported, and they may be modified or removed without warning at any time.
+ *
+ * Builds org.json values straight from a {@link JsonReader}, so that a response never has to be
+ * held in memory as a String before it is parsed.
+ */
+public final class StreamingJsonParser {
+    private StreamingJsonParser() {
+    }
+
+    /**
+     * Reads the next value from the reader.
+     * @param reader the reader, positioned before a value
+     * @return a JSONObject, JSONArray, String, Boolean, Integer, Long, Double or JSONObject.NULL,
+     * just like JSONTokener.nextValue() would return for the same input
+     * @throws IOException if the stream could not be read or is malformed
+     * @throws JSONException if the value can not be represented with org.json
+     */
+    public static Object readValue(JsonReader reader) throws IOException, JSONException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return readNumber(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                throw new IOException("Unexpected token " + token);
+        }
+    }
+
+    public static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject jsonObject = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            jsonObject.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return jsonObject;
+    }
+
+    public static JSONArray readArray(JsonReader reader) throws IOException, JSONException {
+        JSONArray jsonArray = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            jsonArray.put(readValue(reader));
+        }
+        reader.endArray();
+        return jsonArray;
+    }
+
+    // Mirrors the number handling of JSONTokener: integral values become an Integer when they
+    // fit and a Long otherwise, everything else becomes a Double.
+    private static Object readNumber(String literal) {
+        if (literal.indexOf('.') == -1 && literal.indexOf('e') == -1
+                && literal.indexOf('E') == -1) {
+            try {
+                long longValue = Long.parseLong(literal);
+                if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+                    return (int) longValue;
+                }
+                return longValue;
+            } catch (NumberFormatException e) {
+                // Too large for a long, fall through to double
+            }
+        }
+
+        try {
+            return Double.valueOf(literal);
+        } catch (NumberFormatException e) {
+            // Lenient readers may hand us unquoted literals, which JSONTokener keeps as strings
+            return literal;
+        }
+    }
+}
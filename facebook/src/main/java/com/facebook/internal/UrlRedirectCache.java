@@ -22,12 +22,12 @@ package com.facebook.internal;
 
 import android.net.Uri;
 import android.util.Log;
+
+import com.facebook.FacebookSdk;
 import com.facebook.LoggingBehavior;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 
 /**
  * com.facebook.internal is solely for the use of other packages within the Facebook SDK for
@@ -36,13 +36,27 @@ import java.io.OutputStream;
  */
 class UrlRedirectCache {
     static final String TAG = UrlRedirectCache.class.getSimpleName();
-    private static final String REDIRECT_CONTENT_TAG = TAG + "_Redirect";
+    private static final String PACK_FILE_NAME = TAG + ".pack";
+    // Room for as many redirects as the FileLruCache they used to be stored in held, with each
+    // redirect's two urls taking up to 744 bytes.
+    private static final int PACK_FILE_SLOT_COUNT = 2048;
+    private static final int PACK_FILE_SLOT_SIZE = 768;
 
-    private volatile static FileLruCache urlRedirectCache;
+    private volatile static PackFileCache urlRedirectCache;
 
-    synchronized static FileLruCache getCache() throws IOException{
+    synchronized static PackFileCache getCache() throws IOException{
         if (urlRedirectCache == null) {
-            urlRedirectCache = new FileLruCache(TAG, new FileLruCache.Limits());
+            // Redirects used to be stored as a file each in a FileLruCache. They are simply
+            // learned again rather than migrated.
+            File legacyDirectory = new File(FacebookSdk.getCacheDir(), TAG);
+            if (legacyDirectory.exists()) {
+                Utility.deleteDirectory(legacyDirectory);
+            }
+
+            urlRedirectCache = new PackFileCache(
+                    new File(FacebookSdk.getCacheDir(), PACK_FILE_NAME),
+                    PACK_FILE_SLOT_COUNT,
+                    PACK_FILE_SLOT_SIZE);
         }
         return urlRedirectCache;
     }
@@ -53,34 +67,21 @@ class UrlRedirectCache {
         }
 
         String uriString = uri.toString();
-        InputStreamReader reader = null;
         try {
-            InputStream stream;
-            FileLruCache cache = getCache();
+            PackFileCache cache = getCache();
             boolean redirectExists = false;
-            while ((stream = cache.get(uriString, REDIRECT_CONTENT_TAG)) != null) {
+            String redirectedUriString;
+            while ((redirectedUriString = cache.get(uriString)) != null) {
                 redirectExists = true;
 
-                // Get the redirected url
-                reader = new InputStreamReader(stream);
-                char[] buffer = new char[128];
-                int bufferLength;
-                StringBuilder urlBuilder = new StringBuilder();
-                while ((bufferLength = reader.read(buffer, 0, buffer.length)) > 0) {
-                    urlBuilder.append(buffer, 0, bufferLength);
-                }
-                Utility.closeQuietly(reader);
-
                 // Iterate to the next url in the redirection
-                uriString = urlBuilder.toString();
+                uriString = redirectedUriString;
             }
 
             if (redirectExists) {
                 return Uri.parse(uriString);
             }
         } catch (IOException ioe) {
-        } finally {
-            Utility.closeQuietly(reader);
         }
 
         return null;
@@ -91,21 +92,17 @@ class UrlRedirectCache {
             return;
         }
 
-        OutputStream redirectStream = null;
         try {
-            FileLruCache cache = getCache();
-            redirectStream = cache.openPutStream(fromUri.toString(), REDIRECT_CONTENT_TAG);
-            redirectStream.write(toUri.toString().getBytes());
+            // Caching is best effort, so a redirect too long to be stored is not cached
+            getCache().put(fromUri.toString(), toUri.toString());
         } catch (IOException e) {
             // Caching is best effort
-        } finally {
-            Utility.closeQuietly(redirectStream);
         }
     }
 
     static void clearCache() {
         try {
-            getCache().clearCache();
+            getCache().clear();
         } catch (IOException e) {
             Logger.log(LoggingBehavior.CACHE, Log.WARN, TAG, "clearCache failed " + e.getMessage());
         }
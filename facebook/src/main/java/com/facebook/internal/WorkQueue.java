@@ -20,10 +20,31 @@
 
 package com.facebook.internal;
 
+import android.os.SystemClock;
+
 import com.facebook.FacebookSdk;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.Executor;
 
+// Pending items are kept by descending priority.  Within a priority, items are grouped by their
+// fairness tag, and the tags take turns so that one caller queueing many items can't hold back
+// another caller's items.  Items of one tag run in list order, with items added to the front
+// (the default) running before older ones.  Items with no tag, the same priority and no timeout
+// behave exactly like the plain queue this used to be.
+//
+// The number of items of one tag that run at the same time can be capped, in which case the tag
+// sits out its turns while it is at the cap.  Items with no tag are never capped.
+//
+// An item that has not started by its timeout is dropped when it comes up to run, and its expired
+// callback is invoked in its place.
+
 /**
  * com.facebook.internal is solely for the use of other packages within the Facebook SDK for
  * Android. Use of any of the classes in this package is unsupported, and they may be modified or
@@ -32,14 +53,30 @@ import java.util.concurrent.Executor;
 public class WorkQueue {
     public static final int DEFAULT_MAX_CONCURRENT = 8;
 
+    public static final int PRIORITY_LOW = -10;
+    public static final int PRIORITY_DEFAULT = 0;
+    public static final int PRIORITY_HIGH = 10;
+
+    public static final long NO_TIMEOUT = 0;
+
     private final Object workLock = new Object();
-    private WorkNode pendingJobs;
+    private final TreeMap<Integer, PriorityLevel> pendingLevels =
+            new TreeMap<Integer, PriorityLevel>(Collections.<Integer>reverseOrder());
+    private int pendingCount = 0;
 
-    private final int maxConcurrent;
+    private int maxConcurrent;
+    private int maxConcurrentPerTag = Integer.MAX_VALUE;
     private final Executor executor;
 
     private WorkNode runningJobs = null;
     private int runningCount = 0;
+    private final Map<Object, Integer> runningCountsByTag = new HashMap<Object, Integer>();
+
+    private long completedCount = 0;
+    private long expiredCount = 0;
+    private long totalWaitMillis = 0;
+    private long maxWaitMillis = 0;
+    private long totalRunMillis = 0;
 
     public WorkQueue() {
         this(DEFAULT_MAX_CONCURRENT);
@@ -59,15 +96,100 @@ public class WorkQueue {
     }
 
     public WorkItem addActiveWorkItem(Runnable callback, boolean addToFront) {
-        WorkNode node = new WorkNode(callback);
+        return addActiveWorkItem(callback, addToFront, PRIORITY_DEFAULT, null, NO_TIMEOUT, null);
+    }
+
+    public WorkItem addActiveWorkItem(Runnable callback, int priority) {
+        return addActiveWorkItem(callback, true, priority, null, NO_TIMEOUT, null);
+    }
+
+    /**
+     * Adds an item to the queue.
+     * @param callback the work to run
+     * @param addToFront whether the item runs before, rather than after, the pending items of
+     *                   the same priority and fairness tag
+     * @param priority items of higher priority run before items of lower priority
+     * @param fairnessTag pending items of the same priority take turns between fairness tags,
+     *                    may be null
+     * @param timeoutMillis if the item has not started this many milliseconds after being added,
+     *                      it is dropped, or NO_TIMEOUT
+     * @param expiredCallback invoked instead of callback when the item is dropped, may be null
+     * @return the item, which can be cancelled or reprioritized while it is pending
+     */
+    public WorkItem addActiveWorkItem(
+            Runnable callback,
+            boolean addToFront,
+            int priority,
+            Object fairnessTag,
+            long timeoutMillis,
+            Runnable expiredCallback) {
+        long now = SystemClock.uptimeMillis();
+        WorkNode node = new WorkNode(
+                callback,
+                priority,
+                fairnessTag,
+                (timeoutMillis > 0) ? now + timeoutMillis : Long.MAX_VALUE,
+                expiredCallback);
+        node.addedTime = now;
         synchronized (workLock) {
-            pendingJobs = node.addToList(pendingJobs, addToFront);
+            addPending(node, addToFront);
         }
 
         startItem();
         return node;
     }
 
+    public int getMaxConcurrent() {
+        synchronized (workLock) {
+            return maxConcurrent;
+        }
+    }
+
+    /**
+     * Changes how many items may run at the same time. Raising it starts pending items right
+     * away, while lowering it lets running items finish.
+     * @param maxConcurrent the new limit
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        synchronized (workLock) {
+            this.maxConcurrent = maxConcurrent;
+        }
+
+        startItems();
+    }
+
+    public int getMaxConcurrentPerTag() {
+        synchronized (workLock) {
+            return maxConcurrentPerTag;
+        }
+    }
+
+    /**
+     * Caps how many items with the same fairness tag may run at the same time. Items with no
+     * fairness tag are not capped.
+     * @param maxConcurrentPerTag the new cap
+     */
+    public void setMaxConcurrentPerTag(int maxConcurrentPerTag) {
+        synchronized (workLock) {
+            this.maxConcurrentPerTag = maxConcurrentPerTag;
+        }
+
+        startItems();
+    }
+
+    public Stats getStats() {
+        synchronized (workLock) {
+            return new Stats(
+                    pendingCount,
+                    runningCount,
+                    completedCount,
+                    expiredCount,
+                    totalWaitMillis,
+                    maxWaitMillis,
+                    totalRunMillis);
+        }
+    }
+
     public void validate() {
         synchronized (workLock) {
             // Verify that all running items know they are running, and counts match
@@ -83,6 +205,33 @@ public class WorkQueue {
             }
 
             assert runningCount == count;
+
+            int taggedCount = 0;
+            for (Integer tagCount : runningCountsByTag.values()) {
+                assert tagCount > 0;
+                taggedCount += tagCount;
+            }
+            assert taggedCount <= runningCount;
+
+            // Verify that all pending items are filed under their priority and tag
+            count = 0;
+            for (Map.Entry<Integer, PriorityLevel> entry : pendingLevels.entrySet()) {
+                PriorityLevel level = entry.getValue();
+                assert level.turns.size() == level.tagQueues.size();
+                for (TagQueue tagQueue : level.turns) {
+                    assert level.tagQueues.get(tagQueue.tag) == tagQueue;
+                    WorkNode walk = tagQueue.items;
+                    do {
+                        walk.verify(false);
+                        assert walk.priority == entry.getKey();
+                        assert walk.fairnessTag == tagQueue.tag;
+                        count++;
+                        walk = walk.getNext();
+                    } while (walk != tagQueue.items);
+                }
+            }
+
+            assert pendingCount == count;
         }
     }
 
@@ -90,26 +239,73 @@ public class WorkQueue {
         finishItemAndStartNew(null);
     }
 
-    private void finishItemAndStartNew(WorkNode finished) {
+    private void startItems() {
+        while (finishItemAndStartNew(null)) {
+        }
+    }
+
+    // Returns whether an item was started
+    private boolean finishItemAndStartNew(WorkNode finished) {
         WorkNode ready = null;
+        List<WorkNode> expired = null;
 
         synchronized (workLock) {
+            long now = SystemClock.uptimeMillis();
             if (finished != null) {
                 runningJobs = finished.removeFromList(runningJobs);
                 runningCount--;
+                if (finished.fairnessTag != null) {
+                    int tagCount = runningCountsByTag.get(finished.fairnessTag) - 1;
+                    if (tagCount > 0) {
+                        runningCountsByTag.put(finished.fairnessTag, tagCount);
+                    } else {
+                        runningCountsByTag.remove(finished.fairnessTag);
+                    }
+                }
+
+                completedCount++;
+                totalRunMillis += now - finished.startTime;
             }
 
-            if (runningCount < maxConcurrent) {
-                ready = pendingJobs; // Head of the pendingJobs queue
-                if (ready != null) {
-                    // The Queue reassignments are necessary since 'ready' might have been
-                    // added / removed from the front of either queue, which changes its
-                    // respective head.
-                    pendingJobs = ready.removeFromList(pendingJobs);
-                    runningJobs = ready.addToList(runningJobs, false);
-                    runningCount++;
-
-                    ready.setIsRunning(true);
+            while (runningCount < maxConcurrent && pendingCount > 0) {
+                WorkNode next = takeNextPending();
+                if (next == null) {
+                    // Every pending item's tag is at its cap
+                    break;
+                }
+                if (next.deadline <= now) {
+                    next.isExpired = true;
+                    expiredCount++;
+                    if (expired == null) {
+                        expired = new ArrayList<WorkNode>();
+                    }
+                    expired.add(next);
+                    continue;
+                }
+
+                ready = next;
+                runningJobs = ready.addToList(runningJobs, false);
+                runningCount++;
+                if (ready.fairnessTag != null) {
+                    Integer tagCount = runningCountsByTag.get(ready.fairnessTag);
+                    runningCountsByTag.put(
+                            ready.fairnessTag,
+                            (tagCount != null) ? tagCount + 1 : 1);
+                }
+
+                ready.setIsRunning(true);
+                ready.startTime = now;
+                long waitMillis = now - ready.addedTime;
+                totalWaitMillis += waitMillis;
+                maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+                break;
+            }
+        }
+
+        if (expired != null) {
+            for (WorkNode node : expired) {
+                if (node.expiredCallback != null) {
+                    node.expiredCallback.run();
                 }
             }
         }
@@ -117,6 +313,7 @@ public class WorkQueue {
         if (ready != null) {
             execute(ready);
         }
+        return ready != null;
     }
 
     private void execute(final WorkNode node) {
@@ -132,21 +329,115 @@ public class WorkQueue {
         });
     }
 
+    // Must be called with workLock held
+    private void addPending(WorkNode node, boolean addToFront) {
+        PriorityLevel level = pendingLevels.get(node.priority);
+        if (level == null) {
+            level = new PriorityLevel();
+            pendingLevels.put(node.priority, level);
+        }
+
+        TagQueue tagQueue = level.tagQueues.get(node.fairnessTag);
+        if (tagQueue == null) {
+            tagQueue = new TagQueue(node.fairnessTag);
+            level.tagQueues.put(node.fairnessTag, tagQueue);
+        } else if (addToFront) {
+            level.turns.remove(tagQueue);
+        } else {
+            tagQueue.items = node.addToList(tagQueue.items, false);
+            pendingCount++;
+            return;
+        }
+
+        // A new tag, or one with an item added to its front, takes the next turn when adding to
+        // the front, and the last one otherwise.
+        if (addToFront) {
+            level.turns.addFirst(tagQueue);
+        } else {
+            level.turns.addLast(tagQueue);
+        }
+        tagQueue.items = node.addToList(tagQueue.items, addToFront);
+        pendingCount++;
+    }
+
+    // Must be called with workLock held
+    private void removePending(WorkNode node) {
+        PriorityLevel level = pendingLevels.get(node.priority);
+        TagQueue tagQueue = level.tagQueues.get(node.fairnessTag);
+        tagQueue.items = node.removeFromList(tagQueue.items);
+        pendingCount--;
+
+        if (tagQueue.items == null) {
+            level.tagQueues.remove(node.fairnessTag);
+            level.turns.remove(tagQueue);
+            if (level.turns.isEmpty()) {
+                pendingLevels.remove(node.priority);
+            }
+        }
+    }
+
+    // Must be called with workLock held.  Returns null if no item may start.
+    private WorkNode takeNextPending() {
+        for (PriorityLevel level : pendingLevels.values()) {
+            for (TagQueue tagQueue : level.turns) {
+                if (!isAtCap(tagQueue.tag)) {
+                    WorkNode next = tagQueue.items;
+                    removePending(next);
+
+                    // Pass the turn on to the next tag
+                    if (tagQueue.items != null && level.turns.size() > 1) {
+                        level.turns.remove(tagQueue);
+                        level.turns.addLast(tagQueue);
+                    }
+
+                    return next;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    // Must be called with workLock held
+    private boolean isAtCap(Object fairnessTag) {
+        if (fairnessTag == null) {
+            return false;
+        }
+        Integer tagCount = runningCountsByTag.get(fairnessTag);
+        return tagCount != null && tagCount >= maxConcurrentPerTag;
+    }
+
     private class WorkNode implements WorkItem {
         private final Runnable callback;
+        private final Object fairnessTag;
+        private final long deadline;
+        private final Runnable expiredCallback;
+        private int priority;
         private WorkNode next;
         private WorkNode prev;
         private boolean isRunning;
-
-        WorkNode(Runnable callback) {
+        private boolean isExpired;
+        private long addedTime;
+        private long startTime;
+
+        WorkNode(
+                Runnable callback,
+                int priority,
+                Object fairnessTag,
+                long deadline,
+                Runnable expiredCallback) {
             this.callback = callback;
+            this.priority = priority;
+            this.fairnessTag = fairnessTag;
+            this.deadline = deadline;
+            this.expiredCallback = expiredCallback;
         }
 
         @Override
         public boolean cancel() {
             synchronized (workLock) {
-                if (!isRunning()) {
-                    pendingJobs = removeFromList(pendingJobs);
+                if (isPending()) {
+                    removePending(this);
                     return true;
                 }
             }
@@ -157,9 +448,20 @@ public class WorkQueue {
         @Override
         public void moveToFront() {
             synchronized (workLock) {
-                if (!isRunning()) {
-                    pendingJobs = removeFromList(pendingJobs);
-                    pendingJobs = addToList(pendingJobs, true);
+                if (isPending()) {
+                    removePending(this);
+                    addPending(this, true);
+                }
+            }
+        }
+
+        @Override
+        public void setPriority(int priority) {
+            synchronized (workLock) {
+                if (isPending() && this.priority != priority) {
+                    removePending(this);
+                    this.priority = priority;
+                    addPending(this, true);
                 }
             }
         }
@@ -169,6 +471,11 @@ public class WorkQueue {
             return isRunning;
         }
 
+        // Must be called with workLock held
+        private boolean isPending() {
+            return !isRunning && !isExpired && next != null;
+        }
+
         Runnable getCallback() {
             return callback;
         }
@@ -222,9 +529,92 @@ public class WorkQueue {
         }
     }
 
+    private static class PriorityLevel {
+        final Map<Object, TagQueue> tagQueues = new HashMap<Object, TagQueue>();
+        // The tag queues of this priority, in the order they take their turns
+        final ArrayDeque<TagQueue> turns = new ArrayDeque<TagQueue>();
+    }
+
+    private static class TagQueue {
+        final Object tag;
+        WorkNode items;
+
+        TagQueue(Object tag) {
+            this.tag = tag;
+        }
+    }
+
     public interface WorkItem {
         boolean cancel();
         boolean isRunning();
         void moveToFront();
+        void setPriority(int priority);
+    }
+
+    public static final class Stats {
+        private final int pendingCount;
+        private final int runningCount;
+        private final long completedCount;
+        private final long expiredCount;
+        private final long totalWaitMillis;
+        private final long maxWaitMillis;
+        private final long totalRunMillis;
+
+        Stats(
+                int pendingCount,
+                int runningCount,
+                long completedCount,
+                long expiredCount,
+                long totalWaitMillis,
+                long maxWaitMillis,
+                long totalRunMillis) {
+            this.pendingCount = pendingCount;
+            this.runningCount = runningCount;
+            this.completedCount = completedCount;
+            this.expiredCount = expiredCount;
+            this.totalWaitMillis = totalWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+            this.totalRunMillis = totalRunMillis;
+        }
+
+        public int getPendingCount() {
+            return pendingCount;
+        }
+
+        public int getRunningCount() {
+            return runningCount;
+        }
+
+        public long getCompletedCount() {
+            return completedCount;
+        }
+
+        public long getExpiredCount() {
+            return expiredCount;
+        }
+
+        public long getAverageWaitMillis() {
+            long startedCount = completedCount + runningCount;
+            return (startedCount > 0) ? totalWaitMillis / startedCount : 0;
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        public long getAverageRunMillis() {
+            return (completedCount > 0) ? totalRunMillis / completedCount : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "{pending:" + pendingCount
+                    + " running:" + runningCount
+                    + " completed:" + completedCount
+                    + " expired:" + expiredCount
+                    + " avgWaitMs:" + getAverageWaitMillis()
+                    + " maxWaitMs:" + maxWaitMillis
+                    + " avgRunMs:" + getAverageRunMillis() + "}";
+        }
     }
 }
@@ -440,6 +440,7 @@ public class ProfilePictureView extends FrameLayout {
 
         ImageRequest request = requestBuilder.setAllowCachedRedirects(allowCachedResponse)
                 .setCallerTag(this)
+                .setTargetSize(queryWidth, queryHeight)
                 .setCallback(
                 new ImageRequest.Callback() {
                     @Override
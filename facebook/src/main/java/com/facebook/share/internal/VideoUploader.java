@@ -176,7 +176,8 @@ public class VideoUploader {
                 uploadContext,
                 new StartUploadWorkItem(
                         uploadContext,
-                        completedRetries));
+                        completedRetries),
+                WorkQueue.PRIORITY_DEFAULT);
     }
 
     private static void enqueueUploadChunk(
@@ -190,7 +191,8 @@ public class VideoUploader {
                         uploadContext,
                         chunkStart,
                         chunkEnd,
-                        completedRetries));
+                        completedRetries),
+                WorkQueue.PRIORITY_LOW);
     }
 
     private static void enqueueUploadFinish(UploadContext uploadContext, int completedRetries) {
@@ -198,13 +200,17 @@ public class VideoUploader {
                 uploadContext,
                 new FinishUploadWorkItem(
                         uploadContext,
-                        completedRetries));
+                        completedRetries),
+                WorkQueue.PRIORITY_DEFAULT);
     }
 
+    // Chunk transfers are the long running part of an upload, so they yield to starting and
+    // finishing uploads.
     private static synchronized void enqueueRequest(
             UploadContext uploadContext,
-            Runnable workItem) {
-        uploadContext.workItem = uploadQueue.addActiveWorkItem(workItem);
+            Runnable workItem,
+            int priority) {
+        uploadContext.workItem = uploadQueue.addActiveWorkItem(workItem, priority);
     }
 
     private static byte[] getChunk(
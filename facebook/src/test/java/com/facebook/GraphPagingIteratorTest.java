@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import android.net.Uri;
+import android.os.AsyncTask;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public final class GraphPagingIteratorTest extends FacebookTestCase {
+    private static final int PAGE_COUNT = 3;
+    private static final int FAILING_PAGE = 1;
+
+    private final List<Runnable> queuedFetches = new ArrayList<Runnable>();
+    private final Executor recordingExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            queuedFetches.add(runnable);
+        }
+    };
+    private final Executor directExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    @Before
+    public void before() {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void after() {
+        FacebookSdk.setExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Test
+    public void testIteratesAllPagesForward() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        FacebookSdk.setExecutor(executor);
+        try {
+            FakePages pages = new FakePages(false);
+            GraphPagingIterator iterator = new GraphPagingIterator.Builder(pageRequest(0))
+                    .setPageFetcher(pages)
+                    .build();
+
+            assertEquals(Arrays.asList("00", "01", "10", "11", "20", "21"), drain(iterator));
+            assertEquals(Arrays.asList(0, 1, 2), pages.fetchedPages);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testIteratesBackward() throws Exception {
+        FacebookSdk.setExecutor(directExecutor);
+        FakePages pages = new FakePages(false);
+        GraphPagingIterator iterator = new GraphPagingIterator.Builder(pageRequest(2))
+                .setDirection(GraphResponse.PagingDirection.PREVIOUS)
+                .setPageFetcher(pages)
+                .build();
+
+        assertEquals(Arrays.asList("20", "21", "10", "11", "00", "01"), drain(iterator));
+    }
+
+    @Test
+    public void testStopsAtMaxItemCount() throws Exception {
+        FacebookSdk.setExecutor(directExecutor);
+        FakePages pages = new FakePages(false);
+        GraphPagingIterator iterator = new GraphPagingIterator.Builder(pageRequest(0))
+                .setMaxItemCount(3)
+                .setPageFetcher(pages)
+                .build();
+
+        assertEquals(Arrays.asList("00", "01", "10"), drain(iterator));
+        assertEquals(Arrays.asList(0, 1), pages.fetchedPages);
+    }
+
+    @Test
+    public void testPrefetchesUpToLookAhead() throws Exception {
+        FacebookSdk.setExecutor(recordingExecutor);
+        FakePages pages = new FakePages(false);
+        GraphPagingIterator iterator = new GraphPagingIterator.Builder(pageRequest(0))
+                .setLookAheadPages(2)
+                .setPageFetcher(pages)
+                .build();
+
+        runQueuedFetch();
+        runQueuedFetch();
+        // Both buffered pages are full, so nothing more is fetched until one is consumed
+        assertEquals(0, queuedFetches.size());
+
+        assertEquals("00", iterator.next().getString("id"));
+        assertEquals(1, queuedFetches.size());
+        runQueuedFetch();
+        assertEquals(Arrays.asList(0, 1, 2), pages.fetchedPages);
+
+        iterator.close();
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void testFailedPageIsThrownAfterEarlierItems() throws Exception {
+        FacebookSdk.setExecutor(directExecutor);
+        GraphPagingIterator iterator = new GraphPagingIterator.Builder(pageRequest(0))
+                .setPageFetcher(new FakePages(true))
+                .build();
+
+        assertEquals("00", iterator.next().getString("id"));
+        assertEquals("01", iterator.next().getString("id"));
+        try {
+            iterator.hasNext();
+            fail("expected a FacebookGraphResponseException");
+        } catch (FacebookGraphResponseException e) {
+            String failedUrl = e.getGraphResponse().getRequest().getUrlForSingleRequest();
+            assertEquals(pageUrl(FAILING_PAGE), failedUrl);
+        }
+    }
+
+    @Test
+    public void testFetcherExceptionIsThrownInsteadOfWaiting() throws Exception {
+        FacebookSdk.setExecutor(recordingExecutor);
+        final IllegalStateException failure = new IllegalStateException("no connection");
+        GraphPagingIterator iterator = new GraphPagingIterator.Builder(pageRequest(0))
+                .setPageFetcher(new GraphPagingIterator.PageFetcher() {
+                    @Override
+                    public GraphResponse fetch(GraphRequest request) {
+                        throw failure;
+                    }
+                })
+                .build();
+
+        runQueuedFetch();
+        try {
+            iterator.hasNext();
+            fail("expected a FacebookException");
+        } catch (FacebookException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    private void runQueuedFetch() {
+        queuedFetches.remove(0).run();
+    }
+
+    private static GraphRequest pageRequest(int page) throws Exception {
+        return new GraphRequest(null, new URL(pageUrl(page)));
+    }
+
+    private static String pageUrl(int page) {
+        return "https://graph.facebook.com/me/friends?page=" + page;
+    }
+
+    private static List<String> drain(GraphPagingIterator iterator) throws Exception {
+        List<String> ids = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().getString("id"));
+        }
+        return ids;
+    }
+
+    // Serves PAGE_COUNT pages of two items each, with paging links in both directions
+    private static final class FakePages implements GraphPagingIterator.PageFetcher {
+        private final boolean isFailing;
+        final List<Integer> fetchedPages = Collections.synchronizedList(new ArrayList<Integer>());
+
+        FakePages(boolean isFailing) {
+            this.isFailing = isFailing;
+        }
+
+        @Override
+        public GraphResponse fetch(GraphRequest request) {
+            int page = Integer.parseInt(
+                    Uri.parse(request.getUrlForSingleRequest()).getQueryParameter("page"));
+            fetchedPages.add(page);
+            if (isFailing && page == FAILING_PAGE) {
+                return new GraphResponse(
+                        request,
+                        null,
+                        new FacebookRequestError(null, new FacebookException("unavailable")));
+            }
+
+            try {
+                JSONArray data = new JSONArray();
+                data.put(new JSONObject().put("id", page + "0"));
+                data.put(new JSONObject().put("id", page + "1"));
+                JSONObject paging = new JSONObject();
+                if (page + 1 < PAGE_COUNT) {
+                    paging.put("next", pageUrl(page + 1));
+                }
+                if (page > 0) {
+                    paging.put("previous", pageUrl(page - 1));
+                }
+                JSONObject result = new JSONObject().put("data", data).put("paging", paging);
+                return new GraphResponse(request, null, result.toString(), result);
+            } catch (Exception e) {
+                throw new FacebookException(e);
+            }
+        }
+    }
+}
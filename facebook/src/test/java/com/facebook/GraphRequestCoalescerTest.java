@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import android.os.AsyncTask;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public final class GraphRequestCoalescerTest extends FacebookTestCase {
+    private static final long WINDOW = 100;
+
+    private final List<Runnable> executed = new ArrayList<Runnable>();
+
+    @Before
+    public void before() {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+        FacebookSdk.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.add(command);
+            }
+        });
+        GraphRequest.setAutoBatchingWindow(WINDOW);
+    }
+
+    @After
+    public void after() {
+        // Send anything still waiting, so that it doesn't carry over to the next test
+        ShadowLooper.idleMainLooper(WINDOW);
+        GraphRequest.setAutoBatchingWindow(0);
+        FacebookSdk.setExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Test
+    public void testRequestsWithinWindowAreSentTogether() throws Exception {
+        List<GraphResponse> responses = new ArrayList<GraphResponse>();
+        List<GraphRequestAsyncTask> tasks = new ArrayList<GraphRequestAsyncTask>();
+        for (int i = 0; i < 3; i++) {
+            tasks.add(newRequest(String.valueOf(i), responses).executeAsync());
+        }
+
+        assertEquals(3, GraphRequestCoalescer.getPendingCount(Looper.getMainLooper()));
+        assertEquals(0, executed.size());
+        for (GraphRequestAsyncTask task : tasks) {
+            assertEquals(AsyncTask.Status.PENDING, task.getStatus());
+        }
+
+        ShadowLooper.idleMainLooper(WINDOW);
+        assertEquals(0, GraphRequestCoalescer.getPendingCount(Looper.getMainLooper()));
+        // One batch for all three
+        assertEquals(1, executed.size());
+
+        runExecuted();
+        assertEquals(3, responses.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            List<GraphResponse> taskResponses = tasks.get(i).get();
+            assertEquals(1, taskResponses.size());
+            assertEquals(String.valueOf(i), taskResponses.get(0).getRequest().getGraphPath());
+        }
+    }
+
+    @Test
+    public void testFullBatchIsSentRightAway() {
+        for (int i = 0; i < GraphRequest.MAXIMUM_BATCH_SIZE; i++) {
+            newRequest(String.valueOf(i), null).executeAsync();
+        }
+
+        assertEquals(0, GraphRequestCoalescer.getPendingCount(Looper.getMainLooper()));
+        assertEquals(1, executed.size());
+
+        newRequest("next", null).executeAsync();
+        assertEquals(1, GraphRequestCoalescer.getPendingCount(Looper.getMainLooper()));
+    }
+
+    @Test
+    public void testOnlyPlainGetsAreCoalesced() {
+        GraphRequest post = newRequest("me/feed", null);
+        post.setHttpMethod(HttpMethod.POST);
+        post.executeAsync();
+        GraphRequest named = newRequest("me", null);
+        named.setBatchEntryName("me");
+        named.executeAsync();
+        GraphRequest retrying = newRequest("me", null);
+        retrying.setRetryPolicy(new GraphRequestRetryPolicy.Builder().build());
+        retrying.executeAsync();
+
+        assertEquals(0, GraphRequestCoalescer.getPendingCount(Looper.getMainLooper()));
+        assertEquals(3, executed.size());
+
+        GraphRequest.setAutoBatchingWindow(0);
+        newRequest("me", null).executeAsync();
+        assertEquals(0, GraphRequestCoalescer.getPendingCount(Looper.getMainLooper()));
+        assertEquals(4, executed.size());
+    }
+
+    @Test
+    public void testCancelledRequestsAreNotSent() {
+        List<GraphResponse> responses = new ArrayList<GraphResponse>();
+        GraphRequestAsyncTask cancelled = newRequest("cancelled", responses).executeAsync();
+        newRequest("sent", responses).executeAsync();
+        cancelled.cancel(false);
+
+        ShadowLooper.idleMainLooper(WINDOW);
+        runExecuted();
+
+        assertEquals(1, responses.size());
+        assertEquals("sent", responses.get(0).getRequest().getGraphPath());
+        assertTrue(cancelled.isCancelled());
+    }
+
+    // Runs everything executed so far, and anything that executes in turn
+    private void runExecuted() {
+        while (!executed.isEmpty()) {
+            executed.remove(0).run();
+        }
+    }
+
+    private static GraphRequest newRequest(String graphPath, final List<GraphResponse> responses) {
+        GraphRequest request = new GraphRequest(null, graphPath);
+        request.setCallback(new GraphRequest.Callback() {
+            @Override
+            public void onCompleted(GraphResponse response) {
+                if (responses != null) {
+                    responses.add(response);
+                }
+            }
+        });
+        return request;
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import bolts.Task;
+
+import static org.junit.Assert.*;
+
+public final class GraphRequestExecutorTest extends FacebookTestCase {
+    private GraphRequestExecutor executor;
+
+    @Before
+    public void before() {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void after() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCallbacksRunOnWorkerThreads() throws Exception {
+        executor = new GraphRequestExecutor.Builder().build();
+        final AtomicReference<String> callbackThread = new AtomicReference<String>();
+        GraphRequest request = new GraphRequest(null, "me");
+        request.setCallback(new GraphRequest.Callback() {
+            @Override
+            public void onCompleted(GraphResponse response) {
+                callbackThread.set(Thread.currentThread().getName());
+            }
+        });
+
+        Task<GraphResponse> task = executor.executeAsync(request);
+        assertTrue(task.waitForCompletion(10, TimeUnit.SECONDS));
+
+        assertFalse(task.isFaulted());
+        assertSame(request, task.getResult().getRequest());
+        assertTrue(callbackThread.get().startsWith("GraphRequestExecutor"));
+    }
+
+    @Test
+    public void testFutureResult() throws Exception {
+        executor = new GraphRequestExecutor.Builder().build();
+        GraphRequest request = new GraphRequest(null, "me");
+
+        List<GraphResponse> responses =
+                executor.submit(new GraphRequestBatch(request)).get(10, TimeUnit.SECONDS);
+
+        assertEquals(1, responses.size());
+        assertSame(request, responses.get(0).getRequest());
+    }
+
+    @Test
+    public void testRequestsPastTheBoundAreRejected() throws Exception {
+        executor = new GraphRequestExecutor.Builder()
+                .setThreadCount(1)
+                .setMaxInFlightRequests(2)
+                .build();
+
+        // Holds the only thread in its callback
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        GraphRequest blocking = new GraphRequest(null, "me");
+        blocking.setCallback(new GraphRequest.Callback() {
+            @Override
+            public void onCompleted(GraphResponse response) {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Task<GraphResponse> blockingTask = executor.executeAsync(blocking);
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+
+        Task<GraphResponse> queuedTask = executor.executeAsync(new GraphRequest(null, "me"));
+        assertEquals(2, executor.getInFlightCount());
+
+        Task<GraphResponse> rejectedTask = executor.executeAsync(new GraphRequest(null, "me"));
+        assertTrue(rejectedTask.isFaulted());
+        assertTrue(rejectedTask.getError() instanceof RejectedExecutionException);
+
+        Future<List<GraphResponse>> rejectedFuture =
+                executor.submit(new GraphRequestBatch(new GraphRequest(null, "me")));
+        try {
+            rejectedFuture.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        release.countDown();
+        assertTrue(blockingTask.waitForCompletion(10, TimeUnit.SECONDS));
+        assertTrue(queuedTask.waitForCompletion(10, TimeUnit.SECONDS));
+        assertFalse(queuedTask.isFaulted());
+    }
+}
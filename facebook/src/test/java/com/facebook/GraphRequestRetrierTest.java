@@ -0,0 +1,317 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public final class GraphRequestRetrierTest extends FacebookTestCase {
+    private static final String TRANSIENT_ERROR =
+            "{\"error\":{\"code\":2,\"message\":\"Service temporarily unavailable\"}}";
+    private static final String PERMANENT_ERROR =
+            "{\"error\":{\"code\":100,\"message\":\"Invalid parameter\"}}";
+
+    @Before
+    public void before() {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testOnlyFailedEntriesAreSentAgain() throws Exception {
+        GraphRequest succeeds = new GraphRequest(null, "a");
+        GraphRequest recovers = new GraphRequest(null, "b");
+        GraphRequest fails = new GraphRequest(null, "c");
+        GraphRequestBatch batch = new GraphRequestBatch(succeeds, recovers, fails);
+        batch.setRetryPolicy(newPolicy(3, 10));
+
+        FakeServer server = new FakeServer();
+        server.respond(ok(succeeds), error(recovers, 500, TRANSIENT_ERROR),
+                error(fails, 400, PERMANENT_ERROR));
+        server.respond(ok(recovers));
+
+        List<GraphResponse> responses = GraphRequestRetrier.sendWithRetries(batch, server);
+
+        assertEquals(2, server.sentBatches.size());
+        assertEquals(Arrays.asList(recovers), server.sentBatches.get(1));
+        assertNull(responses.get(0).getError());
+        assertNull(responses.get(1).getError());
+        assertEquals(100, responses.get(2).getError().getErrorCode());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+        GraphRequest request = new GraphRequest(null, "a");
+        request.setRetryPolicy(newPolicy(3, 10));
+
+        FakeServer server = new FakeServer();
+        for (int i = 0; i < 5; i++) {
+            server.respond(error(request, 500, TRANSIENT_ERROR));
+        }
+
+        List<GraphResponse> responses =
+                GraphRequestRetrier.sendWithRetries(new GraphRequestBatch(request), server);
+
+        assertEquals(3, server.sentBatches.size());
+        assertEquals(2, responses.get(0).getError().getErrorCode());
+    }
+
+    @Test
+    public void testRetryBudgetIsShared() throws Exception {
+        GraphRequestRetryPolicy policy = newPolicy(5, 1);
+        GraphRequest first = new GraphRequest(null, "a");
+        GraphRequest second = new GraphRequest(null, "b");
+        first.setRetryPolicy(policy);
+        second.setRetryPolicy(policy);
+
+        FakeServer server = new FakeServer();
+        server.respond(error(first, 500, TRANSIENT_ERROR), error(second, 500, TRANSIENT_ERROR));
+        for (int i = 0; i < 5; i++) {
+            server.respond(error(first, 500, TRANSIENT_ERROR));
+        }
+
+        GraphRequestRetrier.sendWithRetries(new GraphRequestBatch(first, second), server);
+
+        // One retry for both requests, and none left for another execution
+        assertEquals(2, server.sentBatches.size());
+        assertEquals(Arrays.asList(first), server.sentBatches.get(1));
+
+        server.sentBatches.clear();
+        server.respond(error(first, 500, TRANSIENT_ERROR));
+        GraphRequestRetrier.sendWithRetries(new GraphRequestBatch(first), server);
+        assertEquals(1, server.sentBatches.size());
+    }
+
+    @Test
+    public void testOnlyGetsAreRetriedWithoutAResponse() throws Exception {
+        GraphRequest get = new GraphRequest(null, "a");
+        GraphRequest post = new GraphRequest(null, "b", null, HttpMethod.POST);
+        GraphRequestBatch batch = new GraphRequestBatch(get, post);
+        batch.setRetryPolicy(newPolicy(3, 10));
+
+        FakeServer server = new FakeServer();
+        server.respond(unreachable(get), unreachable(post));
+        server.respond(ok(get));
+
+        List<GraphResponse> responses = GraphRequestRetrier.sendWithRetries(batch, server);
+
+        assertEquals(Arrays.asList(get), server.sentBatches.get(1));
+        assertNull(responses.get(0).getError());
+        assertNotNull(responses.get(1).getError());
+    }
+
+    @Test
+    public void testOnlyReplayableBodiesAreRetried() throws Exception {
+        File file = File.createTempFile("attachment", null);
+        file.deleteOnExit();
+        Bundle descriptorParameters = new Bundle();
+        descriptorParameters.putParcelable(
+                "source",
+                ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY));
+        GraphRequest descriptorPost =
+                new GraphRequest(null, "a", descriptorParameters, HttpMethod.POST);
+        Bundle bytesParameters = new Bundle();
+        bytesParameters.putByteArray("source", new byte[] {1, 2, 3});
+        GraphRequest bytesPost = new GraphRequest(null, "b", bytesParameters, HttpMethod.POST);
+        GraphRequestBatch batch = new GraphRequestBatch(descriptorPost, bytesPost);
+        batch.setRetryPolicy(newPolicy(3, 10));
+
+        FakeServer server = new FakeServer();
+        server.respond(
+                error(descriptorPost, 500, TRANSIENT_ERROR),
+                error(bytesPost, 500, TRANSIENT_ERROR));
+        server.respond(ok(bytesPost));
+
+        List<GraphResponse> responses = GraphRequestRetrier.sendWithRetries(batch, server);
+
+        assertEquals(Arrays.asList(bytesPost), server.sentBatches.get(1));
+        assertNotNull(responses.get(0).getError());
+        assertNull(responses.get(1).getError());
+    }
+
+    @Test
+    public void testBackoff() {
+        GraphRequestRetryPolicy policy = new GraphRequestRetryPolicy.Builder()
+                .setBackoff(100, 300, 2)
+                .setJitter(0)
+                .build();
+        assertEquals(100, policy.getBackoffMillis(1));
+        assertEquals(200, policy.getBackoffMillis(2));
+        assertEquals(300, policy.getBackoffMillis(3));
+
+        policy = new GraphRequestRetryPolicy.Builder()
+                .setBackoff(100, 300, 2)
+                .setJitter(0.5)
+                .build();
+        for (int i = 0; i < 20; i++) {
+            long backoff = policy.getBackoffMillis(1);
+            assertTrue(backoff >= 50 && backoff <= 100);
+        }
+    }
+
+    @Test
+    public void testRetriesTransientHttpErrors() throws Exception {
+        final AtomicInteger hits = new AtomicInteger();
+        GraphRequest request = new GraphRequest(null, "4");
+        request.setRetryPolicy(newPolicy(3, 10));
+
+        List<GraphResponse> responses = GraphRequestRetrier.sendWithRetries(
+                new GraphRequestBatch(request),
+                new GraphRequestRetrier.Sender() {
+                    @Override
+                    public List<GraphResponse> send(GraphRequestBatch requests) {
+                        boolean isUnavailable = hits.incrementAndGet() <= 2;
+                        HttpURLConnection connection = new ScriptedConnection(
+                                isUnavailable ? 503 : 200,
+                                isUnavailable ? TRANSIENT_ERROR : "{\"id\":\"4\"}");
+                        return GraphResponse.fromHttpConnection(connection, requests);
+                    }
+                });
+
+        assertEquals(3, hits.get());
+        assertNull(responses.get(0).getError());
+        assertEquals("4", responses.get(0).getJSONObject().optString("id"));
+    }
+
+    private static GraphRequestRetryPolicy newPolicy(int maxAttempts, int retryBudget) {
+        return new GraphRequestRetryPolicy.Builder()
+                .setMaxAttempts(maxAttempts)
+                .setBackoff(0, 0, 1)
+                .setRetryBudget(retryBudget, 0)
+                .build();
+    }
+
+    private static GraphResponse ok(GraphRequest request) {
+        return new GraphResponse(request, null, "{}", new JSONObject());
+    }
+
+    private static GraphResponse error(GraphRequest request, int statusCode, String body)
+            throws Exception {
+        JSONObject result = new JSONObject();
+        result.put("code", statusCode);
+        result.put("body", new JSONObject(body));
+        return new GraphResponse(
+                request,
+                null,
+                FacebookRequestError.checkResponseAndCreateError(result, null, null));
+    }
+
+    private static GraphResponse unreachable(GraphRequest request) {
+        return new GraphResponse(
+                request,
+                null,
+                new FacebookRequestError(null, new IOException("Connection refused")));
+    }
+
+    private static final class ScriptedConnection extends HttpURLConnection {
+        private final int statusCode;
+        private final String body;
+
+        ScriptedConnection(int statusCode, String body) {
+            super(null);
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        @Override
+        public void connect() {
+            connected = true;
+        }
+
+        @Override
+        public void disconnect() {
+            connected = false;
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return statusCode;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (statusCode >= 400) {
+                throw new IOException("HTTP " + statusCode);
+            }
+            return new ByteArrayInputStream(body.getBytes("UTF-8"));
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            try {
+                return statusCode >= 400 ? new ByteArrayInputStream(body.getBytes("UTF-8")) : null;
+            } catch (UnsupportedEncodingException e) {
+                return null;
+            }
+        }
+    }
+
+    // Answers each batch it is sent with the next scripted responses, picking out the ones for
+    // the requests in the batch
+    private static final class FakeServer implements GraphRequestRetrier.Sender {
+        private final LinkedList<List<GraphResponse>> scriptedResponses =
+                new LinkedList<List<GraphResponse>>();
+        final List<List<GraphRequest>> sentBatches = new ArrayList<List<GraphRequest>>();
+
+        void respond(GraphResponse... responses) {
+            scriptedResponses.add(Arrays.asList(responses));
+        }
+
+        @Override
+        public List<GraphResponse> send(GraphRequestBatch requests) {
+            sentBatches.add(new ArrayList<GraphRequest>(requests));
+            List<GraphResponse> script = scriptedResponses.removeFirst();
+            List<GraphResponse> responses = new ArrayList<GraphResponse>();
+            for (GraphRequest request : requests) {
+                for (GraphResponse response : script) {
+                    if (response.getRequest() == request) {
+                        responses.add(response);
+                    }
+                }
+            }
+            assertEquals(requests.size(), responses.size());
+            return responses;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import android.os.Bundle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.net.URLEncoder;
+
+import static org.junit.Assert.*;
+
+public class GraphRequestSerializerTest extends FacebookTestCase {
+    private static final String MESSAGE =
+            "héllo wörld 😀 & = + ? \ud800x / 中*._-~";
+
+    @Before
+    public void before() {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+        FacebookSdk.setApplicationId("1234");
+    }
+
+    @Test
+    public void testMultipartBodyIsUtf8() throws Exception {
+        Bundle parameters = new Bundle();
+        parameters.putString("message", MESSAGE);
+        parameters.putByteArray("data", new byte[] {1, 2, 3});
+        GraphRequest request = new GraphRequest(null, "me/feed", parameters, HttpMethod.POST);
+
+        byte[] bytes = TestUtils.serializeRequestBody(new GraphRequestBatch(request));
+        String body = new String(bytes, "UTF-8");
+
+        String expectedMessage = MESSAGE.replace('\ud800', '?');
+        assertTrue(body.startsWith("--"));
+        assertTrue(body.contains(
+                "Content-Disposition: form-data; name=\"message\"\r\n\r\n"
+                        + expectedMessage + "\r\n--"));
+        assertTrue(body.contains(
+                "Content-Disposition: form-data; name=\"data\"; filename=\"data\"\r\n"
+                        + "Content-Type: content/unknown\r\n\r\n"));
+    }
+
+    @Test
+    public void testUrlEncodedBodyMatchesUrlEncoder() throws Exception {
+        Bundle parameters = new Bundle();
+        parameters.putString("message", MESSAGE);
+        GraphRequest request = new GraphRequest(null, "me/feed", parameters, HttpMethod.POST);
+
+        byte[] bytes = TestUtils.serializeRequestBody(new GraphRequestBatch(request));
+        String body = new String(TestUtils.gunzip(bytes), "UTF-8");
+
+        assertTrue(body.contains("message=" + URLEncoder.encode(MESSAGE, "UTF-8") + "&"));
+    }
+
+    @Test
+    public void testLongValueIsNotTruncated() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append("中😀a");
+        }
+        String longValue = builder.toString();
+        Bundle parameters = new Bundle();
+        parameters.putString("message", longValue);
+        GraphRequest request = new GraphRequest(null, "me/feed", parameters, HttpMethod.POST);
+
+        byte[] bytes = TestUtils.serializeRequestBody(new GraphRequestBatch(request));
+        String body = new String(TestUtils.gunzip(bytes), "UTF-8");
+
+        assertTrue(body.contains("message=" + URLEncoder.encode(longValue, "UTF-8") + "&"));
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import android.os.AsyncTask;
+import android.os.Bundle;
+
+import com.facebook.internal.ServerProtocol;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public final class GraphResponseCacheTest extends FacebookTestCase {
+    private static final long TTL = 60 * 1000;
+
+    private final AccessToken userA = createAccessToken("tokenA", "A");
+    private final AccessToken userB = createAccessToken("tokenB", "B");
+
+    @Before
+    public void before() {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+        FacebookSdk.setApplicationId("1234");
+    }
+
+    @After
+    public void after() {
+        FacebookSdk.setGraphResponseDiskCacheEnabled(false);
+        FacebookSdk.setExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Test
+    public void testFieldsAreNormalized() {
+        assertEquals(
+                "id,name,picture.width(50){url,width}",
+                GraphResponseCache.normalizeFields(
+                        " name,picture.width(50){url,width}, id,,name"));
+    }
+
+    @Test
+    public void testCacheKeys() {
+        String key = GraphResponseCache.getCacheKey(
+                newRequest(userA, "me", "name,id", GraphRequest.CachePolicy.CACHE_FIRST));
+        assertNotNull(key);
+        assertFalse(key.contains("tokenA"));
+
+        // The fields in another order, the version in the path and the common parameters added
+        // when a request is sent don't matter
+        GraphRequest sameRequest = newRequest(
+                userA,
+                "/" + ServerProtocol.getAPIVersion() + "/me",
+                "id,name",
+                GraphRequest.CachePolicy.NETWORK_FIRST);
+        sameRequest.getParameters().putString("sdk", "android");
+        sameRequest.getParameters().putString(GraphRequest.ACCESS_TOKEN_PARAM, "tokenA2");
+        assertEquals(key, GraphResponseCache.getCacheKey(sameRequest));
+
+        // A refreshed token for the same user shares the key
+        AccessToken refreshedA = createAccessToken("tokenA2", "A");
+        assertEquals(key, GraphResponseCache.getCacheKey(
+                newRequest(refreshedA, "me", "id,name", GraphRequest.CachePolicy.CACHE_FIRST)));
+
+        assertFalse(key.equals(GraphResponseCache.getCacheKey(
+                newRequest(userB, "me", "id,name", GraphRequest.CachePolicy.CACHE_FIRST))));
+        assertFalse(key.equals(GraphResponseCache.getCacheKey(
+                newRequest(userA, "me", "id", GraphRequest.CachePolicy.CACHE_FIRST))));
+
+        assertNull(GraphResponseCache.getCacheKey(
+                newRequest(userA, "me", "id", GraphRequest.CachePolicy.NONE)));
+        GraphRequest post = newRequest(userA, "me", "id", GraphRequest.CachePolicy.CACHE_FIRST);
+        post.setHttpMethod(HttpMethod.POST);
+        assertNull(GraphResponseCache.getCacheKey(post));
+    }
+
+    @Test
+    public void testTimeToLive() {
+        GraphResponseCache cache = new GraphResponseCache(10, 1000);
+        GraphRequest request = newRequest(userA, "me", "id", GraphRequest.CachePolicy.CACHE_FIRST);
+        assertNull(cache.get(request));
+
+        cache.put(request, "{\"id\":\"A\"}");
+        GraphResponse response = cache.get(request);
+        assertNotNull(response);
+        assertSame(request, response.getRequest());
+        assertNull(response.getConnection());
+        assertEquals("A", response.getJSONObject().optString("id"));
+
+        request.setCachePolicy(GraphRequest.CachePolicy.CACHE_FIRST, 0);
+        assertNull(cache.get(request));
+    }
+
+    @Test
+    public void testMemoryTierIsBounded() {
+        GraphResponseCache cache = new GraphResponseCache(2, 20);
+        GraphRequest first = newRequest(userA, "1", "id", GraphRequest.CachePolicy.CACHE_FIRST);
+        GraphRequest second = newRequest(userA, "2", "id", GraphRequest.CachePolicy.CACHE_FIRST);
+        GraphRequest third = newRequest(userA, "3", "id", GraphRequest.CachePolicy.CACHE_FIRST);
+
+        cache.put(first, "{}");
+        cache.put(second, "{}");
+        assertNotNull(cache.get(first));
+        cache.put(third, "{}");
+        assertEquals(2, cache.getEntryCount());
+        assertNotNull(cache.get(first));
+        assertNull(cache.get(second));
+
+        // Too many characters
+        cache.put(second, "{\"n\":\"0123456789ab\"}");
+        assertEquals(1, cache.getEntryCount());
+        assertNull(cache.get(first));
+    }
+
+    @Test
+    public void testBatchesAreOnlyServedWhollyFromCache() {
+        GraphResponseCache cache = new GraphResponseCache(10, 1000);
+        GraphRequest cached = newRequest(userA, "1", "id", GraphRequest.CachePolicy.CACHE_FIRST);
+        GraphRequest missing = newRequest(userA, "2", "id", GraphRequest.CachePolicy.CACHE_FIRST);
+        cache.put(cached, "{}");
+
+        assertEquals(1, cache.getCachedResponses(new GraphRequestBatch(cached)).size());
+        assertNull(cache.getCachedResponses(new GraphRequestBatch(cached, missing)));
+
+        cache.put(missing, "{}");
+        assertEquals(2, cache.getCachedResponses(new GraphRequestBatch(cached, missing)).size());
+
+        missing.setCachePolicy(GraphRequest.CachePolicy.NETWORK_FIRST, TTL);
+        assertNull(cache.getCachedResponses(new GraphRequestBatch(cached, missing)));
+    }
+
+    @Test
+    public void testNetworkFirstFallsBackWhenServerIsUnavailable() throws Exception {
+        GraphResponseCache cache = new GraphResponseCache(10, 1000);
+        GraphRequest unreachable =
+                newRequest(userA, "1", "id", GraphRequest.CachePolicy.NETWORK_FIRST);
+        GraphRequest rejected =
+                newRequest(userA, "2", "id", GraphRequest.CachePolicy.NETWORK_FIRST);
+        GraphRequest succeeded =
+                newRequest(userA, "3", "id", GraphRequest.CachePolicy.NETWORK_FIRST);
+        cache.put(unreachable, "{\"id\":\"cached\"}");
+        cache.put(rejected, "{\"id\":\"cached\"}");
+
+        List<GraphResponse> responses = new ArrayList<GraphResponse>();
+        responses.add(new GraphResponse(
+                unreachable,
+                null,
+                new FacebookRequestError(null, new FacebookException("offline"))));
+        responses.add(new GraphResponse(
+                rejected,
+                null,
+                FacebookRequestError.checkResponseAndCreateError(
+                        new JSONObject("{\"code\":400,\"body\":"
+                                + "{\"error\":{\"code\":100,\"message\":\"rejected\"}}}"),
+                        null,
+                        null)));
+        responses.add(
+                new GraphResponse(succeeded, null, "{\"id\":\"new\"}", (JSONObject) null));
+
+        List<GraphResponse> processed = cache.processResponses(
+                new GraphRequestBatch(Arrays.asList(unreachable, rejected, succeeded)),
+                responses);
+
+        assertNull(processed.get(0).getError());
+        assertEquals("cached", processed.get(0).getJSONObject().optString("id"));
+        assertSame(responses.get(1), processed.get(1));
+        assertSame(responses.get(2), processed.get(2));
+        assertEquals("new", cache.get(succeeded).getJSONObject().optString("id"));
+    }
+
+    @Test
+    public void testDiskTierOutlivesMemoryTier() {
+        FacebookSdk.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+        FacebookSdk.setGraphResponseDiskCacheEnabled(true);
+        GraphRequest request = newRequest(userA, "me", "id", GraphRequest.CachePolicy.CACHE_FIRST);
+        GraphResponseCache cache = new GraphResponseCache(10, 1000);
+        cache.clear();
+        cache.put(request, "{\"id\":\"A\"}");
+
+        // As if the process had restarted
+        GraphResponseCache newCache = new GraphResponseCache(10, 1000);
+        assertEquals(0, newCache.getEntryCount());
+        assertEquals("A", newCache.get(request).getJSONObject().optString("id"));
+        assertEquals(1, newCache.getEntryCount());
+
+        newCache.clear();
+        assertEquals(0, newCache.getEntryCount());
+        assertNull(newCache.get(request));
+    }
+
+    @Test
+    public void testDiskTierIsClearedInTheBackground() {
+        final List<Runnable> backgroundWork = new ArrayList<Runnable>();
+        FacebookSdk.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                backgroundWork.add(runnable);
+            }
+        });
+        FacebookSdk.setGraphResponseDiskCacheEnabled(true);
+        GraphResponseCache cache = new GraphResponseCache(10, 1000);
+
+        cache.clear();
+
+        // The disk cache isn't even opened until the background work runs
+        assertNull(Whitebox.getInternalState(cache, "diskCache"));
+        assertEquals(1, backgroundWork.size());
+        backgroundWork.remove(0).run();
+        assertNotNull(Whitebox.getInternalState(cache, "diskCache"));
+    }
+
+    private static GraphRequest newRequest(
+            AccessToken accessToken,
+            String graphPath,
+            String fields,
+            GraphRequest.CachePolicy cachePolicy) {
+        Bundle parameters = new Bundle();
+        parameters.putString("fields", fields);
+        GraphRequest request = new GraphRequest(accessToken, graphPath, parameters, null);
+        request.setCachePolicy(cachePolicy, TTL);
+        return request;
+    }
+
+    private static AccessToken createAccessToken(String token, String userId) {
+        return new AccessToken(token, "1234", userId, null, null, null, null, null);
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class GraphResponseStreamingTest extends FacebookTestCase {
+    private static final GraphRequest.Callback NOOP_CALLBACK = new GraphRequest.Callback() {
+        @Override
+        public void onCompleted(GraphResponse response) {
+        }
+    };
+
+    @Before
+    public void before() {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+        FacebookSdk.setGraphResponseStreamingEnabled(true);
+    }
+
+    @After
+    public void after() {
+        FacebookSdk.setGraphResponseStreamingEnabled(false);
+    }
+
+    @Test
+    public void testSingleResponse() throws Exception {
+        String body = "{\"id\":\"4\",\"name\":\"Zuck\",\"count\":12,\"big\":12345678901," +
+                "\"ratio\":0.5,\"ok\":true,\"nothing\":null,\"list\":[1,\"a\"]}";
+        GraphRequestBatch batch = new GraphRequestBatch(new GraphRequest(null, "4"));
+
+        List<GraphResponse> responses =
+                GraphResponse.createResponsesFromStream(toStream(body), null, batch);
+
+        assertEquals(1, responses.size());
+        GraphResponse response = responses.get(0);
+        assertNull(response.getError());
+        JSONObject expected = new JSONObject(body);
+        JSONObject actual = response.getJSONObject();
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(12345678901L, actual.get("big"));
+        assertEquals(expected.toString(), response.getRawResponse());
+    }
+
+    @Test
+    public void testSingleNonJsonResponse() throws Exception {
+        GraphRequestBatch batch = new GraphRequestBatch(new GraphRequest(null, "4"));
+
+        List<GraphResponse> responses =
+                GraphResponse.createResponsesFromStream(toStream("true"), null, batch);
+
+        assertEquals(
+                true,
+                responses.get(0).getJSONObject().get(GraphResponse.NON_JSON_RESPONSE_PROPERTY));
+    }
+
+    @Test
+    public void testBatchResponseMatchesStringParsing() throws Exception {
+        JSONArray result = new JSONArray();
+        result.put(createBatchEntry(200, "{\"id\":\"1\"}"));
+        result.put(createBatchEntry(200, "[1,2,3]"));
+        result.put(createBatchEntry(
+                400,
+                "{\"error\":{\"message\":\"bad\",\"type\":\"OAuthException\",\"code\":100}}"));
+        result.put(JSONObject.NULL);
+
+        GraphRequest withCallback = new GraphRequest(null, "1", null, null, NOOP_CALLBACK);
+        GraphRequest withoutCallback = new GraphRequest(null, "2");
+        GraphRequest failing = new GraphRequest(null, "3");
+        GraphRequest omitted = new GraphRequest(null, "4");
+        GraphRequestBatch batch =
+                new GraphRequestBatch(withCallback, withoutCallback, failing, omitted);
+
+        List<GraphResponse> streamed =
+                GraphResponse.createResponsesFromStream(toStream(result.toString()), null, batch);
+        List<GraphResponse> parsed =
+                GraphResponse.createResponsesFromString(result.toString(), null, batch);
+
+        assertEquals(parsed.size(), streamed.size());
+        for (int i = 0; i < parsed.size(); i++) {
+            GraphResponse expected = parsed.get(i);
+            GraphResponse actual = streamed.get(i);
+            assertSame(expected.getRequest(), actual.getRequest());
+            assertEquals(String.valueOf(expected.getJSONObject()),
+                    String.valueOf(actual.getJSONObject()));
+            assertEquals(String.valueOf(expected.getJSONArray()),
+                    String.valueOf(actual.getJSONArray()));
+            assertEquals(expected.getRawResponse(), actual.getRawResponse());
+            assertEquals(expected.getError() == null, actual.getError() == null);
+        }
+        assertEquals(100, streamed.get(2).getError().getErrorCode());
+    }
+
+    @Test
+    public void testBatchWithWrongNumberOfResults() throws Exception {
+        JSONArray result = new JSONArray();
+        result.put(createBatchEntry(200, "{\"id\":\"1\"}"));
+        GraphRequestBatch batch = new GraphRequestBatch(
+                new GraphRequest(null, "1"),
+                new GraphRequest(null, "2"));
+
+        try {
+            GraphResponse.createResponsesFromStream(toStream(result.toString()), null, batch);
+            fail("expected FacebookException");
+        } catch (FacebookException e) {
+            // expected
+        }
+    }
+
+    private static JSONObject createBatchEntry(int code, String body) throws Exception {
+        JSONObject entry = new JSONObject();
+        entry.put("code", code);
+        entry.put("headers", new JSONArray());
+        entry.put("body", body);
+        return entry;
+    }
+
+    private static InputStream toStream(String string) throws Exception {
+        return new ByteArrayInputStream(string.getBytes("UTF-8"));
+    }
+}
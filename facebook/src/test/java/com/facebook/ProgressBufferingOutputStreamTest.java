@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ProgressBufferingOutputStreamTest extends FacebookTestCase {
+    private ProgressBufferingOutputStream stream;
+
+    @Before
+    public void before() throws Exception {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+        stream = new ProgressBufferingOutputStream(null);
+    }
+
+    @Test
+    public void testSetup() {
+        assertEquals(0, stream.getMaxProgress());
+        assertTrue(stream.getProgressMap().isEmpty());
+    }
+
+    @Test
+    public void testWritesInOrder() throws Exception {
+        GraphRequest first = new GraphRequest(null, "first");
+        GraphRequest second = new GraphRequest(null, "second");
+
+        stream.write(new byte[] {1, 2});
+        stream.setCurrentRequest(first);
+        stream.write(3);
+        stream.writeDeferred(new byte[] {4, 5, 6});
+        stream.write(new byte[] {0, 7, 0}, 1, 1);
+        stream.setCurrentRequest(second);
+        stream.writeDeferred(new byte[] {8});
+
+        assertEquals(8, stream.getMaxProgress());
+        assertEquals(5, stream.getProgressMap().get(first).getMaxProgress());
+        assertEquals(1, stream.getProgressMap().get(second).getMaxProgress());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        stream.writeTo(output);
+        assertTrue(Arrays.equals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, output.toByteArray()));
+    }
+
+    @Test
+    public void testProgressWhileWritingOut() throws Exception {
+        GraphRequest request = new GraphRequest(null, "me");
+        GraphRequestBatch batch = new GraphRequestBatch(request);
+
+        stream.setCurrentRequest(request);
+        stream.write(new byte[10]);
+        stream.writeDeferred(new byte[20]);
+
+        ProgressOutputStream progressStream = new ProgressOutputStream(
+                new ByteArrayOutputStream(),
+                batch,
+                stream.getProgressMap(),
+                stream.getMaxProgress());
+        stream.writeTo(progressStream);
+
+        assertEquals(30, progressStream.getMaxProgress());
+        assertEquals(30, progressStream.getBatchProgress());
+        assertEquals(30, stream.getProgressMap().get(request).getProgress());
+    }
+}
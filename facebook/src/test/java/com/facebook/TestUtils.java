@@ -44,11 +44,15 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.zip.GZIPInputStream;
 
 public class TestUtils {
     private static long CACHE_CLEAR_TIMEOUT = 100;
@@ -302,4 +306,49 @@ public class TestUtils {
             Utility.closeQuietly(reader);
         }
     }
+
+    // Returns the body that the batch would be sent with, without sending it
+    public static byte[] serializeRequestBody(GraphRequestBatch batch) throws Exception {
+        RecordingConnection connection =
+                new RecordingConnection(new URL("https://graph.facebook.com/me/feed"));
+        GraphRequest.serializeToUrlConnection(batch, connection);
+        return connection.outputStream.toByteArray();
+    }
+
+    public static byte[] gunzip(byte[] bytes) throws IOException {
+        InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = inputStream.read(buffer)) > 0) {
+            outputStream.write(buffer, 0, count);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static class RecordingConnection extends HttpURLConnection {
+        private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        RecordingConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
 }
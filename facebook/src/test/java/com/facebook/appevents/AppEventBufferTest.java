@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.appevents;
+
+import com.facebook.FacebookTestCase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class AppEventBufferTest extends FacebookTestCase {
+    private static final AppEvent EVENT =
+            new AppEvent("context", "event", null, null, false, null);
+
+    @Test
+    public void testEventsAreDrainedInOrder() {
+        AppEventBuffer buffer = new AppEventBuffer(8);
+        RecordingCollection collection = new RecordingCollection();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(buffer.offer(createKey(0, i), EVENT));
+        }
+
+        assertEquals(5, buffer.drainTo(collection));
+        assertEquals(0, buffer.drainTo(collection));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(createKey(0, i), collection.keys.get(i));
+        }
+    }
+
+    @Test
+    public void testOfferFailsWhenFullUntilDrained() {
+        AppEventBuffer buffer = new AppEventBuffer(4);
+        RecordingCollection collection = new RecordingCollection();
+
+        // Go around the ring a few times
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(buffer.offer(createKey(lap, i), EVENT));
+            }
+            assertFalse(buffer.offer(createKey(lap, 4), EVENT));
+            assertEquals(4, buffer.drainTo(collection));
+        }
+
+        assertEquals(12, collection.keys.size());
+        assertEquals(createKey(2, 3), collection.keys.get(11));
+    }
+
+    @Test
+    public void testDroppedEventCountIsReset() {
+        AppEventBuffer buffer = new AppEventBuffer(4);
+        buffer.recordDroppedEvent();
+        buffer.recordDroppedEvent();
+
+        assertEquals(2, buffer.takeDroppedEventCount());
+        assertEquals(0, buffer.takeDroppedEventCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBePowerOfTwo() {
+        new AppEventBuffer(6);
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int numProducers = 4;
+        final int numEventsPerProducer = 20000;
+        final AppEventBuffer buffer = new AppEventBuffer(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < numProducers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < numEventsPerProducer; i++) {
+                        AccessTokenAppIdPair key = createKey(producer, i);
+                        while (!buffer.offer(key, EVENT)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+
+        RecordingCollection collection = new RecordingCollection();
+        start.countDown();
+        int total = numProducers * numEventsPerProducer;
+        long deadline = System.currentTimeMillis() + 30000;
+        while (collection.keys.size() < total && System.currentTimeMillis() < deadline) {
+            buffer.drainTo(collection);
+        }
+        for (Thread thread : producers) {
+            thread.join();
+        }
+        buffer.drainTo(collection);
+
+        // Everything arrives exactly once, and in order for any one producer
+        assertEquals(total, collection.keys.size());
+        int[] next = new int[numProducers];
+        for (AccessTokenAppIdPair key : collection.keys) {
+            int producer = Integer.parseInt(key.getAccessTokenString());
+            assertEquals(String.valueOf(next[producer]), key.getApplicationId());
+            next[producer]++;
+        }
+    }
+
+    private static AccessTokenAppIdPair createKey(int producer, int index) {
+        return new AccessTokenAppIdPair(String.valueOf(producer), String.valueOf(index));
+    }
+
+    private static class RecordingCollection extends AppEventCollection {
+        private final List<AccessTokenAppIdPair> keys = new ArrayList<>();
+
+        @Override
+        public synchronized void addEvent(
+                AccessTokenAppIdPair accessTokenAppIdPair,
+                AppEvent appEvent) {
+            keys.add(accessTokenAppIdPair);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.appevents;
+
+import android.content.Context;
+
+import com.facebook.FacebookSdk;
+import com.facebook.FacebookTestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class AppEventStoreTest extends FacebookTestCase {
+    private static final AccessTokenAppIdPair ACCESS_TOKEN_APP_ID =
+            new AccessTokenAppIdPair("token", "1234");
+
+    // The store may not be used from the main thread
+    private ExecutorService executor;
+
+    @Before
+    public void before() throws Exception {
+        if (!FacebookSdk.isInitialized()) {
+            // Initialization flushes (and so reads) the store; make sure that is queued now
+            // and done before the tests start persisting events.
+            Executor sdkExecutor = FacebookSdk.getExecutor();
+            FacebookSdk.setExecutor(new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            });
+            FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+            FacebookSdk.setExecutor(sdkExecutor);
+            ExecutorService queueExecutor =
+                    Whitebox.getInternalState(AppEventQueue.class, "singleThreadExecutor");
+            queueExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        }
+        executor = Executors.newSingleThreadExecutor();
+        readAndClearStore();
+    }
+
+    @After
+    public void after() throws Exception {
+        readAndClearStore();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testPersistedEventsAreRead() throws Exception {
+        persist(createEvents("first", 2));
+        persist(createEvents("second", 1));
+
+        List<AppEvent> events = readAndClearStore().get(ACCESS_TOKEN_APP_ID);
+
+        assertEquals(3, events.size());
+        assertEquals("first0", events.get(0).getName());
+        assertEquals("second0", events.get(2).getName());
+        assertNull(readAndClearStore().get(ACCESS_TOKEN_APP_ID));
+    }
+
+    @Test
+    public void testPersistOnlyAppends() throws Exception {
+        persist(createEvents("first", 1));
+        File segment = getSegmentFiles().get(0);
+        byte[] before = readFile(segment);
+
+        persist(createEvents("second", 1));
+
+        byte[] after = readFile(segment);
+        assertTrue(after.length > before.length);
+        for (int i = 0; i < before.length; i++) {
+            assertEquals(before[i], after[i]);
+        }
+    }
+
+    @Test
+    public void testCorruptRecordKeepsEarlierRecords() throws Exception {
+        persist(createEvents("good", 2));
+        persist(createEvents("bad", 1));
+        File segment = getSegmentFiles().get(0);
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(segment.length() - 2);
+            file.write(0);
+        } finally {
+            file.close();
+        }
+
+        List<AppEvent> events = readAndClearStore().get(ACCESS_TOKEN_APP_ID);
+
+        assertEquals(2, events.size());
+        assertEquals("good1", events.get(1).getName());
+    }
+
+    @Test
+    public void testTruncatedRecordKeepsEarlierRecords() throws Exception {
+        persist(createEvents("good", 1));
+        persist(createEvents("torn", 1));
+        File segment = getSegmentFiles().get(0);
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.setLength(segment.length() - 5);
+        } finally {
+            file.close();
+        }
+
+        List<AppEvent> events = readAndClearStore().get(ACCESS_TOKEN_APP_ID);
+
+        assertEquals(1, events.size());
+        assertEquals("good0", events.get(0).getName());
+    }
+
+    @Test
+    public void testSegmentsRotate() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            persist(createEvents("event", 50));
+        }
+
+        assertTrue(getSegmentFiles().size() > 1);
+        assertEquals(1000, readAndClearStore().get(ACCESS_TOKEN_APP_ID).size());
+        assertEquals(0, getSegmentFiles().size());
+    }
+
+    @Test
+    public void testLegacyStoreIsMigrated() throws Exception {
+        HashMap<AccessTokenAppIdPair, List<AppEvent>> legacyEvents = new HashMap<>();
+        legacyEvents.put(ACCESS_TOKEN_APP_ID, createEvents("legacy", 2));
+        // The store writes to the context the SDK was initialized with
+        Context context = FacebookSdk.getApplicationContext();
+        ObjectOutputStream outputStream = new ObjectOutputStream(
+                context.openFileOutput("AppEventsLogger.persistedevents", 0));
+        try {
+            outputStream.writeObject(new PersistedEvents(legacyEvents));
+        } finally {
+            outputStream.close();
+        }
+        persist(createEvents("journal", 1));
+
+        List<AppEvent> events = readAndClearStore().get(ACCESS_TOKEN_APP_ID);
+
+        assertEquals(3, events.size());
+        assertEquals("legacy0", events.get(0).getName());
+        assertEquals("journal0", events.get(2).getName());
+        assertFalse(context.getFileStreamPath("AppEventsLogger.persistedevents").exists());
+    }
+
+    @Test
+    public void testClaimedEventsAreReadOnce() throws Exception {
+        persist(createEvents("event", 2));
+
+        assertEquals(2, readAndClaimStore().get(ACCESS_TOKEN_APP_ID).size());
+        assertNull(readAndClaimStore().get(ACCESS_TOKEN_APP_ID));
+        assertEquals(1, getSegmentFiles().size());
+    }
+
+    @Test
+    public void testInFlightEventsAreReplayedAfterRestart() throws Exception {
+        persist(createEvents("persisted", 2));
+        List<AppEvent> events = readAndClaimStore().get(ACCESS_TOKEN_APP_ID);
+        events.addAll(createEvents("new", 1));
+        long recordId = persistInFlight(events);
+        assertTrue(recordId != AppEventStore.NO_RECORD);
+
+        simulateRestart();
+
+        List<AppEvent> replayed = readAndClaimStore().get(ACCESS_TOKEN_APP_ID);
+        assertEquals(3, replayed.size());
+        assertEquals("persisted0", replayed.get(0).getName());
+        assertEquals("new0", replayed.get(2).getName());
+    }
+
+    @Test
+    public void testAcknowledgedEventsAreCompacted() throws Exception {
+        persist(createEvents("persisted", 2));
+        List<AppEvent> events = readAndClaimStore().get(ACCESS_TOKEN_APP_ID);
+        final long recordId = persistInFlight(events);
+
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                AppEventStore.acknowledgeInFlightEvents(recordId);
+                return null;
+            }
+        }).get();
+
+        assertEquals(0, getSegmentFiles().size());
+        simulateRestart();
+        assertNull(readAndClaimStore().get(ACCESS_TOKEN_APP_ID));
+    }
+
+    @Test
+    public void testReleasedEventsAreReplayedOnce() throws Exception {
+        persist(createEvents("persisted", 2));
+        final List<AppEvent> events = readAndClaimStore().get(ACCESS_TOKEN_APP_ID);
+        final long recordId = persistInFlight(events);
+
+        // A failed flush puts the events back with the accumulated ones, which are then persisted
+        AppEventStore.releaseInFlightEvents(ACCESS_TOKEN_APP_ID, recordId);
+        persist(events);
+        simulateRestart();
+
+        assertEquals(2, readAndClaimStore().get(ACCESS_TOKEN_APP_ID).size());
+    }
+
+    @Test
+    public void testChunksAreAcknowledgedIndependently() throws Exception {
+        persist(createEvents("persisted", 2));
+        List<AppEvent> events = readAndClaimStore().get(ACCESS_TOKEN_APP_ID);
+        final long[] recordIds = persistInFlightChunks(Arrays.asList(
+                events,
+                new ArrayList<AppEvent>(),
+                createEvents("new", 3)));
+        assertEquals(AppEventStore.NO_RECORD, recordIds[1]);
+
+        // Only the first chunk was accepted; the records the events were read from are gone
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                AppEventStore.acknowledgeInFlightEvents(recordIds[0]);
+                return null;
+            }
+        }).get();
+        simulateRestart();
+
+        List<AppEvent> replayed = readAndClaimStore().get(ACCESS_TOKEN_APP_ID);
+        assertEquals(3, replayed.size());
+        assertEquals("new0", replayed.get(0).getName());
+    }
+
+    private static List<AppEvent> createEvents(String prefix, int count) {
+        List<AppEvent> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            events.add(new AppEvent("context", prefix + i, 1.0, null, false, null));
+        }
+        return events;
+    }
+
+    private void persist(List<AppEvent> events) throws Exception {
+        final SessionEventsState sessionEventsState = new SessionEventsState(null, "guid");
+        sessionEventsState.accumulatePersistedEvents(events);
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                AppEventStore.persistEvents(ACCESS_TOKEN_APP_ID, sessionEventsState);
+                return null;
+            }
+        }).get();
+    }
+
+    private PersistedEvents readAndClearStore() throws Exception {
+        return executor.submit(new Callable<PersistedEvents>() {
+            @Override
+            public PersistedEvents call() throws Exception {
+                return AppEventStore.readAndClearStore();
+            }
+        }).get();
+    }
+
+    private PersistedEvents readAndClaimStore() throws Exception {
+        return executor.submit(new Callable<PersistedEvents>() {
+            @Override
+            public PersistedEvents call() throws Exception {
+                return AppEventStore.readAndClaimStore();
+            }
+        }).get();
+    }
+
+    private long persistInFlight(List<AppEvent> events) throws Exception {
+        return persistInFlightChunks(Collections.singletonList(events))[0];
+    }
+
+    private long[] persistInFlightChunks(final List<List<AppEvent>> chunks) throws Exception {
+        return executor.submit(new Callable<long[]>() {
+            @Override
+            public long[] call() throws Exception {
+                return AppEventStore.persistInFlightEvents(ACCESS_TOKEN_APP_ID, chunks);
+            }
+        }).get();
+    }
+
+    // Forgets everything the store holds in memory, as if the process had been restarted
+    private static void simulateRestart() {
+        Whitebox.setInternalState(AppEventStore.class, "currentSegment", -1);
+        Whitebox.setInternalState(AppEventStore.class, "highestSegment", -1);
+        Whitebox.setInternalState(AppEventStore.class, "isJournalIndexed", false);
+        ((Collection<?>) Whitebox.getInternalState(AppEventStore.class, "liveRecords")).clear();
+        ((Collection<?>) Whitebox.getInternalState(AppEventStore.class, "claimedRecords"))
+                .clear();
+        ((Map<?, ?>) Whitebox.getInternalState(AppEventStore.class, "accumulatedClaims"))
+                .clear();
+    }
+
+    private static List<File> getSegmentFiles() {
+        List<File> files = new ArrayList<>();
+        Context context = FacebookSdk.getApplicationContext();
+        for (String fileName : context.fileList()) {
+            if (fileName.startsWith("AppEventsLogger.journal.")) {
+                files.add(context.getFileStreamPath(fileName));
+            }
+        }
+        return files;
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(bytes);
+            return bytes;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.appevents;
+
+import android.os.Bundle;
+
+import com.facebook.FacebookSdk;
+import com.facebook.FacebookTestCase;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class AppEventTest extends FacebookTestCase {
+    @Before
+    public void before() {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testJSONMatchesJSONObject() throws Exception {
+        UUID sessionId = UUID.randomUUID();
+        Bundle parameters = new Bundle();
+        parameters.putString("fb_content_type", "quote \" slash / back \\ tab \t nul \u0000 é");
+        parameters.putInt("level", 7);
+        AppEvent event = new AppEvent("context", "fb_mobile_purchase", 2.5, parameters, true,
+                sessionId);
+        String json = event.toJSONString();
+
+        JSONObject expected = new JSONObject();
+        expected.put("_eventName", "fb_mobile_purchase");
+        expected.put("_logTime", new JSONObject(json).getLong("_logTime"));
+        expected.put("_ui", "context");
+        expected.put("_session_id", sessionId);
+        expected.put("_valueToSum", 2.5);
+        expected.put("_implicitlyLogged", "1");
+        for (String key : parameters.keySet()) {
+            expected.put(key, parameters.get(key).toString());
+        }
+        assertEquals(expected.toString(), json);
+    }
+
+    @Test
+    public void testValueToSumFormatting() throws Exception {
+        double[] values = {1.0, 2.5, -3.0, 0.1, 1e20, -0.0, 0.0};
+        for (double value : values) {
+            AppEvent event = new AppEvent("context", "event", value, null, false, null);
+            JSONObject expected = new JSONObject().put("_valueToSum", value);
+            assertTrue(event.toJSONString().contains(expected.toString()
+                    .substring(1, expected.toString().length() - 1)));
+        }
+    }
+
+    @Test
+    public void testParameterOverridesBuiltInKey() throws Exception {
+        Bundle parameters = new Bundle();
+        parameters.putLong("_logTime", 12345L);
+        AppEvent event = new AppEvent("context", "event", null, parameters, false, null);
+
+        JSONObject json = new JSONObject(event.toJSONString());
+        assertEquals("12345", json.get("_logTime"));
+        assertEquals(3, json.length());
+    }
+
+    @Test
+    public void testPersistedJSONRoundTrips() throws Exception {
+        Bundle parameters = new Bundle();
+        parameters.putString("key", "value");
+        AppEvent event = new AppEvent("context", AppEventsConstants.EVENT_NAME_ACTIVATED_APP,
+                1.0, parameters, true, UUID.randomUUID());
+
+        AppEvent restored = AppEvent.fromPersistedJSONString(event.toJSONString(), true);
+
+        assertEquals(event.toJSONString(), restored.toJSONString());
+        assertSame(AppEventsConstants.EVENT_NAME_ACTIVATED_APP, restored.getName());
+        assertTrue(restored.getIsImplicit());
+        assertTrue(restored.isValid());
+    }
+
+    @Test
+    public void testInvalidEvents() {
+        assertFalse(new AppEvent("context", " bad", null, null, false, null).isValid());
+        assertFalse(new AppEvent("context", "event", Double.NaN, null, false, null).isValid());
+
+        Bundle parameters = new Bundle();
+        parameters.putBoolean("flag", true);
+        assertFalse(new AppEvent("context", "event", null, parameters, false, null).isValid());
+    }
+
+    @Test
+    public void testIdentifierValidationMatchesRegex() {
+        String regex = "^[0-9a-zA-Z_]+[0-9a-zA-Z _-]*$";
+        String[] identifiers = {
+                "a", "Z", "0", "_", " ", "-", "a b", "a-b", "a_b", " a", "-a", "_a", "a ",
+                "fb_mobile_purchase", "Level 10 - Boss", "é", "a.b", "a/b", "a\tb", "a\u0000",
+                "0123456789012345678901234567890123456789",
+                "01234567890123456789012345678901234567890",
+                "",
+        };
+        for (String identifier : identifiers) {
+            boolean expected = identifier.length() <= 40 && identifier.matches(regex);
+            assertEquals(identifier, expected, AppEvent.isValidIdentifier(identifier));
+        }
+    }
+
+    @Test
+    public void testManyDistinctParameterKeys() {
+        // More keys than the validated identifier cache holds
+        for (int i = 0; i < 3000; i++) {
+            Bundle parameters = new Bundle();
+            parameters.putString("key_" + i, "value");
+            assertTrue(new AppEvent("context", "event", null, parameters, false, null).isValid());
+        }
+        Bundle parameters = new Bundle();
+        parameters.putString("-key", "value");
+        assertFalse(new AppEvent("context", "event", null, parameters, false, null).isValid());
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.appevents;
+
+import com.facebook.FacebookSdk;
+import com.facebook.FacebookTestCase;
+import com.facebook.GraphRequest;
+import com.facebook.GraphRequestBatch;
+import com.facebook.TestUtils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionEventsStateTest extends FacebookTestCase {
+    @Before
+    public void before() {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testEventsAreSplitIntoChunks() throws Exception {
+        SessionEventsState state = createState(10);
+        int eventLength = createEvent(0).toJSONString().length();
+
+        List<SessionEventsState.Chunk> chunks =
+                state.moveAccumulatedEventsInFlight(true, 4 * eventLength + 5);
+
+        assertEquals(3, chunks.size());
+        int eventIndex = 0;
+        for (SessionEventsState.Chunk chunk : chunks) {
+            assertTrue(chunk.getNumEvents() <= 4);
+            assertTrue(chunk.getJsonString().length() <= 4 * eventLength + 5);
+            JSONArray jsonArray = new JSONArray(chunk.getJsonString());
+            assertEquals(chunk.getNumEvents(), jsonArray.length());
+            for (int i = 0; i < jsonArray.length(); i++) {
+                assertEquals(
+                        "event" + eventIndex++,
+                        jsonArray.getJSONObject(i).getString("_eventName"));
+            }
+        }
+        assertEquals(10, eventIndex);
+        assertEquals(0, state.getAccumulatedEventCount());
+    }
+
+    @Test
+    public void testOversizedEventIsSentAlone() throws Exception {
+        SessionEventsState state = createState(3);
+
+        List<SessionEventsState.Chunk> chunks = state.moveAccumulatedEventsInFlight(true, 1);
+
+        assertEquals(3, chunks.size());
+        assertEquals(1, new JSONArray(chunks.get(1).getJsonString()).length());
+    }
+
+    @Test
+    public void testOnlyFailedChunksAreAccumulatedAgain() throws Exception {
+        SessionEventsState state = createState(6);
+        int eventLength = createEvent(0).toJSONString().length();
+        List<SessionEventsState.Chunk> chunks =
+                state.moveAccumulatedEventsInFlight(true, 2 * eventLength + 3);
+        assertEquals(3, chunks.size());
+
+        state.clearInFlight(chunks.get(0), false);
+        state.clearInFlight(chunks.get(1), true);
+        state.clearInFlight(chunks.get(2), false);
+
+        List<AppEvent> retried = state.getEventsToPersist();
+        assertEquals(2, retried.size());
+        assertSame(chunks.get(1).getEvents().get(0), retried.get(0));
+    }
+
+    @Test
+    public void testImplicitEventsAreDroppedWhenNotSupported() throws Exception {
+        SessionEventsState state = new SessionEventsState(null, "guid");
+        List<AppEvent> events = new ArrayList<>();
+        events.add(new AppEvent("context", "implicit", null, null, true, null));
+        events.add(new AppEvent("context", "explicit", null, null, false, null));
+        state.accumulatePersistedEvents(events);
+
+        List<SessionEventsState.Chunk> chunks = state.moveAccumulatedEventsInFlight(false, 1024);
+
+        assertEquals(1, chunks.size());
+        assertEquals(1, chunks.get(0).getNumEvents());
+        assertEquals(0, state.getAccumulatedEventCount());
+    }
+
+    @Test
+    public void testEventsAreSentAsFormField() throws Exception {
+        SessionEventsState state = createState(2);
+        SessionEventsState.Chunk chunk = state.moveAccumulatedEventsInFlight(true, 1024).get(0);
+        GraphRequest request = GraphRequest.newPostRequest(null, "1234/activities", null, null);
+
+        state.populateRequest(request, RuntimeEnvironment.application, chunk, false);
+
+        assertTrue(request.getParameters().isEmpty());
+        JSONObject graphObject = request.getGraphObject();
+        assertEquals("CUSTOM_APP_EVENTS", graphObject.getString("event"));
+        assertEquals(chunk.getJsonString(), graphObject.getString("custom_events"));
+        assertFalse(graphObject.has("num_skipped_events"));
+        assertEquals(chunk.getJsonString(), request.getTag());
+    }
+
+    @Test
+    public void testChunkBatchIsSentGzipped() throws Exception {
+        SessionEventsState state = createState(4);
+        int eventLength = createEvent(0).toJSONString().length();
+        List<SessionEventsState.Chunk> chunks =
+                state.moveAccumulatedEventsInFlight(true, 2 * eventLength + 3);
+        assertEquals(2, chunks.size());
+        GraphRequestBatch batch = new GraphRequestBatch();
+        batch.setBatchApplicationId("1234");
+        for (SessionEventsState.Chunk chunk : chunks) {
+            GraphRequest request =
+                    GraphRequest.newPostRequest(null, "1234/activities", null, null);
+            state.populateRequest(request, RuntimeEnvironment.application, chunk, false);
+            batch.add(request);
+        }
+
+        // Throws unless the body is gzipped
+        byte[] body = TestUtils.gunzip(TestUtils.serializeRequestBody(batch));
+
+        JSONArray entries = null;
+        for (String parameter : new String(body, "UTF-8").split("&")) {
+            if (parameter.startsWith("batch=")) {
+                entries = new JSONArray(URLDecoder.decode(parameter.substring(6), "UTF-8"));
+            }
+        }
+        assertEquals(2, entries.length());
+        for (int i = 0; i < entries.length(); i++) {
+            String entryBody = entries.getJSONObject(i).getString("body");
+            assertTrue(entryBody.contains(
+                    "custom_events=" + URLEncoder.encode(chunks.get(i).getJsonString(), "UTF-8")));
+        }
+    }
+
+    private static SessionEventsState createState(int numEvents) {
+        SessionEventsState state = new SessionEventsState(null, "guid");
+        List<AppEvent> events = new ArrayList<>();
+        for (int i = 0; i < numEvents; i++) {
+            events.add(createEvent(i));
+        }
+        state.accumulatePersistedEvents(events);
+        return state;
+    }
+
+    private static AppEvent createEvent(int index) {
+        return new AppEvent("context", "event" + index, 1.0, null, false, null);
+    }
+}
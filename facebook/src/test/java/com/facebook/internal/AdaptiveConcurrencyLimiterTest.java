@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.internal;
+
+import com.facebook.FacebookTestCase;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveConcurrencyLimiterTest extends FacebookTestCase {
+
+    @Test
+    public void testLimitGrowsOnlyWhenUsedUp() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 8);
+
+        long time = 0;
+        for (int i = 0; i < 100; i++) {
+            assertFalse(limiter.onSuccess(time, 100, 2));
+            time += 100;
+        }
+        assertEquals(4, limiter.getLimit());
+
+        // About one more per limit's worth of successes
+        for (int i = 0; i < 4; i++) {
+            limiter.onSuccess(time, 100, limiter.getLimit());
+            time += 100;
+        }
+        assertEquals(5, limiter.getLimit());
+
+        for (int i = 0; i < 100; i++) {
+            limiter.onSuccess(time, 100, limiter.getLimit());
+            time += 100;
+        }
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void testFailuresCutTheLimitOncePerWindow() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 1, 16);
+
+        assertTrue(limiter.onFailure(0, 1000));
+        assertEquals(6, limiter.getLimit());
+
+        // Started before the cut, so it doesn't count again
+        assertFalse(limiter.onFailure(500, 1200));
+        assertEquals(6, limiter.getLimit());
+
+        assertTrue(limiter.onFailure(1000, 2000));
+        assertEquals(4, limiter.getLimit());
+
+        long time = 2000;
+        for (int i = 0; i < 10; i++) {
+            limiter.onFailure(time, time + 1);
+            time += 1;
+        }
+        assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    public void testSlowResponsesCutTheLimit() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 1, 16);
+
+        long time = 0;
+        for (int i = 0; i < 10; i++) {
+            limiter.onSuccess(time, 100, 1);
+            time += 100;
+        }
+        assertEquals(8, limiter.getLimit());
+
+        long slowLatency = 100 * AdaptiveConcurrencyLimiter.LATENCY_TOLERANCE
+                + AdaptiveConcurrencyLimiter.LATENCY_SLACK_MILLIS + 1;
+        assertTrue(limiter.onSuccess(time, slowLatency, 8));
+        assertEquals(6, limiter.getLimit());
+    }
+
+    @Test
+    public void testSlowerNetworkBecomesTheBaseline() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 1, 16);
+
+        long time = 0;
+        limiter.onSuccess(time, 10, 1);
+
+        // Every response is slow next to the first one
+        for (int i = 0; i < AdaptiveConcurrencyLimiter.LATENCY_WINDOW_SIZE; i++) {
+            time += 1000;
+            limiter.onSuccess(time, 1000, 1);
+        }
+        assertEquals(1, limiter.getLimit());
+
+        // Until it falls out of the window
+        for (int i = 0; i < 2 * AdaptiveConcurrencyLimiter.LATENCY_WINDOW_SIZE; i++) {
+            time += 1000;
+            limiter.onSuccess(time, 1000, limiter.getLimit());
+        }
+        assertTrue(limiter.getLimit() > 1);
+    }
+
+    @Test
+    public void testLimitSettlesNearCapacity() {
+        // A server that answers in 100ms until more than 6 requests are in flight, after which
+        // every extra request adds 100ms.
+        final int capacity = 6;
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 32);
+
+        long time = 0;
+        for (int i = 0; i < 2000; i++) {
+            int inFlight = limiter.getLimit();
+            long latency = 100 + 100 * Math.max(0, inFlight - capacity);
+            limiter.onSuccess(time, latency, inFlight);
+            time += latency;
+        }
+
+        assertTrue(limiter.getLimit() >= capacity - 2);
+        assertTrue(limiter.getLimit() <= capacity + 2);
+    }
+}
@@ -31,9 +31,12 @@ import org.robolectric.Robolectric;
 import org.robolectric.RuntimeEnvironment;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.Random;
 
 import static org.junit.Assert.*;
@@ -343,6 +346,269 @@ public final class FileLruCacheTest extends FacebookTestCase {
         }
     }
 
+    @Test
+    public void testAccessOrderSurvivesRestart() throws Exception {
+        int dataSize = 64;
+        byte[] data = generateBytes(dataSize);
+
+        FileLruCache cache = new FileLruCache("testAccessOrderSurvivesRestart", limitCacheCount(3));
+        try {
+            TestUtils.clearFileLruCache(cache);
+
+            for (int i = 0; i < 3; i++) {
+                put(cache, i, data);
+            }
+            checkValue(cache, 0, data);
+            cache.sizeInBytesForTest();
+
+            // A new instance picks up the index from the journal, where 1 is now the oldest
+            cache = new FileLruCache("testAccessOrderSurvivesRestart", limitCacheCount(3));
+            put(cache, 3, data);
+            cache.sizeInBytesForTest();
+
+            assertEquals(false, hasValue(cache, 1));
+            checkValue(cache, 0, data);
+            checkValue(cache, 2, data);
+            checkValue(cache, 3, data);
+        } finally {
+            TestUtils.clearAndDeleteLruCacheDirectory(cache);
+        }
+    }
+
+    @Test
+    public void testCacheIsOpenedOnFirstUse() throws Exception {
+        byte[] data = generateBytes(64);
+
+        FileLruCache cache = new FileLruCache("testCacheIsOpenedOnFirstUse",
+                new FileLruCache.Limits());
+        try {
+            TestUtils.clearFileLruCache(cache);
+            put(cache, 0, data);
+            cache.sizeInBytesForTest();
+            File staleBuffer = new File(cache.getLocation(), "buffer0");
+            assertTrue(staleBuffer.createNewFile());
+
+            // Creating a cache leaves the directory alone, until the cache is used
+            cache = new FileLruCache("testCacheIsOpenedOnFirstUse", new FileLruCache.Limits());
+            assertTrue(staleBuffer.exists());
+            checkValue(cache, 0, data);
+            assertFalse(staleBuffer.exists());
+        } finally {
+            TestUtils.clearAndDeleteLruCacheDirectory(cache);
+        }
+    }
+
+    @Test
+    public void testFilesWithoutJournalAreIndexed() throws Exception {
+        int dataSize = 64;
+        byte[] data = generateBytes(dataSize);
+
+        FileLruCache cache = new FileLruCache("testFilesWithoutJournalAreIndexed",
+                limitCacheCount(2));
+        try {
+            TestUtils.clearFileLruCache(cache);
+
+            put(cache, 0, data);
+            put(cache, 1, data);
+            cache.sizeInBytesForTest();
+            File directory = new File(cache.getLocation());
+            new File(directory, Utility.md5hash("0")).setLastModified(2000000000000L);
+            new File(directory, Utility.md5hash("1")).setLastModified(1000000000000L);
+            assertTrue(new File(directory, "journal").delete());
+
+            cache = new FileLruCache("testFilesWithoutJournalAreIndexed", limitCacheCount(2));
+            // Cache hits no longer touch the file
+            checkValue(cache, 1, data);
+            assertEquals(1000000000000L,
+                    new File(directory, Utility.md5hash("1")).lastModified());
+
+            put(cache, 2, data);
+            cache.sizeInBytesForTest();
+            assertEquals(false, hasValue(cache, 0));
+            checkValue(cache, 1, data);
+        } finally {
+            TestUtils.clearAndDeleteLruCacheDirectory(cache);
+        }
+    }
+
+    @Test
+    public void testVersionZeroHeaderIsRead() throws Exception {
+        byte[] data = generateBytes(64);
+        FileLruCache cache = new FileLruCache("testVersionZeroHeaderIsRead",
+                new FileLruCache.Limits());
+        try {
+            TestUtils.clearFileLruCache(cache);
+
+            byte[] header = "{\"key\":\"a\",\"tag\":\"etag\"}".getBytes("UTF-8");
+            FileOutputStream output = new FileOutputStream(
+                    new File(cache.getLocation(), Utility.md5hash("a")));
+            output.write(new byte[] {0, 0, 0, (byte) header.length});
+            output.write(header);
+            output.write(data);
+            output.close();
+
+            InputStream stream = cache.get("a", "etag");
+            assertNotNull(stream);
+            checkInputStream(data, stream);
+            stream.close();
+            assertNull(cache.get("a"));
+        } finally {
+            TestUtils.clearAndDeleteLruCacheDirectory(cache);
+        }
+    }
+
+    @Test
+    public void testContentTagIsMatched() throws Exception {
+        byte[] data = generateBytes(64);
+        FileLruCache cache = new FileLruCache("testContentTagIsMatched",
+                new FileLruCache.Limits());
+        try {
+            TestUtils.clearFileLruCache(cache);
+
+            OutputStream output = cache.openPutStream("a", "etag");
+            output.write(data);
+            output.close();
+
+            InputStream stream = cache.get("a", "etag");
+            assertNotNull(stream);
+            checkInputStream(data, stream);
+            stream.close();
+            assertNull(cache.get("a", "other"));
+            assertNull(cache.get("a"));
+        } finally {
+            TestUtils.clearAndDeleteLruCacheDirectory(cache);
+        }
+    }
+
+    @Test
+    public void testAnyContentTagIsReturned() throws Exception {
+        byte[] data = generateBytes(64);
+        FileLruCache cache = new FileLruCache("testAnyContentTagIsReturned",
+                new FileLruCache.Limits());
+        try {
+            TestUtils.clearFileLruCache(cache);
+
+            InputStream tagged = cache.interceptAndPut(
+                    "tagged",
+                    "etag",
+                    new ByteArrayInputStream(data));
+            while (tagged.read() != -1) {
+            }
+            tagged.close();
+            put(cache, "untagged", data);
+
+            FileLruCache.ContentTaggedInputStream stream = cache.getWithAnyContentTag("tagged");
+            assertNotNull(stream);
+            assertEquals("etag", stream.getContentTag());
+            checkInputStream(data, stream);
+            stream.close();
+
+            stream = cache.getWithAnyContentTag("untagged");
+            assertNotNull(stream);
+            assertNull(stream.getContentTag());
+            checkInputStream(data, stream);
+            stream.close();
+
+            assertNull(cache.getWithAnyContentTag("missing"));
+        } finally {
+            TestUtils.clearAndDeleteLruCacheDirectory(cache);
+        }
+    }
+
+    @Test
+    public void testDamagedFilesAreMisses() throws Exception {
+        byte[] data = generateBytes(64);
+        FileLruCache cache = new FileLruCache("testDamagedFilesAreMisses",
+                new FileLruCache.Limits());
+        try {
+            TestUtils.clearFileLruCache(cache);
+
+            put(cache, "truncated", data);
+            RandomAccessFile file = new RandomAccessFile(
+                    new File(cache.getLocation(), Utility.md5hash("truncated")), "rw");
+            file.setLength(file.length() - 1);
+            file.close();
+            assertEquals(false, hasValue(cache, "truncated"));
+
+            put(cache, "corrupt", data);
+            file = new RandomAccessFile(
+                    new File(cache.getLocation(), Utility.md5hash("corrupt")), "rw");
+            // Flip a byte of the key
+            file.seek(9);
+            int b = file.read();
+            file.seek(9);
+            file.write(b ^ 1);
+            file.close();
+            assertEquals(false, hasValue(cache, "corrupt"));
+        } finally {
+            TestUtils.clearAndDeleteLruCacheDirectory(cache);
+        }
+    }
+
+    @Test
+    public void testShardedCache() throws Exception {
+        int count = 64;
+        int dataSize = 32;
+        byte[] data = generateBytes(dataSize);
+
+        FileLruCache.Limits limits = limitCacheCount(count / 2);
+        limits.setShardCount(4);
+        FileLruCache cache = new FileLruCache("testShardedCache", limits);
+        try {
+            TestUtils.clearFileLruCache(cache);
+
+            for (int i = 0; i < count; i++) {
+                put(cache, i, data);
+            }
+            cache.sizeInBytesForTest();
+
+            int cachedCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (hasValue(cache, i)) {
+                    cachedCount++;
+                    checkValue(cache, i, data);
+                }
+            }
+            // Each shard keeps its own quarter of the files
+            assertTrue(cachedCount > 0);
+            assertTrue(cachedCount <= count / 2);
+            assertEquals(4, new File(cache.getLocation()).listFiles().length);
+        } finally {
+            TestUtils.clearAndDeleteLruCacheDirectory(cache);
+        }
+    }
+
+    @Test
+    public void testLayoutMigration() throws Exception {
+        int count = 20;
+        byte[] data = generateBytes(32);
+
+        FileLruCache cache = new FileLruCache("testLayoutMigration", new FileLruCache.Limits());
+        try {
+            TestUtils.clearFileLruCache(cache);
+            for (int i = 0; i < count; i++) {
+                put(cache, i, data);
+            }
+            cache.sizeInBytesForTest();
+
+            // From the flat layout to 4 shards, then to 8, then back
+            int[] shardCounts = {4, 8, 1};
+            for (int shardCount : shardCounts) {
+                FileLruCache.Limits limits = new FileLruCache.Limits();
+                limits.setShardCount(shardCount);
+                cache = new FileLruCache("testLayoutMigration", limits);
+                for (int i = 0; i < count; i++) {
+                    checkValue(cache, i, data);
+                }
+            }
+            for (File file : new File(cache.getLocation()).listFiles()) {
+                assertTrue(file.isFile());
+            }
+        } finally {
+            TestUtils.clearAndDeleteLruCacheDirectory(cache);
+        }
+    }
+
     byte[] generateBytes(int n) {
         byte[] bytes = new byte[n];
         random.nextBytes(bytes);
@@ -0,0 +1,431 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.internal;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import com.facebook.FacebookSdk;
+import com.facebook.FacebookTestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowBitmapFactory;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class ImageDownloaderTest extends FacebookTestCase {
+
+    @Before
+    public void before() {
+        // Each test gets its own cache directory, so don't keep a cache opened by another test
+        Whitebox.setInternalState(ImageResponseCache.class, "imageCache", (Object) null);
+    }
+
+    @Test
+    public void testInSampleSizeKeepsTargetSize() {
+        assertEquals(1, ImageDownloader.calculateInSampleSize(400, 400, 0, 0));
+        assertEquals(1, ImageDownloader.calculateInSampleSize(400, 400, 400, 400));
+        assertEquals(1, ImageDownloader.calculateInSampleSize(400, 400, 201, 100));
+        assertEquals(2, ImageDownloader.calculateInSampleSize(400, 400, 200, 200));
+        assertEquals(4, ImageDownloader.calculateInSampleSize(400, 400, 100, 100));
+        assertEquals(4, ImageDownloader.calculateInSampleSize(400, 400, 100, 0));
+        assertEquals(2, ImageDownloader.calculateInSampleSize(800, 400, 0, 150));
+        assertEquals(1, ImageDownloader.calculateInSampleSize(100, 100, 800, 800));
+    }
+
+    @Test
+    public void testDecodeOptionsAreCachedApart() {
+        Uri uri = Uri.parse("https://graph.facebook.com/4/picture?width=100");
+
+        ImageRequest plainRequest =
+                new ImageRequest.Builder(RuntimeEnvironment.application, uri).build();
+        assertFalse(plainRequest.hasDecodeOptions());
+        assertEquals(uri, ImageDownloader.getMemoryCacheUri(uri, plainRequest));
+
+        ImageRequest smallRequest = new ImageRequest.Builder(RuntimeEnvironment.application, uri)
+                .setTargetSize(100, 100)
+                .build();
+        ImageRequest smallOpaqueRequest =
+                new ImageRequest.Builder(RuntimeEnvironment.application, uri)
+                        .setTargetSize(100, 100)
+                        .setDecodeConfig(Bitmap.Config.RGB_565)
+                        .build();
+        Uri smallUri = ImageDownloader.getMemoryCacheUri(uri, smallRequest);
+        Uri smallOpaqueUri = ImageDownloader.getMemoryCacheUri(uri, smallOpaqueRequest);
+
+        assertFalse(uri.equals(smallUri));
+        assertFalse(uri.equals(smallOpaqueUri));
+        assertFalse(smallUri.equals(smallOpaqueUri));
+        assertEquals(smallUri, ImageDownloader.getMemoryCacheUri(uri, smallRequest));
+
+        // The uri's own fragment is kept
+        Uri firstFragmentUri = uri.buildUpon().fragment("first").build();
+        Uri secondFragmentUri = uri.buildUpon().fragment("second").build();
+        Uri smallFirstUri = ImageDownloader.getMemoryCacheUri(firstFragmentUri, smallRequest);
+        Uri smallSecondUri = ImageDownloader.getMemoryCacheUri(secondFragmentUri, smallRequest);
+        assertFalse(smallFirstUri.equals(smallSecondUri));
+        assertFalse(smallFirstUri.equals(smallUri));
+        assertTrue(smallFirstUri.getFragment().endsWith("first"));
+    }
+
+    @Test
+    public void testCallersShareOneLoad() throws Exception {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+        Uri uri = Uri.parse("https://scontent.xx.fbcdn.net/shared.jpg");
+        OutputStream stream = ImageResponseCache.getCache(RuntimeEnvironment.application)
+                .openPutStream(uri.toString());
+        stream.write(new byte[] {1, 2, 3});
+        stream.close();
+
+        WorkQueueTest.ScriptableExecutor executor = new WorkQueueTest.ScriptableExecutor();
+        WorkQueue cacheReadQueue = Whitebox.getInternalState(
+                ImageDownloader.class,
+                "cacheReadQueue");
+        Whitebox.setInternalState(
+                ImageDownloader.class,
+                "cacheReadQueue",
+                new WorkQueue(2, executor));
+        try {
+            ArrayList<ImageResponse> responses = new ArrayList<ImageResponse>();
+            ImageRequest cancelledRequest = newRecordingRequest(uri, responses);
+            ImageRequest firstRequest = newRecordingRequest(uri, responses);
+            ImageRequest secondRequest = newRecordingRequest(uri, responses);
+
+            ImageDownloader.downloadAsync(cancelledRequest);
+            ImageDownloader.downloadAsync(firstRequest);
+            ImageDownloader.downloadAsync(secondRequest);
+            assertEquals(1, executor.getPendingCount());
+
+            // Cancelling one caller leaves the load running for the others
+            assertTrue(ImageDownloader.cancelRequest(cancelledRequest));
+            assertFalse(ImageDownloader.cancelRequest(cancelledRequest));
+            executor.runNext();
+            assertEquals(0, executor.getPendingCount());
+
+            assertEquals(2, responses.size());
+            assertSame(firstRequest, responses.get(0).getRequest());
+            assertSame(secondRequest, responses.get(1).getRequest());
+            assertNotNull(responses.get(0).getBitmap());
+            assertSame(responses.get(0).getBitmap(), responses.get(1).getBitmap());
+            assertFalse(ImageDownloader.cancelRequest(firstRequest));
+        } finally {
+            Whitebox.setInternalState(ImageDownloader.class, "cacheReadQueue", cacheReadQueue);
+            ImageDownloader.getMemoryCache().clearCache();
+        }
+    }
+
+    @Test
+    @Config(shadows = ShadowReusingBitmapFactory.class)
+    public void testImageDecodedIntoReusableBitmapIsNotMemoryCached() throws Exception {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+        Uri firstUri = Uri.parse("https://scontent.xx.fbcdn.net/first.jpg");
+        Uri secondUri = Uri.parse("https://scontent.xx.fbcdn.net/second.jpg");
+        putInImageCache(firstUri);
+        putInImageCache(secondUri);
+        Bitmap reusableBitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+
+        WorkQueueTest.ScriptableExecutor executor = new WorkQueueTest.ScriptableExecutor();
+        WorkQueue cacheReadQueue = Whitebox.getInternalState(
+                ImageDownloader.class,
+                "cacheReadQueue");
+        Whitebox.setInternalState(
+                ImageDownloader.class,
+                "cacheReadQueue",
+                new WorkQueue(2, executor));
+        try {
+            ArrayList<ImageResponse> responses = new ArrayList<ImageResponse>();
+            ImageRequest firstRequest =
+                    newReusingRequest(firstUri, new Object(), reusableBitmap, responses);
+            ImageDownloader.downloadAsync(firstRequest);
+            executor.runNext();
+            assertSame(reusableBitmap, responses.get(0).getBitmap());
+
+            // The caller moves on to decode another image into the same bitmap
+            ImageDownloader.downloadAsync(
+                    newReusingRequest(secondUri, new Object(), reusableBitmap, responses));
+            executor.runNext();
+            assertSame(reusableBitmap, responses.get(1).getBitmap());
+
+            assertNull(ImageDownloader.getMemoryCache().getCacheHit(
+                    ImageDownloader.getMemoryCacheUri(firstUri, firstRequest),
+                    true));
+            assertFalse(ImageDownloader.getMemoryCache().contains(reusableBitmap));
+        } finally {
+            Whitebox.setInternalState(ImageDownloader.class, "cacheReadQueue", cacheReadQueue);
+            ImageDownloader.getMemoryCache().clearCache();
+        }
+    }
+
+    @Test
+    @Config(shadows = ShadowReusingBitmapFactory.class)
+    public void testCallersWithReusableBitmapsDontShareLoads() throws Exception {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+        Uri uri = Uri.parse("https://scontent.xx.fbcdn.net/reused.jpg");
+        putInImageCache(uri);
+        Bitmap firstBitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        Bitmap secondBitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+
+        WorkQueueTest.ScriptableExecutor executor = new WorkQueueTest.ScriptableExecutor();
+        WorkQueue cacheReadQueue = Whitebox.getInternalState(
+                ImageDownloader.class,
+                "cacheReadQueue");
+        Whitebox.setInternalState(
+                ImageDownloader.class,
+                "cacheReadQueue",
+                new WorkQueue(2, executor));
+        try {
+            ArrayList<ImageResponse> responses = new ArrayList<ImageResponse>();
+            ImageRequest firstRequest =
+                    newReusingRequest(uri, new Object(), firstBitmap, responses);
+            ImageRequest secondRequest =
+                    newReusingRequest(uri, new Object(), secondBitmap, responses);
+
+            ImageDownloader.downloadAsync(firstRequest);
+            ImageDownloader.downloadAsync(secondRequest);
+            assertEquals(2, executor.getPendingCount());
+            executor.runNext();
+            executor.runNext();
+
+            // Each caller gets the image decoded into its own bitmap
+            assertEquals(2, responses.size());
+            for (ImageResponse response : responses) {
+                assertSame(
+                        response.getRequest() == firstRequest ? firstBitmap : secondBitmap,
+                        response.getBitmap());
+            }
+        } finally {
+            Whitebox.setInternalState(ImageDownloader.class, "cacheReadQueue", cacheReadQueue);
+            ImageDownloader.getMemoryCache().clearCache();
+        }
+    }
+
+    @Test
+    public void testPrefetchIsBatchedAndCancellable() {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+        WorkQueueTest.ScriptableExecutor executor = new WorkQueueTest.ScriptableExecutor();
+        WorkQueue downloadQueue = Whitebox.getInternalState(ImageDownloader.class, "downloadQueue");
+        WorkQueue scriptedQueue = new WorkQueue(1, executor);
+        Whitebox.setInternalState(ImageDownloader.class, "downloadQueue", scriptedQueue);
+        try {
+            ArrayList<String> profileIds = new ArrayList<String>();
+            for (int i = 0; i < 120; i++) {
+                profileIds.add(String.valueOf(i));
+            }
+
+            // One lookup for each batch of 50 profiles
+            ImageDownloader.Prefetch prefetch = ImageDownloader.prefetchProfilePictures(
+                    RuntimeEnvironment.application,
+                    profileIds,
+                    100,
+                    100);
+            assertEquals(1, executor.getPendingCount());
+            assertEquals(2, scriptedQueue.getStats().getPendingCount());
+
+            prefetch.cancel();
+            assertTrue(prefetch.isCancelled());
+            assertEquals(0, scriptedQueue.getStats().getPendingCount());
+
+            // The running lookup stops without going to the network
+            executor.runNext();
+            assertEquals(0, executor.getPendingCount());
+            assertEquals(0, scriptedQueue.getStats().getPendingCount());
+        } finally {
+            Whitebox.setInternalState(ImageDownloader.class, "downloadQueue", downloadQueue);
+        }
+    }
+
+    @Test
+    public void testPrefetchDropsFinishedWork() throws Exception {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+        ArrayList<String> profileIds = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            String profileId = String.valueOf(i);
+            profileIds.add(profileId);
+            // With the redirects known and the pictures cached, nothing goes to the network
+            Uri redirectUri = Uri.parse("https://scontent.xx.fbcdn.net/" + profileId + ".jpg");
+            UrlRedirectCache.cacheUriRedirect(
+                    ImageRequest.getProfilePictureUri(profileId, 100, 100),
+                    redirectUri);
+            putInImageCache(redirectUri);
+        }
+
+        WorkQueueTest.ScriptableExecutor executor = new WorkQueueTest.ScriptableExecutor();
+        WorkQueue downloadQueue = Whitebox.getInternalState(ImageDownloader.class, "downloadQueue");
+        Whitebox.setInternalState(
+                ImageDownloader.class,
+                "downloadQueue",
+                new WorkQueue(1, executor));
+        try {
+            ImageDownloader.Prefetch prefetch = ImageDownloader.prefetchProfilePictures(
+                    RuntimeEnvironment.application,
+                    profileIds,
+                    100,
+                    100);
+            assertEquals(1, prefetch.getPendingWorkCount());
+
+            // The lookup queues a fetch for each picture and is dropped once it is done
+            executor.runNext();
+            assertEquals(3, prefetch.getPendingWorkCount());
+
+            while (executor.getPendingCount() > 0) {
+                executor.runNext();
+            }
+            assertEquals(0, prefetch.getPendingWorkCount());
+        } finally {
+            Whitebox.setInternalState(ImageDownloader.class, "downloadQueue", downloadQueue);
+        }
+    }
+
+    @Test
+    public void testRevalidatedImageIsDecodedAgain() throws Exception {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+        Uri profileUri = ImageRequest.getProfilePictureUri("revalidated", 100, 100);
+        Uri redirectUri = Uri.parse("https://scontent.xx.fbcdn.net/revalidated.jpg");
+        UrlRedirectCache.cacheUriRedirect(profileUri, redirectUri);
+        putInImageCache(redirectUri);
+
+        WorkQueueTest.ScriptableExecutor executor = new WorkQueueTest.ScriptableExecutor();
+        WorkQueue cacheReadQueue = Whitebox.getInternalState(
+                ImageDownloader.class,
+                "cacheReadQueue");
+        Whitebox.setInternalState(
+                ImageDownloader.class,
+                "cacheReadQueue",
+                new WorkQueue(2, executor));
+        try {
+            ArrayList<ImageResponse> responses = new ArrayList<ImageResponse>();
+            ImageDownloader.downloadAsync(newRedirectedRequest(profileUri, responses));
+            ImageDownloader.downloadAsync(newRecordingRequest(redirectUri, responses));
+            assertEquals(2, executor.getPendingCount());
+            executor.runNext();
+            executor.runNext();
+            Bitmap decodedBitmap = responses.get(0).getBitmap();
+            Bitmap plainBitmap = responses.get(1).getBitmap();
+            assertNotNull(decodedBitmap);
+            assertNotNull(plainBitmap);
+
+            // A 304 leaves the decoded bitmaps in memory
+            ImageDownloader.onRevalidated(redirectUri, HttpURLConnection.HTTP_NOT_MODIFIED);
+            ImageDownloader.downloadAsync(newRedirectedRequest(profileUri, responses));
+            ImageDownloader.downloadAsync(newRecordingRequest(redirectUri, responses));
+            assertEquals(0, executor.getPendingCount());
+            assertSame(decodedBitmap, responses.get(2).getBitmap());
+            assertSame(plainBitmap, responses.get(3).getBitmap());
+
+            // A 200 has replaced the image on disk, so both are decoded from it again, the
+            // first through the redirect
+            putInImageCache(redirectUri);
+            ImageDownloader.onRevalidated(redirectUri, HttpURLConnection.HTTP_OK);
+            ImageDownloader.downloadAsync(newRedirectedRequest(profileUri, responses));
+            ImageDownloader.downloadAsync(newRecordingRequest(redirectUri, responses));
+            assertEquals(2, executor.getPendingCount());
+            executor.runNext();
+            executor.runNext();
+            assertNotNull(responses.get(4).getBitmap());
+            assertNotSame(decodedBitmap, responses.get(4).getBitmap());
+            assertNotNull(responses.get(5).getBitmap());
+            assertNotSame(plainBitmap, responses.get(5).getBitmap());
+        } finally {
+            Whitebox.setInternalState(ImageDownloader.class, "cacheReadQueue", cacheReadQueue);
+            ImageDownloader.getMemoryCache().clearCache();
+        }
+    }
+
+    private static void putInImageCache(Uri uri) throws Exception {
+        OutputStream stream = ImageResponseCache.getCache(RuntimeEnvironment.application)
+                .openPutStream(uri.toString());
+        stream.write(new byte[] {1, 2, 3});
+        stream.close();
+    }
+
+    private static ImageRequest newReusingRequest(
+            Uri uri,
+            Object callerTag,
+            Bitmap reusableBitmap,
+            final ArrayList<ImageResponse> responses) {
+        return new ImageRequest.Builder(RuntimeEnvironment.application, uri)
+                .setCallerTag(callerTag)
+                .setTargetSize(100, 100)
+                .setReusableBitmap(reusableBitmap)
+                .setCallback(new ImageRequest.Callback() {
+                    @Override
+                    public void onCompleted(ImageResponse response) {
+                        responses.add(response);
+                    }
+                })
+                .build();
+    }
+
+    private static ImageRequest newRedirectedRequest(
+            Uri uri,
+            final ArrayList<ImageResponse> responses) {
+        return new ImageRequest.Builder(RuntimeEnvironment.application, uri)
+                .setAllowCachedRedirects(true)
+                .setTargetSize(100, 100)
+                .setCallback(new ImageRequest.Callback() {
+                    @Override
+                    public void onCompleted(ImageResponse response) {
+                        responses.add(response);
+                    }
+                })
+                .build();
+    }
+
+    private static ImageRequest newRecordingRequest(
+            Uri uri,
+            final ArrayList<ImageResponse> responses) {
+        return new ImageRequest.Builder(RuntimeEnvironment.application, uri)
+                .setCallback(new ImageRequest.Callback() {
+                    @Override
+                    public void onCompleted(ImageResponse response) {
+                        responses.add(response);
+                    }
+                })
+                .build();
+    }
+
+    // Decodes into options.inBitmap, like the platform does, which Robolectric's shadow doesn't
+    @Implements(BitmapFactory.class)
+    public static class ShadowReusingBitmapFactory {
+        @Implementation
+        public static Bitmap decodeByteArray(
+                byte[] data,
+                int offset,
+                int length,
+                BitmapFactory.Options options) {
+            if (options != null && options.inBitmap != null && !options.inJustDecodeBounds) {
+                return options.inBitmap;
+            }
+            return ShadowBitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+    }
+}
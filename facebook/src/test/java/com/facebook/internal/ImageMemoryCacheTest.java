@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.internal;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import com.facebook.FacebookTestCase;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public final class ImageMemoryCacheTest extends FacebookTestCase {
+    private static final Uri URI_A = Uri.parse("https://graph.facebook.com/4/picture?width=50");
+    private static final Uri URI_B = Uri.parse("https://graph.facebook.com/5/picture?width=50");
+    private static final Uri CDN_URI = Uri.parse("https://scontent.fbcdn.net/v/4.jpg");
+
+    @Test
+    public void testPutGet() {
+        ImageMemoryCache cache = new ImageMemoryCache(limitCacheSize(1024 * 1024));
+        Bitmap bitmap = createBitmap();
+
+        assertNull(cache.get(URI_A, true));
+        cache.put(URI_A, bitmap);
+        assertSame(bitmap, cache.get(URI_A, true));
+        assertSame(bitmap, cache.get(URI_A, false));
+        assertNull(cache.get(URI_B, true));
+
+        ImageMemoryCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.getEntryCount());
+        assertEquals(bitmap.getByteCount(), stats.getByteCount());
+        assertEquals(2, stats.getHitCount());
+        assertEquals(2, stats.getMissCount());
+        assertEquals(1, stats.getPutCount());
+    }
+
+    @Test
+    public void testRedirects() {
+        ImageMemoryCache cache = new ImageMemoryCache(limitCacheSize(1024 * 1024));
+        Bitmap bitmap = createBitmap();
+
+        cache.put(CDN_URI, bitmap);
+        cache.putRedirect(URI_A, CDN_URI);
+
+        ImageMemoryCache.CacheHit hit = cache.getCacheHit(URI_A, true);
+        assertNotNull(hit);
+        assertSame(bitmap, hit.bitmap);
+        assertTrue(hit.isRedirect);
+
+        // Requests that don't allow cached redirects must not see them
+        assertNull(cache.get(URI_A, false));
+
+        // Redirects don't count against the byte limit
+        assertEquals(1, cache.getStats().getEntryCount());
+    }
+
+    @Test
+    public void testRedirectCycle() {
+        ImageMemoryCache cache = new ImageMemoryCache(limitCacheSize(1024 * 1024));
+        cache.putRedirect(URI_A, URI_B);
+        cache.putRedirect(URI_B, URI_A);
+
+        assertNull(cache.get(URI_A, true));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        Bitmap bitmap = createBitmap();
+        ImageMemoryCache cache = new ImageMemoryCache(limitCacheSize(2 * bitmap.getByteCount()));
+
+        cache.put(URI_A, bitmap);
+        cache.put(URI_B, createBitmap());
+        // Touch A so that B is the eldest
+        assertNotNull(cache.get(URI_A, false));
+        cache.put(CDN_URI, createBitmap());
+
+        assertNotNull(cache.get(URI_A, false));
+        assertNull(cache.get(URI_B, false));
+        assertNotNull(cache.get(CDN_URI, false));
+        assertEquals(1, cache.getStats().getEvictionCount());
+        assertEquals(2 * bitmap.getByteCount(), cache.getStats().getByteCount());
+    }
+
+    @Test
+    public void testOversizedBitmapIsNotCached() {
+        Bitmap bitmap = createBitmap();
+        ImageMemoryCache cache = new ImageMemoryCache(limitCacheSize(bitmap.getByteCount() - 1));
+
+        cache.put(URI_A, bitmap);
+        assertNull(cache.get(URI_A, false));
+        assertEquals(0, cache.getStats().getByteCount());
+    }
+
+    @Test
+    public void testSetLimitsTrims() {
+        Bitmap bitmap = createBitmap();
+        ImageMemoryCache cache = new ImageMemoryCache(limitCacheSize(2 * bitmap.getByteCount()));
+        cache.put(URI_A, bitmap);
+        cache.put(URI_B, createBitmap());
+
+        cache.setLimits(limitCacheSize(bitmap.getByteCount()));
+        assertEquals(1, cache.getStats().getEntryCount());
+        assertNotNull(cache.get(URI_B, false));
+    }
+
+    @Test
+    public void testRecycledBitmapIsDropped() {
+        ImageMemoryCache cache = new ImageMemoryCache(limitCacheSize(1024 * 1024));
+        Bitmap bitmap = createBitmap();
+        cache.put(URI_A, bitmap);
+
+        bitmap.recycle();
+        assertNull(cache.get(URI_A, false));
+        assertEquals(0, cache.getStats().getByteCount());
+    }
+
+    @Test
+    public void testOnTrimMemory() {
+        Bitmap bitmap = createBitmap();
+        ImageMemoryCache cache = new ImageMemoryCache(limitCacheSize(1024 * 1024));
+        cache.put(URI_A, bitmap);
+        cache.put(URI_B, createBitmap());
+
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(2, cache.getStats().getEntryCount());
+
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(1, cache.getStats().getEntryCount());
+        assertNotNull(cache.get(URI_B, false));
+
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+        assertEquals(0, cache.getStats().getEntryCount());
+        assertEquals(0, cache.getStats().getByteCount());
+    }
+
+    private static Bitmap createBitmap() {
+        return Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+    }
+
+    private static ImageMemoryCache.Limits limitCacheSize(long n) {
+        ImageMemoryCache.Limits limits = new ImageMemoryCache.Limits();
+        limits.setByteCount(n);
+        return limits;
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.internal;
+
+import com.facebook.FacebookTestCase;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public final class ImageResponseCacheTest extends FacebookTestCase {
+    private static final long NOW = 1400000000000L;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Test
+    public void testFreshnessPrefersMaxAge() {
+        assertEquals(600 * 1000, ImageResponseCache.CacheValidators.getFreshnessMillis(
+                "public, max-age=600", NOW, NOW + HOUR, NOW - HOUR, NOW));
+        assertEquals(0, ImageResponseCache.CacheValidators.getFreshnessMillis(
+                "no-cache, max-age=600", NOW, NOW + HOUR, 0, NOW));
+        // A malformed max-age falls back to Expires
+        assertEquals(HOUR, ImageResponseCache.CacheValidators.getFreshnessMillis(
+                "max-age=soon", NOW, NOW + HOUR, 0, NOW));
+    }
+
+    @Test
+    public void testFreshnessFallsBackToDates() {
+        // Expires is relative to the response's Date, not the local clock
+        assertEquals(HOUR, ImageResponseCache.CacheValidators.getFreshnessMillis(
+                null, NOW - HOUR, NOW, 0, NOW));
+        assertEquals(0, ImageResponseCache.CacheValidators.getFreshnessMillis(
+                null, NOW, NOW - HOUR, 0, NOW));
+        assertEquals(HOUR, ImageResponseCache.CacheValidators.getFreshnessMillis(
+                null, NOW, 0, NOW - 10 * HOUR, NOW));
+        assertEquals(
+                ImageResponseCache.DEFAULT_FRESHNESS_MILLIS,
+                ImageResponseCache.CacheValidators.getFreshnessMillis(null, 0, 0, 0, NOW));
+    }
+
+    @Test
+    public void testContentTagRoundTrip() {
+        ImageResponseCache.CacheValidators validators = new ImageResponseCache.CacheValidators(
+                "\"abc\"", null, NOW, HOUR);
+        ImageResponseCache.CacheValidators read =
+                ImageResponseCache.CacheValidators.fromContentTag(validators.toContentTag());
+
+        assertNotNull(read);
+        assertEquals("\"abc\"", read.etag);
+        assertNull(read.lastModified);
+        assertEquals(NOW, read.fetchedTime);
+        assertEquals(HOUR, read.freshnessMillis);
+        assertTrue(read.canRevalidate());
+        assertFalse(read.isStale(NOW + HOUR - 1));
+        assertTrue(read.isStale(NOW + HOUR));
+        // A clock that went backwards can't be trusted to say the image is fresh
+        assertTrue(read.isStale(NOW - 1));
+
+        assertNull(ImageResponseCache.CacheValidators.fromContentTag(null));
+        assertNull(ImageResponseCache.CacheValidators.fromContentTag("etag"));
+        assertFalse(new ImageResponseCache.CacheValidators(null, null, NOW, HOUR)
+                .canRevalidate());
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2014-present, Facebook, Inc. All rights reserved.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to use,
+ * copy, modify, and distribute this software in source code or binary form for use
+ * in connection with the web services and APIs provided by Facebook.
+ *
+ * As with any software that integrates with the Facebook platform, your use of
+ * this software is subject to the Facebook Developer Principles and Policies
+ * [http://developers.facebook.com/policy/]. This copyright notice shall be
+ * included in all copies or substantial portions of the software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.internal;
+
+import com.facebook.FacebookSdk;
+import com.facebook.FacebookTestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public final class PackFileCacheTest extends FacebookTestCase {
+    private File file;
+
+    @Before
+    public void before() {
+        FacebookSdk.sdkInitialize(RuntimeEnvironment.application);
+        file = new File(FacebookSdk.getCacheDir(), "PackFileCacheTest.pack");
+        file.delete();
+    }
+
+    @After
+    public void after() {
+        file.delete();
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        PackFileCache cache = new PackFileCache(file, 64, 256);
+
+        assertNull(cache.get("a"));
+        assertTrue(cache.put("a", "http://example.com/é"));
+        assertTrue(cache.put("b", "2"));
+        assertEquals("http://example.com/é", cache.get("a"));
+        assertEquals("2", cache.get("b"));
+
+        assertTrue(cache.put("a", "3"));
+        assertEquals("3", cache.get("a"));
+        assertEquals(2, cache.getEntryCount());
+
+        cache.remove("a");
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+    }
+
+    @Test
+    public void testEntriesSurviveReopening() throws Exception {
+        PackFileCache cache = new PackFileCache(file, 64, 256);
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+
+        cache = new PackFileCache(file, 64, 256);
+        assertEquals(20, cache.getEntryCount());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("value" + i, cache.get("key" + i));
+        }
+
+        // A file of different dimensions is started over
+        cache = new PackFileCache(file, 32, 256);
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        PackFileCache cache = new PackFileCache(file, 16, 128);
+        for (int i = 0; i < 8; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        cache.get("key0");
+
+        cache.put("key8", "value8");
+
+        assertEquals(8, cache.getEntryCount());
+        assertNull(cache.get("key1"));
+        assertEquals("value0", cache.get("key0"));
+        assertEquals("value8", cache.get("key8"));
+    }
+
+    @Test
+    public void testTombstonesAreRebuiltAway() throws Exception {
+        PackFileCache cache = new PackFileCache(file, 16, 128);
+        for (int i = 0; i < 200; i++) {
+            cache.put("key" + i, "value" + i);
+            if (i % 3 == 0) {
+                cache.remove("key" + i);
+            }
+        }
+
+        assertTrue(cache.getEntryCount() <= 8);
+        assertEquals("value199", cache.get("key199"));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testTornSlotIsDropped() throws Exception {
+        PackFileCache cache = new PackFileCache(file, 2, 128);
+        cache.put("a", "value");
+
+        // Damage the value of the only entry, as a torn write would
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        for (long offset = 32; offset < randomAccessFile.length(); offset++) {
+            randomAccessFile.seek(offset);
+            if (randomAccessFile.read() == 'v') {
+                randomAccessFile.seek(offset);
+                randomAccessFile.write('w');
+                break;
+            }
+        }
+        randomAccessFile.close();
+
+        cache = new PackFileCache(file, 2, 128);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void testOversizedEntryIsRejected() throws Exception {
+        PackFileCache cache = new PackFileCache(file, 16, 64);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            value.append('x');
+        }
+
+        assertFalse(cache.put("a", value.toString()));
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        PackFileCache cache = new PackFileCache(file, 16, 128);
+        cache.put("a", "1");
+        cache.clear();
+
+        assertNull(cache.get("a"));
+        assertNull(new PackFileCache(file, 16, 128).get("a"));
+    }
+}
@@ -20,12 +20,15 @@
 
 package com.facebook.internal;
 
+import android.os.SystemClock;
+
 import com.facebook.FacebookTestCase;
 
 import org.junit.Test;
 
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.Executor;
 
 import static org.junit.Assert.*;
@@ -166,6 +169,146 @@ public class WorkQueueTest extends FacebookTestCase {
         assertEquals(lowCount, lowRun.getRunCount());
     }
 
+    @Test
+    public void testPriorities() {
+        ScriptableExecutor executor = new ScriptableExecutor();
+        WorkQueue manager = new WorkQueue(1, executor);
+        ArrayList<String> order = new ArrayList<String>();
+
+        addActiveWorkItem(manager, new RecordingRunnable(order, "first"));
+        manager.addActiveWorkItem(
+                new RecordingRunnable(order, "low"), WorkQueue.PRIORITY_LOW);
+        manager.addActiveWorkItem(new RecordingRunnable(order, "default"));
+        manager.addActiveWorkItem(
+                new RecordingRunnable(order, "high"), WorkQueue.PRIORITY_HIGH);
+        WorkQueue.WorkItem raised = manager.addActiveWorkItem(
+                new RecordingRunnable(order, "raised"), WorkQueue.PRIORITY_LOW);
+        raised.setPriority(WorkQueue.PRIORITY_HIGH + 1);
+        manager.validate();
+
+        for (int i = 0; i < 5; i++) {
+            executeNext(manager, executor);
+        }
+        assertEquals(0, executor.getPendingCount());
+        assertEquals(
+                Arrays.asList("first", "raised", "high", "default", "low"),
+                order);
+    }
+
+    @Test
+    public void testFairnessTagsTakeTurns() {
+        ScriptableExecutor executor = new ScriptableExecutor();
+        WorkQueue manager = new WorkQueue(1, executor);
+        ArrayList<String> order = new ArrayList<String>();
+        Object busyTag = new Object();
+        Object quietTag = new Object();
+
+        addActiveWorkItem(manager, new RecordingRunnable(order, "first"));
+        for (int i = 0; i < 3; i++) {
+            addTaggedWorkItem(manager, new RecordingRunnable(order, "busy" + i), busyTag);
+        }
+        addTaggedWorkItem(manager, new RecordingRunnable(order, "quiet0"), quietTag);
+        addTaggedWorkItem(manager, new RecordingRunnable(order, "quiet1"), quietTag);
+
+        for (int i = 0; i < 6; i++) {
+            executeNext(manager, executor);
+        }
+        assertEquals(
+                Arrays.asList("first", "busy0", "quiet0", "busy1", "quiet1", "busy2"),
+                order);
+    }
+
+    @Test
+    public void testExpiredItemsAreDropped() {
+        ScriptableExecutor executor = new ScriptableExecutor();
+        WorkQueue manager = new WorkQueue(1, executor);
+        CountingRunnable run = new CountingRunnable();
+        CountingRunnable expiredRun = new CountingRunnable();
+        CountingRunnable expiredCallback = new CountingRunnable();
+
+        addActiveWorkItem(manager, run);
+        WorkQueue.WorkItem expiring = manager.addActiveWorkItem(
+                expiredRun,
+                true,
+                WorkQueue.PRIORITY_DEFAULT,
+                null,
+                1000,
+                expiredCallback);
+        manager.addActiveWorkItem(run, false);
+
+        SystemClock.setCurrentTimeMillis(SystemClock.uptimeMillis() + 1001);
+        executeNext(manager, executor);
+        executeNext(manager, executor);
+        assertEquals(0, executor.getPendingCount());
+
+        assertEquals(2, run.getRunCount());
+        assertEquals(0, expiredRun.getRunCount());
+        assertEquals(1, expiredCallback.getRunCount());
+        assertFalse(expiring.cancel());
+
+        WorkQueue.Stats stats = manager.getStats();
+        assertEquals(0, stats.getPendingCount());
+        assertEquals(0, stats.getRunningCount());
+        assertEquals(2, stats.getCompletedCount());
+        assertEquals(1, stats.getExpiredCount());
+        assertTrue(stats.getMaxWaitMillis() >= 1001);
+    }
+
+    @Test
+    public void testMaxConcurrentPerTag() {
+        CountingRunnable run = new CountingRunnable();
+        ScriptableExecutor executor = new ScriptableExecutor();
+        WorkQueue manager = new WorkQueue(4, executor);
+        manager.setMaxConcurrentPerTag(2);
+        Object tag = new Object();
+
+        for (int i = 0; i < 3; i++) {
+            addTaggedWorkItem(manager, run, tag);
+        }
+        addActiveWorkItem(manager, run);
+        assertEquals(3, executor.getPendingCount());
+        assertEquals(1, manager.getStats().getPendingCount());
+
+        // Finishing a tagged item lets the last one start
+        executeNext(manager, executor);
+        assertEquals(3, executor.getPendingCount());
+        assertEquals(0, manager.getStats().getPendingCount());
+
+        manager.setMaxConcurrentPerTag(Integer.MAX_VALUE);
+        for (int i = 0; i < 3; i++) {
+            executeNext(manager, executor);
+        }
+        assertEquals(4, run.getRunCount());
+    }
+
+    @Test
+    public void testSetMaxConcurrent() {
+        CountingRunnable run = new CountingRunnable();
+        ScriptableExecutor executor = new ScriptableExecutor();
+        WorkQueue manager = new WorkQueue(1, executor);
+
+        for (int i = 0; i < 5; i++) {
+            addActiveWorkItem(manager, run);
+        }
+        assertEquals(1, executor.getPendingCount());
+
+        manager.setMaxConcurrent(3);
+        manager.validate();
+        assertEquals(3, executor.getPendingCount());
+
+        // Lowering the limit lets running items finish without starting new ones
+        manager.setMaxConcurrent(1);
+        executeNext(manager, executor);
+        executeNext(manager, executor);
+        assertEquals(1, executor.getPendingCount());
+        executeNext(manager, executor);
+        assertEquals(1, executor.getPendingCount());
+        executeNext(manager, executor);
+        executeNext(manager, executor);
+        assertEquals(0, executor.getPendingCount());
+        assertEquals(5, run.getRunCount());
+    }
+
     // Test cancelling running work item, completed work item
     @Test
     public void testThreadStress() {
@@ -193,6 +336,22 @@ public class WorkQueueTest extends FacebookTestCase {
         return workItem;
     }
 
+    private WorkQueue.WorkItem addTaggedWorkItem(
+            WorkQueue manager,
+            Runnable runnable,
+            Object fairnessTag) {
+        manager.validate();
+        WorkQueue.WorkItem workItem = manager.addActiveWorkItem(
+                runnable,
+                false,
+                WorkQueue.PRIORITY_DEFAULT,
+                fairnessTag,
+                WorkQueue.NO_TIMEOUT,
+                null);
+        manager.validate();
+        return workItem;
+    }
+
     private void executeNext(WorkQueue manager, ScriptableExecutor executor) {
         manager.validate();
         executor.runNext();
@@ -314,6 +473,21 @@ public class WorkQueueTest extends FacebookTestCase {
         }
     }
 
+    static class RecordingRunnable implements Runnable {
+        private final ArrayList<String> order;
+        private final String name;
+
+        RecordingRunnable(ArrayList<String> order, String name) {
+            this.order = order;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            order.add(name);
+        }
+    }
+
     static class CountingRunnable implements Runnable {
         private int runCount = 0;
 